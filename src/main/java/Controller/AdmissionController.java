@@ -0,0 +1,153 @@
+package Controller;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Admission control for one class of requests, such as reads or writes: at most limit requests run at once, a few more
+ * may wait briefly for a slot, and everything beyond that is shed immediately so the caller can fail fast.
+ *
+ * The limit adapts to observed latency the way TCP adapts its window (AIMD): every request that completes within the
+ * target latency raises the limit by 1/limit, so by about one per limit's worth of requests, and a request slower than
+ * the target cuts it by a tenth. Cuts are spaced at least one target latency apart, so a single burst of slow requests
+ * only counts once.
+ */
+public class AdmissionController {
+    private final String name;
+    private final int minLimit;
+    private final int maxLimit;
+    private final int maxQueue;
+    private final long targetLatencyNanos;
+    private final long queueTimeoutNanos;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition slotFreed = lock.newCondition();
+    private double limit;
+    private int inFlight;
+    private int queued;
+    private long lastDecrease;
+    private long admitted;
+    private long admittedAfterQueueing;
+    private long shed;
+
+    /**
+     * @param name used in metrics
+     * @param initialLimit concurrent requests allowed at first
+     * @param minLimit the limit never drops below this
+     * @param maxLimit the limit never rises above this
+     * @param maxQueue requests allowed to wait for a slot once the limit is reached
+     * @param targetLatencyMillis requests slower than this shrink the limit
+     * @param queueTimeoutMillis how long a queued request waits before it is shed
+     */
+    public AdmissionController(String name, int initialLimit, int minLimit, int maxLimit, int maxQueue,
+            long targetLatencyMillis, long queueTimeoutMillis){
+        if (minLimit < 1 || initialLimit < minLimit || maxLimit < initialLimit || maxQueue < 0){
+            throw new IllegalArgumentException("Limits must satisfy 1 <= min <= initial <= max and the queue must not be negative");
+        }
+        this.name = name;
+        this.limit = initialLimit;
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.maxQueue = maxQueue;
+        this.targetLatencyNanos = TimeUnit.MILLISECONDS.toNanos(targetLatencyMillis);
+        this.queueTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(queueTimeoutMillis);
+    }
+
+    /**
+     * Admits the request, waiting up to the queue timeout for a slot if the limit is reached.
+     *
+     * @return true when admitted, in which case release must be called once the request completes; false when shed
+     * @throws InterruptedException
+     */
+    public boolean tryAcquire() throws InterruptedException{
+        lock.lock();
+        try{
+            if (inFlight < (int) limit){
+                inFlight++;
+                admitted++;
+                return true;
+            }
+            if (queued >= maxQueue){
+                shed++;
+                return false;
+            }
+            queued++;
+            try{
+                long remaining = queueTimeoutNanos;
+                while (inFlight >= (int) limit){
+                    if (remaining <= 0){
+                        shed++;
+                        return false;
+                    }
+                    remaining = slotFreed.awaitNanos(remaining);
+                }
+            }
+            finally{
+                queued--;
+            }
+            inFlight++;
+            admitted++;
+            admittedAfterQueueing++;
+            return true;
+        }
+        finally{
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Frees the request's slot and adjusts the limit to how long it took.
+     *
+     * @param latencyNanos time the request took once admitted
+     */
+    public void release(long latencyNanos){
+        lock.lock();
+        try{
+            inFlight--;
+            long now = System.nanoTime();
+            if (latencyNanos > targetLatencyNanos){
+                if (now - lastDecrease > targetLatencyNanos){
+                    limit = Math.max(minLimit, limit * 0.9);
+                    lastDecrease = now;
+                }
+            }
+            else{
+                limit = Math.min(maxLimit, limit + 1 / limit);
+            }
+            if (inFlight < (int) limit){
+                slotFreed.signal();
+            }
+        }
+        finally{
+            lock.unlock();
+        }
+    }
+
+    public String getName(){
+        return name;
+    }
+
+    /**
+     * @return the current limit, requests in flight and waiting, and counters for requests admitted, admitted after
+     * waiting in the queue, and shed.
+     */
+    public Map<String, Long> getMetrics(){
+        lock.lock();
+        try{
+            Map<String, Long> metrics = new LinkedHashMap<String, Long>();
+            metrics.put("limit", (long) limit);
+            metrics.put("inFlight", (long) inFlight);
+            metrics.put("queued", (long) queued);
+            metrics.put("admitted", admitted);
+            metrics.put("admittedAfterQueueing", admittedAfterQueueing);
+            metrics.put("shed", shed);
+            return metrics;
+        }
+        finally{
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package Controller;
+
+import io.javalin.http.Context;
+import java.io.IOException;
+import java.util.*;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.cbor.databind.CBORMapper;
+import com.fasterxml.jackson.dataformat.smile.databind.SmileMapper;
+
+import Util.Span;
+import Util.Tracing;
+
+/**
+ * Picks the Jackson format a request body is parsed with and a response is encoded in. Besides JSON, which stays the
+ * default, callers that don't need human readable payloads can use the binary formats Smile and CBOR: the request body
+ * is parsed according to its Content-Type and the response encoded in the first supported type listed in Accept.
+ * Anything else, including a missing header, means JSON.
+ */
+public class ContentNegotiator {
+    public static final String JSON = "application/json";
+    public static final String SMILE = "application/x-jackson-smile";
+    public static final String CBOR = "application/cbor";
+
+    //Keyed by media type, JSON first. Each mapper builds and caches its own serializers.
+    private final Map<String, ObjectMapper> mappers = new LinkedHashMap<String, ObjectMapper>();
+
+    /**
+     * @param jsonMapper the mapper used for JSON, shared with the rest of the application
+     */
+    public ContentNegotiator(ObjectMapper jsonMapper){
+        mappers.put(JSON, jsonMapper);
+        mappers.put(SMILE, new SmileMapper());
+        mappers.put(CBOR, new CBORMapper());
+    }
+
+    /**
+     * @return every supported media type, JSON first
+     */
+    public Set<String> getMediaTypes(){
+        return mappers.keySet();
+    }
+
+    /**
+     * @param mediaType one of the supported media types
+     * @return the mapper for that format
+     */
+    public ObjectMapper getMapper(String mediaType){
+        return mappers.get(mediaType);
+    }
+
+    /**
+     * Parses the request body in the format named by its Content-Type.
+     *
+     * @param context
+     * @param type
+     * @return the parsed body
+     * @throws IOException if the body is not valid in that format
+     */
+    public <T> T readBody(Context context, Class<T> type) throws IOException{
+        String mediaType = requestType(context);
+        try (Span span = Tracing.startSpan("ContentNegotiator.readBody").setAttribute("content.type", mediaType)){
+            try{
+                return mappers.get(mediaType).readValue(context.bodyAsBytes(), type);
+            }
+            catch(IOException e){
+                span.setError(e.getMessage());
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Encodes the value as the response body in the format the client accepts.
+     *
+     * @param context
+     * @param value
+     * @throws IOException if the value can't be encoded
+     */
+    //The span is only closed by try-with-resources, never referenced in the block
+    @SuppressWarnings("try")
+    public void respond(Context context, Object value) throws IOException{
+        String mediaType = responseType(context);
+        //The same url answers in different formats, so caches must key on Accept too
+        context.header("Vary", "Accept");
+        try (Span span = Tracing.startSpan("ContentNegotiator.respond").setAttribute("content.type", mediaType)){
+            if (mediaType.equals(JSON)){
+                context.json(value);
+            }
+            else{
+                context.contentType(mediaType).result(mappers.get(mediaType).writeValueAsBytes(value));
+            }
+        }
+    }
+
+    /**
+     * @return the supported media type named by the request's Content-Type, JSON otherwise
+     */
+    String requestType(Context context){
+        String mediaType = mediaType(context.header("Content-Type"));
+        return mappers.containsKey(mediaType) ? mediaType : JSON;
+    }
+
+    /**
+     * @return the first supported media type listed in the request's Accept header, JSON otherwise
+     */
+    String responseType(Context context){
+        String accept = context.header("Accept");
+        if (accept != null){
+            for (String range : accept.split(",")){
+                String mediaType = mediaType(range);
+                if (mappers.containsKey(mediaType)){
+                    return mediaType;
+                }
+            }
+        }
+        return JSON;
+    }
+
+    /**
+     * @return the media type without parameters such as charset or q, lower case, or "" if there is none
+     */
+    private static String mediaType(String header){
+        if (header == null){
+            return "";
+        }
+        int parameters = header.indexOf(';');
+        return (parameters < 0 ? header : header.substring(0, parameters)).trim().toLowerCase(Locale.ROOT);
+    }
+}
@@ -0,0 +1,361 @@
+package Controller;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Remembers the first response to every request made with an idempotency key, so that a client retrying the request
+ * gets that response again instead of having the request carried out twice.
+ *
+ * While the first request for a key is still running, duplicates wait for its response rather than racing it. If the
+ * first request ends without a response worth keeping, one of the waiting duplicates carries the request out itself.
+ *
+ * At most maxKeys responses are kept, each for the time to live; the oldest keys are dropped first. Keys whose first
+ * request is still running are never dropped, since a retry would then carry it out again, so the store holds more
+ * than maxKeys keys while that many requests are in progress. Given a file, every
+ * response kept is also appended to it and the unexpired ones are read back on startup, so a restart does not forget
+ * them. The file is rewritten without the expired and dropped responses once it has grown to twice maxKeys lines.
+ */
+public class IdempotencyStore implements Closeable {
+    /**
+     * What a caller claiming a key has to do next.
+     */
+    public enum Outcome {
+        //No response is known for the key, the caller carries the request out and completes or abandons the claim
+        EXECUTE,
+        //The response to the first request with the key is in the claim, the caller sends it again
+        REPLAY,
+        //The key was first used with a different request body
+        MISMATCH,
+        //The first request with the key is still running after the caller waited as long as it may
+        IN_PROGRESS
+    }
+
+    /**
+     * A response as it was sent, with the fingerprint of the request it answered. Public fields and a no-args
+     * constructor so it can be written to the file as a line of JSON.
+     */
+    public static class StoredResponse {
+        public String key;
+        public String fingerprint;
+        public long expiresAt;
+        public int status;
+        public String contentType;
+        public byte[] body;
+
+        public StoredResponse(){
+        }
+
+        /**
+         * @param status
+         * @param contentType may be null
+         * @param body
+         */
+        public StoredResponse(int status, String contentType, byte[] body){
+            this.status = status;
+            this.contentType = contentType;
+            this.body = body;
+        }
+    }
+
+    /**
+     * The result of claiming a key.
+     */
+    public class Claim {
+        private final Outcome outcome;
+        private final String key;
+        private final Entry entry;
+
+        Claim(Outcome outcome, String key, Entry entry){
+            this.outcome = outcome;
+            this.key = key;
+            this.entry = entry;
+        }
+
+        public Outcome getOutcome(){
+            return outcome;
+        }
+
+        /**
+         * @return the response to send again when the outcome is REPLAY
+         */
+        public StoredResponse getResponse(){
+            return outcome == Outcome.REPLAY ? entry.response.getNow(null) : null;
+        }
+
+        /**
+         * Keeps the response for the key and hands it to the duplicates waiting for it. Only valid for EXECUTE.
+         *
+         * @param response
+         */
+        public void complete(StoredResponse response){
+            response.key = key;
+            response.fingerprint = entry.fingerprint;
+            response.expiresAt = entry.expiresAt;
+            store(key, entry, response);
+        }
+
+        /**
+         * Forgets the key without keeping a response, so the request can be made again. Only valid for EXECUTE.
+         */
+        public void abandon(){
+            synchronized (IdempotencyStore.this){
+                entries.remove(key, entry);
+            }
+            //Waiting duplicates claim the key again
+            entry.response.complete(null);
+        }
+    }
+
+    private static class Entry {
+        final String fingerprint;
+        final long expiresAt;
+        final CompletableFuture<StoredResponse> response = new CompletableFuture<StoredResponse>();
+
+        Entry(String fingerprint, long expiresAt){
+            this.fingerprint = fingerprint;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private final int maxKeys;
+    private final long timeToLiveMillis;
+    private final Path file;
+    private final ObjectMapper mapper = new ObjectMapper();
+    //Insertion order is expiry order, as every key lives equally long
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>();
+    private OutputStream out;
+    private long fileLines;
+    private long stored;
+    private long replayed;
+    private long waited;
+    private long mismatched;
+    private long dropped;
+
+    /**
+     * @param maxKeys number of responses kept before the oldest are dropped
+     * @param timeToLiveMillis how long a response is kept
+     * @param file where responses are persisted, null to keep them in memory only
+     * @throws UncheckedIOException when the file can't be read or written
+     */
+    public IdempotencyStore(int maxKeys, long timeToLiveMillis, Path file){
+        if (maxKeys < 1 || timeToLiveMillis < 1){
+            throw new IllegalArgumentException("maxKeys and timeToLiveMillis must be positive");
+        }
+        this.maxKeys = maxKeys;
+        this.timeToLiveMillis = timeToLiveMillis;
+        this.file = file;
+        if (file != null){
+            try{
+                load();
+                rewrite();
+            }
+            catch(IOException e){
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    /**
+     * Claims the key for a request. If the first request with the key is still running this waits up to maxWaitMillis
+     * for its response.
+     *
+     * @param key the idempotency key, scoped by the caller to the endpoint
+     * @param fingerprint identifies the request body, a key reused with another body is a MISMATCH
+     * @param maxWaitMillis how long to wait for a request in progress
+     * @return the claim, telling the caller what to do
+     * @throws InterruptedException
+     */
+    public Claim claim(String key, String fingerprint, long maxWaitMillis) throws InterruptedException{
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(maxWaitMillis);
+        while (true){
+            Entry entry;
+            synchronized (this){
+                long now = System.currentTimeMillis();
+                expire(now);
+                entry = entries.get(key);
+                if (entry != null && entry.expiresAt <= now && entry.response.isDone()){
+                    entries.remove(key);
+                    entry = null;
+                }
+                if (entry == null){
+                    entry = new Entry(fingerprint, now + timeToLiveMillis);
+                    entries.put(key, entry);
+                    dropOldest();
+                    return new Claim(Outcome.EXECUTE, key, entry);
+                }
+                if (!entry.fingerprint.equals(fingerprint)){
+                    mismatched++;
+                    return new Claim(Outcome.MISMATCH, key, entry);
+                }
+                if (entry.response.isDone()){
+                    replayed++;
+                    return new Claim(Outcome.REPLAY, key, entry);
+                }
+                waited++;
+            }
+            try{
+                entry.response.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+            }
+            catch(TimeoutException e){
+                return new Claim(Outcome.IN_PROGRESS, key, entry);
+            }
+            catch(ExecutionException e){
+                //Never completed exceptionally, abandoned claims complete with null
+            }
+        }
+    }
+
+    /**
+     * @return the number of keys tracked, requests in progress included
+     */
+    public synchronized int getKeyCount(){
+        return entries.size();
+    }
+
+    /**
+     * @return counters of responses stored, replayed, duplicates that waited for one, keys reused with another body and
+     * keys dropped before they expired
+     */
+    public synchronized Map<String, Long> getMetrics(){
+        Map<String, Long> metrics = new LinkedHashMap<String, Long>();
+        metrics.put("keys", (long) entries.size());
+        metrics.put("stored", stored);
+        metrics.put("replayed", replayed);
+        metrics.put("waited", waited);
+        metrics.put("mismatched", mismatched);
+        metrics.put("dropped", dropped);
+        return metrics;
+    }
+
+    /**
+     * Closes the file, if there is one.
+     */
+    @Override
+    public synchronized void close() throws IOException{
+        if (out != null){
+            out.close();
+            out = null;
+        }
+    }
+
+    private void store(String key, Entry entry, StoredResponse response){
+        synchronized (this){
+            stored++;
+            //A key dropped meanwhile is not brought back, its duplicates still get the response below
+            if (entries.get(key) == entry && out != null){
+                try{
+                    writeLine(response);
+                    out.flush();
+                    if (fileLines >= 2L * maxKeys){
+                        rewrite();
+                    }
+                }
+                catch(IOException e){
+                    //The response is still kept in memory, only a restart would forget it
+                    System.out.println("Idempotency store not persisted: " + e.getMessage());
+                }
+            }
+        }
+        entry.response.complete(response);
+    }
+
+    /**
+     * Removes the expired keys from the front of the map. Requests still running are left, they expire once done.
+     */
+    private void expire(long now){
+        Iterator<Entry> iterator = entries.values().iterator();
+        while (iterator.hasNext()){
+            Entry entry = iterator.next();
+            if (entry.expiresAt > now){
+                return;
+            }
+            if (entry.response.isDone()){
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * Removes the oldest keys beyond maxKeys, skipping the ones whose first request is still running.
+     */
+    private void dropOldest(){
+        Iterator<Entry> iterator = entries.values().iterator();
+        while (entries.size() > maxKeys && iterator.hasNext()){
+            if (iterator.next().response.isDone()){
+                iterator.remove();
+                dropped++;
+            }
+        }
+    }
+
+    private void load() throws IOException{
+        if (!Files.exists(file)){
+            return;
+        }
+        long now = System.currentTimeMillis();
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)){
+            String line;
+            while ((line = reader.readLine()) != null){
+                StoredResponse response;
+                try{
+                    response = mapper.readValue(line, StoredResponse.class);
+                }
+                catch(IOException e){
+                    //A line cut short by a crash, everything before it is intact
+                    break;
+                }
+                if (response.expiresAt > now){
+                    Entry entry = new Entry(response.fingerprint, response.expiresAt);
+                    entry.response.complete(response);
+                    entries.remove(response.key);
+                    entries.put(response.key, entry);
+                }
+            }
+        }
+        dropOldest();
+    }
+
+    /**
+     * Replaces the file with one holding only the responses still kept, and appends to that from then on.
+     */
+    private void rewrite() throws IOException{
+        close();
+        Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+        out = new BufferedOutputStream(Files.newOutputStream(temporary));
+        fileLines = 0;
+        for (Entry entry : entries.values()){
+            StoredResponse response = entry.response.getNow(null);
+            if (response != null){
+                writeLine(response);
+            }
+        }
+        out.close();
+        Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        out = new BufferedOutputStream(Files.newOutputStream(file, StandardOpenOption.CREATE, StandardOpenOption.APPEND));
+    }
+
+    private void writeLine(StoredResponse response) throws IOException{
+        out.write(mapper.writeValueAsBytes(response));
+        out.write('\n');
+        fileLines++;
+    }
+}
@@ -0,0 +1,89 @@
+package Controller;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reads a stream of UTF-8 text one line at a time into a fixed buffer, so a request body of any size is read in
+ * constant memory. A line longer than the buffer is skipped up to its end instead of being read, and reported through
+ * isTooLong. Both "\n" and "\r\n" end a line.
+ */
+final class LineReader {
+    private final InputStream in;
+    private final byte[] buffer = new byte[64 * 1024];
+    private int position;
+    private int limit;
+    private final int maxLineBytes;
+    //One byte longer than the limit, room for the \r of a line that just fits
+    private final byte[] line;
+    private int lineNumber;
+    private boolean tooLong;
+
+    /**
+     * @param in
+     * @param maxLineBytes longest line read, in bytes without the line ending
+     */
+    LineReader(InputStream in, int maxLineBytes){
+        this.in = in;
+        this.maxLineBytes = maxLineBytes;
+        this.line = new byte[maxLineBytes + 1];
+    }
+
+    /**
+     * @return the next line without its line ending, "" for a line that was too long, or null at the end of the stream
+     * @throws IOException
+     */
+    String next() throws IOException{
+        int length = 0;
+        tooLong = false;
+        boolean any = false;
+        while (true){
+            if (position == limit){
+                limit = in.read(buffer);
+                position = 0;
+                if (limit <= 0){
+                    limit = 0;
+                    if (!any){
+                        return null;
+                    }
+                    break;
+                }
+            }
+            any = true;
+            byte next = buffer[position++];
+            if (next == '\n'){
+                break;
+            }
+            if (length < line.length){
+                line[length++] = next;
+            }
+            else{
+                tooLong = true;
+            }
+        }
+        lineNumber++;
+        if (!tooLong && length > 0 && line[length - 1] == '\r'){
+            length--;
+        }
+        if (tooLong || length > maxLineBytes){
+            tooLong = true;
+            return "";
+        }
+        return new String(line, 0, length, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return whether the line last returned by next was longer than the limit
+     */
+    boolean isTooLong(){
+        return tooLong;
+    }
+
+    /**
+     * @return the 1-based number of the line last returned by next
+     */
+    int getLineNumber(){
+        return lineNumber;
+    }
+}
@@ -0,0 +1,195 @@
+package Controller;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import Service.MessageEvent;
+import Service.MessageEventListener;
+
+/**
+ * Keeps the encoded JSON of single messages, so a hot message is answered by copying its bytes to the response without
+ * serializing it again. Entries are dropped when the service reports the message updated or deleted.
+ *
+ * A response loaded while the message changes must not be cached, or it would outlive the change. Every message id
+ * maps to one of a fixed set of generation counters, which an update or delete increments before dropping the entry.
+ * Callers read the generation before loading and the entry is only kept if the generation is still the same once it
+ * is in the map, so either the loader sees the increment or the invalidation removes what was put.
+ *
+ * The map is bounded like the rate limiter's: past maxEntries arbitrary entries are dropped until it is back to three
+ * quarters of the bound.
+ */
+public class MessageResponseCache implements MessageEventListener {
+    //Power of two, message ids sharing a counter only cost each other an uncached load now and then
+    private static final int GENERATION_STRIPES = 1024;
+
+    /**
+     * The encoded message and its ETag, as sent.
+     */
+    public static final class Response {
+        private final byte[] body;
+        private final String etag;
+
+        Response(byte[] body, String etag){
+            this.body = body;
+            this.etag = etag;
+        }
+
+        public byte[] getBody(){
+            return body;
+        }
+
+        public String getEtag(){
+            return etag;
+        }
+    }
+
+    private final ConcurrentHashMap<Integer, Response> responses = new ConcurrentHashMap<Integer, Response>();
+    private final AtomicLongArray generations = new AtomicLongArray(GENERATION_STRIPES);
+    private final AtomicBoolean sweeping = new AtomicBoolean();
+    private final int maxEntries;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong invalidations = new AtomicLong();
+    private final AtomicLong discarded = new AtomicLong();
+
+    /**
+     * @param maxEntries number of messages kept before arbitrary ones are dropped
+     */
+    public MessageResponseCache(int maxEntries){
+        if (maxEntries < 1){
+            throw new IllegalArgumentException("maxEntries must be positive");
+        }
+        this.maxEntries = maxEntries;
+    }
+
+    /**
+     * @param messageID
+     * @return the cached response, null when the message has to be loaded
+     */
+    public Response get(int messageID){
+        Response response = responses.get(messageID);
+        if (response == null){
+            misses.incrementAndGet();
+        }
+        else{
+            hits.incrementAndGet();
+        }
+        return response;
+    }
+
+    /**
+     * Read before loading the message, and handed to put with what was loaded.
+     *
+     * @param messageID
+     * @return the message's current generation
+     */
+    public long generation(int messageID){
+        return generations.get(stripe(messageID));
+    }
+
+    /**
+     * Caches the encoded message unless it changed since the generation was read.
+     *
+     * @param messageID
+     * @param generation as returned by generation before the message was loaded
+     * @param body the message encoded as JSON
+     * @param etag
+     * @return the response to send, cached or not
+     */
+    public Response put(int messageID, long generation, byte[] body, String etag){
+        Response response = new Response(body, etag);
+        responses.put(messageID, response);
+        if (generations.get(stripe(messageID)) != generation){
+            responses.remove(messageID, response);
+            discarded.incrementAndGet();
+        }
+        else if (responses.size() > maxEntries){
+            sweep();
+        }
+        return response;
+    }
+
+    /**
+     * Drops the message's entry and stops responses loaded before now from being cached.
+     *
+     * @param messageID
+     */
+    public void invalidate(int messageID){
+        generations.incrementAndGet(stripe(messageID));
+        responses.remove(messageID);
+        invalidations.incrementAndGet();
+    }
+
+    @Override
+    public void onMessageEvent(MessageEvent event){
+        //A created message can't have been cached, a miss caches nothing
+        if (event.getType() != MessageEvent.Type.CREATED){
+            invalidate(event.getMessage().getMessage_id());
+        }
+    }
+
+    /**
+     * Drops every entry and stops responses loaded before now from being cached.
+     */
+    @Override
+    public void onFlush(){
+        for (int stripe = 0; stripe < GENERATION_STRIPES; stripe++){
+            generations.incrementAndGet(stripe);
+        }
+        responses.clear();
+        invalidations.incrementAndGet();
+    }
+
+    /**
+     * @return the number of messages cached
+     */
+    public int size(){
+        return responses.size();
+    }
+
+    /**
+     * @return counters of hits, misses, invalidations, loads discarded because the message changed meanwhile, entries
+     * and bytes cached
+     */
+    public Map<String, Long> getMetrics(){
+        Map<String, Long> metrics = new LinkedHashMap<String, Long>();
+        metrics.put("hits", hits.get());
+        metrics.put("misses", misses.get());
+        metrics.put("invalidations", invalidations.get());
+        metrics.put("discarded", discarded.get());
+        metrics.put("entries", (long) responses.size());
+        long bytes = 0;
+        for (Response response : responses.values()){
+            bytes += response.body.length + response.etag.length();
+        }
+        metrics.put("bytes", bytes);
+        return metrics;
+    }
+
+    private void sweep(){
+        if (!sweeping.compareAndSet(false, true)){
+            return;
+        }
+        try{
+            Iterator<Response> iterator = responses.values().iterator();
+            int target = maxEntries - maxEntries / 4;
+            while (responses.size() > target && iterator.hasNext()){
+                iterator.next();
+                iterator.remove();
+            }
+        }
+        finally{
+            sweeping.set(false);
+        }
+    }
+
+    private static int stripe(int messageID){
+        //Spread sequential ids the way HashMap spreads hash codes
+        return (messageID ^ (messageID >>> 16)) & (GENERATION_STRIPES - 1);
+    }
+}
@@ -0,0 +1,107 @@
+package Controller;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Token bucket rate limiter keyed by an arbitrary string, such as a remote address or an account.
+ *
+ * Each bucket is a single AtomicLong holding the time at which the bucket will be full again, so checking and
+ * taking a token is one compare-and-set with no locking. A bucket that is full again is indistinguishable from a new
+ * one, which is what keeps the key map bounded: once it grows past maxKeys the full buckets are swept out, and if
+ * that is not enough the remaining keys are dropped, which only ever lets a client through early, never blocks it.
+ */
+public class RateLimiter {
+    private final ConcurrentHashMap<String, AtomicLong> buckets = new ConcurrentHashMap<String, AtomicLong>();
+    private final AtomicBoolean sweeping = new AtomicBoolean();
+    private final AtomicLong rejected = new AtomicLong();
+    //Nanoseconds it takes to refill one token
+    private final long refillNanos;
+    //Nanoseconds it takes to refill the whole bucket
+    private final long capacityNanos;
+    private final int maxKeys;
+
+    /**
+     * @param permitsPerSecond sustained rate of requests allowed per key
+     * @param burst requests a key can make at once after being idle
+     * @param maxKeys number of keys tracked before full buckets are swept out
+     */
+    public RateLimiter(double permitsPerSecond, int burst, int maxKeys){
+        if (permitsPerSecond <= 0 || burst < 1 || maxKeys < 1){
+            throw new IllegalArgumentException("permitsPerSecond, burst and maxKeys must be positive");
+        }
+        this.refillNanos = Math.max(1, (long) (TimeUnit.SECONDS.toNanos(1) / permitsPerSecond));
+        this.capacityNanos = refillNanos * burst;
+        this.maxKeys = maxKeys;
+    }
+
+    /**
+     * Takes a token from the key's bucket if there is one.
+     *
+     * @param key
+     * @return 0 when the request is allowed, otherwise the milliseconds until the next token is available
+     */
+    public long tryAcquire(String key){
+        long now = System.nanoTime();
+        AtomicLong bucket = buckets.get(key);
+        if (bucket == null){
+            //A new key starts with a full bucket
+            bucket = buckets.computeIfAbsent(key, k -> new AtomicLong(now));
+            if (buckets.size() > maxKeys){
+                sweep(now);
+            }
+        }
+        while (true){
+            long fullAt = bucket.get();
+            //Taking a token pushes the time the bucket is full again back by one refill
+            long next = Math.max(fullAt, now) + refillNanos;
+            long overdraw = next - now - capacityNanos;
+            if (overdraw > 0){
+                rejected.incrementAndGet();
+                return Math.max(1, (overdraw + 999_999) / 1_000_000);
+            }
+            if (bucket.compareAndSet(fullAt, next)){
+                return 0;
+            }
+        }
+    }
+
+    /**
+     * @return the number of keys currently tracked
+     */
+    public int getKeyCount(){
+        return buckets.size();
+    }
+
+    /**
+     * @return the number of requests rejected so far
+     */
+    public long getRejectedCount(){
+        return rejected.get();
+    }
+
+    /**
+     * Removes full buckets, and then arbitrary ones until the map is back to three quarters of its bound, so that
+     * the next sweep is a while away. Only one thread sweeps at a time, the others carry on without waiting.
+     */
+    private void sweep(long now){
+        if (!sweeping.compareAndSet(false, true)){
+            return;
+        }
+        try{
+            buckets.values().removeIf(bucket -> bucket.get() <= now);
+            Iterator<AtomicLong> iterator = buckets.values().iterator();
+            int target = maxKeys - maxKeys / 4;
+            while (buckets.size() > target && iterator.hasNext()){
+                iterator.next();
+                iterator.remove();
+            }
+        }
+        finally{
+            sweeping.set(false);
+        }
+    }
+}
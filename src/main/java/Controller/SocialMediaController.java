@@ -2,15 +2,46 @@ package Controller;
 
 import io.javalin.Javalin;
 import io.javalin.http.Context;
+import io.javalin.http.Handler;
+import io.javalin.http.HandlerType;
+import io.javalin.http.ServiceUnavailableResponse;
+import io.javalin.http.sse.SseClient;
+import io.javalin.json.JavalinJackson;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Stream;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
 
+import DAO.DataAccessException;
+import DAO.Versioned;
 import Model.Account;
+import Model.AccountStats;
+import Model.Follow;
 import Model.Message;
+import Model.MessageUpdate;
 
+import Service.MessageEvent;
+import Service.MessageFeed;
 import Service.SocialMediaService;
+import Util.Span;
+import Util.Tracing;
 
 /**
  * You will need to write your own endpoints and handlers for your controller. The endpoints you will need can be
@@ -18,10 +49,102 @@ import Service.SocialMediaService;
  * refer to prior mini-project labs and lecture materials for guidance on how a controller may be built.
  */
 public class SocialMediaController {
+    //Generous enough that no well-behaved client or test suite ever notices them
+    public static final double DEFAULT_ADDRESS_PERMITS_PER_SECOND = 500;
+    public static final int DEFAULT_ADDRESS_BURST = 2000;
+    public static final double DEFAULT_ACCOUNT_PERMITS_PER_SECOND = 50;
+    public static final int DEFAULT_ACCOUNT_BURST = 200;
+    public static final int DEFAULT_RATE_LIMIT_KEYS = 100_000;
+    public static final int DEFAULT_TIMELINE_LIMIT = 50;
+    public static final String NDJSON = "application/x-ndjson";
+    //Messages parsed before they are handed to the service as one batch, and the longest import line accepted
+    public static final int IMPORT_BATCH_SIZE = 1000;
+    public static final int MAX_IMPORT_LINE_BYTES = 16 * 1024;
+    //Snapshots go to a directory per snapshot under socialmedia.snapshot.dir, post /snapshots is off unless it is set.
+    //Only the newest socialmedia.snapshot.keep of them are kept.
+    public static final String SNAPSHOT_DIRECTORY_PROPERTY = "socialmedia.snapshot.dir";
+    public static final String SNAPSHOTS_KEPT_PROPERTY = "socialmedia.snapshot.keep";
+    public static final int DEFAULT_SNAPSHOTS_KEPT = 3;
+    public static final long DEFAULT_SNAPSHOT_BYTES_PER_SECOND = 16L * 1024 * 1024;
+    //Responses to post /messages and post /register made with an Idempotency-Key header are kept a day, in memory
+    //unless socialmedia.idempotency.file names a file to persist them to
+    public static final String IDEMPOTENCY_KEY_HEADER = "Idempotency-Key";
+    public static final String IDEMPOTENCY_FILE_PROPERTY = "socialmedia.idempotency.file";
+    public static final int DEFAULT_IDEMPOTENCY_KEYS = 100_000;
+    public static final long DEFAULT_IDEMPOTENCY_TTL_MILLIS = 24L * 60 * 60 * 1000;
+    public static final long DEFAULT_IDEMPOTENCY_WAIT_MILLIS = 10_000;
+    public static final int MAX_IDEMPOTENCY_KEY_LENGTH = 255;
+    //Messages whose encoded JSON is kept for get /messages/{message_id}, socialmedia.messagecache.size=0 turns it off
+    public static final String MESSAGE_CACHE_SIZE_PROPERTY = "socialmedia.messagecache.size";
+    public static final int DEFAULT_MESSAGE_CACHE_SIZE = 10_000;
+
     SocialMediaService socialMediaService;
+    RateLimiter addressRateLimiter;
+    RateLimiter accountRateLimiter;
+    AdmissionController readAdmission;
+    AdmissionController writeAdmission;
+    IdempotencyStore idempotencyStore;
+    //Null when turned off
+    MessageResponseCache messageCache;
+
+    //Shared by every handler and by Javalin, so the serializers Jackson builds for our models are built only once
+    ObjectMapper mapper = new ObjectMapper();
+    //Reads request bodies and writes responses as JSON, Smile or CBOR, whichever the client asked for
+    ContentNegotiator contentNegotiator = new ContentNegotiator(mapper);
+    //Flipped once startup has warmed the application, reported by get /health/ready
+    AtomicBoolean ready = new AtomicBoolean();
 
     public SocialMediaController(){
-        this.socialMediaService = new SocialMediaService();
+        this(new SocialMediaService());
+    }
+
+    /**
+     * Constructor allowing for a service to be provided instead of created, for example one backed by a specific
+     * storage engine.
+     * 
+     * @param socialMediaService
+     */
+    public SocialMediaController(SocialMediaService socialMediaService){
+        this(socialMediaService,
+                new RateLimiter(DEFAULT_ADDRESS_PERMITS_PER_SECOND, DEFAULT_ADDRESS_BURST, DEFAULT_RATE_LIMIT_KEYS),
+                new RateLimiter(DEFAULT_ACCOUNT_PERMITS_PER_SECOND, DEFAULT_ACCOUNT_BURST, DEFAULT_RATE_LIMIT_KEYS));
+    }
+
+    /**
+     * Constructor allowing the rate limits on post /messages and post /login to be provided.
+     * 
+     * @param socialMediaService
+     * @param addressRateLimiter limits requests per remote address
+     * @param accountRateLimiter limits requests per posted_by account or login username
+     */
+    public SocialMediaController(SocialMediaService socialMediaService, RateLimiter addressRateLimiter,
+            RateLimiter accountRateLimiter){
+        this(socialMediaService, addressRateLimiter, accountRateLimiter,
+                new AdmissionController("read", 64, 4, 512, 64, 250, 100),
+                new AdmissionController("write", 32, 2, 256, 32, 500, 100));
+    }
+
+    /**
+     * Constructor allowing the rate limits and the admission control for reads and writes to be provided.
+     * 
+     * @param socialMediaService
+     * @param addressRateLimiter limits requests per remote address
+     * @param accountRateLimiter limits requests per posted_by account or login username
+     * @param readAdmission admits get requests
+     * @param writeAdmission admits every other request
+     */
+    public SocialMediaController(SocialMediaService socialMediaService, RateLimiter addressRateLimiter,
+            RateLimiter accountRateLimiter, AdmissionController readAdmission, AdmissionController writeAdmission){
+        this.socialMediaService = socialMediaService;
+        this.addressRateLimiter = addressRateLimiter;
+        this.accountRateLimiter = accountRateLimiter;
+        this.readAdmission = readAdmission;
+        this.writeAdmission = writeAdmission;
+        String idempotencyFile = System.getProperty(IDEMPOTENCY_FILE_PROPERTY);
+        this.idempotencyStore = new IdempotencyStore(DEFAULT_IDEMPOTENCY_KEYS, DEFAULT_IDEMPOTENCY_TTL_MILLIS,
+                idempotencyFile == null ? null : Paths.get(idempotencyFile));
+        int messageCacheSize = Integer.getInteger(MESSAGE_CACHE_SIZE_PROPERTY, DEFAULT_MESSAGE_CACHE_SIZE);
+        this.messageCache = messageCacheSize > 0 ? new MessageResponseCache(messageCacheSize) : null;
     }
 
     /**
@@ -30,100 +153,463 @@ public class SocialMediaController {
      * @return a Javalin app object which defines the behavior of the Javalin controller.
      */
     public Javalin startAPI() {
-        Javalin app = Javalin.create();
-        app.post("/register", this::createAccountHandler);
+        Javalin app = Javalin.create(config -> config.jsonMapper(new JavalinJackson(mapper)));
+        MessageFeed messageFeed = new MessageFeed();
+        socialMediaService.addMessageEventListener(messageFeed);
+        if (messageCache != null){
+            socialMediaService.addMessageEventListener(messageCache);
+        }
+        app.events(event -> event.serverStopped(() -> {
+            socialMediaService.removeMessageEventListener(messageFeed);
+            messageFeed.close();
+            if (messageCache != null){
+                socialMediaService.removeMessageEventListener(messageCache);
+            }
+        }));
+        //Tracing wraps everything else, admission included
+        app.before(this::startTrace);
+        app.before(this::admit);
+        app.after(this::releaseAdmission);
+        app.after(this::endTrace);
+        app.exception(DataAccessException.class, this::dataAccessFailed);
+        app.get("/health/ready", this::readinessHandler);
+        app.get("/metrics", context -> metricsHandler(context, messageFeed));
+        app.post("/register", idempotent(this::createAccountHandler));
         app.post("/login", this::userLoginHandler);
-        app.post("/messages", this::createMessageHandler);
+        app.post("/messages", idempotent(this::createMessageHandler));
         app.get("/messages", this::getAllMessagesHandler);
+        app.delete("/messages", this::deleteMessagesPostedBeforeHandler);
+        //Streams are registered before /messages/{message_id} so "stream" is not taken for an id
+        app.sse("/messages/stream", client -> messageStreamHandler(client, messageFeed, 0));
+        app.sse("/accounts/{account_id}/messages/stream", client -> messageStreamHandler(client, messageFeed,
+                Integer.parseInt(client.ctx.pathParam("account_id"))));
         app.get("/messages/{message_id}", this::getMessageByIDHandler);
         app.delete("/messages/{message_id}", this::deleteMessageByIDHander);
         app.patch("/messages/{message_id}", this::updateMessageByIDHandler);
         app.get("/accounts/{account_id}/messages", this::getAllMessagesByUserIDHandler);
+        app.delete("/accounts/{account_id}/messages", this::deleteMessagesByUserIDHandler);
+        app.get("/accounts/{account_id}/stats", this::getAccountStatsHandler);
+        app.post("/accounts/{account_id}/follow", this::followHandler);
+        app.get("/accounts/{account_id}/timeline", this::getHomeTimelineHandler);
+        app.get("/export/messages", this::exportMessagesHandler);
+        app.post("/import/messages", this::importMessagesHandler);
+        app.post("/snapshots", this::startSnapshotHandler);
 
         return app;
     }
 
+    /**
+     * Wraps a handler so that a request made with an Idempotency-Key header is carried out once per key. The response
+     * is kept and sent again, with an Idempotent-Replayed header, to every retry with the same key and body. A retry
+     * arriving while the first request still runs waits for its response. Reusing a key with another body is a 422,
+     * and a first request still running after the wait is a 409.
+     *
+     * Only answers the client should not simply retry are kept: a 429 or a 5xx, or a handler that throws, leaves the
+     * key free for the next attempt.
+     * 
+     * @param handler
+     * @return the wrapped handler
+     */
+    private Handler idempotent(Handler handler){
+        return context -> {
+            String key = context.header(IDEMPOTENCY_KEY_HEADER);
+            if (key == null){
+                handler.handle(context);
+                return;
+            }
+            if (key.isBlank() || key.length() > MAX_IDEMPOTENCY_KEY_LENGTH){
+                context.status(400).result(IDEMPOTENCY_KEY_HEADER + " must be 1 to " + MAX_IDEMPOTENCY_KEY_LENGTH + " characters");
+                return;
+            }
+            IdempotencyStore.Claim claim = idempotencyStore.claim(context.path() + " " + key, fingerprint(context),
+                    DEFAULT_IDEMPOTENCY_WAIT_MILLIS);
+            Span span = context.attribute("span");
+            if (span != null){
+                span.setAttribute("idempotency.outcome", claim.getOutcome().toString());
+            }
+            switch (claim.getOutcome()){
+                case REPLAY:
+                    IdempotencyStore.StoredResponse response = claim.getResponse();
+                    context.header("Idempotent-Replayed", "true");
+                    context.header("Vary", "Accept");
+                    if (response.contentType != null){
+                        context.contentType(response.contentType);
+                    }
+                    context.status(response.status).result(response.body);
+                    return;
+                case MISMATCH:
+                    context.status(422).result(IDEMPOTENCY_KEY_HEADER + " was already used for another request");
+                    return;
+                case IN_PROGRESS:
+                    context.header("Retry-After", "1");
+                    context.status(409).result("A request with this " + IDEMPOTENCY_KEY_HEADER + " is still in progress");
+                    return;
+                default:
+                    break;
+            }
+            boolean completed = false;
+            try{
+                handler.handle(context);
+                int status = context.statusCode();
+                if (status != 429 && status < 500){
+                    InputStream result = context.resultInputStream();
+                    byte[] body = result == null ? new byte[0] : result.readAllBytes();
+                    context.result(body);
+                    claim.complete(new IdempotencyStore.StoredResponse(status, context.res().getContentType(), body));
+                    completed = true;
+                }
+            }
+            finally{
+                if (!completed){
+                    claim.abandon();
+                }
+            }
+        };
+    }
+
+    /**
+     * Identifies the body of a request, so that an idempotency key reused for a different request is caught.
+     * 
+     * @param context
+     * @return the SHA-256 of the content type and body, in base 64
+     */
+    private static String fingerprint(Context context) throws NoSuchAlgorithmException{
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        String contentType = context.header("Content-Type");
+        digest.update((contentType == null ? "" : contentType).getBytes(StandardCharsets.UTF_8));
+        digest.update((byte) 0);
+        digest.update(context.bodyAsBytes());
+        return Base64.getEncoder().encodeToString(digest.digest());
+    }
+
+    /**
+     * Marks the application as warmed up and ready for traffic, or takes it out of rotation again.
+     * 
+     * @param ready
+     */
+    public void setReady(boolean ready){
+        this.ready.set(ready);
+    }
+
+    public boolean isReady(){
+        return ready.get();
+    }
+
+    /**
+     * Builds the Jackson serializers and deserializers for every type the endpoints read and write, in every format
+     * the endpoints speak, so the first requests don't pay for the introspection.
+     * 
+     * @throws IOException
+     */
+    public void primeSerializers() throws IOException{
+        for (String mediaType : contentNegotiator.getMediaTypes()){
+            ObjectMapper formatMapper = contentNegotiator.getMapper(mediaType);
+            Account account = formatMapper.readValue(formatMapper.writeValueAsBytes(new Account(1, "warm-up", "password")), Account.class);
+            Message message = formatMapper.readValue(formatMapper.writeValueAsBytes(new Message(1, account.getAccount_id(), "warm-up", 0)), Message.class);
+            formatMapper.readValue(formatMapper.writeValueAsBytes(List.of(message)), new TypeReference<List<Message>>() {});
+            formatMapper.readValue(formatMapper.writeValueAsBytes(new MessageUpdate("warm-up", 0)), MessageUpdate.class);
+            formatMapper.writeValueAsBytes(new AccountStats(1, 1, 0L));
+        }
+    }
+
+    /**
+     * Replays a synthetic read-only workload through the service and the serializers, so that the hot paths are
+     * loaded and compiled before traffic arrives. Writes are left out so that warming up never changes any data.
+     * 
+     * @param requests number of requests to simulate
+     * @throws IOException
+     */
+    public void runWarmUpWorkload(int requests) throws IOException{
+        for (int i = 0; i < requests; i++){
+            switch (i % 4){
+                case 0:
+                    mapper.writeValueAsString(socialMediaService.getMessageByID(1 + i % 100));
+                    break;
+                case 1:
+                    mapper.writeValueAsString(socialMediaService.getMessagesByUserID(1 + i % 100));
+                    break;
+                case 2:
+                    mapper.writeValueAsString(socialMediaService.getMessagesInTimeRange(0, i));
+                    break;
+                default:
+                    mapper.readValue(mapper.writeValueAsString(new Message(i, 1, "warm-up " + i, i)), Message.class);
+            }
+        }
+    }
+
+    /**
+     * Runs before every endpoint and starts the request's trace, reporting its id in the X-Trace-Id response header.
+     * Event streams stay open indefinitely and are not traced.
+     * 
+     * @param context
+     */
+    private void startTrace(Context context){
+        if (context.path().endsWith("/stream")){
+            return;
+        }
+        Span span = Tracing.startTrace(context.method() + " " + context.path(), context.header(Tracing.TRACEPARENT_HEADER));
+        span.setAttribute("http.method", context.method().toString());
+        span.setAttribute("http.target", context.path());
+        context.header(Tracing.TRACE_ID_HEADER, span.getTraceId());
+        context.attribute("span", span);
+    }
+
+    /**
+     * Runs after every endpoint and ends the request's trace, named after the route it matched.
+     * 
+     * @param context
+     */
+    private void endTrace(Context context){
+        Span span = context.attribute("span");
+        if (span != null){
+            span.setName(context.method() + " " + context.endpointHandlerPath());
+            span.setAttribute("http.route", context.endpointHandlerPath());
+            span.setAttribute("http.status_code", context.statusCode());
+            if (context.statusCode() >= 500){
+                span.setError("HTTP " + context.statusCode());
+            }
+            span.close();
+        }
+    }
+
+    /**
+     * Runs before every endpoint and admits the request through the read or write admission controller. Requests that
+     * are shed get a 503 with Retry-After right away. Health checks, metrics, event streams and bulk transfers are
+     * always let through, the first two so operators can see an overloaded server, the streams because they stay open
+     * indefinitely and bulk transfers because they run for minutes and would distort the latency admission adapts to.
+     * 
+     * @param context
+     * @throws InterruptedException
+     */
+    private void admit(Context context) throws InterruptedException{
+        String path = context.path();
+        if (path.startsWith("/health/") || path.equals("/metrics") || path.endsWith("/stream")
+                || path.startsWith("/export/") || path.startsWith("/import/")){
+            return;
+        }
+        AdmissionController admission = context.method() == HandlerType.GET ? readAdmission : writeAdmission;
+        if (!admission.tryAcquire()){
+            context.header("Retry-After", "1");
+            throw new ServiceUnavailableResponse("Server is overloaded, " + admission.getName() + " request shed");
+        }
+        context.attribute("admission", admission);
+        context.attribute("admittedAt", System.nanoTime());
+    }
+
+    /**
+     * Answers a request the storage engine failed, after the service ran out of retries where they apply: a transient
+     * failure such as a lock timeout is a 503 with Retry-After, a missing row a 404, a broken constraint or a version
+     * conflict a 409 and anything else a 500. The body never includes the database's own message.
+     * 
+     * @param e
+     * @param context
+     */
+    private void dataAccessFailed(DataAccessException e, Context context){
+        Span span = context.attribute("span");
+        if (span != null){
+            span.setAttribute("db.error", e.getKind().toString());
+        }
+        switch (e.getKind()){
+            case TRANSIENT:
+                context.header("Retry-After", "1");
+                context.status(503).result("Storage is busy, try again");
+                break;
+            case NOT_FOUND:
+                context.status(404).result("Not found");
+                break;
+            case CONSTRAINT_VIOLATION:
+            case CONFLICT:
+                context.status(409).result("Conflicts with stored data");
+                break;
+            default:
+                System.out.println(e.getMessage());
+                context.status(500).result("Storage failed");
+                break;
+        }
+    }
+
+    /**
+     * Runs after every endpoint and frees the slot of an admitted request, reporting how long it took.
+     * 
+     * @param context
+     */
+    private void releaseAdmission(Context context){
+        AdmissionController admission = context.attribute("admission");
+        if (admission != null){
+            long admittedAt = context.attribute("admittedAt");
+            admission.release(System.nanoTime() - admittedAt);
+        }
+    }
+
+    /**
+     * This handles the get /metrics endpoint, reporting admission control, rate limiting, read coalescing, storage
+     * retries, the message stream, the home timeline, invalidation bus, snapshot, idempotency key, message cache and
+     * tracing counters.
+     * 
+     * @param context
+     * @param messageFeed
+     * @throws IOException
+     */
+    private void metricsHandler(Context context, MessageFeed messageFeed) throws IOException{
+        Map<String, Object> metrics = new LinkedHashMap<String, Object>();
+        Map<String, Object> admission = new LinkedHashMap<String, Object>();
+        admission.put(readAdmission.getName(), readAdmission.getMetrics());
+        admission.put(writeAdmission.getName(), writeAdmission.getMetrics());
+        metrics.put("admission", admission);
+        Map<String, Long> rateLimit = new LinkedHashMap<String, Long>();
+        rateLimit.put("addressRejected", addressRateLimiter.getRejectedCount());
+        rateLimit.put("accountRejected", accountRateLimiter.getRejectedCount());
+        metrics.put("rateLimit", rateLimit);
+        metrics.put("singleFlight", socialMediaService.getSingleFlightMetrics());
+        metrics.put("retry", socialMediaService.getRetryMetrics());
+        metrics.put("messageFeed", messageFeed.getMetrics());
+        metrics.put("homeTimelines", socialMediaService.getHomeTimelineMetrics());
+        Map<String, Long> invalidationBus = socialMediaService.getInvalidationBusMetrics();
+        if (invalidationBus != null){
+            metrics.put("invalidationBus", invalidationBus);
+        }
+        metrics.put("snapshots", socialMediaService.getSnapshotMetrics());
+        metrics.put("idempotency", idempotencyStore.getMetrics());
+        if (messageCache != null){
+            metrics.put("messageCache", messageCache.getMetrics());
+        }
+        metrics.put("tracing", Tracing.getMetrics());
+        contentNegotiator.respond(context, metrics);
+    }
+
+    /**
+     * This handles the get /health/ready endpoint: 200 once the application is warmed up, 503 until then.
+     * 
+     * @param context
+     */
+    private void readinessHandler(Context context){
+        context.status(ready.get() ? 200 : 503);
+        context.result(ready.get() ? "ready" : "warming up");
+    }
+
     /**
      * This handles the post /register endpoint for account creation
      * 
      * @param context
-     * @throws JsonProcessingException
+     * @throws IOException
      */
-    private void createAccountHandler(Context context) throws JsonProcessingException{
-        ObjectMapper mapper = new ObjectMapper();
-        Account account = mapper.readValue(context.body(), Account.class);
+    private void createAccountHandler(Context context) throws IOException{
+        Account account = contentNegotiator.readBody(context, Account.class);
         Account addedAccount = socialMediaService.createAccount(account);
         if (addedAccount == null){
             context.status(400);
         }
         else {
-            context.json(mapper.writeValueAsString(addedAccount));
+            contentNegotiator.respond(context, addedAccount);
         }
     }
 
     /**
      * This handles the post /login endpoint for account login.
      * @param context
-     * @throws JsonProcessingException
+     * @throws IOException
      */
-    private void userLoginHandler(Context context) throws JsonProcessingException{
-        ObjectMapper mapper = new ObjectMapper();
-        Account account = mapper.readValue(context.body(), Account.class);
+    private void userLoginHandler(Context context) throws IOException{
+        Account account = contentNegotiator.readBody(context, Account.class);
+        if (rateLimited(context, "username:" + account.getUsername())){
+            return;
+        }
         Account userAccount = socialMediaService.userLogin(account);
         if (userAccount == null){
             context.status(401);
         }
         else {
-            context.json(mapper.writeValueAsString(userAccount));
+            contentNegotiator.respond(context, userAccount);
         }
     }
 
     /**
      * This handles the post /messages endpoint for message creation
      * @param context
-     * @throws JsonProcessingException
+     * @throws IOException
      */
-    private void createMessageHandler(Context context) throws JsonProcessingException{
-        ObjectMapper mapper = new ObjectMapper();
-        Message message = mapper.readValue(context.body(), Message.class);
+    private void createMessageHandler(Context context) throws IOException{
+        Message message = contentNegotiator.readBody(context, Message.class);
+        if (rateLimited(context, "posted_by:" + message.getPosted_by())){
+            return;
+        }
         Message addedMessage = socialMediaService.createMessage(message);
         if (addedMessage == null){
             context.status(400);
         }
         else{
-            context.json(mapper.writeValueAsString(addedMessage));
+            contentNegotiator.respond(context, addedMessage);
         }
     }
 
     /**
-     * This handles the get /messages endpoint for retrieving all existing messages
+     * This handles the get /messages endpoint for retrieving all existing messages.
+     * The optional since and until query parameters restrict the result to that range of time_posted_epoch, newest first.
      * 
      * @param context
-     * @throws JsonProcessingException
+     * @throws IOException
      */
-    private void getAllMessagesHandler(Context context){
-        List<Message> messages = socialMediaService.getAllMessages();
+    private void getAllMessagesHandler(Context context) throws IOException{
+        List<Message> messages;
+        if (context.queryParam("since") == null && context.queryParam("until") == null){
+            messages = socialMediaService.getAllMessages();
+        }
+        else{
+            try{
+                long since = epochQueryParam(context, "since", Long.MIN_VALUE);
+                long until = epochQueryParam(context, "until", Long.MAX_VALUE);
+                messages = socialMediaService.getMessagesInTimeRange(since, until);
+            }
+            catch(NumberFormatException e){
+                context.status(400);
+                return;
+            }
+        }
         if (messages == null){
             //This should never happen
             context.status(400);
         }
         else{
-            context.json(messages);
+            contentNegotiator.respond(context, messages);
         }
     }
 
     /**
-     * This handles the get /messages/{message_id} endpoint for retrieving a message by its id
+     * This handles the get /messages/{message_id} endpoint for retrieving a message by its id, with its version in the
+     * ETag header for a conditional update. JSON responses come from the message cache when they can, written straight
+     * to the response without serializing the message again.
      * 
      * @param context
+     * @throws IOException
      */
-    private void getMessageByIDHandler(Context context){
-        Message message = socialMediaService.getMessageByID(Integer.parseInt(context.pathParam("message_id")));
+    private void getMessageByIDHandler(Context context) throws IOException{
+        int messageID = Integer.parseInt(context.pathParam("message_id"));
+        if (messageCache != null && contentNegotiator.responseType(context).equals(ContentNegotiator.JSON)){
+            MessageResponseCache.Response cached = messageCache.get(messageID);
+            if (cached == null){
+                //Read before loading, so a change committed meanwhile keeps this load out of the cache
+                long generation = messageCache.generation(messageID);
+                Versioned<Message> message = socialMediaService.getVersionedMessageByID(messageID);
+                if (message == null){
+                    context.status(200);
+                    return;
+                }
+                cached = messageCache.put(messageID, generation, mapper.writeValueAsBytes(message.getValue()), etag(message.getVersion()));
+            }
+            context.header("ETag", cached.getEtag());
+            context.header("Vary", "Accept");
+            context.contentType(ContentNegotiator.JSON);
+            //Into the servlet's response buffer, which is only flushed once the request and its trace are done
+            context.res().getOutputStream().write(cached.getBody());
+            return;
+        }
+        Versioned<Message> message = socialMediaService.getVersionedMessageByID(messageID);
         if (message == null){
             context.status(200);
         }
         else{
-            context.json(message);
+            context.header("ETag", etag(message.getVersion()));
+            contentNegotiator.respond(context, message.getValue());
         }
     }
 
@@ -131,42 +617,494 @@ public class SocialMediaController {
      * This handles the delete /messages/{message_id} endpoint for deleting a message by its id
      * 
      * @param context
+     * @throws IOException
      */
-    private void deleteMessageByIDHander(Context context){
+    private void deleteMessageByIDHander(Context context) throws IOException{
         Message message = socialMediaService.deleteMessageByID(Integer.parseInt(context.pathParam("message_id")));
         if (message == null){
             context.status(200);
         }
         else{
-            context.json(message);
+            contentNegotiator.respond(context, message);
+        }
+    }
+
+    /**
+     * This handles the delete /messages?before={time_posted_epoch} endpoint for deleting every message posted before
+     * the cutoff. The before query parameter is required, so a missing one can't wipe every message.
+     * Responds with the number of messages deleted.
+     * 
+     * @param context
+     * @throws IOException
+     */
+    private void deleteMessagesPostedBeforeHandler(Context context) throws IOException{
+        String before = context.queryParam("before");
+        if (before == null){
+            context.status(400);
+            return;
+        }
+        long cutoff;
+        try{
+            cutoff = Long.parseLong(before.trim());
+        }
+        catch(NumberFormatException e){
+            context.status(400);
+            return;
+        }
+        deletedCountResponse(context, socialMediaService.deleteMessagesPostedBefore(cutoff));
+    }
+
+    /**
+     * This handles the delete /accounts/{account_id}/messages endpoint for deleting every message posted by a user.
+     * Responds with the number of messages deleted.
+     * 
+     * @param context
+     * @throws IOException
+     */
+    private void deleteMessagesByUserIDHandler(Context context) throws IOException{
+        int accountID = Integer.parseInt(context.pathParam("account_id"));
+        deletedCountResponse(context, socialMediaService.deleteMessagesByUserID(accountID));
+    }
+
+    /**
+     * Responds {"deleted": count}, or 500 when the storage engine failed part way. The chunks deleted before the
+     * failure stay deleted, so the request can simply be repeated.
+     */
+    private void deletedCountResponse(Context context, Integer deleted) throws IOException{
+        if (deleted == null){
+            context.status(500);
+        }
+        else{
+            contentNegotiator.respond(context, Collections.singletonMap("deleted", deleted));
         }
     }
 
     /**
      * This handles the patch /messages/{message_id} endpoint for updateing a message by its id
+     * The update can be made conditional on the version of the message the client read, which get /messages/{message_id}
+     * and every update report in the ETag header: with an If-Match header the update fails with 412 if the message is at
+     * another version, with a version field in the body it fails with 409. Without either the update is unconditional.
+     * 
      * @param context
-     * @throws JsonProcessingException
+     * @throws IOException
      */
-    private void updateMessageByIDHandler(Context context) throws JsonProcessingException{
-        ObjectMapper mapper = new ObjectMapper();
-        Message message = mapper.readValue(context.body(), Message.class);
-        Message updatedMessage = socialMediaService.updateMessageByID(message, Integer.parseInt(context.pathParam("message_id")));
+    private void updateMessageByIDHandler(Context context) throws IOException{
+        int messageID = Integer.parseInt(context.pathParam("message_id"));
+        MessageUpdate update = contentNegotiator.readBody(context, MessageUpdate.class);
+        String ifMatch = context.header("If-Match");
+        Integer expectedVersion = update.getVersion();
+        if (ifMatch != null){
+            expectedVersion = expectedVersion(ifMatch, messageID);
+            if (expectedVersion != null && expectedVersion < 0){
+                context.status(412);
+                return;
+            }
+        }
+        Versioned<Message> updatedMessage;
+        try{
+            updatedMessage = socialMediaService.updateMessageByID(update.getMessage_text(), messageID, expectedVersion);
+        }
+        catch(DataAccessException e){
+            if (e.getKind() != DataAccessException.Kind.CONFLICT){
+                throw e;
+            }
+            //A failed If-Match is a failed precondition, a stale version in the body a conflict with the current state
+            context.status(ifMatch != null ? 412 : 409);
+            return;
+        }
         if (updatedMessage == null){
             context.status(400);
         }
         else{
-            context.json(mapper.writeValueAsString(updatedMessage));
+            context.header("ETag", etag(updatedMessage.getVersion()));
+            contentNegotiator.respond(context, updatedMessage.getValue());
+        }
+    }
+
+    /**
+     * Picks the version an If-Match header asks the update to be made on. A single entity tag names it directly. Of
+     * several, the one the message is currently at is picked, and the update itself still checks that it didn't change.
+     * 
+     * @param ifMatch
+     * @param messageID
+     * @return the expected version, null for "*" which matches any version, -1 when no listed tag can match
+     */
+    private Integer expectedVersion(String ifMatch, int messageID){
+        if (ifMatch.trim().equals("*")){
+            return null;
         }
+        List<Integer> versions = new ArrayList<Integer>();
+        for (String tag : ifMatch.split(",")){
+            tag = tag.trim();
+            //If-Match compares strongly, so weak tags never match
+            if (tag.length() > 2 && tag.startsWith("\"") && tag.endsWith("\"")){
+                try{
+                    versions.add(Integer.parseInt(tag.substring(1, tag.length() - 1)));
+                }
+                catch(NumberFormatException e){
+                    //Not a tag this server handed out
+                }
+            }
+        }
+        if (versions.size() == 1){
+            return versions.get(0);
+        }
+        Versioned<Message> current = socialMediaService.getVersionedMessageByID(messageID);
+        return current != null && versions.contains(current.getVersion()) ? current.getVersion() : -1;
+    }
+
+    private static String etag(int version){
+        return "\"" + version + "\"";
     }
 
-    private void getAllMessagesByUserIDHandler(Context context){
-        List<Message> messages = socialMediaService.getMessagesByUserID(Integer.parseInt(context.pathParam("account_id")));
+    /**
+     * This handles the get /accounts/{account_id}/messages endpoint for retrieving all messages posted by a user.
+     * The optional since and until query parameters restrict the result to that range of time_posted_epoch, newest first.
+     * 
+     * @param context
+     * @throws IOException
+     */
+    private void getAllMessagesByUserIDHandler(Context context) throws IOException{
+        int accountID = Integer.parseInt(context.pathParam("account_id"));
+        List<Message> messages;
+        if (context.queryParam("since") == null && context.queryParam("until") == null){
+            messages = socialMediaService.getMessagesByUserID(accountID);
+        }
+        else{
+            try{
+                long since = epochQueryParam(context, "since", Long.MIN_VALUE);
+                long until = epochQueryParam(context, "until", Long.MAX_VALUE);
+                messages = socialMediaService.getMessagesByUserIDInTimeRange(accountID, since, until);
+            }
+            catch(NumberFormatException e){
+                context.status(400);
+                return;
+            }
+        }
         if (messages == null){
             context.status(200);
         }
         else{
-            context.json(messages);
+            contentNegotiator.respond(context, messages);
+        }
+    }
+
+    /**
+     * This handles the get /accounts/{account_id}/stats endpoint for retrieving how many messages a user has and when
+     * they last posted.
+     * 
+     * @param context
+     * @throws IOException
+     */
+    private void getAccountStatsHandler(Context context) throws IOException{
+        AccountStats accountStats = socialMediaService.getAccountStats(Integer.parseInt(context.pathParam("account_id")));
+        if (accountStats == null){
+            context.status(200);
+        }
+        else{
+            contentNegotiator.respond(context, accountStats);
+        }
+    }
+
+    /**
+     * This handles the post /accounts/{account_id}/follow endpoint, making the account named by follower_id in the
+     * body follow the account in the path.
+     * 
+     * @param context
+     * @throws IOException
+     */
+    private void followHandler(Context context) throws IOException{
+        Follow follow = contentNegotiator.readBody(context, Follow.class);
+        Follow addedFollow = socialMediaService.follow(follow.getFollower_id(), Integer.parseInt(context.pathParam("account_id")));
+        if (addedFollow == null){
+            context.status(400);
+        }
+        else{
+            contentNegotiator.respond(context, addedFollow);
+        }
+    }
+
+    /**
+     * This handles the get /accounts/{account_id}/timeline endpoint for retrieving the newest messages of the
+     * accounts a user follows, newest first. The optional limit query parameter caps how many are returned.
+     * 
+     * @param context
+     * @throws IOException
+     */
+    private void getHomeTimelineHandler(Context context) throws IOException{
+        int limit;
+        try{
+            String value = context.queryParam("limit");
+            limit = value == null || value.isBlank() ? DEFAULT_TIMELINE_LIMIT : Integer.parseInt(value.trim());
+        }
+        catch(NumberFormatException e){
+            context.status(400);
+            return;
+        }
+        if (limit < 1){
+            context.status(400);
+            return;
+        }
+        List<Message> messages = socialMediaService.getHomeTimeline(Integer.parseInt(context.pathParam("account_id")), limit);
+        if (messages == null){
+            context.status(200);
+        }
+        else{
+            contentNegotiator.respond(context, messages);
+        }
+    }
+
+    /**
+     * This handles the post /snapshots endpoint, starting an online snapshot into a new directory named after the
+     * current time. Answers 202 with the directory right away, or 409 while an earlier snapshot is still running;
+     * get /metrics tells when it is done. Once it is, snapshots beyond the newest socialmedia.snapshot.keep are
+     * deleted. Answers 404 when socialmedia.snapshot.dir is not set.
+     * 
+     * @param context
+     * @throws IOException
+     */
+    private void startSnapshotHandler(Context context) throws IOException{
+        String root = System.getProperty(SNAPSHOT_DIRECTORY_PROPERTY);
+        if (root == null){
+            context.status(404);
+            return;
+        }
+        Path directory = Paths.get(root).resolve(String.valueOf(System.currentTimeMillis()));
+        CompletableFuture<Long> snapshot = socialMediaService.startSnapshot(directory, DEFAULT_SNAPSHOT_BYTES_PER_SECOND);
+        if (snapshot == null){
+            context.status(409);
+        }
+        else{
+            int kept = Math.max(1, Integer.getInteger(SNAPSHOTS_KEPT_PROPERTY, DEFAULT_SNAPSHOTS_KEPT));
+            snapshot.thenRun(() -> deleteOldSnapshots(Paths.get(root), kept));
+            context.status(202);
+            contentNegotiator.respond(context, Collections.singletonMap("snapshot", directory.toString()));
+        }
+    }
+
+    /**
+     * Deletes the snapshot directories under root beyond the newest ones, leaving anything not named like a snapshot.
+     *
+     * @param root
+     * @param kept number of snapshots to keep
+     */
+    private static void deleteOldSnapshots(Path root, int kept){
+        List<Path> snapshots = new ArrayList<Path>();
+        try (Stream<Path> children = Files.list(root)){
+            children.filter(path -> Files.isDirectory(path) && path.getFileName().toString().matches("[0-9]+"))
+                    .forEach(snapshots::add);
+        }
+        catch(IOException e){
+            System.out.println(e.getMessage());
+            return;
+        }
+        //Named after the time taken, so the longest names are the newest and equal lengths sort by time
+        snapshots.sort(Comparator.comparing((Path path) -> path.getFileName().toString().length())
+                .thenComparing(path -> path.getFileName().toString()));
+        for (Path snapshot : snapshots.subList(0, Math.max(0, snapshots.size() - kept))){
+            try (Stream<Path> files = Files.walk(snapshot)){
+                files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+            }
+            catch(IOException e){
+                System.out.println(e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * This handles the get /export/messages endpoint, streaming every message as newline-delimited JSON, one message
+     * per line. Messages are written as the storage engine reads them, so the export runs in constant memory however
+     * many messages there are. A failure part way aborts the response, leaving the client with a truncated stream.
+     * 
+     * @param context
+     * @throws IOException
+     */
+    private void exportMessagesHandler(Context context) throws IOException{
+        context.contentType(NDJSON);
+        OutputStream out = new BufferedOutputStream(context.outputStream(), 64 * 1024);
+        ObjectWriter writer = mapper.writerFor(Message.class);
+        Integer exported;
+        try{
+            exported = socialMediaService.exportMessages(message -> {
+                try{
+                    out.write(writer.writeValueAsBytes(message));
+                    out.write('\n');
+                }
+                catch(IOException e){
+                    throw new UncheckedIOException(e);
+                }
+            });
+        }
+        catch(UncheckedIOException e){
+            throw e.getCause();
+        }
+        if (exported == null){
+            throw new IOException("Export failed");
+        }
+        out.flush();
+    }
+
+    /**
+     * This handles the post /import/messages endpoint, creating a message for every line of a newline-delimited JSON
+     * body. The body is parsed as it arrives and created in batches, so an import of any size runs in constant memory.
+     * The response is newline-delimited JSON too: {"line": n, "error": reason} for every rejected line as soon as it
+     * is rejected, {"imported": n, "rejected": n} after each batch and the same with "done": true at the end.
+     * 
+     * @param context
+     * @throws IOException
+     */
+    private void importMessagesHandler(Context context) throws IOException{
+        context.contentType(NDJSON);
+        OutputStream out = new BufferedOutputStream(context.outputStream());
+        ObjectReader reader = mapper.readerFor(Message.class);
+        LineReader lines = new LineReader(context.bodyInputStream(), MAX_IMPORT_LINE_BYTES);
+        List<Message> batch = new ArrayList<Message>(IMPORT_BATCH_SIZE);
+        List<Integer> batchLines = new ArrayList<Integer>(IMPORT_BATCH_SIZE);
+        int[] totals = new int[2];
+        String line;
+        while ((line = lines.next()) != null){
+            if (lines.isTooLong()){
+                writeRejected(out, lines.getLineNumber(), "line longer than " + MAX_IMPORT_LINE_BYTES + " bytes", totals);
+                continue;
+            }
+            if (line.isBlank()){
+                continue;
+            }
+            try{
+                batch.add(reader.readValue(line));
+                batchLines.add(lines.getLineNumber());
+            }
+            catch(JsonProcessingException e){
+                writeRejected(out, lines.getLineNumber(), "not a message: " + e.getOriginalMessage(), totals);
+            }
+            if (batch.size() == IMPORT_BATCH_SIZE){
+                importBatch(out, batch, batchLines, totals);
+            }
+        }
+        importBatch(out, batch, batchLines, totals);
+        Map<String, Object> done = new LinkedHashMap<String, Object>();
+        done.put("imported", totals[0]);
+        done.put("rejected", totals[1]);
+        done.put("done", true);
+        writeLine(out, done);
+        out.flush();
+    }
+
+    /**
+     * Hands a batch of parsed messages to the service, reports the rejected ones and the progress so far, and empties
+     * the batch.
+     * 
+     * @param totals messages imported and lines rejected so far, updated in place
+     */
+    private void importBatch(OutputStream out, List<Message> batch, List<Integer> batchLines, int[] totals) throws IOException{
+        if (batch.isEmpty()){
+            return;
+        }
+        List<String> errors = socialMediaService.importMessages(batch);
+        for (int i = 0; i < errors.size(); i++){
+            if (errors.get(i) == null){
+                totals[0]++;
+            }
+            else{
+                writeRejected(out, batchLines.get(i), errors.get(i), totals);
+            }
+        }
+        batch.clear();
+        batchLines.clear();
+        Map<String, Object> progress = new LinkedHashMap<String, Object>();
+        progress.put("imported", totals[0]);
+        progress.put("rejected", totals[1]);
+        writeLine(out, progress);
+        //Let the client see the progress while the rest of the body is still being read
+        out.flush();
+    }
+
+    private void writeRejected(OutputStream out, int lineNumber, String error, int[] totals) throws IOException{
+        totals[1]++;
+        Map<String, Object> rejected = new LinkedHashMap<String, Object>();
+        rejected.put("line", lineNumber);
+        rejected.put("error", error);
+        writeLine(out, rejected);
+    }
+
+    private void writeLine(OutputStream out, Object value) throws IOException{
+        out.write(mapper.writeValueAsBytes(value));
+        out.write('\n');
+    }
+
+    /**
+     * This handles the sse /messages/stream and /accounts/{account_id}/messages/stream endpoints. The connection stays
+     * open and receives a "created", "updated" or "deleted" event holding the message JSON for every change, plus a
+     * "lagged" event with the number of missed events if the client reads too slowly.
+     * 
+     * @param client
+     * @param messageFeed
+     * @param accountID only stream messages posted by this account, or 0 for all messages
+     */
+    private void messageStreamHandler(SseClient client, MessageFeed messageFeed, int accountID){
+        client.keepAlive();
+        MessageFeed.Subscription subscription = messageFeed.subscribe(accountID, new MessageFeed.Subscriber() {
+            @Override
+            public void onEvent(MessageEvent event) throws Exception {
+                Message message = event.getMessage();
+                client.sendEvent(event.getType().getEventName(), mapper.writeValueAsString(message),
+                        String.valueOf(message.getMessage_id()));
+            }
+
+            @Override
+            public void onLagged(long skipped){
+                client.sendEvent("lagged", String.valueOf(skipped));
+            }
+
+            @Override
+            public void onHeartbeat(){
+                client.sendComment("heartbeat");
+            }
+
+            @Override
+            public void onDisconnect(){
+                client.close();
+            }
+        });
+        client.onClose(() -> messageFeed.unsubscribe(subscription));
+    }
+
+    /**
+     * Takes a token for the remote address and then for the account. When either is out of tokens the response is
+     * set to 429 with a Retry-After header, in whole seconds.
+     * 
+     * @param context
+     * @param accountKey identifies the account the request acts for
+     * @return true when the request was rejected and the handler must stop
+     */
+    private boolean rateLimited(Context context, String accountKey){
+        long waitMillis = addressRateLimiter.tryAcquire(context.ip());
+        if (waitMillis == 0){
+            waitMillis = accountRateLimiter.tryAcquire(accountKey);
+        }
+        if (waitMillis == 0){
+            return false;
+        }
+        context.status(429);
+        context.header("Retry-After", String.valueOf((waitMillis + 999) / 1000));
+        return true;
+    }
+
+    /**
+     * Reads an epoch-seconds query parameter, falling back to the default when it is absent.
+     * 
+     * @param context
+     * @param name of the query parameter
+     * @param defaultValue used when the parameter is not provided
+     * @return the parsed epoch value
+     * @throws NumberFormatException when the parameter is not a valid long
+     */
+    private static long epochQueryParam(Context context, String name, long defaultValue){
+        String value = context.queryParam(name);
+        if (value == null || value.isBlank()){
+            return defaultValue;
         }
+        return Long.parseLong(value.trim());
     }
 
-}
\ No newline at end of file
+}
@@ -0,0 +1,50 @@
+package DAO;
+
+import Model.AccountStats;
+
+import java.util.*;
+
+/**
+ * Helpers for the storage engines' account statistics consistency checkers.
+ */
+final class AccountStatsAudit {
+    private AccountStatsAudit(){
+    }
+
+    /**
+     * Counts one message into the statistics being recomputed for its author.
+     *
+     * @param stats recomputed statistics by account_id
+     * @param postedBy
+     * @param postedAt
+     */
+    static void count(Map<Integer, AccountStats> stats, int postedBy, long postedAt){
+        AccountStats accountStats = stats.computeIfAbsent(postedBy, id -> new AccountStats(id, 0, null));
+        accountStats.message_count++;
+        if (accountStats.last_posted_epoch == null || accountStats.last_posted_epoch < postedAt){
+            accountStats.last_posted_epoch = postedAt;
+        }
+    }
+
+    /**
+     * Compares recomputed statistics with maintained ones. An account missing from either map counts as having no
+     * messages.
+     *
+     * @param recomputed statistics by account_id, recomputed from the messages
+     * @param maintained statistics by account_id, as maintained by the engine
+     * @return the recomputed statistics of every account where the two differ, in account_id order
+     */
+    static List<AccountStats> mismatches(Map<Integer, AccountStats> recomputed, Map<Integer, AccountStats> maintained){
+        TreeSet<Integer> accountIDs = new TreeSet<Integer>(recomputed.keySet());
+        accountIDs.addAll(maintained.keySet());
+        List<AccountStats> mismatches = new ArrayList<AccountStats>();
+        for (int accountID : accountIDs){
+            AccountStats expected = recomputed.getOrDefault(accountID, new AccountStats(accountID, 0, null));
+            AccountStats actual = maintained.getOrDefault(accountID, new AccountStats(accountID, 0, null));
+            if (!expected.equals(actual)){
+                mismatches.add(expected);
+            }
+        }
+        return mismatches;
+    }
+}
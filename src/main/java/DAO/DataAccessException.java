@@ -0,0 +1,101 @@
+package DAO;
+
+import java.sql.SQLException;
+import java.sql.SQLTransientException;
+
+import org.h2.api.ErrorCode;
+
+/**
+ * A storage engine failure, typed by what the caller can do about it. Storage engines throw it instead of reporting a
+ * failure as a missing result, so that a lock timeout is never mistaken for "not found". Only the rejections their
+ * contract answers with null, such as a message by an unknown author, are still reported that way.
+ */
+public class DataAccessException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    public enum Kind {
+        /**
+         * A row the operation refers to does not exist, such as the account of a new message.
+         */
+        NOT_FOUND,
+        /**
+         * The data breaks a constraint, such as a duplicate username or a value too long for its column.
+         */
+        CONSTRAINT_VIOLATION,
+        /**
+         * The operation lost a race, such as a lock timeout or a deadlock, and was rolled back. Repeating it may
+         * succeed.
+         */
+        TRANSIENT,
+        /**
+         * A conditional write found the row at another version than the caller read, someone else wrote it in between.
+         * Repeating the same write won't help, the caller has to read the row again first.
+         */
+        CONFLICT,
+        /**
+         * Anything else, repeating the operation won't help.
+         */
+        FATAL
+    }
+
+    private final Kind kind;
+
+    public DataAccessException(Kind kind, String message){
+        super(message);
+        this.kind = kind;
+    }
+
+    public DataAccessException(Kind kind, SQLException cause){
+        super(cause.getMessage(), cause);
+        this.kind = kind;
+    }
+
+    public Kind getKind(){
+        return kind;
+    }
+
+    public boolean isTransient(){
+        return kind == Kind.TRANSIENT;
+    }
+
+    /**
+     * @return whether the database refused the data itself, a missing row it refers to or a broken constraint, which
+     * storage engines report as a null result where their contract has one.
+     */
+    public boolean isRejection(){
+        return kind == Kind.NOT_FOUND || kind == Kind.CONSTRAINT_VIOLATION;
+    }
+
+    /**
+     * Classifies an exception thrown by H2 by its error code and SQL state.
+     *
+     * @param e
+     * @return the exception to throw in its place
+     */
+    public static DataAccessException from(SQLException e){
+        return new DataAccessException(classify(e), e);
+    }
+
+    static Kind classify(SQLException e){
+        switch (e.getErrorCode()){
+            case ErrorCode.LOCK_TIMEOUT_1:
+            case ErrorCode.DEADLOCK_1:
+            case ErrorCode.CONCURRENT_UPDATE_1:
+            case ErrorCode.DATABASE_IS_IN_EXCLUSIVE_MODE:
+                return Kind.TRANSIENT;
+            case ErrorCode.REFERENTIAL_INTEGRITY_VIOLATED_PARENT_MISSING_1:
+                return Kind.NOT_FOUND;
+            default:
+                break;
+        }
+        String state = e.getSQLState() == null ? "" : e.getSQLState();
+        //Class 40 is transaction rollback, 23 integrity constraint violation, 22 data exception
+        if (e instanceof SQLTransientException || state.startsWith("40")){
+            return Kind.TRANSIENT;
+        }
+        if (state.startsWith("23") || state.startsWith("22")){
+            return Kind.CONSTRAINT_VIOLATION;
+        }
+        return Kind.FATAL;
+    }
+}
@@ -0,0 +1,635 @@
+package DAO;
+
+import Model.Account;
+import Model.AccountStats;
+import Model.Message;
+
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.function.Consumer;
+import java.util.function.IntPredicate;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * A storage engine that keeps everything on the heap without any JDBC involved. It is meant for ephemeral environments
+ * and as a performance ceiling to compare the H2 backend against.
+ *
+ * Messages are stored column-wise in primitive arrays indexed by slot, where slot = message_id - 1. Message text lives
+ * UTF-8 encoded in a shared arena addressed by offset and length, so a stored message costs no objects at all until it
+ * is read. The arena is a list of fixed-size slabs: growing it adds a slab rather than copying everything stored, and
+ * no text straddles two slabs. MessageFootprintBenchmark measures the bytes per message this comes to.
+ * Each account keeps a list of its message ids so per-account lookups never scan the whole table, and the size of
+ * that list is the account's message count.
+ *
+ * All data is lost when the engine is garbage collected.
+ */
+public class InMemoryStorageEngine implements StorageEngine {
+    private static final int INITIAL_CAPACITY = 1024;
+    private static final int SLAB_SHIFT = 20;
+    private static final int SLAB_SIZE = 1 << SLAB_SHIFT;
+    //Messages copied per read lock by exportMessages
+    private static final int EXPORT_CHUNK_SIZE = 1000;
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    //Accounts, index = account_id - 1
+    private final List<Account> accounts = new ArrayList<Account>();
+    private final Map<String, Account> accountsByUsername = new HashMap<String, Account>();
+    private final List<IntList> messageIDsByAccount = new ArrayList<IntList>();
+    private final LastPostedIndex lastPosted = new LastPostedIndex();
+
+    //Follow graph, keyed by account_id, both directions kept sorted
+    private final Map<Integer, TreeSet<Integer>> followers = new HashMap<Integer, TreeSet<Integer>>();
+    private final Map<Integer, TreeSet<Integer>> followees = new HashMap<Integer, TreeSet<Integer>>();
+
+    //Message columns, index = message_id - 1. A message_id of 0 marks a deleted slot.
+    private int messageSlots;
+    private int[] messageIDs = new int[INITIAL_CAPACITY];
+    private int[] postedBy = new int[INITIAL_CAPACITY];
+    private long[] postedAt = new long[INITIAL_CAPACITY];
+    private int[] textOffsets = new int[INITIAL_CAPACITY];
+    private int[] textLengths = new int[INITIAL_CAPACITY];
+    //Starts at 0 and goes up with every update, like the version column of the H2 schema
+    private int[] versions = new int[INITIAL_CAPACITY];
+
+    //Text arena shared by every message, offsets are slab << SLAB_SHIFT | offset within the slab
+    private List<byte[]> textSlabs = new ArrayList<byte[]>();
+    private int textArenaSize;
+    private int textArenaGarbage;
+
+    @Override
+    public Account createAccount(String username, String password){
+        lock.writeLock().lock();
+        try{
+            //Usernames are unique
+            if (accountsByUsername.containsKey(username)){
+                return null;
+            }
+            Account account = new Account(accounts.size() + 1, username, password);
+            accounts.add(account);
+            accountsByUsername.put(username, account);
+            messageIDsByAccount.add(new IntList());
+            return copyOf(account);
+        }
+        finally{
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public Account userLogin(String username, String password){
+        lock.readLock().lock();
+        try{
+            Account account = accountsByUsername.get(username);
+            if (account != null && account.getPassword().equals(password)){
+                return copyOf(account);
+            }
+            return null;
+        }
+        finally{
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public Message createMessage(String messageText, int postedBy, long postedAt){
+        lock.writeLock().lock();
+        try{
+            //The poster must be an existing account, just like the foreign key in the H2 schema
+            byte[] text = encode(messageText);
+            if (postedBy < 1 || postedBy > accounts.size() || text == null){
+                return null;
+            }
+            if (messageSlots == messageIDs.length){
+                growColumns();
+            }
+            int slot = messageSlots++;
+            int messageID = slot + 1;
+            this.messageIDs[slot] = messageID;
+            this.postedBy[slot] = postedBy;
+            this.postedAt[slot] = postedAt;
+            versions[slot] = 0;
+            storeText(slot, text);
+            IntList accountMessageIDs = messageIDsByAccount.get(postedBy - 1);
+            accountMessageIDs.add(messageID);
+            lastPosted.added(postedBy, postedAt, accountMessageIDs.size);
+            return new Message(messageID, postedBy, messageText, postedAt);
+        }
+        finally{
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public List<Message> getAllMessages(){
+        lock.readLock().lock();
+        try{
+            List<Message> messages = new ArrayList<Message>();
+            for (int slot = 0; slot < messageSlots; slot++){
+                if (messageIDs[slot] != 0){
+                    messages.add(readMessage(slot));
+                }
+            }
+            return messages;
+        }
+        finally{
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Copies a chunk of messages at a time under the read lock and hands them to the sink without it, so a slow sink
+     * never holds up writers.
+     */
+    @Override
+    public Integer exportMessages(Consumer<Message> sink){
+        int exported = 0;
+        int slot = 0;
+        List<Message> chunk;
+        do{
+            chunk = new ArrayList<Message>(EXPORT_CHUNK_SIZE);
+            lock.readLock().lock();
+            try{
+                for (; slot < messageSlots && chunk.size() < EXPORT_CHUNK_SIZE; slot++){
+                    if (messageIDs[slot] != 0){
+                        chunk.add(readMessage(slot));
+                    }
+                }
+            }
+            finally{
+                lock.readLock().unlock();
+            }
+            chunk.forEach(sink);
+            exported += chunk.size();
+        } while (!chunk.isEmpty());
+        return exported;
+    }
+
+    @Override
+    public Message getMessageByID(int messageID){
+        lock.readLock().lock();
+        try{
+            int slot = slotOf(messageID);
+            return slot < 0 ? null : readMessage(slot);
+        }
+        finally{
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public Message deleteMessageByID(int messageID){
+        lock.writeLock().lock();
+        try{
+            int slot = slotOf(messageID);
+            if (slot < 0){
+                return null;
+            }
+            Message message = deleteSlot(slot);
+            messageIDsByAccount.get(message.getPosted_by() - 1).remove(messageID);
+            compactTextArenaIfWasteful();
+            return message;
+        }
+        finally{
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public Message updateMessageByID(int messageID, String messageText){
+        Versioned<Message> updated = updateMessageByID(messageID, messageText, null);
+        return updated == null ? null : updated.getValue();
+    }
+
+    @Override
+    public Versioned<Message> getVersionedMessageByID(int messageID){
+        lock.readLock().lock();
+        try{
+            int slot = slotOf(messageID);
+            return slot < 0 ? null : new Versioned<Message>(readMessage(slot), versions[slot]);
+        }
+        finally{
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Checks the version and updates under the write lock, so nothing can update the message in between.
+     */
+    @Override
+    public Versioned<Message> updateMessageByID(int messageID, String messageText, Integer expectedVersion){
+        lock.writeLock().lock();
+        try{
+            int slot = slotOf(messageID);
+            byte[] text = encode(messageText);
+            if (slot < 0 || text == null){
+                return null;
+            }
+            if (expectedVersion != null && versions[slot] != expectedVersion){
+                throw new DataAccessException(DataAccessException.Kind.CONFLICT, "Message " + messageID + " is at version "
+                        + versions[slot] + ", not " + expectedVersion);
+            }
+            //The old text stays in the arena as garbage until the next compaction
+            textArenaGarbage += textLengths[slot];
+            storeText(slot, text);
+            versions[slot]++;
+            compactTextArenaIfWasteful();
+            return new Versioned<Message>(readMessage(slot), versions[slot]);
+        }
+        finally{
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public List<Message> getMessagesByUserID(int userID){
+        lock.readLock().lock();
+        try{
+            List<Message> messages = new ArrayList<Message>();
+            if (userID < 1 || userID > accounts.size()){
+                return messages;
+            }
+            IntList ids = messageIDsByAccount.get(userID - 1);
+            for (int i = 0; i < ids.size; i++){
+                messages.add(readMessage(ids.values[i] - 1));
+            }
+            return messages;
+        }
+        finally{
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public List<Message> getMessagesInTimeRange(long since, long until){
+        lock.readLock().lock();
+        try{
+            IntList slots = new IntList();
+            for (int slot = 0; slot < messageSlots; slot++){
+                if (messageIDs[slot] != 0 && postedAt[slot] >= since && postedAt[slot] <= until){
+                    slots.add(slot);
+                }
+            }
+            return readNewestFirst(slots);
+        }
+        finally{
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public List<Message> getMessagesByUserIDInTimeRange(int userID, long since, long until){
+        lock.readLock().lock();
+        try{
+            IntList slots = new IntList();
+            if (userID >= 1 && userID <= accounts.size()){
+                IntList ids = messageIDsByAccount.get(userID - 1);
+                for (int i = 0; i < ids.size; i++){
+                    int slot = ids.values[i] - 1;
+                    if (postedAt[slot] >= since && postedAt[slot] <= until){
+                        slots.add(slot);
+                    }
+                }
+            }
+            return readNewestFirst(slots);
+        }
+        finally{
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public Integer deleteMessagesByUserID(int userID, int chunkSize, Consumer<List<Message>> onChunkDeleted){
+        StorageEngine.checkChunkSize(chunkSize);
+        int deleted = 0;
+        List<Message> chunk;
+        do{
+            chunk = new ArrayList<Message>();
+            lock.writeLock().lock();
+            try{
+                if (userID >= 1 && userID <= accounts.size()){
+                    //Take the chunk off the end of the account's list, so the rest of the list stays where it is
+                    IntList ids = messageIDsByAccount.get(userID - 1);
+                    int from = Math.max(0, ids.size - chunkSize);
+                    for (int i = from; i < ids.size; i++){
+                        chunk.add(deleteSlot(ids.values[i] - 1));
+                    }
+                    ids.size = from;
+                    compactTextArenaIfWasteful();
+                }
+            }
+            finally{
+                lock.writeLock().unlock();
+            }
+            deleted += chunk.size();
+            if (!chunk.isEmpty()){
+                onChunkDeleted.accept(chunk);
+            }
+        } while (chunk.size() == chunkSize);
+        return deleted;
+    }
+
+    /**
+     * Scans the message columns once, picking up where the previous chunk left off.
+     */
+    @Override
+    public Integer deleteMessagesPostedBefore(long cutoff, int chunkSize, Consumer<List<Message>> onChunkDeleted){
+        StorageEngine.checkChunkSize(chunkSize);
+        int deleted = 0;
+        int cursor = 0;
+        boolean more = true;
+        while (more){
+            List<Message> chunk = new ArrayList<Message>();
+            lock.writeLock().lock();
+            try{
+                Set<Integer> chunkIDs = new HashSet<Integer>();
+                Set<Integer> authors = new HashSet<Integer>();
+                while (cursor < messageSlots && chunk.size() < chunkSize){
+                    int slot = cursor++;
+                    if (messageIDs[slot] != 0 && postedAt[slot] < cutoff){
+                        Message message = deleteSlot(slot);
+                        chunk.add(message);
+                        chunkIDs.add(message.getMessage_id());
+                        authors.add(message.getPosted_by());
+                    }
+                }
+                //One pass over each author's list rather than one per deleted message
+                for (int author : authors){
+                    messageIDsByAccount.get(author - 1).removeIf(chunkIDs::contains);
+                }
+                compactTextArenaIfWasteful();
+                more = cursor < messageSlots;
+            }
+            finally{
+                lock.writeLock().unlock();
+            }
+            deleted += chunk.size();
+            if (!chunk.isEmpty()){
+                onChunkDeleted.accept(chunk);
+            }
+        }
+        return deleted;
+    }
+
+    @Override
+    public boolean follow(int followerID, int followeeID){
+        lock.writeLock().lock();
+        try{
+            if (followerID < 1 || followerID > accounts.size() || followeeID < 1 || followeeID > accounts.size()){
+                return false;
+            }
+            followers.computeIfAbsent(followeeID, id -> new TreeSet<Integer>()).add(followerID);
+            followees.computeIfAbsent(followerID, id -> new TreeSet<Integer>()).add(followeeID);
+            return true;
+        }
+        finally{
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public List<Integer> getFollowerIDs(int accountID){
+        return copyOf(followers, accountID);
+    }
+
+    @Override
+    public List<Integer> getFolloweeIDs(int accountID){
+        return copyOf(followees, accountID);
+    }
+
+    private List<Integer> copyOf(Map<Integer, TreeSet<Integer>> graph, int accountID){
+        lock.readLock().lock();
+        try{
+            TreeSet<Integer> ids = graph.get(accountID);
+            return ids == null ? new ArrayList<Integer>() : new ArrayList<Integer>(ids);
+        }
+        finally{
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public AccountStats getAccountStats(int accountID){
+        lock.readLock().lock();
+        try{
+            if (accountID < 1 || accountID > accounts.size()){
+                return null;
+            }
+            return statsOf(accountID);
+        }
+        finally{
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Recomputes the statistics from the message columns and compares them with the per-account message lists. A
+     * repair rebuilds the lists of the accounts that differ.
+     */
+    @Override
+    public List<AccountStats> checkAccountStats(boolean repair){
+        Lock checkLock = repair ? lock.writeLock() : lock.readLock();
+        checkLock.lock();
+        try{
+            Map<Integer, AccountStats> recomputed = new HashMap<Integer, AccountStats>();
+            for (int slot = 0; slot < messageSlots; slot++){
+                if (messageIDs[slot] != 0){
+                    AccountStatsAudit.count(recomputed, postedBy[slot], postedAt[slot]);
+                }
+            }
+            Map<Integer, AccountStats> maintained = new HashMap<Integer, AccountStats>();
+            for (int accountID = 1; accountID <= accounts.size(); accountID++){
+                maintained.put(accountID, statsOf(accountID));
+            }
+            List<AccountStats> mismatches = AccountStatsAudit.mismatches(recomputed, maintained);
+            if (repair && !mismatches.isEmpty()){
+                Set<Integer> rebuilt = new HashSet<Integer>();
+                for (AccountStats stats : mismatches){
+                    messageIDsByAccount.set(stats.getAccount_id() - 1, new IntList());
+                    lastPosted.forget(stats.getAccount_id());
+                    rebuilt.add(stats.getAccount_id());
+                }
+                //Slots are in message_id order, so the rebuilt lists are too
+                for (int slot = 0; slot < messageSlots; slot++){
+                    if (messageIDs[slot] != 0 && rebuilt.contains(postedBy[slot])){
+                        messageIDsByAccount.get(postedBy[slot] - 1).add(messageIDs[slot]);
+                    }
+                }
+            }
+            return mismatches;
+        }
+        finally{
+            checkLock.unlock();
+        }
+    }
+
+    /**
+     * Must be called holding the lock, with an existing account.
+     */
+    private AccountStats statsOf(int accountID){
+        IntList ids = messageIDsByAccount.get(accountID - 1);
+        Long lastPostedAt = lastPosted.get(accountID, ids.size, () -> {
+            long newest = Long.MIN_VALUE;
+            for (int i = 0; i < ids.size; i++){
+                newest = Math.max(newest, postedAt[ids.values[i] - 1]);
+            }
+            return newest;
+        });
+        return new AccountStats(accountID, ids.size, lastPostedAt);
+    }
+
+    /**
+     * @return the slot of a live message, or -1 if it does not exist.
+     */
+    private int slotOf(int messageID){
+        int slot = messageID - 1;
+        if (slot < 0 || slot >= messageSlots || messageIDs[slot] == 0){
+            return -1;
+        }
+        return slot;
+    }
+
+    /**
+     * Frees a live slot and returns the message it held. The caller removes the id from the account's list and
+     * compacts the text arena.
+     */
+    private Message deleteSlot(int slot){
+        Message message = readMessage(slot);
+        messageIDs[slot] = 0;
+        textArenaGarbage += textLengths[slot];
+        lastPosted.removed(postedBy[slot], postedAt[slot]);
+        return message;
+    }
+
+    private Message readMessage(int slot){
+        int offset = textOffsets[slot];
+        String messageText = new String(textSlabs.get(offset >>> SLAB_SHIFT), offset & (SLAB_SIZE - 1), textLengths[slot],
+                StandardCharsets.UTF_8);
+        return new Message(messageIDs[slot], postedBy[slot], messageText, postedAt[slot]);
+    }
+
+    /**
+     * Sorts the given slots by time_posted_epoch, newest first, and materializes them.
+     * Slots are collected in message_id order, so ties keep that order.
+     */
+    private List<Message> readNewestFirst(IntList slots){
+        Integer[] order = new Integer[slots.size];
+        for (int i = 0; i < slots.size; i++){
+            order[i] = slots.values[i];
+        }
+        Arrays.sort(order, (a, b) -> Long.compare(postedAt[b], postedAt[a]));
+        List<Message> messages = new ArrayList<Message>(order.length);
+        for (int slot : order){
+            messages.add(readMessage(slot));
+        }
+        return messages;
+    }
+
+    /**
+     * @return the UTF-8 encoding of the text, null if it is too long to fit in a slab
+     */
+    private static byte[] encode(String messageText){
+        byte[] text = messageText.getBytes(StandardCharsets.UTF_8);
+        return text.length > SLAB_SIZE ? null : text;
+    }
+
+    private void storeText(int slot, byte[] text){
+        textOffsets[slot] = appendText(text, 0, text.length);
+        textLengths[slot] = text.length;
+    }
+
+    /**
+     * Copies the bytes to the end of the arena, starting a new slab if they don't fit in what is left of the last one.
+     *
+     * @return the arena offset the bytes were stored at
+     */
+    private int appendText(byte[] source, int sourceOffset, int length){
+        int slab = textArenaSize >>> SLAB_SHIFT;
+        int offset = textArenaSize & (SLAB_SIZE - 1);
+        if (offset + length > SLAB_SIZE){
+            //The rest of the slab stays unused
+            textArenaGarbage += SLAB_SIZE - offset;
+            slab++;
+            offset = 0;
+        }
+        if (slab == textSlabs.size()){
+            textSlabs.add(new byte[SLAB_SIZE]);
+        }
+        System.arraycopy(source, sourceOffset, textSlabs.get(slab), offset, length);
+        textArenaSize = (slab << SLAB_SHIFT) + offset + length;
+        return (slab << SLAB_SHIFT) | offset;
+    }
+
+    /**
+     * Rewrites the arena without the text of deleted or overwritten messages once they make up half of it.
+     */
+    private void compactTextArenaIfWasteful(){
+        if (textArenaGarbage < SLAB_SIZE || textArenaGarbage * 2 < textArenaSize){
+            return;
+        }
+        List<byte[]> previousSlabs = textSlabs;
+        textSlabs = new ArrayList<byte[]>();
+        textArenaSize = 0;
+        textArenaGarbage = 0;
+        for (int slot = 0; slot < messageSlots; slot++){
+            if (messageIDs[slot] != 0){
+                int offset = textOffsets[slot];
+                textOffsets[slot] = appendText(previousSlabs.get(offset >>> SLAB_SHIFT), offset & (SLAB_SIZE - 1), textLengths[slot]);
+            }
+        }
+    }
+
+    private void growColumns(){
+        int capacity = messageIDs.length * 2;
+        messageIDs = Arrays.copyOf(messageIDs, capacity);
+        postedBy = Arrays.copyOf(postedBy, capacity);
+        postedAt = Arrays.copyOf(postedAt, capacity);
+        textOffsets = Arrays.copyOf(textOffsets, capacity);
+        textLengths = Arrays.copyOf(textLengths, capacity);
+        versions = Arrays.copyOf(versions, capacity);
+    }
+
+    /**
+     * Accounts are mutable, so callers only ever get a copy of the stored instance.
+     */
+    private static Account copyOf(Account account){
+        return new Account(account.getAccount_id(), account.getUsername(), account.getPassword());
+    }
+
+    /**
+     * A growable list of primitive ints, kept in insertion order.
+     */
+    private static final class IntList {
+        int[] values = new int[8];
+        int size;
+
+        void add(int value){
+            if (size == values.length){
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+
+        void remove(int value){
+            for (int i = 0; i < size; i++){
+                if (values[i] == value){
+                    System.arraycopy(values, i + 1, values, i, size - i - 1);
+                    size--;
+                    return;
+                }
+            }
+        }
+
+        void removeIf(IntPredicate filter){
+            int kept = 0;
+            for (int i = 0; i < size; i++){
+                if (!filter.test(values[i])){
+                    values[kept++] = values[i];
+                }
+            }
+            size = kept;
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package DAO;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+/**
+ * The newest time_posted_epoch of each account, for the engines whose per-account message index already gives the
+ * message count.
+ *
+ * Creating a message raises the entry in place. Deleting an account's newest message drops the entry, and it is
+ * recomputed from the account's remaining messages the next time it is asked for; entries missing after a restart are
+ * recomputed the same way. Writes must hold the engine's write lock, reads may run concurrently under its read lock.
+ */
+final class LastPostedIndex {
+    private final ConcurrentHashMap<Integer, Long> lastPosted = new ConcurrentHashMap<Integer, Long>();
+
+    /**
+     * @param accountID
+     * @param postedAt of the message created
+     * @param messageCount the account's message count including the new message
+     */
+    void added(int accountID, long postedAt, int messageCount){
+        if (messageCount == 1){
+            lastPosted.put(accountID, postedAt);
+        }
+        else{
+            lastPosted.computeIfPresent(accountID, (id, last) -> Math.max(last, postedAt));
+        }
+    }
+
+    /**
+     * @param accountID
+     * @param postedAt of the message deleted
+     */
+    void removed(int accountID, long postedAt){
+        Long last = lastPosted.get(accountID);
+        if (last != null && last <= postedAt){
+            lastPosted.remove(accountID);
+        }
+    }
+
+    /**
+     * Drops the account's entry so it is recomputed on the next read.
+     *
+     * @param accountID
+     */
+    void forget(int accountID){
+        lastPosted.remove(accountID);
+    }
+
+    /**
+     * @param accountID
+     * @param messageCount the account's current message count
+     * @param recompute computes the newest time_posted_epoch from the account's messages when it is not known
+     * @return the newest time_posted_epoch, null when the account has no messages
+     */
+    Long get(int accountID, int messageCount, Supplier<Long> recompute){
+        if (messageCount == 0){
+            return null;
+        }
+        return lastPosted.computeIfAbsent(accountID, id -> recompute.get());
+    }
+}
@@ -0,0 +1,1231 @@
+package DAO;
+
+import Model.Account;
+import Model.AccountStats;
+import Model.Message;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+/**
+ * A storage engine that persists accounts and messages to an append-only log of memory-mapped segment files.
+ * It is meant for write-heavy deployments: every write is a single sequential append into a mapped page.
+ *
+ * Each segment starts with a header holding the id counters at the time it was created, followed by records of the
+ * form [int payload length][int crc32][byte type][payload]. Updates append a new copy of the message, its version one
+ * higher, and deletes append a tombstone, so nothing is ever overwritten in place. In-memory hash indexes map ids to
+ * record locations.
+ *
+ * On startup the indexes are loaded from the checkpoint file written on close and after each compaction, and only the
+ * log written after it is replayed. Without a usable checkpoint every segment is replayed. A torn record at the tail
+ * (bad length or crc) marks the end of the log.
+ *
+ * Sealed segments whose live data has dropped below half of their size are compacted in the background: live records
+ * are re-appended to the active segment and the old file is deleted. Writes reach the OS page cache immediately, so
+ * they survive a process crash; call flush() to force them to disk.
+ */
+public class LogStorageEngine implements StorageEngine, Closeable {
+    /**
+     * System property naming the directory the log is stored in when selected through StorageEngine.
+     */
+    public static final String DIRECTORY_PROPERTY = "socialmedia.storage.dir";
+
+    public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+    public static final long DEFAULT_COMPACTION_INTERVAL_MILLIS = 30_000;
+
+    private static final int SEGMENT_MAGIC = 0x534d4c47;
+    private static final int CHECKPOINT_MAGIC = 0x534d4350;
+    private static final int SEGMENT_HEADER_SIZE = 16;
+    private static final int RECORD_HEADER_SIZE = 9;
+    private static final String CHECKPOINT_FILE = "checkpoint";
+    //Messages read per read lock by exportMessages
+    private static final int EXPORT_CHUNK_SIZE = 1000;
+
+    private static final byte ACCOUNT_RECORD = 1;
+    private static final byte MESSAGE_RECORD = 2;
+    private static final byte DELETE_RECORD = 3;
+    private static final byte FOLLOW_RECORD = 4;
+
+    private final Path directory;
+    private final int segmentSize;
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final ScheduledExecutorService compactor;
+
+    private final TreeMap<Integer, Segment> segments = new TreeMap<Integer, Segment>();
+    private Segment activeSegment;
+    private int nextAccountID = 1;
+    private int nextMessageID = 1;
+
+    //Hash indexes from id to record location, where location = segment id << 32 | offset
+    private final Map<Integer, Long> accountLocations = new HashMap<Integer, Long>();
+    private final Map<String, Account> accountsByUsername = new HashMap<String, Account>();
+    private final Map<Integer, Long> messageLocations = new HashMap<Integer, Long>();
+    private final Map<Integer, TreeSet<Integer>> messageIDsByAccount = new HashMap<Integer, TreeSet<Integer>>();
+    //Not persisted, so after a restart each account's entry is recomputed from its messages on first use
+    private final LastPostedIndex lastPosted = new LastPostedIndex();
+    //Live message id -> oldest segment that may hold a copy of it, superseded copies included
+    private final Map<Integer, Integer> oldestCopies = new HashMap<Integer, Integer>();
+    //Deleted message id -> oldest segment that may hold a copy of it. The tombstone is needed while any segment from
+    //that one up to the tombstone's own is left, since replaying a copy there without the tombstone would resurrect it.
+    private final Map<Integer, Integer> tombstones = new HashMap<Integer, Integer>();
+    //Follow graph in both directions, and follower << 32 | followee -> location of the record that created the edge
+    private final Map<Integer, TreeSet<Integer>> followers = new HashMap<Integer, TreeSet<Integer>>();
+    private final Map<Integer, TreeSet<Integer>> followees = new HashMap<Integer, TreeSet<Integer>>();
+    private final Map<Long, Long> followLocations = new HashMap<Long, Long>();
+
+    /**
+     * Opens (or creates) a log in the given directory with default segment size and background compaction.
+     *
+     * @param directory
+     */
+    public LogStorageEngine(Path directory){
+        this(directory, DEFAULT_SEGMENT_SIZE, DEFAULT_COMPACTION_INTERVAL_MILLIS);
+    }
+
+    /**
+     * Opens (or creates) a log in the given directory.
+     *
+     * @param directory where segment files and the checkpoint are stored
+     * @param segmentSize size in bytes of each mapped segment file
+     * @param compactionIntervalMillis how often to look for segments worth compacting, 0 disables background compaction
+     */
+    public LogStorageEngine(Path directory, int segmentSize, long compactionIntervalMillis){
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        try{
+            Files.createDirectories(directory);
+            recover();
+        }
+        catch (IOException e){
+            throw new UncheckedIOException("Could not open log in " + directory, e);
+        }
+        if (compactionIntervalMillis > 0){
+            compactor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "log-compactor");
+                thread.setDaemon(true);
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            });
+            compactor.scheduleWithFixedDelay(this::compact, compactionIntervalMillis, compactionIntervalMillis, TimeUnit.MILLISECONDS);
+        }
+        else{
+            compactor = null;
+        }
+    }
+
+    @Override
+    public Account createAccount(String username, String password){
+        lock.writeLock().lock();
+        try{
+            //Usernames are unique
+            if (accountsByUsername.containsKey(username)){
+                return null;
+            }
+            Account account = new Account(nextAccountID++, username, password);
+            long location = append(ACCOUNT_RECORD, accountPayload(account));
+            applyAccount(account, location);
+            return copyOf(account);
+        }
+        finally{
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public Account userLogin(String username, String password){
+        lock.readLock().lock();
+        try{
+            Account account = accountsByUsername.get(username);
+            if (account != null && account.getPassword().equals(password)){
+                return copyOf(account);
+            }
+            return null;
+        }
+        finally{
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public Message createMessage(String messageText, int postedBy, long postedAt){
+        lock.writeLock().lock();
+        try{
+            //The poster must be an existing account, just like the foreign key in the H2 schema
+            if (!accountLocations.containsKey(postedBy)){
+                return null;
+            }
+            Message message = new Message(nextMessageID++, postedBy, messageText, postedAt);
+            long location = append(MESSAGE_RECORD, messagePayload(message, 0));
+            applyMessage(message.getMessage_id(), postedBy, location);
+            lastPosted.added(postedBy, postedAt, messageIDsByAccount.get(postedBy).size());
+            return message;
+        }
+        finally{
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public List<Message> getAllMessages(){
+        lock.readLock().lock();
+        try{
+            Integer[] messageIDs = messageLocations.keySet().toArray(new Integer[0]);
+            Arrays.sort(messageIDs);
+            List<Message> messages = new ArrayList<Message>(messageIDs.length);
+            for (int messageID : messageIDs){
+                messages.add(readMessage(messageLocations.get(messageID)));
+            }
+            return messages;
+        }
+        finally{
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Walks the message ids in order, reading a chunk of messages at a time under the read lock and handing them to the
+     * sink without it, so a slow sink never holds up writers.
+     */
+    @Override
+    public Integer exportMessages(Consumer<Message> sink){
+        int exported = 0;
+        int messageID = 1;
+        List<Message> chunk;
+        do{
+            chunk = new ArrayList<Message>(EXPORT_CHUNK_SIZE);
+            lock.readLock().lock();
+            try{
+                for (; messageID < nextMessageID && chunk.size() < EXPORT_CHUNK_SIZE; messageID++){
+                    Long location = messageLocations.get(messageID);
+                    if (location != null){
+                        chunk.add(readMessage(location));
+                    }
+                }
+            }
+            finally{
+                lock.readLock().unlock();
+            }
+            chunk.forEach(sink);
+            exported += chunk.size();
+        } while (!chunk.isEmpty());
+        return exported;
+    }
+
+    @Override
+    public Message getMessageByID(int messageID){
+        lock.readLock().lock();
+        try{
+            Long location = messageLocations.get(messageID);
+            return location == null ? null : readMessage(location);
+        }
+        finally{
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public Message deleteMessageByID(int messageID){
+        lock.writeLock().lock();
+        try{
+            Long location = messageLocations.get(messageID);
+            if (location == null){
+                return null;
+            }
+            return deleteLocked(messageID, location);
+        }
+        finally{
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public Message updateMessageByID(int messageID, String messageText){
+        Versioned<Message> updated = updateMessageByID(messageID, messageText, null);
+        return updated == null ? null : updated.getValue();
+    }
+
+    @Override
+    public Versioned<Message> getVersionedMessageByID(int messageID){
+        lock.readLock().lock();
+        try{
+            Long location = messageLocations.get(messageID);
+            return location == null ? null : new Versioned<Message>(readMessage(location), versionOf(location));
+        }
+        finally{
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Checks the version and updates under the write lock, so nothing can update the message in between.
+     */
+    @Override
+    public Versioned<Message> updateMessageByID(int messageID, String messageText, Integer expectedVersion){
+        lock.writeLock().lock();
+        try{
+            Long location = messageLocations.get(messageID);
+            if (location == null){
+                return null;
+            }
+            int version = versionOf(location);
+            if (expectedVersion != null && version != expectedVersion){
+                throw new DataAccessException(DataAccessException.Kind.CONFLICT, "Message " + messageID + " is at version "
+                        + version + ", not " + expectedVersion);
+            }
+            Message current = readMessage(location);
+            Message updated = new Message(messageID, current.getPosted_by(), messageText, current.getTime_posted_epoch());
+            long newLocation = append(MESSAGE_RECORD, messagePayload(updated, version + 1));
+            applyMessage(messageID, updated.getPosted_by(), newLocation);
+            return new Versioned<Message>(updated, version + 1);
+        }
+        finally{
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public List<Message> getMessagesByUserID(int userID){
+        lock.readLock().lock();
+        try{
+            List<Message> messages = new ArrayList<Message>();
+            TreeSet<Integer> messageIDs = messageIDsByAccount.get(userID);
+            if (messageIDs != null){
+                for (int messageID : messageIDs){
+                    messages.add(readMessage(messageLocations.get(messageID)));
+                }
+            }
+            return messages;
+        }
+        finally{
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public List<Message> getMessagesInTimeRange(long since, long until){
+        lock.readLock().lock();
+        try{
+            Integer[] messageIDs = messageLocations.keySet().toArray(new Integer[0]);
+            Arrays.sort(messageIDs);
+            return readNewestFirst(Arrays.asList(messageIDs), since, until);
+        }
+        finally{
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public List<Message> getMessagesByUserIDInTimeRange(int userID, long since, long until){
+        lock.readLock().lock();
+        try{
+            TreeSet<Integer> messageIDs = messageIDsByAccount.get(userID);
+            if (messageIDs == null){
+                return new ArrayList<Message>();
+            }
+            return readNewestFirst(messageIDs, since, until);
+        }
+        finally{
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public Integer deleteMessagesByUserID(int userID, int chunkSize, Consumer<List<Message>> onChunkDeleted){
+        StorageEngine.checkChunkSize(chunkSize);
+        int deleted = 0;
+        List<Message> chunk;
+        do{
+            chunk = new ArrayList<Message>();
+            lock.writeLock().lock();
+            try{
+                TreeSet<Integer> messageIDs = messageIDsByAccount.get(userID);
+                if (messageIDs != null){
+                    //Copied first, since deleting removes the ids from the set
+                    List<Integer> chunkIDs = new ArrayList<Integer>();
+                    for (Iterator<Integer> ids = messageIDs.iterator(); ids.hasNext() && chunkIDs.size() < chunkSize;){
+                        chunkIDs.add(ids.next());
+                    }
+                    for (int messageID : chunkIDs){
+                        chunk.add(deleteLocked(messageID, messageLocations.get(messageID)));
+                    }
+                }
+            }
+            finally{
+                lock.writeLock().unlock();
+            }
+            deleted += chunk.size();
+            if (!chunk.isEmpty()){
+                onChunkDeleted.accept(chunk);
+            }
+        } while (chunk.size() == chunkSize);
+        return deleted;
+    }
+
+    /**
+     * Walks the ids that existed when the delete started, in id order, picking up where the previous chunk left off.
+     */
+    @Override
+    public Integer deleteMessagesPostedBefore(long cutoff, int chunkSize, Consumer<List<Message>> onChunkDeleted){
+        StorageEngine.checkChunkSize(chunkSize);
+        Integer[] candidates;
+        lock.readLock().lock();
+        try{
+            candidates = messageLocations.keySet().toArray(new Integer[0]);
+        }
+        finally{
+            lock.readLock().unlock();
+        }
+        Arrays.sort(candidates);
+        int deleted = 0;
+        int cursor = 0;
+        while (cursor < candidates.length){
+            List<Message> chunk = new ArrayList<Message>();
+            lock.writeLock().lock();
+            try{
+                while (cursor < candidates.length && chunk.size() < chunkSize){
+                    int messageID = candidates[cursor++];
+                    Long location = messageLocations.get(messageID);
+                    if (location != null && postedAtOf(location) < cutoff){
+                        chunk.add(deleteLocked(messageID, location));
+                    }
+                }
+            }
+            finally{
+                lock.writeLock().unlock();
+            }
+            deleted += chunk.size();
+            if (!chunk.isEmpty()){
+                onChunkDeleted.accept(chunk);
+            }
+        }
+        return deleted;
+    }
+
+    @Override
+    public boolean follow(int followerID, int followeeID){
+        lock.writeLock().lock();
+        try{
+            if (!accountLocations.containsKey(followerID) || !accountLocations.containsKey(followeeID)){
+                return false;
+            }
+            //Following twice is a no-op, there is nothing new to log
+            if (!followLocations.containsKey(followKey(followerID, followeeID))){
+                long location = append(FOLLOW_RECORD, ByteBuffer.allocate(8).putInt(followerID).putInt(followeeID).array());
+                applyFollow(followerID, followeeID, location);
+            }
+            return true;
+        }
+        finally{
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public List<Integer> getFollowerIDs(int accountID){
+        return copyOf(followers, accountID);
+    }
+
+    @Override
+    public List<Integer> getFolloweeIDs(int accountID){
+        return copyOf(followees, accountID);
+    }
+
+    private List<Integer> copyOf(Map<Integer, TreeSet<Integer>> graph, int accountID){
+        lock.readLock().lock();
+        try{
+            TreeSet<Integer> ids = graph.get(accountID);
+            return ids == null ? new ArrayList<Integer>() : new ArrayList<Integer>(ids);
+        }
+        finally{
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public AccountStats getAccountStats(int accountID){
+        lock.readLock().lock();
+        try{
+            if (!accountLocations.containsKey(accountID)){
+                return null;
+            }
+            return statsOf(accountID);
+        }
+        finally{
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Recomputes the statistics from the live message records and compares them with the per-account message index. A
+     * repair rebuilds the index entries of the accounts that differ.
+     */
+    @Override
+    public List<AccountStats> checkAccountStats(boolean repair){
+        Lock checkLock = repair ? lock.writeLock() : lock.readLock();
+        checkLock.lock();
+        try{
+            Map<Integer, AccountStats> recomputed = new HashMap<Integer, AccountStats>();
+            for (long location : messageLocations.values()){
+                ByteBuffer record = segments.get(segmentOf(location)).read(offsetOf(location) + RECORD_HEADER_SIZE + 4);
+                int postedBy = record.getInt();
+                AccountStatsAudit.count(recomputed, postedBy, record.getLong());
+            }
+            Map<Integer, AccountStats> maintained = new HashMap<Integer, AccountStats>();
+            for (int accountID : accountLocations.keySet()){
+                maintained.put(accountID, statsOf(accountID));
+            }
+            List<AccountStats> mismatches = AccountStatsAudit.mismatches(recomputed, maintained);
+            if (repair && !mismatches.isEmpty()){
+                Set<Integer> rebuilt = new HashSet<Integer>();
+                for (AccountStats stats : mismatches){
+                    messageIDsByAccount.remove(stats.getAccount_id());
+                    lastPosted.forget(stats.getAccount_id());
+                    rebuilt.add(stats.getAccount_id());
+                }
+                for (Map.Entry<Integer, Long> message : messageLocations.entrySet()){
+                    long location = message.getValue();
+                    int postedBy = segments.get(segmentOf(location)).read(offsetOf(location) + RECORD_HEADER_SIZE + 4).getInt();
+                    if (rebuilt.contains(postedBy)){
+                        messageIDsByAccount.computeIfAbsent(postedBy, id -> new TreeSet<Integer>()).add(message.getKey());
+                    }
+                }
+            }
+            return mismatches;
+        }
+        finally{
+            checkLock.unlock();
+        }
+    }
+
+    /**
+     * Rewrites every sealed segment whose live records take up less than half of it into the active segment, then
+     * deletes the old files. Tombstones are carried over only while a segment that may hold an older copy of their
+     * message is left.
+     * This runs periodically in the background but may also be called directly.
+     */
+    public void compact(){
+        lock.writeLock().lock();
+        try{
+            List<Segment> victims = new ArrayList<Segment>();
+            for (Segment segment : segments.values()){
+                if (segment != activeSegment && isWorthCompacting(segment)){
+                    victims.add(segment);
+                }
+            }
+            if (victims.isEmpty()){
+                return;
+            }
+            Set<Integer> victimIDs = new HashSet<Integer>();
+            for (Segment victim : victims){
+                victimIDs.add(victim.id);
+            }
+            for (Segment victim : victims){
+                int offset = SEGMENT_HEADER_SIZE;
+                while (offset < victim.writePosition){
+                    ByteBuffer record = victim.read(offset);
+                    int payloadLength = record.getInt();
+                    record.getInt();
+                    byte type = record.get();
+                    long location = location(victim.id, offset);
+                    if (type == ACCOUNT_RECORD){
+                        int accountID = record.getInt();
+                        if (accountLocations.get(accountID) == location){
+                            accountLocations.put(accountID, appendCopy(victim, offset, payloadLength));
+                        }
+                    }
+                    else if (type == MESSAGE_RECORD){
+                        int messageID = record.getInt();
+                        Long current = messageLocations.get(messageID);
+                        if (current != null && current == location){
+                            messageLocations.put(messageID, appendCopy(victim, offset, payloadLength));
+                        }
+                    }
+                    else if (type == FOLLOW_RECORD){
+                        long key = followKey(record.getInt(), record.getInt());
+                        if (followLocations.get(key) == location){
+                            followLocations.put(key, appendCopy(victim, offset, payloadLength));
+                        }
+                    }
+                    else if (type == DELETE_RECORD){
+                        int messageID = record.getInt();
+                        Integer oldestCopy = tombstones.get(messageID);
+                        if (oldestCopy != null && mayHoldCopy(oldestCopy, victim.id, victimIDs)){
+                            appendCopy(victim, offset, payloadLength);
+                        }
+                    }
+                    offset += RECORD_HEADER_SIZE + payloadLength;
+                }
+            }
+            for (Segment victim : victims){
+                segments.remove(victim.id);
+            }
+            tombstones.values().removeIf(oldestCopy -> segments.subMap(oldestCopy, activeSegment.id).isEmpty());
+            //Persist the new layout before removing the old files, so recovery never points at a missing segment
+            writeCheckpoint();
+            for (Segment victim : victims){
+                victim.close();
+                Files.deleteIfExists(victim.path);
+            }
+        }
+        catch (IOException e){
+            System.out.println(e.getMessage());
+        }
+        finally{
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Copies of a deleted message can only be in segments from its oldest copy up to the one holding its tombstone.
+     *
+     * @return whether a segment in that range survives this compaction.
+     */
+    private boolean mayHoldCopy(int oldestCopy, int tombstoneSegment, Set<Integer> victimIDs){
+        for (int segmentID : segments.subMap(oldestCopy, tombstoneSegment).keySet()){
+            if (!victimIDs.contains(segmentID)){
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * A sealed segment is worth rewriting when less than half of it is live, or when it was sealed while still mostly
+     * empty, which happens to the active segment on every restart.
+     */
+    private boolean isWorthCompacting(Segment segment){
+        long used = segment.writePosition - SEGMENT_HEADER_SIZE;
+        return segment.liveBytes * 2 < used || segment.writePosition < segmentSize / 4;
+    }
+
+    /**
+     * Forces every segment to disk.
+     */
+    public void flush(){
+        lock.readLock().lock();
+        try{
+            for (Segment segment : segments.values()){
+                segment.buffer.force();
+            }
+        }
+        finally{
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Stops background compaction, writes a checkpoint so the next startup can skip the replay, and closes the files.
+     */
+    @Override
+    public void close(){
+        if (compactor != null){
+            compactor.shutdownNow();
+        }
+        lock.writeLock().lock();
+        try{
+            for (Segment segment : segments.values()){
+                segment.buffer.force();
+            }
+            writeCheckpoint();
+            for (Segment segment : segments.values()){
+                segment.close();
+            }
+        }
+        catch (IOException e){
+            System.out.println(e.getMessage());
+        }
+        finally{
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @return the number of segment files currently in use.
+     */
+    public int getSegmentCount(){
+        lock.readLock().lock();
+        try{
+            return segments.size();
+        }
+        finally{
+            lock.readLock().unlock();
+        }
+    }
+
+    private List<Message> readNewestFirst(Collection<Integer> messageIDs, long since, long until){
+        List<Message> messages = new ArrayList<Message>();
+        for (int messageID : messageIDs){
+            long location = messageLocations.get(messageID);
+            //Check the timestamp in place before materializing the message
+            long postedAt = postedAtOf(location);
+            if (postedAt >= since && postedAt <= until){
+                messages.add(readMessage(location));
+            }
+        }
+        //Stable sort, so ties stay in message_id order
+        messages.sort((a, b) -> Long.compare(b.getTime_posted_epoch(), a.getTime_posted_epoch()));
+        return messages;
+    }
+
+    /**
+     * Appends a tombstone for a live message and drops it from the indexes. Must be called holding the write lock.
+     *
+     * @return the deleted message
+     */
+    private Message deleteLocked(int messageID, long location){
+        Message message = readMessage(location);
+        append(DELETE_RECORD, ByteBuffer.allocate(4).putInt(messageID).array());
+        applyDelete(messageID);
+        lastPosted.removed(message.getPosted_by(), message.getTime_posted_epoch());
+        return message;
+    }
+
+    private long postedAtOf(long location){
+        return segments.get(segmentOf(location)).read(offsetOf(location) + RECORD_HEADER_SIZE + 8).getLong();
+    }
+
+    /**
+     * Must be called holding the lock.
+     */
+    private AccountStats statsOf(int accountID){
+        TreeSet<Integer> messageIDs = messageIDsByAccount.get(accountID);
+        int messageCount = messageIDs == null ? 0 : messageIDs.size();
+        Long lastPostedAt = lastPosted.get(accountID, messageCount, () -> {
+            long newest = Long.MIN_VALUE;
+            for (int messageID : messageIDs){
+                long location = messageLocations.get(messageID);
+                newest = Math.max(newest, postedAtOf(location));
+            }
+            return newest;
+        });
+        return new AccountStats(accountID, messageCount, lastPostedAt);
+    }
+
+    private void applyAccount(Account account, long location){
+        Long previous = accountLocations.put(account.getAccount_id(), location);
+        if (previous != null){
+            release(previous);
+        }
+        accountsByUsername.put(account.getUsername(), account);
+        nextAccountID = Math.max(nextAccountID, account.getAccount_id() + 1);
+        segments.get(segmentOf(location)).liveBytes += recordSize(location);
+    }
+
+    private void applyMessage(int messageID, int postedBy, long location){
+        Long previous = messageLocations.put(messageID, location);
+        if (previous != null){
+            release(previous);
+        }
+        messageIDsByAccount.computeIfAbsent(postedBy, id -> new TreeSet<Integer>()).add(messageID);
+        //Copies are appended and replayed oldest first, so the first one seen is the oldest
+        oldestCopies.putIfAbsent(messageID, segmentOf(location));
+        nextMessageID = Math.max(nextMessageID, messageID + 1);
+        segments.get(segmentOf(location)).liveBytes += recordSize(location);
+    }
+
+    private void applyDelete(int messageID){
+        Long previous = messageLocations.remove(messageID);
+        if (previous == null){
+            return;
+        }
+        int postedBy = segments.get(segmentOf(previous)).read(offsetOf(previous) + RECORD_HEADER_SIZE + 4).getInt();
+        TreeSet<Integer> messageIDs = messageIDsByAccount.get(postedBy);
+        if (messageIDs != null){
+            messageIDs.remove(messageID);
+        }
+        Integer oldestCopy = oldestCopies.remove(messageID);
+        tombstones.put(messageID, oldestCopy == null ? segmentOf(previous) : oldestCopy);
+        release(previous);
+    }
+
+    private void applyFollow(int followerID, int followeeID, long location){
+        Long previous = followLocations.put(followKey(followerID, followeeID), location);
+        if (previous != null){
+            release(previous);
+        }
+        indexFollow(followerID, followeeID);
+        segments.get(segmentOf(location)).liveBytes += recordSize(location);
+    }
+
+    /**
+     * Adds a follow edge to the graph without touching the segment accounting.
+     */
+    private void indexFollow(int followerID, int followeeID){
+        followers.computeIfAbsent(followeeID, id -> new TreeSet<Integer>()).add(followerID);
+        followees.computeIfAbsent(followerID, id -> new TreeSet<Integer>()).add(followeeID);
+    }
+
+    /**
+     * Adds a checkpointed account to the indexes without touching the segment accounting.
+     */
+    private void indexAccount(int accountID, long location){
+        Account account = readAccount(location);
+        accountLocations.put(accountID, location);
+        accountsByUsername.put(account.getUsername(), account);
+    }
+
+    /**
+     * Adds a checkpointed message to the indexes without touching the segment accounting.
+     */
+    private void indexMessage(int messageID, long location, int postedBy, int oldestCopy){
+        messageLocations.put(messageID, location);
+        oldestCopies.put(messageID, oldestCopy);
+        messageIDsByAccount.computeIfAbsent(postedBy, id -> new TreeSet<Integer>()).add(messageID);
+    }
+
+    private void release(long location){
+        Segment segment = segments.get(segmentOf(location));
+        if (segment != null){
+            segment.liveBytes -= recordSize(location);
+        }
+    }
+
+    private int recordSize(long location){
+        return RECORD_HEADER_SIZE + segments.get(segmentOf(location)).read(offsetOf(location)).getInt();
+    }
+
+    private Message readMessage(long location){
+        ByteBuffer record = segments.get(segmentOf(location)).read(offsetOf(location) + RECORD_HEADER_SIZE);
+        int messageID = record.getInt();
+        int postedBy = record.getInt();
+        long postedAt = record.getLong();
+        return new Message(messageID, postedBy, readString(record), postedAt);
+    }
+
+    /**
+     * @return the version stored after the text, 0 for records written before messages had one.
+     */
+    private int versionOf(long location){
+        Segment segment = segments.get(segmentOf(location));
+        int payloadLength = segment.read(offsetOf(location)).getInt();
+        int textLength = segment.read(offsetOf(location) + RECORD_HEADER_SIZE + 16).getInt();
+        int versionOffset = 4 + 4 + 8 + 4 + textLength;
+        if (payloadLength < versionOffset + 4){
+            return 0;
+        }
+        return segment.read(offsetOf(location) + RECORD_HEADER_SIZE + versionOffset).getInt();
+    }
+
+    private Account readAccount(long location){
+        ByteBuffer record = segments.get(segmentOf(location)).read(offsetOf(location) + RECORD_HEADER_SIZE);
+        int accountID = record.getInt();
+        String username = readString(record);
+        String password = readString(record);
+        return new Account(accountID, username, password);
+    }
+
+    /**
+     * Appends a record to the active segment, rolling over to a new segment when it is full.
+     *
+     * @return the location of the new record
+     */
+    private long append(byte type, byte[] payload){
+        int size = RECORD_HEADER_SIZE + payload.length;
+        if (size > segmentSize - SEGMENT_HEADER_SIZE){
+            throw new IllegalArgumentException("Record of " + size + " bytes does not fit in a segment");
+        }
+        try{
+            if (activeSegment.writePosition + size > segmentSize){
+                activeSegment = createSegment(activeSegment.id + 1);
+            }
+        }
+        catch (IOException e){
+            throw new UncheckedIOException(e);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(type);
+        crc.update(payload);
+        int offset = activeSegment.writePosition;
+        ByteBuffer buffer = activeSegment.buffer.duplicate();
+        buffer.position(offset);
+        buffer.putInt(payload.length).putInt((int) crc.getValue()).put(type).put(payload);
+        activeSegment.writePosition += size;
+        return location(activeSegment.id, offset);
+    }
+
+    /**
+     * Copies a record from a segment being compacted to the end of the active segment.
+     */
+    private long appendCopy(Segment source, int offset, int payloadLength){
+        ByteBuffer record = source.read(offset + RECORD_HEADER_SIZE - 1);
+        byte type = record.get();
+        byte[] payload = new byte[payloadLength];
+        record.get(payload);
+        long location = append(type, payload);
+        activeSegment.liveBytes += type == DELETE_RECORD ? 0 : RECORD_HEADER_SIZE + payloadLength;
+        return location;
+    }
+
+    /**
+     * Rebuilds the indexes from the checkpoint, if there is a usable one, and the log written after it.
+     */
+    private void recover() throws IOException {
+        TreeMap<Integer, Path> files = new TreeMap<Integer, Path>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "segment-*.log")){
+            for (Path path : stream){
+                String name = path.getFileName().toString();
+                files.put(Integer.parseInt(name.substring("segment-".length(), name.length() - ".log".length())), path);
+            }
+        }
+        int replayFromSegment = -1;
+        int replayFromOffset = SEGMENT_HEADER_SIZE;
+        Checkpoint checkpoint = readCheckpoint(files);
+        if (checkpoint != null){
+            //Segments older than the checkpoint that it does not list are leftovers from an interrupted compaction
+            for (Map.Entry<Integer, Path> file : new ArrayList<Map.Entry<Integer, Path>>(files.entrySet())){
+                if (file.getKey() < checkpoint.activeSegment && !checkpoint.segmentIDs.contains(file.getKey())){
+                    Files.deleteIfExists(file.getValue());
+                    files.remove(file.getKey());
+                }
+            }
+            replayFromSegment = checkpoint.activeSegment;
+            replayFromOffset = checkpoint.activeOffset;
+        }
+        for (Map.Entry<Integer, Path> file : files.entrySet()){
+            segments.put(file.getKey(), openSegment(file.getKey(), file.getValue()));
+        }
+        if (checkpoint != null){
+            checkpoint.apply(this);
+        }
+        for (Segment segment : segments.values()){
+            if (segment.id < replayFromSegment){
+                segment.writePosition = checkpoint.writePositions.get(segment.id);
+                continue;
+            }
+            replay(segment, segment.id == replayFromSegment ? replayFromOffset : SEGMENT_HEADER_SIZE);
+        }
+        //Always start writing in a fresh segment, so a torn tail is never appended to.
+        //The previous one is small and gets merged by the next compaction.
+        int nextSegment = segments.isEmpty() ? 0 : segments.lastKey() + 1;
+        activeSegment = createSegment(nextSegment);
+    }
+
+    private void replay(Segment segment, int fromOffset){
+        ByteBuffer header = segment.read(0);
+        header.getInt();
+        header.getInt();
+        nextAccountID = Math.max(nextAccountID, header.getInt());
+        nextMessageID = Math.max(nextMessageID, header.getInt());
+        int offset = fromOffset;
+        while (isValidRecord(segment, offset)){
+            ByteBuffer record = segment.read(offset);
+            int payloadLength = record.getInt();
+            record.getInt();
+            byte type = record.get();
+            long location = location(segment.id, offset);
+            segment.writePosition = offset + RECORD_HEADER_SIZE + payloadLength;
+            if (type == ACCOUNT_RECORD){
+                applyAccount(readAccount(location), location);
+            }
+            else if (type == MESSAGE_RECORD){
+                int messageID = record.getInt();
+                int postedBy = record.getInt();
+                tombstones.remove(messageID);
+                applyMessage(messageID, postedBy, location);
+            }
+            else if (type == DELETE_RECORD){
+                applyDelete(record.getInt());
+            }
+            else if (type == FOLLOW_RECORD){
+                applyFollow(record.getInt(), record.getInt(), location);
+            }
+            offset = segment.writePosition;
+        }
+        segment.writePosition = offset;
+    }
+
+    /**
+     * A record is valid when it fits in the segment and its crc matches. Anything else is the end of the log.
+     */
+    private boolean isValidRecord(Segment segment, int offset){
+        if (offset + RECORD_HEADER_SIZE > segment.buffer.capacity()){
+            return false;
+        }
+        ByteBuffer record = segment.read(offset);
+        int payloadLength = record.getInt();
+        int expectedCrc = record.getInt();
+        byte type = record.get();
+        if (payloadLength <= 0 || offset + RECORD_HEADER_SIZE + payloadLength > segment.buffer.capacity()){
+            return false;
+        }
+        if (type != ACCOUNT_RECORD && type != MESSAGE_RECORD && type != DELETE_RECORD && type != FOLLOW_RECORD){
+            return false;
+        }
+        byte[] payload = new byte[payloadLength];
+        record.get(payload);
+        CRC32 crc = new CRC32();
+        crc.update(type);
+        crc.update(payload);
+        return (int) crc.getValue() == expectedCrc;
+    }
+
+    private Segment createSegment(int id) throws IOException {
+        Path path = directory.resolve(String.format("segment-%08d.log", id));
+        Segment segment = openSegment(id, path);
+        ByteBuffer header = segment.buffer.duplicate();
+        header.putInt(SEGMENT_MAGIC).putInt(segmentSize).putInt(nextAccountID).putInt(nextMessageID);
+        segment.writePosition = SEGMENT_HEADER_SIZE;
+        segments.put(id, segment);
+        return segment;
+    }
+
+    private Segment openSegment(int id, Path path) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        long size = Math.max(channel.size(), segmentSize);
+        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        return new Segment(id, path, channel, buffer);
+    }
+
+    /**
+     * Writes the indexes and the current end of the log to the checkpoint file, replacing it atomically.
+     */
+    private void writeCheckpoint() throws IOException {
+        Path temporary = directory.resolve(CHECKPOINT_FILE + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary)))){
+            out.writeInt(CHECKPOINT_MAGIC);
+            out.writeInt(activeSegment.id);
+            out.writeInt(activeSegment.writePosition);
+            out.writeInt(nextAccountID);
+            out.writeInt(nextMessageID);
+            out.writeInt(segments.size());
+            for (Segment segment : segments.values()){
+                out.writeInt(segment.id);
+                out.writeInt(segment.writePosition);
+                out.writeLong(segment.liveBytes);
+            }
+            out.writeInt(accountLocations.size());
+            for (Map.Entry<Integer, Long> entry : accountLocations.entrySet()){
+                out.writeInt(entry.getKey());
+                out.writeLong(entry.getValue());
+            }
+            //posted_by is stored next to each message so loading the checkpoint never has to touch the log
+            out.writeInt(messageLocations.size());
+            for (Map.Entry<Integer, TreeSet<Integer>> account : messageIDsByAccount.entrySet()){
+                for (int messageID : account.getValue()){
+                    out.writeInt(messageID);
+                    out.writeLong(messageLocations.get(messageID));
+                    out.writeInt(account.getKey());
+                    out.writeInt(oldestCopies.get(messageID));
+                }
+            }
+            out.writeInt(tombstones.size());
+            for (Map.Entry<Integer, Integer> tombstone : tombstones.entrySet()){
+                out.writeInt(tombstone.getKey());
+                out.writeInt(tombstone.getValue());
+            }
+            out.writeInt(followLocations.size());
+            for (Map.Entry<Long, Long> follow : followLocations.entrySet()){
+                out.writeLong(follow.getKey());
+                out.writeLong(follow.getValue());
+            }
+            out.writeInt(CHECKPOINT_MAGIC);
+        }
+        Files.move(temporary, directory.resolve(CHECKPOINT_FILE), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * @return the checkpoint, or null if there is none or it refers to segments that no longer exist.
+     */
+    private Checkpoint readCheckpoint(Map<Integer, Path> files){
+        Path path = directory.resolve(CHECKPOINT_FILE);
+        if (!Files.exists(path)){
+            return null;
+        }
+        try{
+            ByteBuffer in = ByteBuffer.wrap(Files.readAllBytes(path));
+            Checkpoint checkpoint = new Checkpoint();
+            if (in.getInt() != CHECKPOINT_MAGIC){
+                return null;
+            }
+            checkpoint.activeSegment = in.getInt();
+            checkpoint.activeOffset = in.getInt();
+            checkpoint.nextAccountID = in.getInt();
+            checkpoint.nextMessageID = in.getInt();
+            int segmentCount = in.getInt();
+            for (int i = 0; i < segmentCount; i++){
+                int id = in.getInt();
+                checkpoint.segmentIDs.add(id);
+                checkpoint.writePositions.put(id, in.getInt());
+                checkpoint.liveBytes.put(id, in.getLong());
+                if (!files.containsKey(id)){
+                    return null;
+                }
+            }
+            int accountCount = in.getInt();
+            checkpoint.accountIDs = new int[accountCount];
+            checkpoint.accountLocations = new long[accountCount];
+            for (int i = 0; i < accountCount; i++){
+                checkpoint.accountIDs[i] = in.getInt();
+                checkpoint.accountLocations[i] = in.getLong();
+            }
+            int messageCount = in.getInt();
+            checkpoint.messageIDs = new int[messageCount];
+            checkpoint.messageLocations = new long[messageCount];
+            checkpoint.postedBy = new int[messageCount];
+            checkpoint.oldestCopies = new int[messageCount];
+            for (int i = 0; i < messageCount; i++){
+                checkpoint.messageIDs[i] = in.getInt();
+                checkpoint.messageLocations[i] = in.getLong();
+                checkpoint.postedBy[i] = in.getInt();
+                checkpoint.oldestCopies[i] = in.getInt();
+            }
+            int tombstoneCount = in.getInt();
+            for (int i = 0; i < tombstoneCount; i++){
+                checkpoint.tombstones.put(in.getInt(), in.getInt());
+            }
+            int followCount = in.getInt();
+            checkpoint.followKeys = new long[followCount];
+            checkpoint.followLocations = new long[followCount];
+            for (int i = 0; i < followCount; i++){
+                checkpoint.followKeys[i] = in.getLong();
+                checkpoint.followLocations[i] = in.getLong();
+            }
+            if (in.getInt() != CHECKPOINT_MAGIC){
+                return null;
+            }
+            return checkpoint;
+        }
+        catch (IOException | RuntimeException e){
+            //A damaged checkpoint only costs a full replay
+            return null;
+        }
+    }
+
+    private static byte[] accountPayload(Account account){
+        byte[] username = account.getUsername().getBytes(StandardCharsets.UTF_8);
+        byte[] password = account.getPassword().getBytes(StandardCharsets.UTF_8);
+        return ByteBuffer.allocate(4 + 4 + username.length + 4 + password.length)
+                .putInt(account.getAccount_id())
+                .putInt(username.length).put(username)
+                .putInt(password.length).put(password)
+                .array();
+    }
+
+    private static byte[] messagePayload(Message message, int version){
+        byte[] text = message.getMessage_text().getBytes(StandardCharsets.UTF_8);
+        return ByteBuffer.allocate(4 + 4 + 8 + 4 + text.length + 4)
+                .putInt(message.getMessage_id())
+                .putInt(message.getPosted_by())
+                .putLong(message.getTime_posted_epoch())
+                .putInt(text.length).put(text)
+                .putInt(version)
+                .array();
+    }
+
+    private static String readString(ByteBuffer buffer){
+        byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static long location(int segmentID, int offset){
+        return ((long) segmentID << 32) | offset;
+    }
+
+    private static long followKey(int followerID, int followeeID){
+        return ((long) followerID << 32) | (followeeID & 0xffffffffL);
+    }
+
+    private static int segmentOf(long location){
+        return (int) (location >>> 32);
+    }
+
+    private static int offsetOf(long location){
+        return (int) location;
+    }
+
+    private static Account copyOf(Account account){
+        return new Account(account.getAccount_id(), account.getUsername(), account.getPassword());
+    }
+
+    /**
+     * One mapped segment file.
+     */
+    private static final class Segment {
+        final int id;
+        final Path path;
+        final FileChannel channel;
+        final MappedByteBuffer buffer;
+        int writePosition;
+        long liveBytes;
+
+        Segment(int id, Path path, FileChannel channel, MappedByteBuffer buffer){
+            this.id = id;
+            this.path = path;
+            this.channel = channel;
+            this.buffer = buffer;
+        }
+
+        /**
+         * @return an independent view of the segment positioned at offset, safe to use from any reader thread.
+         */
+        ByteBuffer read(int offset){
+            ByteBuffer view = buffer.duplicate();
+            view.position(offset);
+            return view;
+        }
+
+        void close() throws IOException {
+            channel.close();
+        }
+    }
+
+    /**
+     * The index state saved by writeCheckpoint.
+     */
+    private static final class Checkpoint {
+        int activeSegment;
+        int activeOffset;
+        int nextAccountID;
+        int nextMessageID;
+        Set<Integer> segmentIDs = new HashSet<Integer>();
+        Map<Integer, Integer> writePositions = new HashMap<Integer, Integer>();
+        Map<Integer, Long> liveBytes = new HashMap<Integer, Long>();
+        int[] accountIDs;
+        long[] accountLocations;
+        int[] messageIDs;
+        long[] messageLocations;
+        int[] postedBy;
+        int[] oldestCopies;
+        Map<Integer, Integer> tombstones = new HashMap<Integer, Integer>();
+        long[] followKeys;
+        long[] followLocations;
+
+        /**
+         * Loads the checkpoint into the engine. Only account rows are read back from the log.
+         */
+        void apply(LogStorageEngine engine){
+            engine.nextAccountID = nextAccountID;
+            engine.nextMessageID = nextMessageID;
+            for (Segment segment : engine.segments.values()){
+                Long live = liveBytes.get(segment.id);
+                segment.liveBytes = live == null ? 0 : live;
+            }
+            //The per-entry work lives in small methods so the JIT compiles it, a single long loop would stay interpreted
+            for (int i = 0; i < accountIDs.length; i++){
+                engine.indexAccount(accountIDs[i], accountLocations[i]);
+            }
+            for (int i = 0; i < messageIDs.length; i++){
+                engine.indexMessage(messageIDs[i], messageLocations[i], postedBy[i], oldestCopies[i]);
+            }
+            engine.tombstones.putAll(tombstones);
+            for (int i = 0; i < followKeys.length; i++){
+                engine.followLocations.put(followKeys[i], followLocations[i]);
+                engine.indexFollow((int) (followKeys[i] >>> 32), (int) followKeys[i]);
+            }
+        }
+    }
+}
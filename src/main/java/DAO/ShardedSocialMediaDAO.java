@@ -0,0 +1,486 @@
+package DAO;
+
+import Model.Account;
+import Model.AccountStats;
+import Model.Message;
+import Util.ConnectionUtil;
+
+import java.io.Closeable;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * Storage engine spreading messages over several H2 databases, one SocialMediaDAO per shard.
+ *
+ * Accounts live on shard 0. Messages are routed by posted_by, so everything one account posts sits on one shard and
+ * per-account queries touch only that shard. Message ids are globally unique and encode their shard: a message stored
+ * with id n on shard s out of N is known everywhere as n * N + s. Queries over all messages are sent to every shard in
+ * parallel and the results merged.
+ *
+ * Global ids are ints, so a shard can hold local ids up to (Integer.MAX_VALUE - s) / N. A message created past that
+ * ceiling is deleted again and the create fails with a FATAL DataAccessException, rather than being given an id that
+ * wraps around or collides with another shard's.
+ *
+ * With a single shard this behaves exactly like SocialMediaDAO, ids included.
+ */
+public class ShardedSocialMediaDAO implements StorageEngine, Closeable {
+    public static final String SHARDS_PROPERTY = "socialmedia.shards";
+
+    private final SocialMediaDAO[] shards;
+    private final ExecutorService scatterGather;
+    //Accounts are never deleted, so once an account is seen to exist writes to other shards can skip the check
+    private final Set<Integer> knownAccounts = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Creates the DAO over shards 0 to shardCount - 1, creating the message table on any shard that lacks one.
+     *
+     * @param shardCount
+     */
+    public ShardedSocialMediaDAO(int shardCount){
+        if (shardCount < 1){
+            throw new IllegalArgumentException("At least one shard is required");
+        }
+        this.shards = new SocialMediaDAO[shardCount];
+        for (int shard = 0; shard < shardCount; shard++){
+            if (shard > 0){
+                ConnectionUtil.initializeShard(shard);
+            }
+            shards[shard] = new SocialMediaDAO(shard);
+        }
+        this.scatterGather = Executors.newFixedThreadPool(shardCount, runnable -> {
+            Thread thread = new Thread(runnable, "shard-scatter-gather");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public int getShardCount(){
+        return shards.length;
+    }
+
+    /**
+     * Stops the threads querying shards in parallel.
+     */
+    @Override
+    public void close(){
+        scatterGather.shutdown();
+    }
+
+    @Override
+    public void warmUp(){
+        for (SocialMediaDAO shard : shards){
+            shard.warmUp();
+        }
+    }
+
+    @Override
+    public Account createAccount(String username, String password){
+        return shards[0].createAccount(username, password);
+    }
+
+    @Override
+    public Account userLogin(String username, String password){
+        return shards[0].userLogin(username, password);
+    }
+
+    /**
+     * Stores the message on its author's shard. Only shard 0 can enforce that the author exists, so for the other
+     * shards that is checked first.
+     */
+    @Override
+    public Message createMessage(String messageText, int postedBy, long postedAt){
+        int shard = shardOf(postedBy);
+        if (!accountExists(shard, postedBy)){
+            return null;
+        }
+        Message created = shards[shard].createMessage(messageText, postedBy, postedAt);
+        if (created != null && !encodable(created.getMessage_id(), shard)){
+            shards[shard].deleteMessageByID(created.getMessage_id());
+            throw idCeilingReached(created.getMessage_id(), shard);
+        }
+        return toGlobal(created, shard);
+    }
+
+    /**
+     * Splits the batch by the shard of each author and creates each part in one transaction on its shard, so a batch
+     * is atomic per shard rather than as a whole.
+     */
+    @Override
+    public List<Message> createMessages(List<Message> messages){
+        List<Message> created = new ArrayList<Message>(Collections.nCopies(messages.size(), (Message) null));
+        for (int shard = 0; shard < shards.length; shard++){
+            List<Integer> positions = new ArrayList<Integer>();
+            List<Message> part = new ArrayList<Message>();
+            for (int i = 0; i < messages.size(); i++){
+                int postedBy = messages.get(i).getPosted_by();
+                if (shardOf(postedBy) == shard && accountExists(shard, postedBy)){
+                    positions.add(i);
+                    part.add(messages.get(i));
+                }
+            }
+            if (!part.isEmpty()){
+                List<Message> createdPart = shards[shard].createMessages(part);
+                //Past the ceiling the whole part goes again, as if the batch had failed on this shard
+                for (Message message : createdPart){
+                    if (message != null && !encodable(message.getMessage_id(), shard)){
+                        for (Message undone : createdPart){
+                            if (undone != null){
+                                shards[shard].deleteMessageByID(undone.getMessage_id());
+                            }
+                        }
+                        throw idCeilingReached(message.getMessage_id(), shard);
+                    }
+                }
+                for (int i = 0; i < positions.size(); i++){
+                    created.set(positions.get(i), toGlobal(createdPart.get(i), shard));
+                }
+            }
+        }
+        return created;
+    }
+
+    /**
+     * Shards are exported one after the other, each in its own message_id order.
+     */
+    @Override
+    public Integer exportMessages(Consumer<Message> sink){
+        int exported = 0;
+        for (int shard = 0; shard < shards.length; shard++){
+            int current = shard;
+            Integer shardExported = shards[shard].exportMessages(message -> sink.accept(toGlobal(message, current)));
+            if (shardExported == null){
+                return null;
+            }
+            exported += shardExported;
+        }
+        return exported;
+    }
+
+    /**
+     * Shard 0 enforces the foreign key itself, the others check against the accounts on shard 0 once per account.
+     */
+    private boolean accountExists(int shard, int postedBy){
+        if (shard != 0 && !knownAccounts.contains(postedBy)){
+            if (!shards[0].accountExists(postedBy)){
+                return false;
+            }
+            knownAccounts.add(postedBy);
+        }
+        return true;
+    }
+
+    @Override
+    public List<Message> getAllMessages(){
+        List<Message> messages = scatter(SocialMediaDAO::getAllMessages);
+        if (messages != null){
+            //Each shard's list is in id order, so this only merges already sorted runs
+            messages.sort(Comparator.comparingInt(Message::getMessage_id));
+        }
+        return messages;
+    }
+
+    @Override
+    public Message getMessageByID(int messageID){
+        if (messageID <= 0){
+            return null;
+        }
+        int shard = messageID % shards.length;
+        return toGlobal(shards[shard].getMessageByID(messageID / shards.length), shard);
+    }
+
+    @Override
+    public Message deleteMessageByID(int messageID){
+        if (messageID <= 0){
+            return null;
+        }
+        int shard = messageID % shards.length;
+        return toGlobal(shards[shard].deleteMessageByID(messageID / shards.length), shard);
+    }
+
+    @Override
+    public Message updateMessageByID(int messageID, String messageText){
+        if (messageID <= 0){
+            return null;
+        }
+        int shard = messageID % shards.length;
+        return toGlobal(shards[shard].updateMessageByID(messageID / shards.length, messageText), shard);
+    }
+
+    @Override
+    public Versioned<Message> getVersionedMessageByID(int messageID){
+        if (messageID <= 0){
+            return null;
+        }
+        int shard = messageID % shards.length;
+        return toGlobal(shards[shard].getVersionedMessageByID(messageID / shards.length), shard);
+    }
+
+    @Override
+    public Versioned<Message> updateMessageByID(int messageID, String messageText, Integer expectedVersion){
+        if (messageID <= 0){
+            return null;
+        }
+        int shard = messageID % shards.length;
+        return toGlobal(shards[shard].updateMessageByID(messageID / shards.length, messageText, expectedVersion), shard);
+    }
+
+    @Override
+    public List<Message> getMessagesByUserID(int userID){
+        int shard = shardOf(userID);
+        return toGlobal(shards[shard].getMessagesByUserID(userID), shard);
+    }
+
+    @Override
+    public List<Message> getMessagesInTimeRange(long since, long until){
+        List<Message> messages = scatter(dao -> dao.getMessagesInTimeRange(since, until));
+        if (messages != null){
+            messages.sort(Comparator.comparingLong(Message::getTime_posted_epoch).reversed());
+        }
+        return messages;
+    }
+
+    @Override
+    public List<Message> getMessagesByUserIDInTimeRange(int userID, long since, long until){
+        int shard = shardOf(userID);
+        return toGlobal(shards[shard].getMessagesByUserIDInTimeRange(userID, since, until), shard);
+    }
+
+    @Override
+    public List<Message> getNewestMessagesByUserID(int userID, int limit){
+        int shard = shardOf(userID);
+        return toGlobal(shards[shard].getNewestMessagesByUserID(userID, limit), shard);
+    }
+
+    @Override
+    public Integer deleteMessagesByUserID(int userID, int chunkSize, Consumer<List<Message>> onChunkDeleted){
+        int shard = shardOf(userID);
+        return shards[shard].deleteMessagesByUserID(userID, chunkSize, chunk -> onChunkDeleted.accept(toGlobal(chunk, shard)));
+    }
+
+    /**
+     * Deletes on every shard in parallel, so onChunkDeleted may be called from several threads at once.
+     */
+    @Override
+    public Integer deleteMessagesPostedBefore(long cutoff, int chunkSize, Consumer<List<Message>> onChunkDeleted){
+        //Checked here, the shards would throw it wrapped in a CompletionException
+        StorageEngine.checkChunkSize(chunkSize);
+        List<CompletableFuture<Integer>> results = new ArrayList<CompletableFuture<Integer>>();
+        for (int shard = 0; shard < shards.length; shard++){
+            int current = shard;
+            results.add(CompletableFuture.supplyAsync(() -> shards[current].deleteMessagesPostedBefore(cutoff, chunkSize,
+                    chunk -> onChunkDeleted.accept(toGlobal(chunk, current))), scatterGather));
+        }
+        Integer deleted = 0;
+        DataAccessException failure = null;
+        for (CompletableFuture<Integer> result : results){
+            //Every shard still runs to completion, but the total is unknown once one of them fails
+            try{
+                Integer shardDeleted = join(result);
+                deleted = shardDeleted == null || deleted == null ? null : deleted + shardDeleted;
+            }
+            catch(DataAccessException e){
+                if (failure == null){
+                    failure = e;
+                }
+            }
+        }
+        if (failure != null){
+            throw failure;
+        }
+        return deleted;
+    }
+
+    /**
+     * The follow graph lives on shard 0 with the accounts.
+     */
+    @Override
+    public boolean follow(int followerID, int followeeID){
+        return shards[0].follow(followerID, followeeID);
+    }
+
+    @Override
+    public List<Integer> getFollowerIDs(int accountID){
+        return shards[0].getFollowerIDs(accountID);
+    }
+
+    @Override
+    public List<Integer> getFolloweeIDs(int accountID){
+        return shards[0].getFolloweeIDs(accountID);
+    }
+
+    /**
+     * Timelines live on shard 0 with the accounts, holding global message ids. They are ordered by time posted, which
+     * global ids don't follow when shards fill up unevenly.
+     */
+    @Override
+    public void addTimelineEntries(int[] accountIDs, TimelineEntry[] entries){
+        shards[0].addTimelineEntries(accountIDs, entries);
+    }
+
+    @Override
+    public List<TimelineEntry> getTimelineEntries(int accountID, int limit){
+        return shards[0].getTimelineEntries(accountID, limit);
+    }
+
+    @Override
+    public void trimTimeline(int accountID, TimelineEntry oldest){
+        shards[0].trimTimeline(accountID, oldest);
+    }
+
+    /**
+     * Each shard is consistent on its own, and shard 0 is taken last: accounts are never deleted, so every account a
+     * message in the snapshot refers to is in it too. Timeline entries on shard 0 may name messages missing from the
+     * other shards' snapshots, which timelines already skip like deleted messages.
+     */
+    @Override
+    public Long snapshot(Path directory, long bytesPerSecond){
+        long size = 0;
+        for (int shard = shards.length - 1; shard >= 0; shard--){
+            Long shardSize = shards[shard].snapshot(directory, bytesPerSecond);
+            if (shardSize == null){
+                return null;
+            }
+            size += shardSize;
+        }
+        return size;
+    }
+
+    @Override
+    public boolean restore(Path directory){
+        for (SocialMediaDAO shard : shards){
+            if (!shard.restore(directory)){
+                return false;
+            }
+        }
+        knownAccounts.clear();
+        return true;
+    }
+
+    /**
+     * Account statistics live on the shard holding the account's messages, next to them.
+     */
+    @Override
+    public AccountStats getAccountStats(int accountID){
+        int shard = shardOf(accountID);
+        if (shard != 0 && !knownAccounts.contains(accountID)){
+            if (!shards[0].accountExists(accountID)){
+                return null;
+            }
+            knownAccounts.add(accountID);
+        }
+        return shards[shard].getAccountStats(accountID);
+    }
+
+    /**
+     * Checks every shard in parallel. Each account's messages and statistics share a shard, so the results never
+     * overlap.
+     */
+    @Override
+    public List<AccountStats> checkAccountStats(boolean repair){
+        List<CompletableFuture<List<AccountStats>>> results = new ArrayList<CompletableFuture<List<AccountStats>>>();
+        for (SocialMediaDAO shard : shards){
+            results.add(CompletableFuture.supplyAsync(() -> shard.checkAccountStats(repair), scatterGather));
+        }
+        List<AccountStats> mismatches = new ArrayList<AccountStats>();
+        for (CompletableFuture<List<AccountStats>> result : results){
+            List<AccountStats> shardMismatches = join(result);
+            if (shardMismatches == null){
+                return null;
+            }
+            mismatches.addAll(shardMismatches);
+        }
+        mismatches.sort(Comparator.comparingInt(AccountStats::getAccount_id));
+        return mismatches;
+    }
+
+    private int shardOf(int accountID){
+        return Math.floorMod(accountID, shards.length);
+    }
+
+    /**
+     * Runs the query on every shard in parallel and concatenates the results with global ids.
+     *
+     * @return the combined results, null if any shard failed
+     */
+    private List<Message> scatter(Function<SocialMediaDAO, List<Message>> query){
+        if (shards.length == 1){
+            return toGlobal(query.apply(shards[0]), 0);
+        }
+        List<CompletableFuture<List<Message>>> results = new ArrayList<CompletableFuture<List<Message>>>();
+        for (int shard = 0; shard < shards.length; shard++){
+            int current = shard;
+            results.add(CompletableFuture.supplyAsync(() -> toGlobal(query.apply(shards[current]), current), scatterGather));
+        }
+        List<Message> messages = new ArrayList<Message>();
+        for (CompletableFuture<List<Message>> result : results){
+            List<Message> shardMessages = join(result);
+            if (shardMessages == null){
+                return null;
+            }
+            messages.addAll(shardMessages);
+        }
+        return messages;
+    }
+
+    /**
+     * Waits for a shard's result, throwing what the shard threw rather than the CompletionException wrapping it.
+     */
+    private static <T> T join(CompletableFuture<T> result){
+        try{
+            return result.join();
+        }
+        catch(CompletionException e){
+            if (e.getCause() instanceof RuntimeException){
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * @return whether the shard's local id has a global id within the range of an int
+     */
+    private boolean encodable(int localID, int shard){
+        return localID <= (Integer.MAX_VALUE - shard) / shards.length;
+    }
+
+    private DataAccessException idCeilingReached(int localID, int shard){
+        return new DataAccessException(DataAccessException.Kind.FATAL, "Message " + localID + " on shard " + shard
+                + " is past the highest local id " + shards.length + " shards can encode in a global id");
+    }
+
+    private Message toGlobal(Message message, int shard){
+        if (message != null){
+            try{
+                message.setMessage_id(Math.addExact(Math.multiplyExact(message.getMessage_id(), shards.length), shard));
+            }
+            catch(ArithmeticException e){
+                throw idCeilingReached(message.getMessage_id(), shard);
+            }
+        }
+        return message;
+    }
+
+    private Versioned<Message> toGlobal(Versioned<Message> message, int shard){
+        if (message != null){
+            toGlobal(message.getValue(), shard);
+        }
+        return message;
+    }
+
+    private List<Message> toGlobal(List<Message> messages, int shard){
+        if (messages != null && shards.length > 1){
+            for (Message message : messages){
+                toGlobal(message, shard);
+            }
+        }
+        return messages;
+    }
+}
@@ -1,16 +1,129 @@
 package DAO;
 
 import Model.Account;
+import Model.AccountStats;
 import Model.Message;
 import Util.ConnectionUtil;
+import Util.DatabaseSnapshot;
 
+import java.io.IOException;
+import java.nio.file.Path;
 import java.sql.*;
 import java.util.*;
+import java.util.function.Consumer;
+
+import org.h2.api.ErrorCode;
 
 /**
  * This Data Access Object allows provides access to the database and the functionality to create accounts, verify login credentials, create messages, retrieve messages, update messages, and delete messages.
  */
-public class SocialMediaDAO {
+public class SocialMediaDAO implements StorageEngine {
+    //Every statement this DAO runs, so they can also be prepared ahead of time when the application starts
+    static final String INSERT_ACCOUNT_SQL = "INSERT INTO account (username, password) VALUES (?, ?)";
+    static final String SELECT_ACCOUNT_LOGIN_SQL = "SELECT * FROM account WHERE username = ? AND password = ?";
+    static final String SELECT_ACCOUNT_EXISTS_SQL = "SELECT account_id FROM account WHERE account_id = ?";
+    static final String INSERT_MESSAGE_SQL = "INSERT INTO message (posted_by, message_text, time_posted_epoch) VALUES (?, ?, ?)";
+    static final String SELECT_ALL_MESSAGES_SQL = "SELECT * FROM message";
+    static final String SELECT_MESSAGE_BY_ID_SQL = "SELECT * FROM message WHERE message_id = ?";
+    static final String DELETE_MESSAGE_BY_ID_SQL = "DELETE FROM message WHERE message_id = ?";
+    //Every update moves the message to the next version, and returns the updated row without a second query
+    static final String UPDATE_MESSAGE_TEXT_SQL = "SELECT posted_by, time_posted_epoch, version FROM FINAL TABLE"
+            + " (UPDATE message SET message_text = ?, version = version + 1 WHERE message_id = ?)";
+    static final String UPDATE_MESSAGE_TEXT_IF_VERSION_SQL = "SELECT posted_by, time_posted_epoch, version FROM FINAL TABLE"
+            + " (UPDATE message SET message_text = ?, version = version + 1 WHERE message_id = ? AND version = ?)";
+    static final String SELECT_MESSAGE_VERSION_SQL = "SELECT version FROM message WHERE message_id = ?";
+    static final String SELECT_MESSAGES_BY_USER_SQL = "SELECT * FROM message WHERE posted_by = ? ORDER BY message_id";
+    static final String SELECT_MESSAGES_IN_TIME_RANGE_SQL = "SELECT * FROM message WHERE time_posted_epoch BETWEEN ? AND ? ORDER BY time_posted_epoch DESC";
+    static final String SELECT_MESSAGES_BY_USER_IN_TIME_RANGE_SQL = "SELECT * FROM message WHERE posted_by = ? AND time_posted_epoch BETWEEN ? AND ? ORDER BY time_posted_epoch DESC";
+    static final String SELECT_NEWEST_MESSAGES_BY_USER_SQL = "SELECT * FROM message WHERE posted_by = ?"
+            + " ORDER BY time_posted_epoch DESC, message_id DESC LIMIT ?";
+    static final String ADD_TO_ACCOUNT_STATS_SQL = "MERGE INTO account_stats s USING (VALUES (CAST(? AS INT), CAST(? AS INT), CAST(? AS BIGINT))) p (account_id, added, posted_at) ON s.account_id = p.account_id"
+            + " WHEN MATCHED THEN UPDATE SET message_count = s.message_count + p.added, last_posted_epoch = GREATEST(COALESCE(s.last_posted_epoch, p.posted_at), p.posted_at)"
+            + " WHEN NOT MATCHED THEN INSERT (account_id, message_count, last_posted_epoch) VALUES (p.account_id, p.added, p.posted_at)";
+    static final String DELETE_MESSAGES_BY_USER_SQL = "SELECT * FROM OLD TABLE (DELETE FROM message WHERE posted_by = ? FETCH FIRST ? ROWS ONLY)";
+    static final String DELETE_MESSAGES_POSTED_BEFORE_SQL = "SELECT * FROM OLD TABLE (DELETE FROM message WHERE time_posted_epoch < ? FETCH FIRST ? ROWS ONLY)";
+    static final String REMOVE_FROM_ACCOUNT_STATS_SQL = "UPDATE account_stats SET message_count = message_count - ?,"
+            + " last_posted_epoch = (SELECT MAX(time_posted_epoch) FROM message WHERE posted_by = ?) WHERE account_id = ?";
+    static final String SELECT_ACCOUNT_STATS_SQL = "SELECT a.account_id, s.message_count, s.last_posted_epoch FROM account a"
+            + " LEFT JOIN account_stats s ON s.account_id = a.account_id WHERE a.account_id = ?";
+    static final String SELECT_SHARD_ACCOUNT_STATS_SQL = "SELECT message_count, last_posted_epoch FROM account_stats WHERE account_id = ?";
+    static final String SELECT_ALL_ACCOUNT_STATS_SQL = "SELECT account_id, message_count, last_posted_epoch FROM account_stats";
+    static final String RECOMPUTE_ACCOUNT_STATS_SQL = "SELECT posted_by, COUNT(*), MAX(time_posted_epoch) FROM message GROUP BY posted_by";
+    static final String REPLACE_ACCOUNT_STATS_SQL = "MERGE INTO account_stats (account_id, message_count, last_posted_epoch) KEY (account_id) VALUES (?, ?, ?)";
+    static final String EXPORT_MESSAGES_SQL = "SELECT * FROM message WHERE message_id > ? ORDER BY message_id LIMIT ?";
+    static final String FOLLOW_SQL = "MERGE INTO follow (follower_id, followee_id) KEY (follower_id, followee_id) VALUES (?, ?)";
+    static final String SELECT_FOLLOWER_IDS_SQL = "SELECT follower_id FROM follow WHERE followee_id = ? ORDER BY follower_id";
+    static final String SELECT_FOLLOWEE_IDS_SQL = "SELECT followee_id FROM follow WHERE follower_id = ? ORDER BY followee_id";
+    static final String INSERT_TIMELINE_ENTRY_SQL = "MERGE INTO timeline (account_id, message_id, time_posted_epoch) KEY (account_id, message_id)"
+            + " VALUES (?, ?, ?)";
+    //Ordered by time posted, since message ids don't follow posting order across shards
+    static final String SELECT_TIMELINE_SQL = "SELECT message_id, time_posted_epoch FROM timeline WHERE account_id = ?"
+            + " ORDER BY time_posted_epoch DESC, message_id DESC LIMIT ?";
+    static final String TRIM_TIMELINE_SQL = "DELETE FROM timeline WHERE account_id = ? AND (time_posted_epoch, message_id) < (?, ?)";
+    private static final String[] ACCOUNT_STATEMENTS = {INSERT_ACCOUNT_SQL, SELECT_ACCOUNT_LOGIN_SQL, SELECT_ACCOUNT_EXISTS_SQL,
+            SELECT_ACCOUNT_STATS_SQL, FOLLOW_SQL, SELECT_FOLLOWER_IDS_SQL, SELECT_FOLLOWEE_IDS_SQL, INSERT_TIMELINE_ENTRY_SQL,
+            SELECT_TIMELINE_SQL, TRIM_TIMELINE_SQL};
+    private static final String[] MESSAGE_STATEMENTS = {INSERT_MESSAGE_SQL, SELECT_ALL_MESSAGES_SQL, SELECT_MESSAGE_BY_ID_SQL,
+            DELETE_MESSAGE_BY_ID_SQL, UPDATE_MESSAGE_TEXT_SQL, UPDATE_MESSAGE_TEXT_IF_VERSION_SQL, SELECT_MESSAGE_VERSION_SQL,
+            SELECT_MESSAGES_BY_USER_SQL, SELECT_MESSAGES_IN_TIME_RANGE_SQL,
+            SELECT_MESSAGES_BY_USER_IN_TIME_RANGE_SQL, SELECT_NEWEST_MESSAGES_BY_USER_SQL, ADD_TO_ACCOUNT_STATS_SQL, REMOVE_FROM_ACCOUNT_STATS_SQL,
+            SELECT_SHARD_ACCOUNT_STATS_SQL};
+
+    //Rows read per query by the export
+    private static final int EXPORT_PAGE_SIZE = 1000;
+    //The database this DAO reads and writes, 0 is the main database
+    private final int shard;
+
+    /**
+     * Basic constructor for a DAO on the main database.
+     */
+    public SocialMediaDAO(){
+        this(0);
+    }
+
+    /**
+     * Constructor for a DAO on one of the shard databases behind ConnectionUtil. Shards other than 0 hold no accounts.
+     * 
+     * @param shard
+     */
+    public SocialMediaDAO(int shard){
+        this.shard = shard;
+    }
+
+    /**
+     * Opens the database and prepares every statement this DAO runs once, so that the database files, the SQL parser
+     * and the query planner are loaded and warmed before the first request needs them. Shards other than 0 hold no
+     * accounts, so only the message statements are prepared there. The file profiles set DB_CLOSE_DELAY, so the
+     * database stays open after the connection is closed.
+     * 
+     * @return number of statements prepared, 0 on fail.
+     */
+    public int prepareStatements(){
+        int prepared = 0;
+        try (Connection connection = ConnectionUtil.getConnection(shard)){
+            if (shard == 0){
+                for (String sql : ACCOUNT_STATEMENTS){
+                    connection.prepareStatement(sql).close();
+                    prepared++;
+                }
+            }
+            for (String sql : MESSAGE_STATEMENTS){
+                connection.prepareStatement(sql).close();
+                prepared++;
+            }
+            return prepared;
+        }
+        catch(SQLException e){
+            System.out.println(e.getMessage());
+        }
+        //Fail
+        return 0;
+    }
+
+    @Override
+    public void warmUp(){
+        prepareStatements();
+    }
 
     /**
      * Create and return an account provided a username and password.
@@ -20,11 +133,12 @@ public class SocialMediaDAO {
      * @param password 
      * @return User account on success, null on fail.
      */
+    @Override
     public Account createAccount(String username, String password){
-        Connection connection = ConnectionUtil.getConnection();
+        Connection connection = ConnectionUtil.getConnection(shard);
         try {
             //Attempt to insert the username and password into the database, if 0 rows were inserted, we know that the username already existed.
-            String sql = "INSERT INTO account (username, password) VALUES (?, ?)";
+            String sql = INSERT_ACCOUNT_SQL;
             PreparedStatement preparedStatement = connection.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS);
             preparedStatement.setString(1, username);
             preparedStatement.setString(2, password);
@@ -38,7 +152,10 @@ public class SocialMediaDAO {
             }
         }
         catch(SQLException e){
-            System.out.println(e.getMessage());
+            DataAccessException failure = DataAccessException.from(e);
+            if (!failure.isRejection()){
+                throw failure;
+            }
         }
         //Fail
         return null;
@@ -52,11 +169,12 @@ public class SocialMediaDAO {
      * @param password
      * @return Account on success, null on fail.
      */
+    @Override
     public Account userLogin(String username, String password){
-        Connection connection = ConnectionUtil.getConnection();
+        Connection connection = ConnectionUtil.getConnection(shard);
         try{
             //Search database for matching username and password
-            String sql = "SELECT * FROM account WHERE username = ? AND password = ?";
+            String sql = SELECT_ACCOUNT_LOGIN_SQL;
             PreparedStatement preparedStatement = connection.prepareStatement(sql);
             preparedStatement.setString(1, username);
             preparedStatement.setString(2, password);
@@ -68,24 +186,48 @@ public class SocialMediaDAO {
             }
         }
         catch(SQLException e){
-            System.out.println(e.getMessage());
+            throw DataAccessException.from(e);
         }
         //Fail
         return null;
     }
 
+    /**
+     * Returns whether an account with the given id exists.
+     * 
+     * @param accountID
+     * @return true if the account exists, false if it doesn't or the lookup failed.
+     */
+    public boolean accountExists(int accountID){
+        Connection connection = ConnectionUtil.getConnection(shard);
+        try{
+            String sql = SELECT_ACCOUNT_EXISTS_SQL;
+            PreparedStatement preparedStatement = connection.prepareStatement(sql);
+            preparedStatement.setInt(1, accountID);
+            ResultSet resultSet = preparedStatement.executeQuery();
+            return resultSet.next();
+        }
+        catch(SQLException e){
+            throw DataAccessException.from(e);
+        }
+    }
+
     /**
      * Create and store a message in the database when conditions for the message are met.
+     * The message and its author's account_stats row are written in one transaction, so the statistics never disagree
+     * with the messages.
      * 
      * @param messageText. Must be 255 characters or less. Must not be blank.
      * @param postedBy
      * @return Message stored in the database on success, null on fail.
      */
+    @Override
     public Message createMessage(String messageText, int postedBy, long postedAt){
-        Connection connection = ConnectionUtil.getConnection();
+        Connection connection = ConnectionUtil.getConnection(shard);
         try{
+            connection.setAutoCommit(false);
             //Attempt to insert the message into the database, if no rows are returned, we know the user doesn't exist.
-            String sql = "INSERT INTO message (posted_by, message_text, time_posted_epoch) VALUES (?, ?, ?)";
+            String sql = INSERT_MESSAGE_SQL;
             PreparedStatement preparedStatement = connection.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS);
             preparedStatement.setInt(1, postedBy);
             preparedStatement.setString(2, messageText);
@@ -94,13 +236,26 @@ public class SocialMediaDAO {
             int rowsInserted = preparedStatement.executeUpdate();
             ResultSet generatedKeys = preparedStatement.getGeneratedKeys();
             if (rowsInserted > 0 && generatedKeys.next()){
-                //Success
                 int messageID = generatedKeys.getInt("message_id");
+                //Count the message into its author's stats
+                sql = ADD_TO_ACCOUNT_STATS_SQL;
+                preparedStatement = connection.prepareStatement(sql);
+                preparedStatement.setInt(1, postedBy);
+                preparedStatement.setInt(2, 1);
+                preparedStatement.setLong(3, postedAt);
+                preparedStatement.executeUpdate();
+                connection.commit();
+                //Success
                 return new Message(messageID, postedBy, messageText, postedAt);
             }
+            connection.rollback();
         }
-        catch (SQLException e){
-            System.out.println(e.getMessage());
+        catch(SQLException e){
+            rollback(connection);
+            DataAccessException failure = fromMessageInsert(e);
+            if (!failure.isRejection()){
+                throw failure;
+            }
         }
         //Fail
         return null;
@@ -111,12 +266,13 @@ public class SocialMediaDAO {
      * 
      * @return list containing all messages currently within the database.
      */
+    @Override
     public List<Message> getAllMessages(){
         List<Message> messages = new ArrayList<Message>();
-        Connection connection = ConnectionUtil.getConnection();
+        Connection connection = ConnectionUtil.getConnection(shard);
         try{
             //Query all messages within the message table
-            String sql = "SELECT * FROM message";
+            String sql = SELECT_ALL_MESSAGES_SQL;
             PreparedStatement preparedStatement = connection.prepareStatement(sql);
             //Get results
             ResultSet resultSet = preparedStatement.executeQuery();
@@ -131,10 +287,116 @@ public class SocialMediaDAO {
             return messages;
         }
         catch(SQLException e){
-            System.out.println(e.getMessage());
+            throw DataAccessException.from(e);
+        }
+    }
+
+    /**
+     * Streams every message in the database to the sink in message_id order, a page at a time. The pages are read in
+     * one repeatable read transaction, so the export is a consistent copy of the table as of its first page.
+     * 
+     * @param sink
+     * @return number of messages exported, null on fail.
+     */
+    @Override
+    public Integer exportMessages(Consumer<Message> sink){
+        //Short keyset queries rather than one lazy cursor over the table: H2 2.1 can free the pages under a lazy
+        //cursor that stays open for minutes while the store compacts, failing the export with "Chunk not found".
+        //The transaction is always ended, since it keeps old row versions alive.
+        Connection connection = ConnectionUtil.getConnection(shard);
+        try{
+            connection.setAutoCommit(false);
+            connection.setTransactionIsolation(Connection.TRANSACTION_REPEATABLE_READ);
+            PreparedStatement preparedStatement = connection.prepareStatement(EXPORT_MESSAGES_SQL);
+            preparedStatement.setInt(2, EXPORT_PAGE_SIZE);
+            int exported = 0;
+            int lastMessageID = 0;
+            int pageSize;
+            do{
+                preparedStatement.setInt(1, lastMessageID);
+                ResultSet resultSet = preparedStatement.executeQuery();
+                pageSize = 0;
+                while(resultSet.next()){
+                    lastMessageID = resultSet.getInt("message_id");
+                    int postedBy = resultSet.getInt("posted_by");
+                    String messageText = resultSet.getString("message_text");
+                    long postedAt = resultSet.getLong("time_posted_epoch");
+                    sink.accept(new Message(lastMessageID, postedBy, messageText, postedAt));
+                    pageSize++;
+                }
+                exported += pageSize;
+            } while(pageSize == EXPORT_PAGE_SIZE);
+            connection.commit();
+            //Success
+            return exported;
+        }
+        catch(SQLException e){
+            throw DataAccessException.from(e);
+        }
+        finally{
+            close(connection);
         }
-        //Fail, this point should never be reached
-        return null;
+    }
+
+    /**
+     * Inserts the batch and counts it into its authors' stats in one transaction. If any message is rejected, for
+     * example because its author doesn't exist, the transaction is rolled back and the messages are created one at a
+     * time instead.
+     * 
+     * @param messages
+     * @return for each message, the message stored in the database or null if it was rejected.
+     */
+    @Override
+    public List<Message> createMessages(List<Message> messages){
+        Connection connection = ConnectionUtil.getConnection(shard);
+        try{
+            connection.setAutoCommit(false);
+            String sql = INSERT_MESSAGE_SQL;
+            PreparedStatement preparedStatement = connection.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS);
+            //Count, then newest time_posted_epoch, of the batch's messages by author
+            Map<Integer, long[]> addedByAccount = new HashMap<Integer, long[]>();
+            for (Message message : messages){
+                preparedStatement.setInt(1, message.getPosted_by());
+                preparedStatement.setString(2, message.getMessage_text());
+                preparedStatement.setLong(3, message.getTime_posted_epoch());
+                preparedStatement.addBatch();
+                long[] added = addedByAccount.computeIfAbsent(message.getPosted_by(), id -> new long[] {0, Long.MIN_VALUE});
+                added[0]++;
+                added[1] = Math.max(added[1], message.getTime_posted_epoch());
+            }
+            preparedStatement.executeBatch();
+            //Count the batch into its authors' stats, one row per author
+            PreparedStatement statsStatement = connection.prepareStatement(ADD_TO_ACCOUNT_STATS_SQL);
+            for (Map.Entry<Integer, long[]> account : addedByAccount.entrySet()){
+                statsStatement.setInt(1, account.getKey());
+                statsStatement.setInt(2, (int) account.getValue()[0]);
+                statsStatement.setLong(3, account.getValue()[1]);
+                statsStatement.addBatch();
+            }
+            statsStatement.executeBatch();
+            //Get the ids in insertion order
+            ResultSet generatedKeys = preparedStatement.getGeneratedKeys();
+            List<Message> created = new ArrayList<Message>(messages.size());
+            for (Message message : messages){
+                if (!generatedKeys.next()){
+                    throw new SQLException("Fewer generated keys than messages inserted");
+                }
+                created.add(new Message(generatedKeys.getInt("message_id"), message.getPosted_by(),
+                        message.getMessage_text(), message.getTime_posted_epoch()));
+            }
+            connection.commit();
+            //Success
+            return created;
+        }
+        catch(SQLException e){
+            rollback(connection);
+            DataAccessException failure = fromMessageInsert(e);
+            if (!failure.isRejection()){
+                throw failure;
+            }
+        }
+        //A message was rejected, find out which
+        return StorageEngine.super.createMessages(messages);
     }
 
     /**
@@ -143,11 +405,24 @@ public class SocialMediaDAO {
      * @param messageID
      * @return Message on success, null on fail.
      */
+    @Override
     public Message getMessageByID(int messageID){
-        Connection connection = ConnectionUtil.getConnection();
+        Versioned<Message> message = getVersionedMessageByID(messageID);
+        return message == null ? null : message.getValue();
+    }
+
+    /**
+     * Given a messageID, this method returns the associated message and its version if it exists.
+     * 
+     * @param messageID
+     * @return the message and its version on success, null if it does not exist.
+     */
+    @Override
+    public Versioned<Message> getVersionedMessageByID(int messageID){
+        Connection connection = ConnectionUtil.getConnection(shard);
         try{
             //Qeury for message with a matching id
-            String sql = "SELECT * FROM message WHERE message_id = ?";
+            String sql = SELECT_MESSAGE_BY_ID_SQL;
             PreparedStatement preparedStatement = connection.prepareStatement(sql);
             preparedStatement.setInt(1, messageID);
             //Get results
@@ -157,11 +432,11 @@ public class SocialMediaDAO {
                 int postedBy = resultSet.getInt("posted_by");
                 String messageText = resultSet.getString("message_text");
                 long postedAt = resultSet.getLong("time_posted_epoch");
-                return new Message(messageID, postedBy, messageText, postedAt);
+                return new Versioned<Message>(new Message(messageID, postedBy, messageText, postedAt), resultSet.getInt("version"));
             }
         }
-        catch (SQLException e){
-            System.out.println(e.getMessage());
+        catch(SQLException e){
+            throw DataAccessException.from(e);
         }
         //Message did not exist
         return null;
@@ -173,37 +448,136 @@ public class SocialMediaDAO {
      * @param messageID
      * @return Message on success, null on fail.
      */
+    @Override
     public Message deleteMessageByID(int messageID){
-        Connection connection = ConnectionUtil.getConnection();
+        Connection connection = ConnectionUtil.getConnection(shard);
         try{
+            connection.setAutoCommit(false);
             //Select the row to be deleted
-            String sql = "SELECT * FROM message WHERE message_id = ?";
+            String sql = SELECT_MESSAGE_BY_ID_SQL;
             PreparedStatement preparedStatement = connection.prepareStatement(sql);
             preparedStatement.setInt(1, messageID);
             //Get results
             ResultSet resultSet = preparedStatement.executeQuery();
             if(resultSet.next()){
-                //Success
                 int postedBy = resultSet.getInt("posted_by");
                 String messageText = resultSet.getString("message_text");
                 long postedAt = resultSet.getLong("time_posted_epoch");
 
-                //Delete row after gathering info
-                sql = "DELETE FROM message WHERE message_id = ?";
+                //Delete row after gathering info, unless a concurrent delete got there first
+                sql = DELETE_MESSAGE_BY_ID_SQL;
                 preparedStatement = connection.prepareStatement(sql);
                 preparedStatement.setInt(1, messageID);
-                preparedStatement.executeUpdate();
-
-                return new Message(messageID, postedBy, messageText, postedAt);
+                if (preparedStatement.executeUpdate() > 0){
+                    //Take the message out of its author's stats in the same transaction
+                    sql = REMOVE_FROM_ACCOUNT_STATS_SQL;
+                    preparedStatement = connection.prepareStatement(sql);
+                    preparedStatement.setInt(1, 1);
+                    preparedStatement.setInt(2, postedBy);
+                    preparedStatement.setInt(3, postedBy);
+                    preparedStatement.executeUpdate();
+                    connection.commit();
+                    //Success
+                    return new Message(messageID, postedBy, messageText, postedAt);
+                }
             }
+            connection.rollback();
         }
-        catch (SQLException e){
-            System.out.println(e.getMessage());
+        catch(SQLException e){
+            rollback(connection);
+            throw DataAccessException.from(e);
         }
         //Message did not exist
         return null;
     }
 
+    /**
+     * Deletes every message posted by the user in chunks, each a single DELETE statement returning the rows it removed.
+     * 
+     * @param userID
+     * @param chunkSize most messages deleted per transaction
+     * @param onChunkDeleted told about each committed chunk
+     * @return number of messages deleted, null on fail.
+     * @throws IllegalArgumentException when chunkSize is below 1
+     */
+    @Override
+    public Integer deleteMessagesByUserID(int userID, int chunkSize, Consumer<List<Message>> onChunkDeleted){
+        return deleteInChunks(DELETE_MESSAGES_BY_USER_SQL, userID, chunkSize, onChunkDeleted);
+    }
+
+    /**
+     * Deletes every message posted before the cutoff in chunks, each a single DELETE statement served by the index on
+     * time_posted_epoch and returning the rows it removed.
+     * 
+     * @param cutoff exclusive upper bound on time_posted_epoch
+     * @param chunkSize most messages deleted per transaction
+     * @param onChunkDeleted told about each committed chunk
+     * @return number of messages deleted, null on fail.
+     * @throws IllegalArgumentException when chunkSize is below 1
+     */
+    @Override
+    public Integer deleteMessagesPostedBefore(long cutoff, int chunkSize, Consumer<List<Message>> onChunkDeleted){
+        return deleteInChunks(DELETE_MESSAGES_POSTED_BEFORE_SQL, cutoff, chunkSize, onChunkDeleted);
+    }
+
+    /**
+     * Runs the chunked delete until a chunk comes back short. Each chunk is one transaction that deletes up to
+     * chunkSize rows and takes them out of their authors' account_stats rows.
+     * 
+     * @param sql a delete wrapped in OLD TABLE, taking the filter value and the chunk size
+     * @param filter value for the delete's filter
+     * @param chunkSize
+     * @param onChunkDeleted
+     * @return number of messages deleted, null on fail.
+     */
+    private Integer deleteInChunks(String sql, long filter, int chunkSize, Consumer<List<Message>> onChunkDeleted){
+        StorageEngine.checkChunkSize(chunkSize);
+        Connection connection = ConnectionUtil.getConnection(shard);
+        int deleted = 0;
+        try{
+            connection.setAutoCommit(false);
+            PreparedStatement preparedStatement = connection.prepareStatement(sql);
+            PreparedStatement statsStatement = connection.prepareStatement(REMOVE_FROM_ACCOUNT_STATS_SQL);
+            List<Message> chunk;
+            do{
+                preparedStatement.setLong(1, filter);
+                preparedStatement.setInt(2, chunkSize);
+                //Delete the chunk and gather the deleted rows
+                chunk = new ArrayList<Message>();
+                Map<Integer, Integer> deletedByAccount = new HashMap<Integer, Integer>();
+                ResultSet resultSet = preparedStatement.executeQuery();
+                while(resultSet.next()){
+                    int messageID = resultSet.getInt("message_id");
+                    int postedBy = resultSet.getInt("posted_by");
+                    String messageText = resultSet.getString("message_text");
+                    long postedAt = resultSet.getLong("time_posted_epoch");
+                    chunk.add(new Message(messageID, postedBy, messageText, postedAt));
+                    deletedByAccount.merge(postedBy, 1, Integer::sum);
+                }
+                //Take the chunk out of its authors' stats in the same transaction
+                for (Map.Entry<Integer, Integer> account : deletedByAccount.entrySet()){
+                    statsStatement.setInt(1, account.getValue());
+                    statsStatement.setInt(2, account.getKey());
+                    statsStatement.setInt(3, account.getKey());
+                    statsStatement.addBatch();
+                }
+                statsStatement.executeBatch();
+                connection.commit();
+                deleted += chunk.size();
+                if (!chunk.isEmpty()){
+                    chunk.sort(Comparator.comparingInt(Message::getMessage_id));
+                    onChunkDeleted.accept(chunk);
+                }
+            } while (chunk.size() == chunkSize);
+            //Success
+            return deleted;
+        }
+        catch(SQLException e){
+            rollback(connection);
+            throw DataAccessException.from(e);
+        }
+    }
+
     /**
      * Given a messageID and messageText, this method updates and returns the updated message in the database if it exists.
      * 
@@ -211,31 +585,53 @@ public class SocialMediaDAO {
      * @param messageText must be 255 characters or less. Cannot be blank.
      * @return Updated message on success, null on fail.
      */
+    @Override
     public Message updateMessageByID(int messageID, String messageText){
-        Connection connection = ConnectionUtil.getConnection();
+        Versioned<Message> message = updateMessageByID(messageID, messageText, null);
+        return message == null ? null : message.getValue();
+    }
+
+    /**
+     * Updates the message in a single statement that only matches the expected version, so no lock is held between
+     * the caller's read and this write. When nothing matched, the message is looked up to tell a conflict from a
+     * message that doesn't exist.
+     * 
+     * @param messageID
+     * @param messageText must be 255 characters or less. Cannot be blank.
+     * @param expectedVersion null to update whatever the version
+     * @return Updated message and its new version on success, null if it does not exist.
+     */
+    @Override
+    public Versioned<Message> updateMessageByID(int messageID, String messageText, Integer expectedVersion){
+        Connection connection = ConnectionUtil.getConnection(shard);
         try{
-            //Update and return message with matching id
-            String sql = "UPDATE message SET message_text = ? WHERE message_id = ?";
+            //Update and return message with matching id, and version when one is expected
+            String sql = expectedVersion == null ? UPDATE_MESSAGE_TEXT_SQL : UPDATE_MESSAGE_TEXT_IF_VERSION_SQL;
             PreparedStatement preparedStatement = connection.prepareStatement(sql);
             preparedStatement.setString(1, messageText);
             preparedStatement.setInt(2, messageID);
-            //See if any rows were updated
-            int updatedRows = preparedStatement.executeUpdate();
-            if (updatedRows > 0){
-                sql = "SELECT * FROM message WHERE message_id = ?";
+            if (expectedVersion != null){
+                preparedStatement.setInt(3, expectedVersion);
+            }
+            ResultSet resultSet = preparedStatement.executeQuery();
+            if (resultSet.next()){
+                //Success
+                Message message = new Message(messageID, resultSet.getInt("posted_by"), messageText, resultSet.getLong("time_posted_epoch"));
+                return new Versioned<Message>(message, resultSet.getInt("version"));
+            }
+            if (expectedVersion != null){
+                sql = SELECT_MESSAGE_VERSION_SQL;
                 preparedStatement = connection.prepareStatement(sql);
                 preparedStatement.setInt(1, messageID);
-                //Get Select results
-                ResultSet resultSet = preparedStatement.executeQuery();
-                while(resultSet.next()){
-                    int postedBy = resultSet.getInt("posted_by");
-                    long postedAt = resultSet.getLong("time_posted_epoch");
-                    return new Message(messageID, postedBy, messageText, postedAt);
+                resultSet = preparedStatement.executeQuery();
+                if (resultSet.next()){
+                    throw new DataAccessException(DataAccessException.Kind.CONFLICT, "Message " + messageID
+                            + " is at version " + resultSet.getInt("version") + ", not " + expectedVersion);
                 }
             }
         }
         catch(SQLException e){
-            System.out.println(e.getMessage());
+            throw DataAccessException.from(e);
         }
         //No message by this id existed
         return null;
@@ -247,12 +643,13 @@ public class SocialMediaDAO {
      * @param userID, must exist within the database
      * @return list of messages by specified user, null on fail.
      */
+    @Override
     public List<Message> getMessagesByUserID(int userID){
         List<Message> messages = new ArrayList<Message>();
-        Connection connection = ConnectionUtil.getConnection();
+        Connection connection = ConnectionUtil.getConnection(shard);
         try{
             //Query the database for all messages written by a particular user.
-            String sql = "SELECT * FROM message WHERE posted_by = ?";
+            String sql = SELECT_MESSAGES_BY_USER_SQL;
             PreparedStatement preparedStatement = connection.prepareStatement(sql);
             preparedStatement.setInt(1, userID);
             //Get results
@@ -268,9 +665,398 @@ public class SocialMediaDAO {
             return messages;
         }
         catch(SQLException e){
+            throw DataAccessException.from(e);
+        }
+    }
+
+    /**
+     * Returns every message whose time_posted_epoch falls within [since, until], newest first.
+     * The range predicate is served by the index on time_posted_epoch, so the cost follows the number of matching rows
+     * rather than the size of the message table.
+     * 
+     * @param since inclusive lower bound on time_posted_epoch
+     * @param until inclusive upper bound on time_posted_epoch
+     * @return list of messages within the range, null on fail.
+     */
+    @Override
+    public List<Message> getMessagesInTimeRange(long since, long until){
+        List<Message> messages = new ArrayList<Message>();
+        Connection connection = ConnectionUtil.getConnection(shard);
+        try{
+            //Query messages within the range, walking the time_posted_epoch index from newest to oldest
+            String sql = SELECT_MESSAGES_IN_TIME_RANGE_SQL;
+            PreparedStatement preparedStatement = connection.prepareStatement(sql);
+            preparedStatement.setLong(1, since);
+            preparedStatement.setLong(2, until);
+            //Get results
+            ResultSet resultSet = preparedStatement.executeQuery();
+            while(resultSet.next()){
+                int messageID = resultSet.getInt("message_id");
+                int postedBy = resultSet.getInt("posted_by");
+                String messageText = resultSet.getString("message_text");
+                long postedAt = resultSet.getLong("time_posted_epoch");
+                messages.add(new Message(messageID, postedBy, messageText, postedAt));
+            }
+            //Success
+            return messages;
+        }
+        catch(SQLException e){
+            throw DataAccessException.from(e);
+        }
+    }
+
+    /**
+     * Returns the messages written by the provided user whose time_posted_epoch falls within [since, until], newest first.
+     * 
+     * @param userID
+     * @param since inclusive lower bound on time_posted_epoch
+     * @param until inclusive upper bound on time_posted_epoch
+     * @return list of messages by specified user within the range, null on fail.
+     */
+    @Override
+    public List<Message> getMessagesByUserIDInTimeRange(int userID, long since, long until){
+        List<Message> messages = new ArrayList<Message>();
+        Connection connection = ConnectionUtil.getConnection(shard);
+        try{
+            //Query the (posted_by, time_posted_epoch) index for the user's messages within the range
+            String sql = SELECT_MESSAGES_BY_USER_IN_TIME_RANGE_SQL;
+            PreparedStatement preparedStatement = connection.prepareStatement(sql);
+            preparedStatement.setInt(1, userID);
+            preparedStatement.setLong(2, since);
+            preparedStatement.setLong(3, until);
+            //Get results
+            ResultSet resultSet = preparedStatement.executeQuery();
+            while(resultSet.next()){
+                int messageID = resultSet.getInt("message_id");
+                int postedBy = resultSet.getInt("posted_by");
+                String messageText = resultSet.getString("message_text");
+                long postedAt = resultSet.getLong("time_posted_epoch");
+                messages.add(new Message(messageID, postedBy, messageText, postedAt));
+            }
+            //Success
+            return messages;
+        }
+        catch(SQLException e){
+            throw DataAccessException.from(e);
+        }
+    }
+
+    /**
+     * Returns the newest messages written by the provided user, walking the (posted_by, time_posted_epoch) index from
+     * the newest one so only the rows returned are read.
+     * 
+     * @param userID
+     * @param limit most messages returned
+     * @return list of the user's newest messages, newest first, null on fail.
+     */
+    @Override
+    public List<Message> getNewestMessagesByUserID(int userID, int limit){
+        List<Message> messages = new ArrayList<Message>();
+        Connection connection = ConnectionUtil.getConnection(shard);
+        try{
+            String sql = SELECT_NEWEST_MESSAGES_BY_USER_SQL;
+            PreparedStatement preparedStatement = connection.prepareStatement(sql);
+            preparedStatement.setInt(1, userID);
+            preparedStatement.setInt(2, limit);
+            //Get results
+            ResultSet resultSet = preparedStatement.executeQuery();
+            while(resultSet.next()){
+                int messageID = resultSet.getInt("message_id");
+                int postedBy = resultSet.getInt("posted_by");
+                String messageText = resultSet.getString("message_text");
+                long postedAt = resultSet.getLong("time_posted_epoch");
+                messages.add(new Message(messageID, postedBy, messageText, postedAt));
+            }
+            //Success
+            return messages;
+        }
+        catch(SQLException e){
+            throw DataAccessException.from(e);
+        }
+    }
+
+    /**
+     * Makes one account follow another. The foreign keys reject accounts that don't exist.
+     * 
+     * @param followerID
+     * @param followeeID
+     * @return true on success, false on fail.
+     */
+    @Override
+    public boolean follow(int followerID, int followeeID){
+        Connection connection = ConnectionUtil.getConnection(shard);
+        try{
+            String sql = FOLLOW_SQL;
+            PreparedStatement preparedStatement = connection.prepareStatement(sql);
+            preparedStatement.setInt(1, followerID);
+            preparedStatement.setInt(2, followeeID);
+            preparedStatement.executeUpdate();
+            //Success
+            return true;
+        }
+        catch(SQLException e){
+            DataAccessException failure = DataAccessException.from(e);
+            if (!failure.isRejection()){
+                throw failure;
+            }
+        }
+        //Fail, either account doesn't exist
+        return false;
+    }
+
+    /**
+     * @param accountID
+     * @return ids of the accounts following the account, null on fail.
+     */
+    @Override
+    public List<Integer> getFollowerIDs(int accountID){
+        return selectIDs(SELECT_FOLLOWER_IDS_SQL, accountID);
+    }
+
+    /**
+     * @param accountID
+     * @return ids of the accounts the account follows, null on fail.
+     */
+    @Override
+    public List<Integer> getFolloweeIDs(int accountID){
+        return selectIDs(SELECT_FOLLOWEE_IDS_SQL, accountID);
+    }
+
+    /**
+     * Stores the timeline entries in one batch. An entry already stored is left as it is.
+     * 
+     * @param accountIDs
+     * @param entries
+     */
+    @Override
+    public void addTimelineEntries(int[] accountIDs, TimelineEntry[] entries){
+        Connection connection = ConnectionUtil.getConnection(shard);
+        try{
+            String sql = INSERT_TIMELINE_ENTRY_SQL;
+            PreparedStatement preparedStatement = connection.prepareStatement(sql);
+            for (int i = 0; i < accountIDs.length; i++){
+                preparedStatement.setInt(1, accountIDs[i]);
+                preparedStatement.setInt(2, entries[i].getMessageID());
+                preparedStatement.setLong(3, entries[i].getPostedAt());
+                preparedStatement.addBatch();
+            }
+            preparedStatement.executeBatch();
+        }
+        catch(SQLException e){
+            throw DataAccessException.from(e);
+        }
+    }
+
+    /**
+     * @param accountID
+     * @param limit
+     * @return the newest timeline entries of the account.
+     */
+    @Override
+    public List<TimelineEntry> getTimelineEntries(int accountID, int limit){
+        List<TimelineEntry> entries = new ArrayList<TimelineEntry>();
+        Connection connection = ConnectionUtil.getConnection(shard);
+        try{
+            String sql = SELECT_TIMELINE_SQL;
+            PreparedStatement preparedStatement = connection.prepareStatement(sql);
+            preparedStatement.setInt(1, accountID);
+            preparedStatement.setInt(2, limit);
+            ResultSet resultSet = preparedStatement.executeQuery();
+            while(resultSet.next()){
+                entries.add(new TimelineEntry(resultSet.getInt("message_id"), resultSet.getLong("time_posted_epoch")));
+            }
+            return entries;
+        }
+        catch(SQLException e){
+            throw DataAccessException.from(e);
+        }
+    }
+
+    @Override
+    public void trimTimeline(int accountID, TimelineEntry oldest){
+        Connection connection = ConnectionUtil.getConnection(shard);
+        try{
+            String sql = TRIM_TIMELINE_SQL;
+            PreparedStatement preparedStatement = connection.prepareStatement(sql);
+            preparedStatement.setInt(1, accountID);
+            preparedStatement.setLong(2, oldest.getPostedAt());
+            preparedStatement.setInt(3, oldest.getMessageID());
+            preparedStatement.executeUpdate();
+        }
+        catch(SQLException e){
+            throw DataAccessException.from(e);
+        }
+    }
+
+    /**
+     * Runs a query taking an account id that selects a single id column.
+     * 
+     * @return the selected ids, null on fail.
+     */
+    private List<Integer> selectIDs(String sql, int accountID){
+        List<Integer> ids = new ArrayList<Integer>();
+        Connection connection = ConnectionUtil.getConnection(shard);
+        try{
+            PreparedStatement preparedStatement = connection.prepareStatement(sql);
+            preparedStatement.setInt(1, accountID);
+            ResultSet resultSet = preparedStatement.executeQuery();
+            while(resultSet.next()){
+                ids.add(resultSet.getInt(1));
+            }
+            //Success
+            return ids;
+        }
+        catch(SQLException e){
+            throw DataAccessException.from(e);
+        }
+    }
+
+    /**
+     * Returns the account's statistics from its account_stats row, a single primary key lookup. Shards other than 0
+     * hold no accounts, so there an account without a row is taken to have no messages on the shard.
+     * 
+     * @param accountID
+     * @return the account's statistics on success, null if the account does not exist or on fail.
+     */
+    @Override
+    public AccountStats getAccountStats(int accountID){
+        Connection connection = ConnectionUtil.getConnection(shard);
+        try{
+            String sql = shard == 0 ? SELECT_ACCOUNT_STATS_SQL : SELECT_SHARD_ACCOUNT_STATS_SQL;
+            PreparedStatement preparedStatement = connection.prepareStatement(sql);
+            preparedStatement.setInt(1, accountID);
+            ResultSet resultSet = preparedStatement.executeQuery();
+            if (resultSet.next()){
+                //A missing stats row reads as a count of 0 and no last post
+                int messageCount = resultSet.getInt("message_count");
+                long lastPostedAt = resultSet.getLong("last_posted_epoch");
+                return new AccountStats(accountID, messageCount, resultSet.wasNull() ? null : lastPostedAt);
+            }
+            return shard == 0 ? null : new AccountStats(accountID, 0, null);
+        }
+        catch(SQLException e){
+            throw DataAccessException.from(e);
+        }
+    }
+
+    /**
+     * Recomputes every account's statistics with a GROUP BY over the message table and compares them with the
+     * account_stats table. Both are read in one repeatable read transaction, so writes committed meanwhile cannot show
+     * up as differences, and a repair is committed in that same transaction.
+     * 
+     * @param repair replace the account_stats rows that differ
+     * @return the recomputed statistics of every account that differed, null on fail.
+     */
+    @Override
+    public List<AccountStats> checkAccountStats(boolean repair){
+        Connection connection = ConnectionUtil.getConnection(shard);
+        try{
+            connection.setAutoCommit(false);
+            connection.setTransactionIsolation(Connection.TRANSACTION_REPEATABLE_READ);
+            Map<Integer, AccountStats> recomputed = new HashMap<Integer, AccountStats>();
+            ResultSet resultSet = connection.prepareStatement(RECOMPUTE_ACCOUNT_STATS_SQL).executeQuery();
+            while(resultSet.next()){
+                int accountID = resultSet.getInt(1);
+                recomputed.put(accountID, new AccountStats(accountID, resultSet.getInt(2), resultSet.getLong(3)));
+            }
+            Map<Integer, AccountStats> maintained = new HashMap<Integer, AccountStats>();
+            resultSet = connection.prepareStatement(SELECT_ALL_ACCOUNT_STATS_SQL).executeQuery();
+            while(resultSet.next()){
+                int accountID = resultSet.getInt("account_id");
+                int messageCount = resultSet.getInt("message_count");
+                long lastPostedAt = resultSet.getLong("last_posted_epoch");
+                maintained.put(accountID, new AccountStats(accountID, messageCount, resultSet.wasNull() ? null : lastPostedAt));
+            }
+            List<AccountStats> mismatches = AccountStatsAudit.mismatches(recomputed, maintained);
+            if (repair){
+                PreparedStatement preparedStatement = connection.prepareStatement(REPLACE_ACCOUNT_STATS_SQL);
+                for (AccountStats stats : mismatches){
+                    preparedStatement.setInt(1, stats.getAccount_id());
+                    preparedStatement.setInt(2, stats.getMessage_count());
+                    preparedStatement.setObject(3, stats.getLast_posted_epoch(), Types.BIGINT);
+                    preparedStatement.executeUpdate();
+                }
+            }
+            connection.commit();
+            //Success
+            return mismatches;
+        }
+        catch(SQLException e){
+            rollback(connection);
+            throw DataAccessException.from(e);
+        }
+    }
+
+    /**
+     * Writes the shard's database to its own file in the directory, see DatabaseSnapshot.
+     */
+    @Override
+    public Long snapshot(Path directory, long bytesPerSecond){
+        try{
+            //Success
+            return DatabaseSnapshot.write(shard, DatabaseSnapshot.getFile(directory, shard), bytesPerSecond);
+        }
+        catch(SQLException | IOException e){
             System.out.println(e.getMessage());
         }
-        //Fail, this point should never be reached.
+        //Fail
         return null;
     }
+
+    @Override
+    public boolean restore(Path directory){
+        try{
+            DatabaseSnapshot.restore(shard, DatabaseSnapshot.getFile(directory, shard));
+            //Success
+            return true;
+        }
+        catch(SQLException | IOException e){
+            System.out.println(e.getMessage());
+        }
+        //Fail
+        return false;
+    }
+
+    /**
+     * Closes a connection that holds state beyond a single call.
+     * 
+     * @param connection
+     */
+    private static void close(Connection connection){
+        try{
+            connection.close();
+        }
+        catch(SQLException e){
+            System.out.println(e.getMessage());
+        }
+    }
+
+    /**
+     * Classifies a failure of a transaction inserting messages. Those transactions can only collide on the key of
+     * account_stats, when the first messages of an account race to create its row, so that is transient: once the
+     * winner commits, the retry finds the row.
+     * 
+     * @param e
+     * @return the exception to throw in its place
+     */
+    private static DataAccessException fromMessageInsert(SQLException e){
+        if (e.getErrorCode() == ErrorCode.DUPLICATE_KEY_1){
+            return new DataAccessException(DataAccessException.Kind.TRANSIENT, e);
+        }
+        return DataAccessException.from(e);
+    }
+
+    /**
+     * Rolls back the connection's transaction after a failed statement.
+     * 
+     * @param connection
+     */
+    private static void rollback(Connection connection){
+        try{
+            connection.rollback();
+        }
+        catch(SQLException e){
+            System.out.println(e.getMessage());
+        }
+    }
 }
@@ -0,0 +1,335 @@
+package DAO;
+
+import Model.Account;
+import Model.AccountStats;
+import Model.Message;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.function.Consumer;
+
+/**
+ * A storage engine provides persistence for accounts and messages. The service layer only talks to this interface,
+ * so the backing store can be swapped without touching any business logic.
+ *
+ * Every implementation follows the same contract as the original H2 SocialMediaDAO: lookups that find nothing return
+ * null (single results) or an empty list (multiple results), and failed inserts return null.
+ *
+ * Any other failure is thrown as a DataAccessException rather than reported as a missing result, typed by what the
+ * caller can do about it: a lock timeout or deadlock is TRANSIENT and worth repeating, anything the database can't do
+ * at all is FATAL. A failed operation changes nothing, except that the bulk deletes keep the chunks committed before
+ * the failure.
+ */
+public interface StorageEngine {
+
+    /**
+     * System property used to select the storage engine at startup.
+     */
+    String STORAGE_PROPERTY = "socialmedia.storage";
+
+    /**
+     * Create and return an account provided a username and password.
+     *
+     * @param username must not already exist
+     * @param password
+     * @return User account on success, null on fail.
+     */
+    Account createAccount(String username, String password);
+
+    /**
+     * Return the user account if the username and password match.
+     *
+     * @param username
+     * @param password
+     * @return Account on success, null on fail.
+     */
+    Account userLogin(String username, String password);
+
+    /**
+     * Create and store a message posted by an existing account.
+     *
+     * @param messageText
+     * @param postedBy must be an existing account id
+     * @param postedAt
+     * @return Message stored on success, null on fail.
+     */
+    Message createMessage(String messageText, int postedBy, long postedAt);
+
+    /**
+     * @return list containing all messages currently stored, in message_id order.
+     */
+    List<Message> getAllMessages();
+
+    /**
+     * @param messageID
+     * @return Message on success, null if it does not exist.
+     */
+    Message getMessageByID(int messageID);
+
+    /**
+     * Deletes and returns the message if it exists.
+     *
+     * @param messageID
+     * @return the deleted Message on success, null if it does not exist.
+     */
+    Message deleteMessageByID(int messageID);
+
+    /**
+     * Replaces the text of an existing message.
+     *
+     * @param messageID
+     * @param messageText
+     * @return Updated message on success, null if it does not exist.
+     */
+    Message updateMessageByID(int messageID, String messageText);
+
+    /**
+     * Returns the message along with its version, which starts at 0 and goes up by one with every update of the
+     * message, whatever the new text.
+     *
+     * @param messageID
+     * @return the message and its version on success, null if it does not exist.
+     */
+    Versioned<Message> getVersionedMessageByID(int messageID);
+
+    /**
+     * Replaces the text of an existing message if it is still at the expected version, the one the caller read, so an
+     * update made in between is never silently overwritten. The check and the update are atomic.
+     *
+     * @param messageID
+     * @param messageText
+     * @param expectedVersion null to update whatever the version
+     * @return Updated message and its new version on success, null if it does not exist.
+     * @throws DataAccessException with kind CONFLICT when the message is at another version
+     */
+    Versioned<Message> updateMessageByID(int messageID, String messageText, Integer expectedVersion);
+
+    /**
+     * @param userID
+     * @return list of messages by specified user, in message_id order.
+     */
+    List<Message> getMessagesByUserID(int userID);
+
+    /**
+     * @param since inclusive lower bound on time_posted_epoch
+     * @param until inclusive upper bound on time_posted_epoch
+     * @return list of messages within the range, newest first.
+     */
+    List<Message> getMessagesInTimeRange(long since, long until);
+
+    /**
+     * @param userID
+     * @param since inclusive lower bound on time_posted_epoch
+     * @param until inclusive upper bound on time_posted_epoch
+     * @return list of messages by specified user within the range, newest first.
+     */
+    List<Message> getMessagesByUserIDInTimeRange(int userID, long since, long until);
+
+    /**
+     * Engines that can read the newest messages without reading the rest override this, the default sorts them all.
+     *
+     * @param userID
+     * @param limit most messages returned
+     * @return the user's newest messages, latest time_posted_epoch first and the higher message_id first among equal
+     * times, null on fail.
+     */
+    default List<Message> getNewestMessagesByUserID(int userID, int limit){
+        List<Message> messages = getMessagesByUserIDInTimeRange(userID, Long.MIN_VALUE, Long.MAX_VALUE);
+        if (messages == null){
+            return null;
+        }
+        messages = new ArrayList<Message>(messages);
+        messages.sort(Comparator.comparingLong(Message::getTime_posted_epoch).thenComparingInt(Message::getMessage_id).reversed());
+        return messages.subList(0, Math.min(limit, messages.size()));
+    }
+
+    /**
+     * Deletes every message posted by the user, chunkSize messages per transaction so no lock is held for long.
+     * Messages posted while this runs may or may not be deleted.
+     *
+     * @param userID
+     * @param chunkSize most messages deleted per transaction
+     * @param onChunkDeleted told about the messages of each chunk once it is committed, possibly from another thread
+     * @return number of messages deleted, null if a chunk failed. The chunks before it stay deleted.
+     * @throws IllegalArgumentException when chunkSize is below 1
+     */
+    Integer deleteMessagesByUserID(int userID, int chunkSize, Consumer<List<Message>> onChunkDeleted);
+
+    /**
+     * Deletes every message whose time_posted_epoch is before the cutoff, chunkSize messages per transaction so no lock
+     * is held for long. Messages posted while this runs may or may not be deleted.
+     *
+     * @param cutoff exclusive upper bound on time_posted_epoch
+     * @param chunkSize most messages deleted per transaction
+     * @param onChunkDeleted told about the messages of each chunk once it is committed, possibly from another thread
+     * @return number of messages deleted, null if a chunk failed. The chunks before it stay deleted.
+     * @throws IllegalArgumentException when chunkSize is below 1
+     */
+    Integer deleteMessagesPostedBefore(long cutoff, int chunkSize, Consumer<List<Message>> onChunkDeleted);
+
+    /**
+     * Checks the chunk size of a bulk delete, which could never finish a chunk short of an empty one below 1.
+     *
+     * @param chunkSize
+     * @throws IllegalArgumentException when chunkSize is below 1
+     */
+    static void checkChunkSize(int chunkSize){
+        if (chunkSize < 1){
+            throw new IllegalArgumentException("chunkSize must be positive, was " + chunkSize);
+        }
+    }
+
+    /**
+     * Returns how many messages the account has and when it last posted. The statistics are maintained by every
+     * createMessage and deleteMessageByID together with the message itself, so reading them does not depend on how many
+     * messages the account has.
+     *
+     * @param accountID
+     * @return the account's statistics, null if the account does not exist.
+     */
+    AccountStats getAccountStats(int accountID);
+
+    /**
+     * Consistency checker for getAccountStats: recomputes every account's statistics from the messages themselves and
+     * compares them with the maintained ones. An account without messages may have no maintained statistics at all.
+     *
+     * @param repair replace the maintained statistics that differ with the recomputed ones
+     * @return the recomputed statistics of every account whose maintained statistics differed, in account_id order,
+     * empty if they all agree, null on fail.
+     */
+    List<AccountStats> checkAccountStats(boolean repair);
+
+    /**
+     * Streams every message to the sink, reading a bounded number of them at a time, so an export of any size runs in
+     * constant heap. Writers are not blocked while the export runs.
+     *
+     * @param sink receives each message, in message_id order within each database. Exceptions it throws end the
+     * export and are passed on to the caller.
+     * @return number of messages exported, null on fail.
+     */
+    Integer exportMessages(Consumer<Message> sink);
+
+    /**
+     * Creates a batch of messages, as createMessage would one by one. Engines with transactions insert the batch in a
+     * single one, falling back to one message at a time when it fails, so one bad message doesn't reject the others.
+     *
+     * @param messages the message_text, posted_by and time_posted_epoch of each message to create
+     * @return for each message in the batch, the created message or null if it was rejected.
+     * @throws DataAccessException when a message failed for another reason than being rejected, such as a lock
+     * timeout. Engines with transactions create none of the batch then, others may have created the messages before it.
+     */
+    default List<Message> createMessages(List<Message> messages){
+        List<Message> created = new ArrayList<Message>(messages.size());
+        for (Message message : messages){
+            created.add(createMessage(message.getMessage_text(), message.getPosted_by(), message.getTime_posted_epoch()));
+        }
+        return created;
+    }
+
+    /**
+     * Makes one account follow another. Following an account already followed changes nothing.
+     *
+     * @param followerID must be an existing account id
+     * @param followeeID must be an existing account id
+     * @return true on success, false if either account does not exist.
+     */
+    boolean follow(int followerID, int followeeID);
+
+    /**
+     * @param accountID
+     * @return ids of the accounts following the account, in account_id order.
+     */
+    List<Integer> getFollowerIDs(int accountID);
+
+    /**
+     * @param accountID
+     * @return ids of the accounts the account follows, in account_id order.
+     */
+    List<Integer> getFolloweeIDs(int accountID);
+
+    /**
+     * Persists home timeline entries, so precomputed timelines survive a restart. entries[i] goes on the timeline of
+     * accountIDs[i]. Engines that don't persist timelines ignore this, and their timelines are rebuilt from the follow
+     * graph instead.
+     *
+     * @param accountIDs
+     * @param entries
+     */
+    default void addTimelineEntries(int[] accountIDs, TimelineEntry[] entries){
+    }
+
+    /**
+     * @param accountID
+     * @param limit most entries returned
+     * @return the newest persisted timeline entries of the account, latest time_posted_epoch first and the higher
+     * message_id first among equal times, or null if this engine does not persist timelines.
+     */
+    default List<TimelineEntry> getTimelineEntries(int accountID, int limit){
+        return null;
+    }
+
+    /**
+     * Drops the account's persisted timeline entries older than the given one, once they have fallen out of the
+     * bounded timeline kept in memory.
+     *
+     * @param accountID
+     * @param oldest entries ordered before it are removed
+     */
+    default void trimTimeline(int accountID, TimelineEntry oldest){
+    }
+
+    /**
+     * Writes a consistent copy of everything stored into the directory while reads and writes go on, producing no more
+     * than bytesPerSecond so the copy leaves room for them. Engines that can't take snapshots return null.
+     *
+     * @param directory created if missing, the files of an earlier snapshot there are replaced
+     * @param bytesPerSecond 0 for no limit
+     * @return the total size of the snapshot files in bytes, null on fail.
+     */
+    default Long snapshot(Path directory, long bytesPerSecond){
+        return null;
+    }
+
+    /**
+     * Replaces everything stored with a snapshot written by snapshot. Nothing else may use the engine meanwhile, and
+     * a service built on it caches what it read, so it has to be created again afterwards.
+     *
+     * @param directory
+     * @return true on success, false on fail or if this engine can't restore snapshots.
+     */
+    default boolean restore(Path directory){
+        return false;
+    }
+
+    /**
+     * Loads whatever the engine needs before it serves its first request, such as opening database files. Engines
+     * that are fully loaded once constructed have nothing to do.
+     */
+    default void warmUp(){
+    }
+
+    /**
+     * Creates the storage engine named by the socialmedia.storage system property.
+     * "h2" (the default) uses the H2 database behind ConnectionUtil, "sharded" spreads messages over the number of H2
+     * databases given by socialmedia.shards (default 4), "memory" keeps everything on the heap and "log" uses the
+     * append-only memory-mapped log in the directory named by socialmedia.storage.dir (default ./log).
+     *
+     * @return a new storage engine
+     */
+    static StorageEngine fromSystemProperties(){
+        String name = System.getProperty(STORAGE_PROPERTY, "h2");
+        switch (name){
+            case "h2":
+                return new SocialMediaDAO();
+            case "memory":
+                return new InMemoryStorageEngine();
+            case "sharded":
+                return new ShardedSocialMediaDAO(Integer.getInteger(ShardedSocialMediaDAO.SHARDS_PROPERTY, 4));
+            case "log":
+                return new LogStorageEngine(Paths.get(System.getProperty(LogStorageEngine.DIRECTORY_PROPERTY, "./log")));
+            default:
+                throw new IllegalArgumentException("Unknown storage engine: " + name);
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package DAO;
+
+/**
+ * A message on a home timeline, by id and time posted. Timelines are ordered by time_posted_epoch with ties broken by
+ * message_id, since message ids only follow posting order within a single shard.
+ */
+public final class TimelineEntry implements Comparable<TimelineEntry> {
+    private final int messageID;
+    private final long postedAt;
+
+    public TimelineEntry(int messageID, long postedAt){
+        this.messageID = messageID;
+        this.postedAt = postedAt;
+    }
+
+    public int getMessageID(){
+        return messageID;
+    }
+
+    public long getPostedAt(){
+        return postedAt;
+    }
+
+    /**
+     * @return a negative number if this entry was posted before the other, oldest first
+     */
+    @Override
+    public int compareTo(TimelineEntry other){
+        int byTime = Long.compare(postedAt, other.postedAt);
+        return byTime != 0 ? byTime : Integer.compare(messageID, other.messageID);
+    }
+
+    @Override
+    public boolean equals(Object o){
+        if (!(o instanceof TimelineEntry)){
+            return false;
+        }
+        TimelineEntry other = (TimelineEntry) o;
+        return messageID == other.messageID && postedAt == other.postedAt;
+    }
+
+    @Override
+    public int hashCode(){
+        return 31 * messageID + Long.hashCode(postedAt);
+    }
+
+    @Override
+    public String toString(){
+        return "TimelineEntry{message_id=" + messageID + ", time_posted_epoch=" + postedAt + "}";
+    }
+}
@@ -0,0 +1,23 @@
+package DAO;
+
+/**
+ * A value read from a storage engine together with its version, which changes whenever the value is written. Callers
+ * hand the version back to a conditional write, which only goes ahead if nobody wrote the value in between.
+ */
+public final class Versioned<T> {
+    private final T value;
+    private final int version;
+
+    public Versioned(T value, int version){
+        this.value = value;
+        this.version = version;
+    }
+
+    public T getValue(){
+        return value;
+    }
+
+    public int getVersion(){
+        return version;
+    }
+}
@@ -1,14 +1,89 @@
 import Controller.SocialMediaController;
+import Service.InvalidationBus;
+import Service.SocialMediaService;
+import Util.Tracing;
 import io.javalin.Javalin;
 
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
 /**
  * This class is provided with a main method to allow you to manually run and test your application. This class will not
  * affect your program in any way and you may write whatever code you like here.
+ *
+ * Startup warms the application before the port opens: the storage engine is opened and its statements prepared, the
+ * JSON serializers are built and, if socialmedia.warmup.requests is set, that many synthetic read requests are
+ * replayed. The time each step took is logged, and get /health/ready only reports ready once all of them are done.
+ *
+ * Several instances can share one database through the SERVER storage profile, each on its own socialmedia.port. Give
+ * each a socialmedia.bus.port and the others' buses as socialmedia.bus.peers so their caches stay coherent, see
+ * InvalidationBus.
  */
 public class Main {
-    public static void main(String[] args) {
-        SocialMediaController controller = new SocialMediaController();
+    public static final String WARMUP_REQUESTS_PROPERTY = "socialmedia.warmup.requests";
+    public static final String PORT_PROPERTY = "socialmedia.port";
+
+    private static final Logger logger = LoggerFactory.getLogger(Main.class);
+
+    public static void main(String[] args) throws Exception {
+        Map<String, Long> timings = new LinkedHashMap<String, Long>();
+        long startupStart = System.nanoTime();
+
+        long start = System.nanoTime();
+        SocialMediaService socialMediaService = new SocialMediaService();
+        SocialMediaController controller = new SocialMediaController(socialMediaService);
+        timings.put("create application", millis(start));
+
+        InvalidationBus invalidationBus = InvalidationBus.fromSystemProperties();
+        if (invalidationBus != null){
+            socialMediaService.attachInvalidationBus(invalidationBus);
+            logger.info("Invalidation bus listening on port {}", invalidationBus.getPort());
+        }
+
+        start = System.nanoTime();
+        socialMediaService.warmUp();
+        timings.put("open storage and prepare statements", millis(start));
+
+        start = System.nanoTime();
+        controller.primeSerializers();
+        timings.put("prime serializers", millis(start));
+
+        int warmUpRequests = Integer.getInteger(WARMUP_REQUESTS_PROPERTY, 0);
+        if (warmUpRequests > 0){
+            start = System.nanoTime();
+            controller.runWarmUpWorkload(warmUpRequests);
+            timings.put("replay " + warmUpRequests + " warm-up requests", millis(start));
+        }
+
+        start = System.nanoTime();
         Javalin app = controller.startAPI();
-        app.start(8080);
+        app.start(Integer.getInteger(PORT_PROPERTY, 8080));
+        timings.put("start server", millis(start));
+
+        //Stop taking requests, then close the storage engine, which may write a checkpoint, and the trace exporter
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            app.stop();
+            try{
+                socialMediaService.close();
+            }
+            catch(IOException e){
+                logger.warn("Shutdown: could not close the storage engine", e);
+            }
+            Tracing.setExporter(null);
+        }, "shutdown"));
+
+        controller.setReady(true);
+        for (Map.Entry<String, Long> timing : timings.entrySet()){
+            logger.info("Startup: {} took {} ms", timing.getKey(), timing.getValue());
+        }
+        logger.info("Startup: ready after {} ms", millis(startupStart));
+    }
+
+    private static long millis(long start) {
+        return (System.nanoTime() - start) / 1_000_000;
     }
 }
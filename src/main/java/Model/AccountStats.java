@@ -0,0 +1,108 @@
+package Model;
+
+import java.util.Objects;
+
+/**
+ * This is a class that models the statistics of an Account: how many messages it currently has and when it last
+ * posted one.
+ */
+public class AccountStats {
+    /**
+     * The id of the Account these statistics describe.
+     */
+    public int account_id;
+    /**
+     * The number of messages posted by the account that still exist.
+     */
+    public int message_count;
+    /**
+     * The largest time_posted_epoch among the account's existing messages, null when it has none.
+     */
+    public Long last_posted_epoch;
+    /**
+     * A default, no-args constructor, as well as correctly formatted getters and setters, are needed for
+     * Jackson Objectmapper to work.
+     */
+    public AccountStats(){
+    }
+    /**
+     * @param account_id
+     * @param message_count
+     * @param last_posted_epoch
+     */
+    public AccountStats(int account_id, int message_count, Long last_posted_epoch) {
+        this.account_id = account_id;
+        this.message_count = message_count;
+        this.last_posted_epoch = last_posted_epoch;
+    }
+    /**
+     * @return account_id
+     */
+    public int getAccount_id() {
+        return account_id;
+    }
+    /**
+     * @param account_id
+     */
+    public void setAccount_id(int account_id) {
+        this.account_id = account_id;
+    }
+    /**
+     * @return message_count
+     */
+    public int getMessage_count() {
+        return message_count;
+    }
+    /**
+     * @param message_count
+     */
+    public void setMessage_count(int message_count) {
+        this.message_count = message_count;
+    }
+    /**
+     * @return last_posted_epoch
+     */
+    public Long getLast_posted_epoch() {
+        return last_posted_epoch;
+    }
+    /**
+     * @param last_posted_epoch
+     */
+    public void setLast_posted_epoch(Long last_posted_epoch) {
+        this.last_posted_epoch = last_posted_epoch;
+    }
+    /**
+     * Overriding the default equals() method adds functionality to tell when two objects are identical, allowing
+     * Assert.assertEquals and List.contains to function.
+     * @param o the other object.
+     * @return true if o is equal to this object.
+     */
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        AccountStats accountStats = (AccountStats) o;
+        return account_id == accountStats.account_id && message_count == accountStats.message_count
+                && Objects.equals(last_posted_epoch, accountStats.last_posted_epoch);
+    }
+    /**
+     * Overriding hashCode() alongside equals() lets equal statistics be found in a HashSet or HashMap.
+     * @return a hash of the fields equals() compares.
+     */
+    @Override
+    public int hashCode() {
+        return Objects.hash(account_id, message_count, last_posted_epoch);
+    }
+    /**
+     * Overriding the default toString() method allows for easy debugging.
+     * @return a String representation of this class.
+     */
+    @Override
+    public String toString() {
+        return "AccountStats{" +
+                "account_id=" + account_id +
+                ", message_count=" + message_count +
+                ", last_posted_epoch=" + last_posted_epoch +
+                '}';
+    }
+}
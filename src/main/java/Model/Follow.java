@@ -0,0 +1,87 @@
+package Model;
+
+import java.util.Objects;
+
+/**
+ * This is a class that models a Follow: one Account subscribing to the messages of another in its home timeline.
+ */
+public class Follow {
+    /**
+     * The id of the Account that follows.
+     */
+    public int follower_id;
+    /**
+     * The id of the Account being followed.
+     */
+    public int followee_id;
+    /**
+     * A default, no-args constructor, as well as correctly formatted getters and setters, are needed for
+     * Jackson Objectmapper to work.
+     */
+    public Follow(){
+    }
+    /**
+     * @param follower_id
+     * @param followee_id
+     */
+    public Follow(int follower_id, int followee_id) {
+        this.follower_id = follower_id;
+        this.followee_id = followee_id;
+    }
+    /**
+     * @return follower_id
+     */
+    public int getFollower_id() {
+        return follower_id;
+    }
+    /**
+     * @param follower_id
+     */
+    public void setFollower_id(int follower_id) {
+        this.follower_id = follower_id;
+    }
+    /**
+     * @return followee_id
+     */
+    public int getFollowee_id() {
+        return followee_id;
+    }
+    /**
+     * @param followee_id
+     */
+    public void setFollowee_id(int followee_id) {
+        this.followee_id = followee_id;
+    }
+    /**
+     * Overriding the default equals() method adds functionality to tell when two objects are identical, allowing
+     * Assert.assertEquals and List.contains to function.
+     * @param o the other object.
+     * @return true if o is equal to this object.
+     */
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        Follow follow = (Follow) o;
+        return follower_id == follow.follower_id && followee_id == follow.followee_id;
+    }
+    /**
+     * Overriding hashCode() alongside equals() lets equal follows be found in a HashSet or HashMap.
+     * @return a hash of the fields equals() compares.
+     */
+    @Override
+    public int hashCode() {
+        return Objects.hash(follower_id, followee_id);
+    }
+    /**
+     * Overriding the default toString() method allows for easy debugging.
+     * @return a String representation of this class.
+     */
+    @Override
+    public String toString() {
+        return "Follow{" +
+                "follower_id=" + follower_id +
+                ", followee_id=" + followee_id +
+                '}';
+    }
+}
@@ -0,0 +1,59 @@
+package Model;
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+
+/**
+ * This is a class that models the body of a message update: the new text, and optionally the version of the message
+ * the client read, so the update is refused if the message changed since. Other fields of a Message sent along are
+ * ignored, the update never changes them.
+ */
+@JsonIgnoreProperties(ignoreUnknown = true)
+public class MessageUpdate {
+    /**
+     * The new text for the message. Must be not blank and under 255 characters.
+     */
+    public String message_text;
+    /**
+     * The version of the message the client read, as reported in the ETag of the message, or null to update whatever
+     * the version.
+     */
+    public Integer version;
+    /**
+     * A default, no-args constructor, as well as correctly formatted getters and setters, are needed for
+     * Jackson Objectmapper to work.
+     */
+    public MessageUpdate(){
+    }
+    /**
+     * @param message_text
+     * @param version
+     */
+    public MessageUpdate(String message_text, Integer version) {
+        this.message_text = message_text;
+        this.version = version;
+    }
+    /**
+     * @return message_text
+     */
+    public String getMessage_text() {
+        return message_text;
+    }
+    /**
+     * @param message_text
+     */
+    public void setMessage_text(String message_text) {
+        this.message_text = message_text;
+    }
+    /**
+     * @return version
+     */
+    public Integer getVersion() {
+        return version;
+    }
+    /**
+     * @param version
+     */
+    public void setVersion(Integer version) {
+        this.version = version;
+    }
+}
@@ -0,0 +1,418 @@
+package Service;
+
+import DAO.StorageEngine;
+import DAO.TimelineEntry;
+import Model.Message;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps each account's home timeline, the newest messages of the accounts it follows, precomputed so reading it costs
+ * no query over the follow graph.
+ *
+ * Creating a message pushes its id into the inbox of every follower (fan-out-on-write): a bounded ring buffer of
+ * message ids held in memory for accounts that have read their timeline, and a row per entry in the storage engine's
+ * timeline table for all of them, so a cold inbox loads with one query. Accounts with at least celebrityThreshold
+ * followers are the exception, pushing to every follower would cost too much per post. Their ids only go to their own
+ * outbox, which is merged into each follower's inbox when the timeline is read (fan-out-on-read).
+ *
+ * Storage engines that don't persist timelines rebuild a cold inbox from the recent messages of the accounts it
+ * follows. Updated messages need no work since timelines hold ids, deleted ones are dropped from the rings in memory
+ * and skipped by readers when they are still in the table.
+ *
+ * Timelines are ordered by time_posted_epoch, ties broken by message_id, rather than by message_id alone: ids from
+ * different shards don't follow posting order, and an author on a busy shard would otherwise push out newer posts.
+ *
+ * Messages created on another node sharing the storage engine have been fanned out to the table by that node, here
+ * they are only pushed into the rings in memory. A follow made on another node drops what this node holds for the two
+ * accounts, so they are loaded again with the new edge and backfill.
+ */
+public class HomeTimelines implements MessageEventListener {
+    public static final int DEFAULT_CAPACITY = 200;
+    public static final int DEFAULT_CELEBRITY_THRESHOLD = 10_000;
+
+    private final StorageEngine storageEngine;
+    private final int capacity;
+    private final int celebrityThreshold;
+
+    //Rings by account_id, inboxes for readers and outboxes for celebrity authors
+    private final ConcurrentHashMap<Integer, Ring> inboxes = new ConcurrentHashMap<Integer, Ring>();
+    private final ConcurrentHashMap<Integer, Ring> outboxes = new ConcurrentHashMap<Integer, Ring>();
+    //Follow graph by account_id, loaded on first use and dropped when the account's edges change
+    private final ConcurrentHashMap<Integer, int[]> followers = new ConcurrentHashMap<Integer, int[]>();
+    private final ConcurrentHashMap<Integer, int[]> followees = new ConcurrentHashMap<Integer, int[]>();
+
+    private final AtomicLong posts = new AtomicLong();
+    private final AtomicLong fanOutEntries = new AtomicLong();
+    private final AtomicLong celebrityPosts = new AtomicLong();
+    private final AtomicLong coldLoads = new AtomicLong();
+
+    /**
+     * Creates timelines with the default capacity and celebrity threshold.
+     *
+     * @param storageEngine
+     */
+    public HomeTimelines(StorageEngine storageEngine){
+        this(storageEngine, DEFAULT_CAPACITY, DEFAULT_CELEBRITY_THRESHOLD);
+    }
+
+    /**
+     * @param storageEngine holding the follow graph and the timeline table
+     * @param capacity message ids kept per inbox and outbox
+     * @param celebrityThreshold follower count from which an account's posts are merged at read time instead of pushed
+     */
+    public HomeTimelines(StorageEngine storageEngine, int capacity, int celebrityThreshold){
+        this.storageEngine = storageEngine;
+        this.capacity = capacity;
+        this.celebrityThreshold = celebrityThreshold;
+    }
+
+    /**
+     * Makes the follower follow the followee and backfills the followee's recent messages into the follower's timeline.
+     *
+     * @param followerID
+     * @param followeeID
+     * @return true on success, false if either account does not exist
+     */
+    public boolean follow(int followerID, int followeeID){
+        if (!storageEngine.follow(followerID, followeeID)){
+            return false;
+        }
+        //Removing waits for a load of the same entry in progress, so a stale list is never left behind
+        followers.remove(followeeID);
+        followees.remove(followerID);
+        if (!isCelebrity(followeeID)){
+            TimelineEntry[] entries = recentEntries(followeeID);
+            int[] accountIDs = new int[entries.length];
+            Arrays.fill(accountIDs, followerID);
+            storageEngine.addTimelineEntries(accountIDs, entries);
+            Ring inbox = inboxes.get(followerID);
+            if (inbox != null){
+                for (TimelineEntry entry : entries){
+                    inbox.add(entry);
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Forgets the follow graph and the inbox held for the accounts of a follow another node made, which wrote the edge
+     * and the backfill to storage already.
+     *
+     * @param followerID
+     * @param followeeID
+     */
+    public void forgetFollow(int followerID, int followeeID){
+        followers.remove(followeeID);
+        followees.remove(followerID);
+        inboxes.remove(followerID);
+    }
+
+    /**
+     * Forgets every inbox, outbox and follow list held, which are loaded again from storage on their next use.
+     */
+    @Override
+    public void onFlush(){
+        followers.clear();
+        followees.clear();
+        inboxes.clear();
+        outboxes.clear();
+    }
+
+    /**
+     * @param accountID
+     * @return ids of the newest messages in the account's home timeline, newest first. May hold more ids than the
+     * caller needs and ids of messages deleted since, so callers skip those and stop once they have enough.
+     */
+    public int[] getMessageIDs(int accountID){
+        TimelineEntry[] entries = inbox(accountID).newestFirst();
+        for (int followeeID : followeesOf(accountID)){
+            if (isCelebrity(followeeID)){
+                entries = mergeNewestFirst(entries, outbox(followeeID).newestFirst());
+            }
+        }
+        int[] messageIDs = new int[entries.length];
+        for (int i = 0; i < entries.length; i++){
+            messageIDs[i] = entries[i].getMessageID();
+        }
+        return messageIDs;
+    }
+
+    @Override
+    public void onMessageEvent(MessageEvent event){
+        Message message = event.getMessage();
+        int authorID = message.getPosted_by();
+        TimelineEntry entry = new TimelineEntry(message.getMessage_id(), message.getTime_posted_epoch());
+        if (event.getType() == MessageEvent.Type.CREATED){
+            posts.incrementAndGet();
+            int[] authorFollowers = followersOf(authorID);
+            if (authorFollowers.length >= celebrityThreshold){
+                celebrityPosts.incrementAndGet();
+                Ring outbox = outboxes.get(authorID);
+                if (outbox != null){
+                    outbox.add(entry);
+                }
+                return;
+            }
+            if (authorFollowers.length == 0){
+                return;
+            }
+            //The table is written first, so an inbox loading concurrently either reads the entry or has its ring
+            //in the map already and receives the push. The node that created a remote message wrote the table.
+            if (!event.isRemote()){
+                TimelineEntry[] entries = new TimelineEntry[authorFollowers.length];
+                Arrays.fill(entries, entry);
+                storageEngine.addTimelineEntries(authorFollowers, entries);
+                fanOutEntries.addAndGet(authorFollowers.length);
+            }
+            for (int followerID : authorFollowers){
+                Ring inbox = inboxes.get(followerID);
+                if (inbox != null && inbox.add(entry) && !event.isRemote()){
+                    //Once a whole ring's worth of entries has been evicted, drop them from the table too
+                    storageEngine.trimTimeline(followerID, inbox.oldest());
+                }
+            }
+        }
+        else if (event.getType() == MessageEvent.Type.DELETED){
+            Ring outbox = outboxes.get(authorID);
+            if (outbox != null){
+                outbox.remove(entry);
+            }
+            for (int followerID : followersOf(authorID)){
+                Ring inbox = inboxes.get(followerID);
+                if (inbox != null){
+                    inbox.remove(entry);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return counters for messages created, timeline entries written by fan-out, posts by celebrities that were not
+     * fanned out, inboxes loaded from storage, and inboxes held in memory.
+     */
+    public Map<String, Long> getMetrics(){
+        Map<String, Long> metrics = new LinkedHashMap<String, Long>();
+        metrics.put("posts", posts.get());
+        metrics.put("fanOutEntries", fanOutEntries.get());
+        metrics.put("celebrityPosts", celebrityPosts.get());
+        metrics.put("coldLoads", coldLoads.get());
+        metrics.put("inboxes", (long) inboxes.size());
+        return metrics;
+    }
+
+    private boolean isCelebrity(int accountID){
+        return followersOf(accountID).length >= celebrityThreshold;
+    }
+
+    private int[] followersOf(int accountID){
+        return followers.computeIfAbsent(accountID, id -> toArray(storageEngine.getFollowerIDs(id)));
+    }
+
+    private int[] followeesOf(int accountID){
+        return followees.computeIfAbsent(accountID, id -> toArray(storageEngine.getFolloweeIDs(id)));
+    }
+
+    /**
+     * The ring is published before it is loaded, so pushes that race with the load are merged instead of lost. Storage
+     * is read without holding the ring, which writers pushing to it would wait for; readers racing on a cold inbox may
+     * each read it, and the first to finish fills the ring.
+     */
+    private Ring inbox(int accountID){
+        Ring inbox = inboxes.computeIfAbsent(accountID, id -> new Ring(capacity));
+        if (inbox.loaded){
+            return inbox;
+        }
+        List<TimelineEntry> stored = storageEngine.getTimelineEntries(accountID, capacity);
+        List<TimelineEntry> entries = stored;
+        if (entries == null){
+            entries = new ArrayList<TimelineEntry>();
+            for (int followeeID : followeesOf(accountID)){
+                if (!isCelebrity(followeeID)){
+                    entries.addAll(Arrays.asList(recentEntries(followeeID)));
+                }
+            }
+        }
+        if (inbox.fill(entries)){
+            coldLoads.incrementAndGet();
+            //Entries pushed while the inbox was cold are only trimmed here
+            if (stored != null && stored.size() == capacity){
+                storageEngine.trimTimeline(accountID, inbox.oldest());
+            }
+        }
+        return inbox;
+    }
+
+    private Ring outbox(int accountID){
+        Ring outbox = outboxes.computeIfAbsent(accountID, id -> new Ring(capacity));
+        if (!outbox.loaded){
+            outbox.fill(Arrays.asList(recentEntries(accountID)));
+        }
+        return outbox;
+    }
+
+    /**
+     * @return entries of the account's newest messages, at most capacity of them, oldest first
+     */
+    private TimelineEntry[] recentEntries(int accountID){
+        List<Message> messages = storageEngine.getNewestMessagesByUserID(accountID, capacity);
+        if (messages == null){
+            return new TimelineEntry[0];
+        }
+        TimelineEntry[] entries = new TimelineEntry[messages.size()];
+        for (int i = 0; i < entries.length; i++){
+            Message message = messages.get(entries.length - 1 - i);
+            entries[i] = new TimelineEntry(message.getMessage_id(), message.getTime_posted_epoch());
+        }
+        return entries;
+    }
+
+    private static int[] toArray(List<Integer> ids){
+        if (ids == null){
+            return new int[0];
+        }
+        int[] array = new int[ids.size()];
+        for (int i = 0; i < array.length; i++){
+            array[i] = ids.get(i);
+        }
+        return array;
+    }
+
+    /**
+     * Merges two newest-first entry arrays into one, dropping duplicates.
+     */
+    private static TimelineEntry[] mergeNewestFirst(TimelineEntry[] a, TimelineEntry[] b){
+        TimelineEntry[] merged = new TimelineEntry[a.length + b.length];
+        int i = 0;
+        int j = 0;
+        int size = 0;
+        while (i < a.length || j < b.length){
+            TimelineEntry next = j == b.length || (i < a.length && a[i].compareTo(b[j]) >= 0) ? a[i++] : b[j++];
+            if (size == 0 || !merged[size - 1].equals(next)){
+                merged[size++] = next;
+            }
+        }
+        return Arrays.copyOf(merged, size);
+    }
+
+    /**
+     * The newest entries of one timeline, at most capacity of them, oldest first in a circular array. New entries
+     * almost always arrive in order and are appended in place, evicting the oldest when the ring is full. Entries
+     * arriving out of order, from backfills or from posts that reach this node late, are inserted in order.
+     */
+    private static final class Ring {
+        private final TimelineEntry[] entries;
+        private int head;
+        private int size;
+        private int evictedSinceTrim;
+        //Set once the ring holds everything storage had for it
+        volatile boolean loaded;
+
+        Ring(int capacity){
+            entries = new TimelineEntry[capacity];
+        }
+
+        /**
+         * @return true when capacity ids have been evicted since the last time this returned true, so the caller can
+         * trim the entries older than oldest() from storage
+         */
+        synchronized boolean add(TimelineEntry entry){
+            int position = search(entry);
+            if (position >= 0){
+                return false;
+            }
+            position = -position - 1;
+            if (size == entries.length){
+                if (position == 0){
+                    return false;
+                }
+                head = (head + 1) % entries.length;
+                size--;
+                position--;
+                evictedSinceTrim++;
+            }
+            for (int i = size; i > position; i--){
+                entries[(head + i) % entries.length] = entries[(head + i - 1) % entries.length];
+            }
+            entries[(head + position) % entries.length] = entry;
+            size++;
+            if (evictedSinceTrim >= entries.length){
+                evictedSinceTrim = 0;
+                return true;
+            }
+            return false;
+        }
+
+        /**
+         * Merges what was loaded from storage into the ring, unless another load did already.
+         *
+         * @return true when this load filled the ring
+         */
+        synchronized boolean fill(List<TimelineEntry> loadedEntries){
+            if (loaded){
+                return false;
+            }
+            for (TimelineEntry entry : loadedEntries){
+                add(entry);
+            }
+            loaded = true;
+            return true;
+        }
+
+        synchronized void remove(TimelineEntry entry){
+            int position = search(entry);
+            if (position < 0){
+                return;
+            }
+            for (int i = position; i < size - 1; i++){
+                entries[(head + i) % entries.length] = entries[(head + i + 1) % entries.length];
+            }
+            size--;
+        }
+
+        /**
+         * Only called on a ring holding entries.
+         */
+        synchronized TimelineEntry oldest(){
+            return entries[head];
+        }
+
+        synchronized TimelineEntry[] newestFirst(){
+            TimelineEntry[] copy = new TimelineEntry[size];
+            for (int i = 0; i < size; i++){
+                copy[i] = entries[(head + size - 1 - i) % entries.length];
+            }
+            return copy;
+        }
+
+        /**
+         * Binary search over the logical positions, the newest entry is checked first since that is where most land.
+         *
+         * @return the position of the entry, or -(insertion point) - 1 when it is absent
+         */
+        private int search(TimelineEntry entry){
+            if (size == 0 || entries[(head + size - 1) % entries.length].compareTo(entry) < 0){
+                return -size - 1;
+            }
+            int low = 0;
+            int high = size - 1;
+            while (low <= high){
+                int middle = (low + high) >>> 1;
+                int comparison = entries[(head + middle) % entries.length].compareTo(entry);
+                if (comparison < 0){
+                    low = middle + 1;
+                }
+                else if (comparison > 0){
+                    high = middle - 1;
+                }
+                else{
+                    return middle;
+                }
+            }
+            return -low - 1;
+        }
+    }
+}
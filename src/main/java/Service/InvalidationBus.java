@@ -0,0 +1,515 @@
+package Service;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import Model.Message;
+
+/**
+ * Tells the other nodes sharing the database about the changes committed here, and this node about theirs, so that
+ * whatever each node holds in memory about messages and follows stays coherent. Changes travel as UDP datagrams of
+ * JSON to every peer listed, on one host or across hosts.
+ *
+ * Delivery is at least once: every datagram is sent again every RETRANSMIT_MILLIS until the peer acknowledges it, up
+ * to MAX_ATTEMPTS times, so a peer that is restarting or briefly unreachable still gets it. Each change is stamped with
+ * the sending node's id, new on every start, and a sequence number. A receiver remembers, per peer, the stamps it has
+ * seen within the last WINDOW of the peer's node and how far it has seen every one of them, and drops a change it has
+ * seen already, sent again because an acknowledgement was lost. A peer that restarts with a new node id starts a new
+ * window, so a receiver holds one per peer however often they restart. A change older than that window is still delivered, since it may
+ * be the first copy of a datagram that was lost and sent again.
+ *
+ * Message changes also carry the message's version, which orders the changes to one message whichever node made
+ * them. A receiver drops a change at or below the version it last applied for that message, so a late copy never
+ * overtakes a newer change. Follows carry no version; delivering one twice only drops the same entries twice.
+ *
+ * A change given up on, after MAX_ATTEMPTS or beyond MAX_PENDING, leaves the peer holding stale data, so the peer is
+ * sent a flush instead, which is never given up on: it drops everything it holds in memory and loads it again.
+ *
+ * Peers must be listed by the address they send from, which is how their acknowledgements and changes are matched.
+ * Datagrams from anywhere else are dropped as malformed.
+ */
+public class InvalidationBus implements MessageEventListener, Closeable {
+    public static final String PORT_PROPERTY = "socialmedia.bus.port";
+    public static final String PEERS_PROPERTY = "socialmedia.bus.peers";
+    static final long RETRANSMIT_MILLIS = 100;
+    static final int MAX_ATTEMPTS = 50;
+    //Changes waiting for an acknowledgement per peer, the oldest are given up beyond this
+    static final int MAX_PENDING = 10_000;
+    static final int WINDOW = 1024;
+    //Message versions remembered for the changes applied, older ones are forgotten beyond this
+    static final int MAX_VERSIONS = 65_536;
+    private static final String FOLLOW = "follow";
+    private static final String FLUSH = "flush";
+    private static final String ACK = "ack";
+
+    /**
+     * Applies the changes of other nodes.
+     */
+    public interface Receiver {
+        void onRemoteMessageEvent(MessageEvent event);
+
+        void onRemoteFollow(int followerID, int followeeID);
+
+        /**
+         * Changes of another node were lost, so whatever is held in memory may be stale.
+         */
+        void onRemoteFlush();
+    }
+
+    /**
+     * One datagram. Public fields and a no-args constructor for Jackson.
+     */
+    public static class Envelope {
+        public String node;
+        public long sequence;
+        //created, updated or deleted for messages, follow, flush, or ack
+        public String kind;
+        public Message message;
+        //The message's version after the change, null when unknown
+        public Integer version;
+        public int followerID;
+        public int followeeID;
+    }
+
+    private static final class Pending {
+        final long sequence;
+        final byte[] datagram;
+        int attempts = 1;
+        long sentAt = System.nanoTime();
+
+        Pending(long sequence, byte[] datagram){
+            this.sequence = sequence;
+            this.datagram = datagram;
+        }
+    }
+
+    /**
+     * What is waiting for one peer's acknowledgement, and what was seen from it.
+     */
+    private static final class Peer {
+        final ConcurrentSkipListMap<Long, Pending> pending = new ConcurrentSkipListMap<Long, Pending>();
+        //Sent once changes were given up on, until acknowledged
+        final AtomicReference<Pending> flush = new AtomicReference<Pending>();
+        //Of the peer's current node id, only used by the receiving thread
+        ReplayWindow window;
+    }
+
+    /**
+     * The sequence numbers seen from one node: the highest and a window of WINDOW below it, and the highest up to
+     * which all were seen.
+     */
+    private static final class ReplayWindow {
+        private final String node;
+        private final BitSet seen = new BitSet(WINDOW);
+        private long highest;
+        private long contiguous;
+
+        ReplayWindow(String node){
+            this.node = node;
+        }
+
+        /**
+         * @param sequence
+         * @return false when the sequence was seen already. One older than the window is accepted unless every one up
+         * to it was seen, as there is no telling whether it was.
+         */
+        synchronized boolean accept(long sequence){
+            if (sequence <= contiguous){
+                return false;
+            }
+            if (sequence <= highest - WINDOW){
+                if (sequence == contiguous + 1){
+                    contiguous = sequence;
+                }
+                return true;
+            }
+            if (sequence > highest){
+                for (long skipped = Math.max(highest + 1, sequence - WINDOW + 1); skipped <= sequence; skipped++){
+                    seen.clear((int) (skipped % WINDOW));
+                }
+                highest = sequence;
+            }
+            else if (seen.get((int) (sequence % WINDOW))){
+                return false;
+            }
+            seen.set((int) (sequence % WINDOW));
+            while (contiguous < highest && contiguous + 1 > highest - WINDOW && seen.get((int) ((contiguous + 1) % WINDOW))){
+                contiguous++;
+            }
+            return true;
+        }
+    }
+
+    /**
+     * The version last applied per message id, of local and remote changes, forgetting the least recently changed
+     * messages beyond MAX_VERSIONS. A change to a forgotten message is delivered, which costs a reload at most.
+     */
+    private static final class AppliedVersions {
+        private final LinkedHashMap<Integer, Integer> versions = new LinkedHashMap<Integer, Integer>();
+
+        /**
+         * @param messageID
+         * @param version
+         * @return false when the message is at that version or a later one already
+         */
+        synchronized boolean advance(int messageID, int version){
+            Integer applied = versions.remove(messageID);
+            if (applied != null && applied >= version){
+                versions.put(messageID, applied);
+                return false;
+            }
+            versions.put(messageID, version);
+            if (versions.size() > MAX_VERSIONS){
+                Iterator<Integer> eldest = versions.keySet().iterator();
+                eldest.next();
+                eldest.remove();
+            }
+            return true;
+        }
+    }
+
+    private final String node = UUID.randomUUID().toString();
+    private final DatagramSocket socket;
+    private final Map<SocketAddress, Peer> peers = new LinkedHashMap<SocketAddress, Peer>();
+    private final AppliedVersions appliedVersions = new AppliedVersions();
+    private final ObjectMapper mapper = new ObjectMapper().configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+    private final AtomicLong sequence = new AtomicLong();
+    private final ScheduledExecutorService retransmitter = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "invalidation-bus-retransmit");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private volatile Receiver receiver;
+
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong retransmitted = new AtomicLong();
+    private final AtomicLong acknowledged = new AtomicLong();
+    private final AtomicLong gaveUp = new AtomicLong();
+    private final AtomicLong flushes = new AtomicLong();
+    private final AtomicLong received = new AtomicLong();
+    private final AtomicLong duplicates = new AtomicLong();
+    private final AtomicLong stale = new AtomicLong();
+    private final AtomicLong malformed = new AtomicLong();
+
+    /**
+     * Binds the bus to its port. Nothing is received until start.
+     *
+     * @param port UDP port to listen on, 0 for any free one
+     * @param peers the other nodes' buses
+     * @throws IOException when the port can't be bound
+     */
+    public InvalidationBus(int port, List<InetSocketAddress> peers) throws IOException{
+        this.socket = new DatagramSocket(port);
+        for (InetSocketAddress peer : peers){
+            this.peers.put(peer, new Peer());
+        }
+    }
+
+    /**
+     * @return a bus configured by socialmedia.bus.port and socialmedia.bus.peers, a comma separated list of host:port,
+     * or null when no port is set and the node runs alone
+     * @throws IOException when the port can't be bound
+     */
+    public static InvalidationBus fromSystemProperties() throws IOException{
+        Integer port = Integer.getInteger(PORT_PROPERTY);
+        if (port == null){
+            return null;
+        }
+        List<InetSocketAddress> peers = new ArrayList<InetSocketAddress>();
+        for (String peer : System.getProperty(PEERS_PROPERTY, "").split(",")){
+            if (!peer.isBlank()){
+                int colon = peer.lastIndexOf(':');
+                peers.add(new InetSocketAddress(peer.substring(0, colon).trim(), Integer.parseInt(peer.substring(colon + 1).trim())));
+            }
+        }
+        return new InvalidationBus(port, peers);
+    }
+
+    /**
+     * Starts receiving the other nodes' changes and resending unacknowledged ones of this node.
+     *
+     * @param receiver applies the other nodes' changes
+     */
+    public void start(Receiver receiver){
+        this.receiver = receiver;
+        Thread thread = new Thread(this::receive, "invalidation-bus");
+        thread.setDaemon(true);
+        thread.start();
+        retransmitter.scheduleWithFixedDelay(this::retransmit, RETRANSMIT_MILLIS, RETRANSMIT_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return the port the bus listens on
+     */
+    public int getPort(){
+        return socket.getLocalPort();
+    }
+
+    /**
+     * Sends the changes committed on this node to the peers. Changes that came from a peer are not sent on.
+     */
+    @Override
+    public void onMessageEvent(MessageEvent event){
+        if (event.isRemote()){
+            return;
+        }
+        if (event.getVersion() != null){
+            appliedVersions.advance(event.getMessage().getMessage_id(), event.getVersion());
+        }
+        Envelope envelope = new Envelope();
+        envelope.kind = event.getType().getEventName();
+        envelope.message = event.getMessage();
+        envelope.version = event.getVersion();
+        broadcast(envelope);
+    }
+
+    /**
+     * Sends a follow committed on this node to the peers.
+     *
+     * @param followerID
+     * @param followeeID
+     */
+    public void publishFollow(int followerID, int followeeID){
+        Envelope envelope = new Envelope();
+        envelope.kind = FOLLOW;
+        envelope.followerID = followerID;
+        envelope.followeeID = followeeID;
+        broadcast(envelope);
+    }
+
+    /**
+     * @return counters of changes sent, sent again, acknowledged and given up on, and flushes sent, summed over the
+     * peers, changes received, dropped as seen already, dropped as older than the message's version applied, datagrams
+     * that could not be read, and changes and flushes still waiting for an acknowledgement
+     */
+    public Map<String, Long> getMetrics(){
+        Map<String, Long> metrics = new LinkedHashMap<String, Long>();
+        metrics.put("sent", sent.get());
+        metrics.put("retransmitted", retransmitted.get());
+        metrics.put("acknowledged", acknowledged.get());
+        metrics.put("gaveUp", gaveUp.get());
+        metrics.put("flushes", flushes.get());
+        metrics.put("received", received.get());
+        metrics.put("duplicates", duplicates.get());
+        metrics.put("stale", stale.get());
+        metrics.put("malformed", malformed.get());
+        long pending = 0;
+        for (Peer peer : peers.values()){
+            pending += peer.pending.size() + (peer.flush.get() == null ? 0 : 1);
+        }
+        metrics.put("pending", pending);
+        return metrics;
+    }
+
+    @Override
+    public void close(){
+        retransmitter.shutdownNow();
+        socket.close();
+    }
+
+    private void broadcast(Envelope envelope){
+        byte[] datagram = stamp(envelope);
+        for (Map.Entry<SocketAddress, Peer> peer : peers.entrySet()){
+            ConcurrentSkipListMap<Long, Pending> pending = peer.getValue().pending;
+            pending.put(envelope.sequence, new Pending(envelope.sequence, datagram));
+            while (pending.size() > MAX_PENDING && pending.pollFirstEntry() != null){
+                giveUp(peer.getKey(), peer.getValue());
+            }
+            send(datagram, peer.getKey());
+            sent.incrementAndGet();
+        }
+    }
+
+    /**
+     * Stamps the envelope with this node's id and the next sequence number.
+     *
+     * @return the envelope as a datagram
+     */
+    private byte[] stamp(Envelope envelope){
+        envelope.node = node;
+        envelope.sequence = sequence.incrementAndGet();
+        try{
+            return mapper.writeValueAsBytes(envelope);
+        }
+        catch(IOException e){
+            //Plain fields only, this should never happen
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Counts a change the peer will not get and sends the peer a flush, unless one is waiting for an acknowledgement
+     * already, which covers this change as well.
+     */
+    private void giveUp(SocketAddress address, Peer peer){
+        if (peer.flush.get() == null){
+            Envelope envelope = new Envelope();
+            envelope.kind = FLUSH;
+            byte[] datagram = stamp(envelope);
+            if (peer.flush.compareAndSet(null, new Pending(envelope.sequence, datagram))){
+                flushes.incrementAndGet();
+                send(datagram, address);
+            }
+        }
+        //Counted once the flush is on its way
+        gaveUp.incrementAndGet();
+    }
+
+    private void retransmit(){
+        long due = System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(RETRANSMIT_MILLIS);
+        for (Map.Entry<SocketAddress, Peer> peer : peers.entrySet()){
+            for (Map.Entry<Long, Pending> entry : peer.getValue().pending.entrySet()){
+                Pending pending = entry.getValue();
+                if (pending.sentAt > due){
+                    continue;
+                }
+                if (pending.attempts >= MAX_ATTEMPTS){
+                    if (peer.getValue().pending.remove(entry.getKey(), pending)){
+                        giveUp(peer.getKey(), peer.getValue());
+                    }
+                    continue;
+                }
+                resend(pending, peer.getKey());
+            }
+            //Sent until acknowledged, however long the peer is away
+            Pending flush = peer.getValue().flush.get();
+            if (flush != null && flush.sentAt <= due){
+                resend(flush, peer.getKey());
+            }
+        }
+    }
+
+    private void resend(Pending pending, SocketAddress address){
+        pending.attempts++;
+        pending.sentAt = System.nanoTime();
+        send(pending.datagram, address);
+        retransmitted.incrementAndGet();
+    }
+
+    private void receive(){
+        byte[] buffer = new byte[64 * 1024];
+        while (!socket.isClosed()){
+            DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+            Envelope envelope;
+            try{
+                socket.receive(packet);
+                envelope = mapper.readValue(packet.getData(), packet.getOffset(), packet.getLength(), Envelope.class);
+            }
+            catch(IOException e){
+                if (!socket.isClosed()){
+                    malformed.incrementAndGet();
+                }
+                continue;
+            }
+            if (envelope.node == null || envelope.kind == null){
+                malformed.incrementAndGet();
+                continue;
+            }
+            Peer peer = peers.get(packet.getSocketAddress());
+            if (peer == null){
+                malformed.incrementAndGet();
+                continue;
+            }
+            if (ACK.equals(envelope.kind)){
+                Pending flush = peer.flush.get();
+                if (peer.pending.remove(envelope.sequence) != null
+                        || flush != null && flush.sequence == envelope.sequence && peer.flush.compareAndSet(flush, null)){
+                    acknowledged.incrementAndGet();
+                }
+                continue;
+            }
+            //The peer restarted, what its previous node sent tells nothing about the new one
+            if (peer.window == null || !peer.window.node.equals(envelope.node)){
+                peer.window = new ReplayWindow(envelope.node);
+            }
+            if (!peer.window.accept(envelope.sequence)){
+                duplicates.incrementAndGet();
+            }
+            else if (envelope.message != null && envelope.version != null
+                    && !appliedVersions.advance(envelope.message.getMessage_id(), envelope.version)){
+                stale.incrementAndGet();
+            }
+            else{
+                deliver(envelope);
+                received.incrementAndGet();
+            }
+            //Only once applied, and again when seen already since the first acknowledgement may have been lost
+            acknowledge(envelope.sequence, packet.getSocketAddress());
+        }
+    }
+
+    private void deliver(Envelope envelope){
+        Receiver receiver = this.receiver;
+        try{
+            if (FOLLOW.equals(envelope.kind)){
+                receiver.onRemoteFollow(envelope.followerID, envelope.followeeID);
+                return;
+            }
+            if (FLUSH.equals(envelope.kind)){
+                receiver.onRemoteFlush();
+                return;
+            }
+            for (MessageEvent.Type type : MessageEvent.Type.values()){
+                if (type.getEventName().equals(envelope.kind) && envelope.message != null){
+                    receiver.onRemoteMessageEvent(new MessageEvent(type, envelope.message, envelope.version, true));
+                    return;
+                }
+            }
+            malformed.incrementAndGet();
+        }
+        catch(RuntimeException e){
+            //One change failing to apply must not stop the bus
+            System.out.println("Invalidation bus could not apply " + envelope.kind + ": " + e.getMessage());
+        }
+    }
+
+    private void acknowledge(long sequence, SocketAddress sender){
+        Envelope ack = new Envelope();
+        ack.node = node;
+        ack.sequence = sequence;
+        ack.kind = ACK;
+        try{
+            send(mapper.writeValueAsBytes(ack), sender);
+        }
+        catch(IOException e){
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private void send(byte[] datagram, SocketAddress address){
+        try{
+            socket.send(new DatagramPacket(datagram, datagram.length, address));
+        }
+        catch(IOException e){
+            //Sent again until acknowledged or given up on
+        }
+    }
+
+    /**
+     * @return the peers' addresses, for tests
+     */
+    List<SocketAddress> getPeers(){
+        return Collections.unmodifiableList(new ArrayList<SocketAddress>(peers.keySet()));
+    }
+}
@@ -0,0 +1,91 @@
+package Service;
+
+import Model.Message;
+
+/**
+ * Describes a change to a message that has been committed through the SocialMediaService, or through the service of
+ * another node sharing the same database, in which case the event is remote and arrived over the InvalidationBus.
+ */
+public class MessageEvent {
+    /**
+     * The kind of change, named the way it is sent to stream clients.
+     */
+    public enum Type {
+        CREATED("created"),
+        UPDATED("updated"),
+        DELETED("deleted");
+
+        private final String eventName;
+
+        Type(String eventName){
+            this.eventName = eventName;
+        }
+
+        public String getEventName(){
+            return eventName;
+        }
+    }
+
+    //Version of a deleted message, a delete supersedes every change made before it
+    public static final int DELETED_VERSION = Integer.MAX_VALUE;
+
+    private final Type type;
+    private final Message message;
+    private final Integer version;
+    private final boolean remote;
+
+    public MessageEvent(Type type, Message message){
+        this(type, message, false);
+    }
+
+    /**
+     * Created messages are at version 0 and deleted ones at DELETED_VERSION, the version of an update is unknown.
+     *
+     * @param type
+     * @param message
+     * @param remote true when the change was committed by another node
+     */
+    public MessageEvent(Type type, Message message, boolean remote){
+        this(type, message, type == Type.CREATED ? Integer.valueOf(0) : type == Type.DELETED ? Integer.valueOf(DELETED_VERSION) : null, remote);
+    }
+
+    /**
+     * @param type
+     * @param message
+     * @param version the message's version after the change, null when unknown
+     * @param remote true when the change was committed by another node
+     */
+    public MessageEvent(Type type, Message message, Integer version, boolean remote){
+        this.type = type;
+        this.message = message;
+        this.version = version;
+        this.remote = remote;
+    }
+
+    public Type getType(){
+        return type;
+    }
+
+    /**
+     * @return the message after the change, or the removed message for DELETED events.
+     */
+    public Message getMessage(){
+        return message;
+    }
+
+    /**
+     * @return the message's version after the change, DELETED_VERSION for DELETED events, or null when unknown. Changes
+     * to one message are ordered by version, whichever node committed them.
+     */
+    public Integer getVersion(){
+        return version;
+    }
+
+    /**
+     * @return true when another node committed the change. Its storage writes are done, listeners only bring what they
+     * hold in memory up to date.
+     */
+    public boolean isRemote(){
+        return remote;
+    }
+}
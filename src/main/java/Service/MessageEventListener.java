@@ -0,0 +1,16 @@
+package Service;
+
+/**
+ * Receives every message change committed through the SocialMediaService.
+ * Listeners are called on the writer's thread after the storage engine succeeded, so they must not block.
+ */
+public interface MessageEventListener {
+    void onMessageEvent(MessageEvent event);
+
+    /**
+     * Called when changes committed by another node may have been missed, so whatever the listener derived from
+     * storage may be stale. Listeners holding messages or timelines in memory drop them.
+     */
+    default void onFlush(){
+    }
+}
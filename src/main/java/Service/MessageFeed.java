@@ -0,0 +1,301 @@
+package Service;
+
+import java.io.Closeable;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Fans committed message events out to live subscribers, such as the server-sent event streams.
+ *
+ * Writers never wait on subscribers: publishing only copies the event into each subscriber's bounded ring buffer and,
+ * if needed, schedules that subscriber on a small dispatcher pool that does the actual delivery. When a subscriber
+ * falls behind its buffer overwrites the oldest events and the subscriber is told how many it missed. A subscriber
+ * that misses more than maxLag events in a row is disconnected.
+ *
+ * Idle subscribers cost one small object each and no thread, so a single node can hold many thousands of them.
+ */
+public class MessageFeed implements MessageEventListener, Closeable {
+    public static final int DEFAULT_BUFFER_CAPACITY = 128;
+    public static final int DEFAULT_MAX_LAG = 1024;
+    public static final int DEFAULT_DISPATCHER_THREADS = 4;
+    public static final long DEFAULT_HEARTBEAT_MILLIS = 15_000;
+
+    //Events delivered by one dispatcher run before the subscriber yields to others
+    private static final int DELIVERY_BATCH = 32;
+
+    /**
+     * The receiving end of a subscription. Methods are only ever called by one dispatcher thread at a time.
+     * Throwing from any of them ends the subscription.
+     */
+    public interface Subscriber {
+        void onEvent(MessageEvent event) throws Exception;
+
+        /**
+         * Called before the next event when older events were overwritten because the subscriber fell behind.
+         *
+         * @param skipped number of events that were not delivered
+         */
+        void onLagged(long skipped) throws Exception;
+
+        /**
+         * Called periodically so that idle connections are exercised and dead ones are noticed.
+         */
+        void onHeartbeat() throws Exception;
+
+        /**
+         * Called once when the feed ends the subscription, either because it lagged too far or the feed closed.
+         */
+        void onDisconnect();
+    }
+
+    private final Set<Subscription> subscriptions = ConcurrentHashMap.newKeySet();
+    private final int bufferCapacity;
+    private final long maxLag;
+    private final ExecutorService dispatcher;
+    private final ScheduledExecutorService heartbeat;
+
+    private final AtomicLong published = new AtomicLong();
+    private final AtomicLong delivered = new AtomicLong();
+    private final AtomicLong skipped = new AtomicLong();
+    private final AtomicLong disconnected = new AtomicLong();
+
+    /**
+     * Creates a feed with the default buffer size, lag limit, dispatcher pool and heartbeat interval.
+     */
+    public MessageFeed(){
+        this(DEFAULT_BUFFER_CAPACITY, DEFAULT_MAX_LAG, DEFAULT_DISPATCHER_THREADS, DEFAULT_HEARTBEAT_MILLIS);
+    }
+
+    /**
+     * @param bufferCapacity events buffered per subscriber before the oldest are overwritten
+     * @param maxLag consecutive skipped events after which a subscriber is disconnected
+     * @param dispatcherThreads threads delivering events to subscribers
+     * @param heartbeatMillis interval between heartbeats, 0 disables them
+     */
+    public MessageFeed(int bufferCapacity, long maxLag, int dispatcherThreads, long heartbeatMillis){
+        this.bufferCapacity = bufferCapacity;
+        this.maxLag = maxLag;
+        this.dispatcher = Executors.newFixedThreadPool(dispatcherThreads, daemonThreads("message-feed-dispatcher"));
+        if (heartbeatMillis > 0){
+            this.heartbeat = Executors.newSingleThreadScheduledExecutor(daemonThreads("message-feed-heartbeat"));
+            this.heartbeat.scheduleAtFixedRate(this::sendHeartbeats, heartbeatMillis, heartbeatMillis, TimeUnit.MILLISECONDS);
+        }
+        else{
+            this.heartbeat = null;
+        }
+    }
+
+    /**
+     * Starts delivering events to the subscriber.
+     *
+     * @param accountID only deliver messages posted by this account, or 0 for every message
+     * @param subscriber
+     * @return the subscription, used to unsubscribe
+     */
+    public Subscription subscribe(int accountID, Subscriber subscriber){
+        Subscription subscription = new Subscription(accountID, subscriber);
+        subscriptions.add(subscription);
+        return subscription;
+    }
+
+    /**
+     * Stops delivering events to a subscription. Its onDisconnect is not called.
+     *
+     * @param subscription
+     */
+    public void unsubscribe(Subscription subscription){
+        subscriptions.remove(subscription);
+        synchronized (subscription){
+            subscription.closed = true;
+        }
+    }
+
+    @Override
+    public void onMessageEvent(MessageEvent event){
+        published.incrementAndGet();
+        int postedBy = event.getMessage().getPosted_by();
+        for (Subscription subscription : subscriptions){
+            if (subscription.accountID == 0 || subscription.accountID == postedBy){
+                if (subscription.offer(event)){
+                    dispatcher.execute(subscription);
+                }
+            }
+        }
+    }
+
+    /**
+     * Disconnects every subscriber and stops the dispatcher and heartbeat threads.
+     */
+    @Override
+    public void close(){
+        if (heartbeat != null){
+            heartbeat.shutdownNow();
+        }
+        for (Subscription subscription : subscriptions){
+            subscriptions.remove(subscription);
+            subscription.subscriber.onDisconnect();
+        }
+        dispatcher.shutdownNow();
+    }
+
+    public int getSubscriberCount(){
+        return subscriptions.size();
+    }
+
+    /**
+     * @return counters for events published, delivered, skipped by lagging subscribers, and subscribers disconnected.
+     */
+    public Map<String, Long> getMetrics(){
+        Map<String, Long> metrics = new LinkedHashMap<String, Long>();
+        metrics.put("subscribers", (long) subscriptions.size());
+        metrics.put("published", published.get());
+        metrics.put("delivered", delivered.get());
+        metrics.put("skipped", skipped.get());
+        metrics.put("disconnected", disconnected.get());
+        return metrics;
+    }
+
+    private void sendHeartbeats(){
+        for (Subscription subscription : subscriptions){
+            if (subscription.requestHeartbeat()){
+                dispatcher.execute(subscription);
+            }
+        }
+    }
+
+    private static ThreadFactory daemonThreads(String name){
+        AtomicInteger count = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, name + "-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    /**
+     * One subscriber and its ring buffer of pending events. The buffer is guarded by the subscription's monitor, and
+     * the scheduled flag guarantees at most one dispatcher thread delivers to the subscriber at a time.
+     */
+    public final class Subscription implements Runnable {
+        private final int accountID;
+        private final Subscriber subscriber;
+        //Allocated on the first event, so idle subscribers stay small
+        private MessageEvent[] ring;
+        private int head;
+        private int size;
+        private long skippedSinceDelivery;
+        private boolean heartbeatPending;
+        private boolean scheduled;
+        private boolean closed;
+
+        private Subscription(int accountID, Subscriber subscriber){
+            this.accountID = accountID;
+            this.subscriber = subscriber;
+        }
+
+        /**
+         * Buffers the event, overwriting the oldest one when full.
+         *
+         * @return true when the caller has to schedule delivery
+         */
+        private synchronized boolean offer(MessageEvent event){
+            if (closed){
+                return false;
+            }
+            if (ring == null){
+                ring = new MessageEvent[bufferCapacity];
+            }
+            if (size == ring.length){
+                ring[head] = null;
+                head = (head + 1) % ring.length;
+                size--;
+                skippedSinceDelivery++;
+                skipped.incrementAndGet();
+            }
+            ring[(head + size) % ring.length] = event;
+            size++;
+            return schedule();
+        }
+
+        private synchronized boolean requestHeartbeat(){
+            if (closed){
+                return false;
+            }
+            heartbeatPending = true;
+            return schedule();
+        }
+
+        private boolean schedule(){
+            if (scheduled){
+                return false;
+            }
+            scheduled = true;
+            return true;
+        }
+
+        /**
+         * Delivers up to one batch of events, then either goes idle or reschedules itself behind other subscribers.
+         */
+        @Override
+        public void run(){
+            try{
+                for (int delivered = 0; delivered < DELIVERY_BATCH; delivered++){
+                    MessageEvent event;
+                    long lag;
+                    boolean sendHeartbeat;
+                    synchronized (this){
+                        if (closed){
+                            return;
+                        }
+                        if (skippedSinceDelivery > maxLag){
+                            closed = true;
+                            subscriptions.remove(this);
+                            disconnected.incrementAndGet();
+                            subscriber.onDisconnect();
+                            return;
+                        }
+                        sendHeartbeat = heartbeatPending && size == 0;
+                        heartbeatPending = false;
+                        if (size == 0 && !sendHeartbeat){
+                            scheduled = false;
+                            return;
+                        }
+                        event = null;
+                        if (size > 0){
+                            event = ring[head];
+                            ring[head] = null;
+                            head = (head + 1) % ring.length;
+                            size--;
+                        }
+                        lag = skippedSinceDelivery;
+                        skippedSinceDelivery = 0;
+                    }
+                    if (lag > 0){
+                        subscriber.onLagged(lag);
+                    }
+                    if (event != null){
+                        subscriber.onEvent(event);
+                        MessageFeed.this.delivered.incrementAndGet();
+                    }
+                    else if (sendHeartbeat){
+                        subscriber.onHeartbeat();
+                    }
+                }
+                //Give other subscribers a turn before delivering the rest
+                dispatcher.execute(this);
+            }
+            catch (Exception e){
+                //The subscriber is gone, stop buffering for it
+                unsubscribe(this);
+                subscriber.onDisconnect();
+            }
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package Service;
+
+import DAO.DataAccessException;
+import Util.Tracing;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Repeats storage operations that lost a race, such as a lock timeout or a deadlock, a bounded number of times.
+ *
+ * Before each repeat the caller sleeps for a random time between 0 and an exponentially growing bound ("full jitter"),
+ * so writers that collided once don't collide again in lockstep. Any other failure, and the last transient one, is
+ * thrown to the caller unchanged.
+ *
+ * Only operations whose failed attempts leave nothing behind may be retried: the storage engine rolls back the
+ * transaction of a failed write, so repeating it can't apply the write twice.
+ */
+public class Retry {
+    public static final int DEFAULT_MAX_ATTEMPTS = 3;
+    public static final long DEFAULT_BASE_DELAY_MILLIS = 20;
+    public static final long DEFAULT_MAX_DELAY_MILLIS = 500;
+
+    private final int maxAttempts;
+    private final long baseDelayMillis;
+    private final long maxDelayMillis;
+    private final AtomicLong retries = new AtomicLong();
+    private final AtomicLong recovered = new AtomicLong();
+    private final AtomicLong exhausted = new AtomicLong();
+
+    /**
+     * Creates a policy of DEFAULT_MAX_ATTEMPTS attempts, backing off from DEFAULT_BASE_DELAY_MILLIS up to
+     * DEFAULT_MAX_DELAY_MILLIS.
+     */
+    public Retry(){
+        this(DEFAULT_MAX_ATTEMPTS, DEFAULT_BASE_DELAY_MILLIS, DEFAULT_MAX_DELAY_MILLIS);
+    }
+
+    /**
+     * @param maxAttempts attempts in total, the first one included
+     * @param baseDelayMillis bound on the sleep before the first repeat, doubled for each one after it
+     * @param maxDelayMillis bound on any one sleep
+     */
+    public Retry(int maxAttempts, long baseDelayMillis, long maxDelayMillis){
+        if (maxAttempts < 1){
+            throw new IllegalArgumentException("At least one attempt is required");
+        }
+        this.maxAttempts = maxAttempts;
+        this.baseDelayMillis = baseDelayMillis;
+        this.maxDelayMillis = maxDelayMillis;
+    }
+
+    /**
+     * Runs the operation, repeating it while it fails with a transient DataAccessException and attempts are left.
+     *
+     * @param operation
+     * @return the result of the first attempt that succeeded
+     * @throws DataAccessException of the last attempt, when none succeeded
+     */
+    public <T> T execute(Supplier<T> operation){
+        for (int attempt = 1; ; attempt++){
+            try{
+                T result = operation.get();
+                if (attempt > 1){
+                    recovered.incrementAndGet();
+                }
+                return result;
+            }
+            catch(DataAccessException e){
+                if (!e.isTransient()){
+                    throw e;
+                }
+                if (attempt >= maxAttempts){
+                    exhausted.incrementAndGet();
+                    throw e;
+                }
+                retries.incrementAndGet();
+                Tracing.currentSpan().setAttribute("retry.attempts", attempt + 1);
+                sleep(attempt, e);
+            }
+        }
+    }
+
+    /**
+     * @return counters for repeated attempts, operations that succeeded after a repeat, and operations that ran out of
+     * attempts.
+     */
+    public Map<String, Long> getMetrics(){
+        Map<String, Long> metrics = new LinkedHashMap<String, Long>();
+        metrics.put("retries", retries.get());
+        metrics.put("recovered", recovered.get());
+        metrics.put("exhausted", exhausted.get());
+        return metrics;
+    }
+
+    private void sleep(int attempt, DataAccessException failure){
+        long bound = Math.min(maxDelayMillis, baseDelayMillis << Math.min(attempt - 1, 20));
+        try{
+            TimeUnit.MILLISECONDS.sleep(ThreadLocalRandom.current().nextLong(bound + 1));
+        }
+        catch(InterruptedException e){
+            //Give up rather than sleep through a shutdown, with the failure that made us wait
+            Thread.currentThread().interrupt();
+            throw failure;
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package Service;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Coalesces concurrent identical reads: while a load for a key is in flight, other callers asking for the same key
+ * wait for it and share its result instead of starting their own.
+ *
+ * The first caller for a key runs the load on its own thread. A failure is rethrown to every caller that shared the
+ * load. A caller interrupted while waiting gives up with a CancellationException without affecting anyone else, and if
+ * the caller running the load is interrupted the waiting callers start over with a load of their own rather than
+ * failing with someone else's cancellation.
+ *
+ * Results are handed to every caller as the same object, so they must be treated as read-only.
+ */
+public class SingleFlight {
+    private final ConcurrentHashMap<Object, CompletableFuture<Object>> inFlight = new ConcurrentHashMap<Object, CompletableFuture<Object>>();
+    private final AtomicLong loads = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+
+    /**
+     * Returns the result of the load in flight for the key, or runs the loader if there is none.
+     *
+     * @param key identifies the read, equal keys must mean identical reads
+     * @param loader performs the read
+     * @return the loaded value
+     * @throws CancellationException when the calling thread is interrupted while it waits
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T execute(Object key, Supplier<T> loader){
+        while (true){
+            CompletableFuture<Object> flight = new CompletableFuture<Object>();
+            CompletableFuture<Object> existing = inFlight.putIfAbsent(key, flight);
+            if (existing == null){
+                return (T) load(key, flight, loader);
+            }
+            coalesced.incrementAndGet();
+            try{
+                return (T) existing.get();
+            }
+            catch(InterruptedException e){
+                Thread.currentThread().interrupt();
+                throw new CancellationException("Interrupted while waiting for a shared read");
+            }
+            catch(CancellationException e){
+                //The caller running the load was cancelled, that is no reason for this one to fail
+                coalesced.decrementAndGet();
+            }
+            catch(ExecutionException e){
+                Throwable cause = e.getCause();
+                if (cause instanceof RuntimeException){
+                    throw (RuntimeException) cause;
+                }
+                if (cause instanceof Error){
+                    throw (Error) cause;
+                }
+                throw new IllegalStateException(cause);
+            }
+        }
+    }
+
+    /**
+     * Detaches the load in flight for the key, if any, so that callers arriving afterwards start a new one. Used after
+     * a write, so nobody is handed a result that was read before it.
+     *
+     * @param key
+     */
+    public void forget(Object key){
+        inFlight.remove(key);
+    }
+
+    /**
+     * @return counters for loads run, callers that shared another caller's load, and loads currently in flight.
+     */
+    public Map<String, Long> getMetrics(){
+        Map<String, Long> metrics = new LinkedHashMap<String, Long>();
+        metrics.put("loads", loads.get());
+        metrics.put("coalesced", coalesced.get());
+        metrics.put("inFlight", (long) inFlight.size());
+        return metrics;
+    }
+
+    private Object load(Object key, CompletableFuture<Object> flight, Supplier<?> loader){
+        loads.incrementAndGet();
+        try{
+            Object value = loader.get();
+            if (value == null && Thread.currentThread().isInterrupted()){
+                //Storage engines report failures as null, so this is most likely the interrupt cutting the read short
+                throw new CancellationException("Interrupted while reading");
+            }
+            //Detach before completing, so a caller that arrives after the result is out starts a fresh read
+            inFlight.remove(key, flight);
+            flight.complete(value);
+            return value;
+        }
+        catch(RuntimeException | Error e){
+            inFlight.remove(key, flight);
+            if (e instanceof CancellationException || Thread.currentThread().isInterrupted()){
+                flight.cancel(false);
+            }
+            else{
+                flight.completeExceptionally(e);
+            }
+            throw e;
+        }
+    }
+}
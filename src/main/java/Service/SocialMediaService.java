@@ -1,33 +1,116 @@
 package Service;
 
-import DAO.SocialMediaDAO;
+import DAO.DataAccessException;
+import DAO.StorageEngine;
+import DAO.Versioned;
 import Model.Account;
+import Model.AccountStats;
+import Model.Follow;
 import Model.Message;
+import Util.Span;
+import Util.Tracing;
 
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Path;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
 
 /**
- * This class provides access to the SocialMediaDAO and handles any "business logic".
+ * This class provides access to a StorageEngine and handles any "business logic".
  * The business logic will mostly check if inputs are valid to seperate that concern from the DAO.
+ *
+ * The methods serving requests each record a span, so a trace shows the time spent here apart from the time spent in
+ * the storage engine below.
+ *
+ * Storage operations that fail with a transient DataAccessException, such as a lock timeout, are repeated a bounded
+ * number of times. Every other DataAccessException, and the last transient one, is passed on to the caller.
  */
-public class SocialMediaService {
-    SocialMediaDAO socialMediaDAO;
+//Each public method wraps its work in a span that try-with-resources only needs to close, which javac -Xlint:try
+//reports as an unreferenced resource
+@SuppressWarnings("try")
+public class SocialMediaService implements Closeable {
+    StorageEngine socialMediaDAO;
+    //The engine as given, unwrapped by tracing, so it can be closed
+    StorageEngine storageEngine;
+    List<MessageEventListener> messageEventListeners = new CopyOnWriteArrayList<MessageEventListener>();
+    //Shares one storage read between concurrent callers asking for the same message, timeline or full list
+    SingleFlight singleFlight = new SingleFlight();
+    //Precomputed home timelines, fed by the message events
+    HomeTimelines homeTimelines;
+    //Repeats storage operations that lost a race with another writer
+    Retry retry = new Retry();
+    //Tells the other nodes sharing the database about changes made here, null when this node runs alone
+    InvalidationBus invalidationBus;
+    //Snapshots run one at a time on a minimum priority thread, so request threads get the CPU first
+    ExecutorService snapshotExecutor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "snapshot");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        return thread;
+    });
+    AtomicBoolean snapshotRunning = new AtomicBoolean();
+    AtomicLong snapshotsTaken = new AtomicLong();
+    AtomicLong snapshotsFailed = new AtomicLong();
+    AtomicLong lastSnapshotBytes = new AtomicLong();
+    AtomicLong lastSnapshotMillis = new AtomicLong();
+
+    //Messages deleted per transaction by the bulk deletes, small enough that no lock is held for long
+    static final int BULK_DELETE_CHUNK_SIZE = 500;
+
+    //Single-flight key for the full message list, messages and timelines are keyed by their id
+    private static final String ALL_MESSAGES_KEY = "messages";
 
     /**
-     * Basic constructor to create the social media DAO.
+     * Basic constructor to create the storage engine selected by the socialmedia.storage system property.
+     * Without the property this is the H2 backed SocialMediaDAO.
      */
     public SocialMediaService(){
-        this.socialMediaDAO = new SocialMediaDAO();
+        this(StorageEngine.fromSystemProperties());
     }
 
     /**
-     * Constructe allowing for a DAO to be provided instead of created.
-     * This allows us to mock the socialMediaDAO for testing purposes.
+     * Constructe allowing for a storage engine to be provided instead of created.
+     * This allows us to mock the socialMediaDAO for testing purposes, or to pick a backend explicitly.
      * 
      * @param socialMediaDAO
      */
-    public SocialMediaService(SocialMediaDAO socialMediaDAO){
-        this.socialMediaDAO = socialMediaDAO;
+    public SocialMediaService(StorageEngine socialMediaDAO){
+        this.storageEngine = socialMediaDAO;
+        //Every call into the storage engine is a span of the request making it
+        this.socialMediaDAO = Tracing.wrap(StorageEngine.class, socialMediaDAO);
+        this.homeTimelines = new HomeTimelines(this.socialMediaDAO);
+        addMessageEventListener(homeTimelines);
+    }
+
+    /**
+     * Opens and prepares the storage engine ahead of the first request.
+     */
+    public void warmUp(){
+        socialMediaDAO.warmUp();
+    }
+
+    /**
+     * Stops the invalidation bus, if attached, and closes the storage engine when it holds resources of its own, such as
+     * the log engine, which writes its checkpoint on close.
+     *
+     * @throws IOException when the storage engine fails to close
+     */
+    @Override
+    public void close() throws IOException{
+        if (invalidationBus != null){
+            invalidationBus.close();
+        }
+        if (storageEngine instanceof Closeable){
+            ((Closeable) storageEngine).close();
+        }
     }
 
     /**
@@ -37,11 +120,13 @@ public class SocialMediaService {
      * @return Account on success, null on fail.
      */
     public Account createAccount(Account account){
-        //Don't perform the actions of this method if the password doesn't meet the required length.
-        if (account.getUsername().isBlank() || account.getPassword().length() < 4){
-            return null;
+        try (Span span = Tracing.startSpan("SocialMediaService.createAccount")){
+            //Don't perform the actions of this method if the password doesn't meet the required length.
+            if (account.getUsername().isBlank() || account.getPassword().length() < 4){
+                return null;
+            }
+            return retry.execute(() -> socialMediaDAO.createAccount(account.getUsername(), account.getPassword()));
         }
-        return socialMediaDAO.createAccount(account.getUsername(), account.getPassword());
     }
 
     /**
@@ -51,11 +136,13 @@ public class SocialMediaService {
      * @return Account on success, null on fail.
      */
     public Account userLogin(Account account){
-        //Don't perform the actions on known bad input
-        if (account.getUsername().isBlank() || account.getPassword().length() < 4){
-            return null;
+        try (Span span = Tracing.startSpan("SocialMediaService.userLogin")){
+            //Don't perform the actions on known bad input
+            if (account.getUsername().isBlank() || account.getPassword().length() < 4){
+                return null;
+            }
+            return retry.execute(() -> socialMediaDAO.userLogin(account.getUsername(), account.getPassword()));
         }
-        return socialMediaDAO.userLogin(account.getUsername(), account.getPassword());
     }
 
     /**
@@ -65,11 +152,67 @@ public class SocialMediaService {
      * @return Message on success, null on fail.
      */
     public Message createMessage(Message message){
-        //Message must be 255 characters or less.
-        if (message.getMessage_text().length() > 255 || message.getMessage_text().isBlank()){
-            return null;
+        try (Span span = Tracing.startSpan("SocialMediaService.createMessage")){
+            //Message must be 255 characters or less.
+            if (message.getMessage_text().length() > 255 || message.getMessage_text().isBlank()){
+                return null;
+            }
+            Message addedMessage = retry.execute(() -> socialMediaDAO.createMessage(message.getMessage_text(), message.getPosted_by(), message.getTime_posted_epoch()));
+            publish(MessageEvent.Type.CREATED, addedMessage);
+            return addedMessage;
+        }
+    }
+
+    /**
+     * Creates a batch of imported messages, checking each the same way createMessage does. Listeners are told about
+     * every message created.
+     * 
+     * @param messages the message_text, posted_by and time_posted_epoch of each message to create
+     * @return for each message in the batch, null when it was created or the reason it was rejected
+     */
+    public List<String> importMessages(List<Message> messages){
+        try (Span span = Tracing.startSpan("SocialMediaService.importMessages")){
+            List<String> errors = new ArrayList<String>(Collections.nCopies(messages.size(), (String) null));
+            List<Integer> positions = new ArrayList<Integer>();
+            List<Message> valid = new ArrayList<Message>();
+            for (int i = 0; i < messages.size(); i++){
+                String text = messages.get(i).getMessage_text();
+                //Message must be 255 characters or less.
+                if (text == null || text.length() > 255 || text.isBlank()){
+                    errors.set(i, "message_text must be 1 to 255 characters");
+                }
+                else{
+                    positions.add(i);
+                    valid.add(messages.get(i));
+                }
+            }
+            if (valid.isEmpty()){
+                return errors;
+            }
+            //Not retried: a batch spanning shards may fail after some of it was created, which a repeat would duplicate
+            List<Message> created = socialMediaDAO.createMessages(valid);
+            for (int i = 0; i < positions.size(); i++){
+                if (created.get(i) == null){
+                    errors.set(positions.get(i), "posted_by must be an existing account");
+                }
+                else{
+                    publish(MessageEvent.Type.CREATED, created.get(i));
+                }
+            }
+            return errors;
+        }
+    }
+
+    /**
+     * Streams every message to the sink without holding them all in memory.
+     * 
+     * @param sink receives each message
+     * @return number of messages exported, null on fail
+     */
+    public Integer exportMessages(Consumer<Message> sink){
+        try (Span span = Tracing.startSpan("SocialMediaService.exportMessages")){
+            return socialMediaDAO.exportMessages(sink);
         }
-        return socialMediaDAO.createMessage(message.getMessage_text(), message.getPosted_by(), message.getTime_posted_epoch());
     }
 
     /**
@@ -78,7 +221,9 @@ public class SocialMediaService {
      * @return list of messages on success.
      */
     public List<Message> getAllMessages(){
-        return socialMediaDAO.getAllMessages();
+        try (Span span = Tracing.startSpan("SocialMediaService.getAllMessages")){
+            return singleFlight.execute(ALL_MESSAGES_KEY, () -> retry.execute(socialMediaDAO::getAllMessages));
+        }
     }
 
     /**
@@ -88,7 +233,20 @@ public class SocialMediaService {
      * @return Message on success, null on fail.
      */
     public Message getMessageByID(int messageID){
-        return socialMediaDAO.getMessageByID(messageID);
+        Versioned<Message> message = getVersionedMessageByID(messageID);
+        return message == null ? null : message.getValue();
+    }
+
+    /**
+     * Returns message matching the provided id if it exists, with its version for a later conditional update.
+     * 
+     * @param messageID
+     * @return Message and its version on success, null on fail.
+     */
+    public Versioned<Message> getVersionedMessageByID(int messageID){
+        try (Span span = Tracing.startSpan("SocialMediaService.getMessageByID")){
+            return singleFlight.execute(messageKey(messageID), () -> retry.execute(() -> socialMediaDAO.getVersionedMessageByID(messageID)));
+        }
     }
 
     /**
@@ -98,7 +256,43 @@ public class SocialMediaService {
      * @return Message on success, null on fail.
      */
     public Message deleteMessageByID(int messageID){
-        return socialMediaDAO.deleteMessageByID(messageID);
+        try (Span span = Tracing.startSpan("SocialMediaService.deleteMessageByID")){
+            Message deletedMessage = retry.execute(() -> socialMediaDAO.deleteMessageByID(messageID));
+            publish(MessageEvent.Type.DELETED, deletedMessage);
+            return deletedMessage;
+        }
+    }
+
+    /**
+     * Deletes every message posted by the user, a chunk at a time. Listeners are told about each deleted message as
+     * soon as its chunk is committed.
+     * 
+     * @param userID
+     * @return number of messages deleted, null on fail
+     */
+    public Integer deleteMessagesByUserID(int userID){
+        try (Span span = Tracing.startSpan("SocialMediaService.deleteMessagesByUserID")){
+            AtomicInteger deleted = new AtomicInteger();
+            Integer result = retry.execute(() -> socialMediaDAO.deleteMessagesByUserID(userID, BULK_DELETE_CHUNK_SIZE,
+                    chunk -> publishDeleted(chunk, deleted)));
+            return result == null ? null : deleted.get();
+        }
+    }
+
+    /**
+     * Deletes every message posted before the cutoff, a chunk at a time. Listeners are told about each deleted message
+     * as soon as its chunk is committed.
+     * 
+     * @param cutoff exclusive upper bound on time_posted_epoch
+     * @return number of messages deleted, null on fail
+     */
+    public Integer deleteMessagesPostedBefore(long cutoff){
+        try (Span span = Tracing.startSpan("SocialMediaService.deleteMessagesPostedBefore")){
+            AtomicInteger deleted = new AtomicInteger();
+            Integer result = retry.execute(() -> socialMediaDAO.deleteMessagesPostedBefore(cutoff, BULK_DELETE_CHUNK_SIZE,
+                    chunk -> publishDeleted(chunk, deleted)));
+            return result == null ? null : deleted.get();
+        }
     }
 
     /**
@@ -108,11 +302,33 @@ public class SocialMediaService {
      * @return Message on success, null on fail.
      */
     public Message updateMessageByID(Message message, int messageID){
-        //Message must be 255 characters or less.
-        if (message.getMessage_text().length() > 255 || message.getMessage_text().isBlank()){
-            return null;
+        Versioned<Message> updatedMessage = updateMessageByID(message.getMessage_text(), messageID, null);
+        return updatedMessage == null ? null : updatedMessage.getValue();
+    }
+
+    /**
+     * Updates a message given the messageID exists, the messageText meets requirements and, when a version is
+     * expected, the message is still at that version. Nothing is locked between the caller's read and this update,
+     * a concurrent update makes this one fail instead.
+     * 
+     * @param messageText
+     * @param messageID
+     * @param expectedVersion the version the caller read, null to update whatever the version
+     * @return Message and its new version on success, null on fail.
+     * @throws DataAccessException with kind CONFLICT when the message is at another version
+     */
+    public Versioned<Message> updateMessageByID(String messageText, int messageID, Integer expectedVersion){
+        try (Span span = Tracing.startSpan("SocialMediaService.updateMessageByID")){
+            //Message must be 255 characters or less.
+            if (messageText == null || messageText.length() > 255 || messageText.isBlank()){
+                return null;
+            }
+            Versioned<Message> updatedMessage = retry.execute(() -> socialMediaDAO.updateMessageByID(messageID, messageText, expectedVersion));
+            if (updatedMessage != null){
+                publish(new MessageEvent(MessageEvent.Type.UPDATED, updatedMessage.getValue(), updatedMessage.getVersion(), false));
+            }
+            return updatedMessage;
         }
-        return socialMediaDAO.updateMessageByID(messageID, message.getMessage_text());
     }
 
     /**
@@ -122,6 +338,283 @@ public class SocialMediaService {
      * @return list of messages on success, null on fail
      */
     public List<Message> getMessagesByUserID(int userID){
-        return socialMediaDAO.getMessagesByUserID(userID);
+        try (Span span = Tracing.startSpan("SocialMediaService.getMessagesByUserID")){
+            return singleFlight.execute(timelineKey(userID), () -> retry.execute(() -> socialMediaDAO.getMessagesByUserID(userID)));
+        }
+    }
+
+    /**
+     * Returns all messages posted within [since, until], newest first.
+     * 
+     * @param since inclusive lower bound on time_posted_epoch
+     * @param until inclusive upper bound on time_posted_epoch
+     * @return list of messages on success, null on fail
+     */
+    public List<Message> getMessagesInTimeRange(long since, long until){
+        try (Span span = Tracing.startSpan("SocialMediaService.getMessagesInTimeRange")){
+            //An inverted range can never match anything, so don't bother the database with it.
+            if (since > until){
+                return new ArrayList<Message>();
+            }
+            return retry.execute(() -> socialMediaDAO.getMessagesInTimeRange(since, until));
+        }
+    }
+
+    /**
+     * Returns the messages posted by the given user within [since, until], newest first.
+     * 
+     * @param userID
+     * @param since inclusive lower bound on time_posted_epoch
+     * @param until inclusive upper bound on time_posted_epoch
+     * @return list of messages on success, null on fail
+     */
+    public List<Message> getMessagesByUserIDInTimeRange(int userID, long since, long until){
+        try (Span span = Tracing.startSpan("SocialMediaService.getMessagesByUserIDInTimeRange")){
+            if (since > until){
+                return new ArrayList<Message>();
+            }
+            return retry.execute(() -> socialMediaDAO.getMessagesByUserIDInTimeRange(userID, since, until));
+        }
+    }
+
+    /**
+     * Returns how many messages the account has and when it last posted.
+     * 
+     * @param accountID
+     * @return the account's statistics, null if the account does not exist
+     */
+    public AccountStats getAccountStats(int accountID){
+        try (Span span = Tracing.startSpan("SocialMediaService.getAccountStats")){
+            return retry.execute(() -> socialMediaDAO.getAccountStats(accountID));
+        }
+    }
+
+    /**
+     * Recomputes every account's statistics from its messages and compares them with the maintained ones.
+     * 
+     * @param repair replace the maintained statistics that differ
+     * @return the recomputed statistics of every account that differed, null on fail
+     */
+    public List<AccountStats> checkAccountStats(boolean repair){
+        try (Span span = Tracing.startSpan("SocialMediaService.checkAccountStats")){
+            return retry.execute(() -> socialMediaDAO.checkAccountStats(repair));
+        }
+    }
+
+    /**
+     * Makes one account follow another, so the followee's messages show up in the follower's home timeline.
+     * 
+     * @param followerID
+     * @param followeeID
+     * @return the Follow on success, null on fail.
+     */
+    public Follow follow(int followerID, int followeeID){
+        try (Span span = Tracing.startSpan("SocialMediaService.follow")){
+            //Following yourself is pointless
+            if (followerID == followeeID){
+                return null;
+            }
+            if (!retry.execute(() -> homeTimelines.follow(followerID, followeeID))){
+                return null;
+            }
+            if (invalidationBus != null){
+                invalidationBus.publishFollow(followerID, followeeID);
+            }
+            return new Follow(followerID, followeeID);
+        }
+    }
+
+    /**
+     * Returns the newest messages posted by the accounts the account follows, newest first.
+     * 
+     * @param accountID
+     * @param limit maximum number of messages returned
+     * @return list of messages on success, null if the account does not exist
+     */
+    public List<Message> getHomeTimeline(int accountID, int limit){
+        try (Span span = Tracing.startSpan("SocialMediaService.getHomeTimeline")){
+            if (retry.execute(() -> socialMediaDAO.getAccountStats(accountID)) == null){
+                return null;
+            }
+            List<Message> messages = new ArrayList<Message>();
+            for (int messageID : retry.execute(() -> homeTimelines.getMessageIDs(accountID))){
+                if (messages.size() >= limit){
+                    break;
+                }
+                //Timelines may still hold ids of deleted messages
+                Message message = getMessageByID(messageID);
+                if (message != null){
+                    messages.add(message);
+                }
+            }
+            return messages;
+        }
+    }
+
+    /**
+     * Starts an online snapshot of the storage engine in the background, unless one is still running. Requests are
+     * served as usual meanwhile, the snapshot only holding back to the given rate.
+     * 
+     * @param directory the snapshot is written to
+     * @param bytesPerSecond 0 for no limit
+     * @return the snapshot's completion holding its size in bytes, or null on fail, null if a snapshot is already running.
+     */
+    public CompletableFuture<Long> startSnapshot(Path directory, long bytesPerSecond){
+        if (!snapshotRunning.compareAndSet(false, true)){
+            return null;
+        }
+        return CompletableFuture.supplyAsync(() -> {
+            long start = System.nanoTime();
+            try{
+                Long size = socialMediaDAO.snapshot(directory, bytesPerSecond);
+                if (size == null){
+                    snapshotsFailed.incrementAndGet();
+                }
+                else{
+                    snapshotsTaken.incrementAndGet();
+                    lastSnapshotBytes.set(size);
+                    lastSnapshotMillis.set((System.nanoTime() - start) / 1_000_000);
+                }
+                return size;
+            }
+            finally{
+                snapshotRunning.set(false);
+            }
+        }, snapshotExecutor);
+    }
+
+    /**
+     * @return whether a snapshot is running, how many were taken and failed, and the size and duration of the last one.
+     */
+    public Map<String, Long> getSnapshotMetrics(){
+        Map<String, Long> metrics = new LinkedHashMap<String, Long>();
+        metrics.put("running", snapshotRunning.get() ? 1L : 0L);
+        metrics.put("taken", snapshotsTaken.get());
+        metrics.put("failed", snapshotsFailed.get());
+        metrics.put("lastBytes", lastSnapshotBytes.get());
+        metrics.put("lastMillis", lastSnapshotMillis.get());
+        return metrics;
+    }
+
+    /**
+     * Registers a listener that is told about every message created, updated or deleted through this service.
+     * 
+     * @param listener
+     */
+    public void addMessageEventListener(MessageEventListener listener){
+        messageEventListeners.add(listener);
+    }
+
+    /**
+     * Sends the changes made through this service to the other nodes on the bus, and applies theirs: their message
+     * events are published to this service's listeners as remote events, their follows drop what the home
+     * timelines cached of the two accounts, and a flush, sent when changes of theirs were lost, drops everything the
+     * listeners hold in memory.
+     *
+     * @param bus not started yet
+     */
+    public void attachInvalidationBus(InvalidationBus bus){
+        this.invalidationBus = bus;
+        addMessageEventListener(bus);
+        bus.start(new InvalidationBus.Receiver(){
+            @Override
+            public void onRemoteMessageEvent(MessageEvent event){
+                publish(event);
+            }
+
+            @Override
+            public void onRemoteFollow(int followerID, int followeeID){
+                homeTimelines.forgetFollow(followerID, followeeID);
+            }
+
+            @Override
+            public void onRemoteFlush(){
+                for (MessageEventListener listener : messageEventListeners){
+                    listener.onFlush();
+                }
+            }
+        });
+    }
+
+    /**
+     * @param listener to stop notifying
+     */
+    public void removeMessageEventListener(MessageEventListener listener){
+        messageEventListeners.remove(listener);
+    }
+
+    /**
+     * @return counters for storage reads run, reads that were coalesced into another caller's, and reads in flight.
+     */
+    public Map<String, Long> getSingleFlightMetrics(){
+        return singleFlight.getMetrics();
+    }
+
+    /**
+     * @return counters for storage operations repeated after a transient failure, those that then succeeded, and those
+     * that ran out of attempts.
+     */
+    public Map<String, Long> getRetryMetrics(){
+        return retry.getMetrics();
+    }
+
+    /**
+     * @return counters for the fan-out done by the home timelines.
+     */
+    public Map<String, Long> getHomeTimelineMetrics(){
+        return homeTimelines.getMetrics();
+    }
+
+    /**
+     * @return counters of the invalidation bus, null when this node runs alone
+     */
+    public Map<String, Long> getInvalidationBusMetrics(){
+        return invalidationBus == null ? null : invalidationBus.getMetrics();
+    }
+
+    /**
+     * Detaches reads in flight for everything the change touches, then notifies listeners of the committed change.
+     * Nothing is published when the storage engine reported a failure. A listener failing to store what it derives
+     * from the change doesn't fail the change, which is committed already.
+     */
+    private void publish(MessageEvent.Type type, Message message){
+        if (message == null){
+            return;
+        }
+        publish(new MessageEvent(type, message));
+    }
+
+    private void publish(MessageEvent event){
+        Message message = event.getMessage();
+        singleFlight.forget(messageKey(message.getMessage_id()));
+        singleFlight.forget(timelineKey(message.getPosted_by()));
+        singleFlight.forget(ALL_MESSAGES_KEY);
+        for (MessageEventListener listener : messageEventListeners){
+            try{
+                listener.onMessageEvent(event);
+            }
+            catch(DataAccessException e){
+                System.out.println(e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Publishes the messages of a committed chunk of a bulk delete and counts them, so the total stays right when the
+     * delete is repeated after a failure: a repeat no longer finds the chunks committed before it.
+     */
+    private void publishDeleted(List<Message> messages, AtomicInteger deleted){
+        deleted.addAndGet(messages.size());
+        for (Message message : messages){
+            publish(MessageEvent.Type.DELETED, message);
+        }
+    }
+
+    private static String messageKey(int messageID){
+        return "message:" + messageID;
+    }
+
+    private static String timelineKey(int accountID){
+        return "timeline:" + accountID;
     }
 }
@@ -1,9 +1,15 @@
 package Util;
 
 import java.io.FileNotFoundException;
-import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
 import java.sql.Connection;
 import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.h2.jdbcx.JdbcDataSource;
 import org.h2.tools.RunScript;
@@ -13,15 +19,20 @@ import org.h2.tools.RunScript;
  * our database. This class utilizes the singleton design pattern. We will be
  * utilizing an in-memory called h2database for the sql demos.
  *
- * DO NOT CHANGE ANYTHING IN THIS CLASS
+ * Beyond the main database it hands out connections to the message shards, switches between storage profiles, and
+ * creates and resets the schemas from the scripts on the classpath. Callers close every connection they are given.
  */
 public class ConnectionUtil {
 
 	/**
-	 * url will represent our connection string. Since this is an in-memory db, we
-	 * will represent a file location to store the data
+	 * The storage profile deciding where the databases live and how durable commits are, FILE unless the
+	 * socialmedia.storage.profile system property says otherwise.
 	 */
-	private static String url = "jdbc:h2:./h2/db;";
+	private static StorageProfile profile = StorageProfile.fromSystemProperties();
+	/**
+	 * url will represent our connection string. Under the default profile this is a file location to store the data
+	 */
+	private static String url = profile.getUrl("db");
 	/**
 	 * Default username for connecting to h2
 	 */
@@ -31,11 +42,28 @@ public class ConnectionUtil {
 	 */
 	private static String password = "sa";
 
+	/**
+	 * How long a statement waits for a row locked by another transaction before failing with a lock timeout, which the
+	 * service retries. H2 tries a blocked MERGE twice, so that waits for twice as long. Short, so a few retries with
+	 * backoff between them still answer within a few seconds; H2's default would wait 4 seconds for every attempt.
+	 */
+	public static final int LOCK_TIMEOUT_MILLIS = 500;
+
 	/**
 	 * DataSource for pooling. Pooling enables the creation of multiple connections when connections are closed.
 	 */
 	private static JdbcDataSource pool = new JdbcDataSource();
 
+	/**
+	 * DataSources for the message shards other than shard 0, which is the database above. Created on first use.
+	 */
+	private static ConcurrentHashMap<Integer, JdbcDataSource> shardPools = new ConcurrentHashMap<Integer, JdbcDataSource>();
+
+	/**
+	 * Snapshots of the seeded test database by url, taken by resetTestDatabase the first time it runs on each.
+	 */
+	private static ConcurrentHashMap<String, byte[]> seededSnapshots = new ConcurrentHashMap<String, byte[]>();
+
 	/**
 	 * static initialization block to establish credentials for DataSoure Pool
 	 */
@@ -43,32 +71,165 @@ public class ConnectionUtil {
 		pool.setURL(url);
 		pool.setUser(username);
 		pool.setPassword(password);
+		applyProfileSettings(pool);
 	}
 
 	/**
-	 * @return an active connection to the database
+	 * @return an active connection to the database, traced when the calling thread records a trace
 	 */
 	public static Connection getConnection() {
+		Span span = Tracing.startSpan("connect", Span.KIND_CLIENT).setAttribute("db.name", "db");
+		try {
+			return Tracing.wrap(pool.getConnection(), "db");
+		} catch (SQLException e) {
+			span.setError(e.getMessage());
+			e.printStackTrace();
+		} finally {
+			span.close();
+		}
+
+		return null;
+	}
+
+	/**
+	 * Switches every later connection, on the main database and the shards, to the given storage profile. Connections
+	 * already handed out keep the profile they were opened with.
+	 *
+	 * @param storageProfile
+	 */
+	public static void setStorageProfile(StorageProfile storageProfile) {
+		profile = storageProfile;
+		url = profile.getUrl("db");
+		pool.setURL(url);
+		shardPools.clear();
+		applyProfileSettings(pool);
+	}
+
+	/**
+	 * Applies the profile's database-wide settings once, through a connection of their own, along with the lock
+	 * timeout every later connection starts with.
+	 *
+	 * @param dataSource
+	 */
+	private static void applyProfileSettings(JdbcDataSource dataSource) {
+		try (Connection connection = dataSource.getConnection(); Statement statement = connection.createStatement()) {
+			statement.execute("SET DEFAULT_LOCK_TIMEOUT " + LOCK_TIMEOUT_MILLIS);
+			if (profile.getCacheSizeKB() != 0) {
+				statement.execute("SET CACHE_SIZE " + profile.getCacheSizeKB());
+			}
+		} catch (SQLException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * @return the storage profile connections are currently opened with
+	 */
+	public static StorageProfile getStorageProfile() {
+		return profile;
+	}
+
+	/**
+	 * Shard 0 is the main database holding the accounts, shard n > 0 is a separate database named db-shard{n}
+	 * holding only messages.
+	 *
+	 * @param shard
+	 * @return an active connection to the shard's database, traced when the calling thread records a trace
+	 */
+	public static Connection getConnection(int shard) {
+		if (shard == 0) {
+			return getConnection();
+		}
+		String database = "db-shard" + shard;
+		JdbcDataSource shardPool = shardPools.computeIfAbsent(shard, n -> {
+			JdbcDataSource dataSource = new JdbcDataSource();
+			dataSource.setURL(profile.getUrl("db-shard" + n));
+			dataSource.setUser(username);
+			dataSource.setPassword(password);
+			applyProfileSettings(dataSource);
+			return dataSource;
+		});
+		Span span = Tracing.startSpan("connect", Span.KIND_CLIENT).setAttribute("db.name", database);
 		try {
-			return pool.getConnection();
+			return Tracing.wrap(shardPool.getConnection(), database);
 		} catch (SQLException e) {
+			span.setError(e.getMessage());
 			e.printStackTrace();
+		} finally {
+			span.close();
 		}
 
 		return null;
 	}
 
+	/**
+	 * Creates the message table on a shard other than shard 0 if it does not exist yet.
+	 *
+	 * @param shard
+	 */
+	public static void initializeShard(int shard) {
+		try (Connection connection = getConnection(shard); Reader sqlReader = openScript("SocialMediaShard.sql")) {
+			RunScript.execute(connection, sqlReader);
+		} catch (SQLException | IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Resets shard 0 like resetTestDatabase, and empties the message and account_stats tables on every other shard.
+	 *
+	 * @param shardCount
+	 */
+	public static void resetShardDatabases(int shardCount) {
+		resetTestDatabase();
+		for (int shard = 1; shard < shardCount; shard++) {
+			try (Connection connection = getConnection(shard); Statement statement = connection.createStatement()) {
+				statement.execute("drop table if exists message");
+				statement.execute("drop table if exists account_stats");
+			} catch (SQLException e) {
+				e.printStackTrace();
+			}
+			initializeShard(shard);
+		}
+	}
+
 	/**
 	 * For the purpose of testing, we will need to drop and recreate our database
 	 * tables to keep it consistent across all tests. The method will read the sql
-	 * file in resources. This will be performed before every test.
+	 * script SocialMedia.sql from the classpath. This will be performed before every test.
+	 *
+	 * The file is only read and run the first time a database is reset. The seeded database is then snapshotted into
+	 * memory, and later resets restore that snapshot, which skips reading and parsing the script.
 	 */
 	public static void resetTestDatabase() {
+		byte[] snapshot = seededSnapshots.get(url);
 		try {
-			FileReader sqlReader = new FileReader("src/main/resources/SocialMedia.sql");
-			RunScript.execute(getConnection(), sqlReader);
-		} catch (SQLException | FileNotFoundException e) {
+			if (snapshot != null) {
+				DatabaseSnapshot.restore(0, snapshot);
+				return;
+			}
+			try (Connection connection = getConnection(); Reader sqlReader = openScript("SocialMedia.sql")) {
+				RunScript.execute(connection, sqlReader);
+			}
+			seededSnapshots.put(url, DatabaseSnapshot.write(0));
+		} catch (SQLException | IOException e) {
 			e.printStackTrace();
 		}
 	}
+
+	/**
+	 * Opens one of the sql scripts in src/main/resources through the classpath, so it is found whatever the working
+	 * directory.
+	 *
+	 * @param name such as SocialMedia.sql
+	 * @return a reader over the script, to be closed by the caller
+	 * @throws FileNotFoundException when the script is not on the classpath
+	 */
+	static Reader openScript(String name) throws FileNotFoundException {
+		InputStream script = ConnectionUtil.class.getResourceAsStream("/" + name);
+		if (script == null) {
+			throw new FileNotFoundException("Not on the classpath: " + name);
+		}
+		return new InputStreamReader(script, StandardCharsets.UTF_8);
+	}
 }
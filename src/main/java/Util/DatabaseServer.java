@@ -0,0 +1,79 @@
+package Util;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+import org.h2.tools.RunScript;
+import org.h2.tools.Server;
+
+/**
+ * Runs H2 as a TCP server, so that several application processes can share one set of databases through the SERVER
+ * storage profile. Run it with:
+ *   mvn -q compile exec:java -Dexec.mainClass=Util.DatabaseServer
+ *
+ * The port is taken from socialmedia.db.port (9092 by default) and the databases live under socialmedia.db.dir (the
+ * working directory by default), so the SERVER profile's ./h2/db is the same file the FILE profile uses. Only local
+ * connections are accepted unless socialmedia.db.allowOthers is true. A database without tables gets the schema and
+ * test data of SocialMedia.sql; one that has them is left as it is.
+ */
+public class DatabaseServer {
+    public static final int DEFAULT_PORT = 9092;
+    public static final String PORT_PROPERTY = "socialmedia.db.port";
+    public static final String DIRECTORY_PROPERTY = "socialmedia.db.dir";
+    public static final String ALLOW_OTHERS_PROPERTY = "socialmedia.db.allowOthers";
+
+    public static void main(String[] args) throws SQLException, IOException {
+        int port = Integer.getInteger(PORT_PROPERTY, DEFAULT_PORT);
+        Server server = start(port, Paths.get(System.getProperty(DIRECTORY_PROPERTY, ".")), Boolean.getBoolean(ALLOW_OTHERS_PROPERTY));
+        initializeIfEmpty("localhost:" + server.getPort());
+        System.out.println("H2 TCP server listening on " + server.getURL());
+    }
+
+    /**
+     * Starts a TCP server. Databases that don't exist yet are created on first connection, which is why only local
+     * connections are accepted unless allowOthers is set.
+     *
+     * @param port
+     * @param baseDirectory database urls are resolved against this directory
+     * @param allowOthers accept connections from other hosts
+     * @return the running server, stop it with stop()
+     * @throws SQLException when the port can't be bound
+     */
+    public static Server start(int port, Path baseDirectory, boolean allowOthers) throws SQLException {
+        String[] arguments = allowOthers
+                ? new String[] {"-tcpPort", String.valueOf(port), "-baseDir", baseDirectory.toString(), "-ifNotExists", "-tcpAllowOthers"}
+                : new String[] {"-tcpPort", String.valueOf(port), "-baseDir", baseDirectory.toString(), "-ifNotExists"};
+        return Server.createTcpServer(arguments).start();
+    }
+
+    /**
+     * Creates the schema of SocialMedia.sql in the server's main database, unless it has an account table already.
+     *
+     * @param server host:port of the server
+     * @throws SQLException
+     * @throws IOException when the script can't be read
+     */
+    public static void initializeIfEmpty(String server) throws SQLException, IOException {
+        String url = String.format("jdbc:h2:tcp://%s/./h2/db", server);
+        Connection connection = DriverManager.getConnection(url, "sa", "sa");
+        try{
+            ResultSet tables = connection.createStatement().executeQuery(
+                    "SELECT COUNT(*) FROM INFORMATION_SCHEMA.TABLES WHERE TABLE_SCHEMA = 'PUBLIC' AND TABLE_NAME = 'ACCOUNT'");
+            tables.next();
+            if (tables.getInt(1) == 0){
+                try (Reader sqlReader = ConnectionUtil.openScript("SocialMedia.sql")){
+                    RunScript.execute(connection, sqlReader);
+                }
+            }
+        }
+        finally{
+            connection.close();
+        }
+    }
+}
@@ -0,0 +1,420 @@
+package Util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Online snapshots of the H2 databases behind ConnectionUtil, and the matching restore.
+ *
+ * A snapshot is a gzip compressed stream of records: the tables, keys and indexes from H2's SCRIPT NODATA, then the
+ * rows of every table, then the foreign keys. Rows are stored as typed values and restored with batched inserts, which
+ * loads them faster than H2 runs a script of inserts. Keys and indexes exist before the rows arrive, since H2 keeps
+ * them up to date during the load faster than it builds them afterwards, while the foreign keys come last and are not
+ * checked against rows that were consistent when they were read.
+ *
+ * The rows are read in a single SNAPSHOT isolation transaction, which sees the database as it was when the snapshot
+ * started while writers carry on: MVStore keeps the old versions of changed rows for as long as the snapshot needs
+ * them rather than making anyone wait. The snapshot is produced at a bounded rate so it takes no more of the disk and
+ * CPU than it is given, at the price of the database file growing by the versions kept meanwhile.
+ */
+public class DatabaseSnapshot {
+    //Rows per page read while writing, and per batch and transaction while restoring
+    private static final int PAGE_SIZE = 1000;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int MAGIC = 0x534D5331;
+
+    //Record kinds
+    private static final byte STATEMENT = 1;
+    private static final byte TABLE = 2;
+    private static final byte ROW = 3;
+    private static final byte END = 4;
+    //Value types within a row
+    private static final byte NULL = 0;
+    private static final byte INT = 1;
+    private static final byte LONG = 2;
+    private static final byte TEXT = 3;
+    private static final byte BOOLEAN = 4;
+
+    /**
+     * @param directory
+     * @param shard
+     * @return the file in the directory holding the snapshot of that shard's database
+     */
+    public static Path getFile(Path directory, int shard){
+        return directory.resolve((shard == 0 ? "db" : "db-shard" + shard) + ".snapshot.gz");
+    }
+
+    /**
+     * Writes a consistent snapshot of a shard's database to a file, replacing the file only once the snapshot is
+     * complete. Reads and writes on the database go on while it runs.
+     *
+     * @param shard
+     * @param file
+     * @param bytesPerSecond most bytes of uncompressed snapshot to produce per second, 0 for no limit
+     * @return the size of the snapshot file in bytes
+     * @throws SQLException if the database can't be read
+     * @throws IOException if the file can't be written, InterruptedIOException if the thread was interrupted
+     */
+    public static long write(int shard, Path file, long bytesPerSecond) throws SQLException, IOException{
+        Path partial = file.resolveSibling(file.getFileName() + ".partial");
+        Files.createDirectories(file.toAbsolutePath().getParent());
+        boolean complete = false;
+        try{
+            write(shard, Files.newOutputStream(partial), bytesPerSecond);
+            complete = true;
+        }
+        finally{
+            if (!complete){
+                Files.deleteIfExists(partial);
+            }
+        }
+        Files.move(partial, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return Files.size(file);
+    }
+
+    /**
+     * Takes a snapshot of a shard's database into memory, for databases small enough to hold twice, such as the seeded
+     * test database.
+     *
+     * @param shard
+     * @return the snapshot, in the format of the snapshot files
+     * @throws SQLException if the database can't be read
+     */
+    public static byte[] write(int shard) throws SQLException{
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try{
+            write(shard, bytes, 0);
+        }
+        catch(IOException e){
+            //Nothing to fail writing to memory
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Writes a snapshot to the stream and closes it.
+     */
+    private static void write(int shard, OutputStream stream, long bytesPerSecond) throws SQLException, IOException{
+        Connection connection = ConnectionUtil.getConnection(shard);
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new Pace(new GZIPOutputStream(
+                stream, BUFFER_SIZE), bytesPerSecond), BUFFER_SIZE))){
+            out.writeInt(MAGIC);
+            connection.setAutoCommit(false);
+            Statement statement = connection.createStatement();
+            statement.execute("SET SESSION CHARACTERISTICS AS TRANSACTION ISOLATION LEVEL SNAPSHOT");
+            //The first query fixes the snapshot, so the identity counters SCRIPT reads next are past every row copied
+            List<String> tables = new ArrayList<String>();
+            ResultSet resultSet = statement.executeQuery("SELECT TABLE_NAME FROM INFORMATION_SCHEMA.TABLES "
+                    + "WHERE TABLE_SCHEMA = 'PUBLIC' AND TABLE_TYPE = 'BASE TABLE' ORDER BY TABLE_NAME");
+            while (resultSet.next()){
+                tables.add(resultSet.getString(1));
+            }
+            List<String> deferred = new ArrayList<String>();
+            resultSet = statement.executeQuery("SCRIPT NODATA");
+            while (resultSet.next()){
+                String sql = resultSet.getString(1);
+                if (sql.startsWith("ALTER TABLE") && sql.contains(" FOREIGN KEY(")){
+                    deferred.add(sql);
+                }
+                //Comments, settings and users belong to the database being restored into, not to the snapshot
+                else if ((sql.startsWith("CREATE") || sql.startsWith("ALTER TABLE")) && !sql.startsWith("CREATE USER")){
+                    out.writeByte(STATEMENT);
+                    writeText(out, sql);
+                }
+            }
+            for (String table : tables){
+                writeRows(connection, table, out);
+            }
+            for (String sql : deferred){
+                out.writeByte(STATEMENT);
+                writeText(out, sql);
+            }
+            out.writeByte(END);
+        }
+        finally{
+            try{
+                connection.close();
+            }
+            catch(SQLException e){
+                System.out.println(e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Replaces everything in a shard's database with a snapshot written by write. Anything caching rows of that
+     * database, such as a running service, has to be restarted afterwards.
+     *
+     * Each batch of rows is committed as it is loaded, so a restore that fails midway, for example on a truncated
+     * file, leaves the database partly restored and has to be run again.
+     *
+     * @param shard
+     * @param file
+     * @throws SQLException if the snapshot can't be loaded
+     * @throws IOException if the file can't be read or is not a complete snapshot
+     */
+    public static void restore(int shard, Path file) throws SQLException, IOException{
+        restore(shard, Files.newInputStream(file), file.toString());
+    }
+
+    /**
+     * Replaces everything in a shard's database with a snapshot taken into memory by write.
+     *
+     * @param shard
+     * @param snapshot
+     * @throws SQLException if the snapshot can't be loaded
+     * @throws IOException if the bytes are not a complete snapshot
+     */
+    public static void restore(int shard, byte[] snapshot) throws SQLException, IOException{
+        restore(shard, new ByteArrayInputStream(snapshot), "snapshot in memory");
+    }
+
+    /**
+     * Restores the snapshot read from the stream and closes it.
+     *
+     * @param source names the snapshot in errors
+     */
+    private static void restore(int shard, InputStream stream, String source) throws SQLException, IOException{
+        Connection connection = ConnectionUtil.getConnection(shard);
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(stream, BUFFER_SIZE), BUFFER_SIZE))){
+            //Checked before anything is dropped
+            if (in.readInt() != MAGIC){
+                throw new IOException("Not a snapshot: " + source);
+            }
+            Statement statement = connection.createStatement();
+            statement.execute("DROP ALL OBJECTS");
+            connection.setAutoCommit(false);
+            PreparedStatement insert = null;
+            int columns = 0;
+            int batched = 0;
+            for (byte kind = in.readByte(); kind != END; kind = in.readByte()){
+                if (kind == ROW){
+                    for (int column = 1; column <= columns; column++){
+                        insert.setObject(column, readValue(in));
+                    }
+                    insert.addBatch();
+                    if (++batched == PAGE_SIZE){
+                        insert.executeBatch();
+                        connection.commit();
+                        batched = 0;
+                    }
+                    continue;
+                }
+                if (batched > 0){
+                    insert.executeBatch();
+                    connection.commit();
+                    batched = 0;
+                }
+                if (kind == STATEMENT){
+                    statement.execute(readText(in));
+                }
+                else if (kind == TABLE){
+                    String table = quote("PUBLIC") + "." + quote(readText(in));
+                    columns = in.readInt();
+                    insert = connection.prepareStatement("INSERT INTO " + table + " VALUES ("
+                            + String.join(", ", Collections.nCopies(columns, "?")) + ")");
+                }
+                else{
+                    throw new IOException("Corrupt snapshot: " + source);
+                }
+            }
+            if (batched > 0){
+                insert.executeBatch();
+            }
+            connection.commit();
+        }
+        finally{
+            connection.close();
+        }
+    }
+
+    /**
+     * Writes every row of a table, reading a page at a time in primary key order. Short keyset queries rather than
+     * one lazy cursor over the table: H2 2.1 can free the pages under a lazy cursor that stays open for minutes while
+     * the store compacts, failing with "Chunk not found".
+     */
+    private static void writeRows(Connection connection, String table, DataOutputStream out) throws SQLException, IOException{
+        String quotedTable = quote("PUBLIC") + "." + quote(table);
+        List<String> keyNames = new ArrayList<String>();
+        List<String> keys = new ArrayList<String>();
+        PreparedStatement keyStatement = connection.prepareStatement("SELECT k.COLUMN_NAME FROM INFORMATION_SCHEMA.TABLE_CONSTRAINTS c "
+                + "JOIN INFORMATION_SCHEMA.KEY_COLUMN_USAGE k ON k.CONSTRAINT_SCHEMA = c.CONSTRAINT_SCHEMA AND k.CONSTRAINT_NAME = c.CONSTRAINT_NAME "
+                + "WHERE c.TABLE_SCHEMA = 'PUBLIC' AND c.TABLE_NAME = ? AND c.CONSTRAINT_TYPE = 'PRIMARY KEY' ORDER BY k.ORDINAL_POSITION");
+        keyStatement.setString(1, table);
+        ResultSet resultSet = keyStatement.executeQuery();
+        while (resultSet.next()){
+            keyNames.add(resultSet.getString(1));
+            keys.add(quote(resultSet.getString(1)));
+        }
+        if (keys.isEmpty()){
+            throw new SQLException("Table without a primary key can't be paged for a snapshot: " + table);
+        }
+        //Later pages start after the last key read: the first key column bounds the index scan, the row comparison
+        //skips what is left of the last page's group
+        String orderBy = " ORDER BY " + String.join(", ", keys) + " LIMIT " + PAGE_SIZE;
+        String after = keys.size() == 1 ? keys.get(0) + " > ?"
+                : keys.get(0) + " >= ? AND (" + String.join(", ", keys) + ") > (" + String.join(", ", Collections.nCopies(keys.size(), "?")) + ")";
+        PreparedStatement nextPage = connection.prepareStatement("SELECT * FROM " + quotedTable + " WHERE " + after + orderBy);
+        resultSet = connection.prepareStatement("SELECT * FROM " + quotedTable + orderBy).executeQuery();
+        int columns = resultSet.getMetaData().getColumnCount();
+        out.writeByte(TABLE);
+        writeText(out, table);
+        out.writeInt(columns);
+        Object[] lastKey = new Object[keys.size()];
+        int rows;
+        do{
+            rows = 0;
+            while (resultSet.next()){
+                out.writeByte(ROW);
+                for (int column = 1; column <= columns; column++){
+                    writeValue(out, resultSet.getObject(column));
+                }
+                for (int i = 0; i < lastKey.length; i++){
+                    lastKey[i] = resultSet.getObject(keyNames.get(i));
+                }
+                rows++;
+            }
+            if (rows == PAGE_SIZE){
+                int parameter = 1;
+                nextPage.setObject(parameter++, lastKey[0]);
+                for (int i = 0; lastKey.length > 1 && i < lastKey.length; i++){
+                    nextPage.setObject(parameter++, lastKey[i]);
+                }
+                resultSet = nextPage.executeQuery();
+            }
+        } while (rows == PAGE_SIZE);
+    }
+
+    /**
+     * @return the name as a quoted SQL identifier
+     */
+    private static String quote(String name){
+        return "\"" + name.replace("\"", "\"\"") + "\"";
+    }
+
+    /**
+     * Writes a column value with its type. The schema only holds integers, text and booleans.
+     */
+    private static void writeValue(DataOutputStream out, Object value) throws SQLException, IOException{
+        if (value == null){
+            out.writeByte(NULL);
+        }
+        else if (value instanceof Integer){
+            out.writeByte(INT);
+            out.writeInt((Integer) value);
+        }
+        else if (value instanceof Long){
+            out.writeByte(LONG);
+            out.writeLong((Long) value);
+        }
+        else if (value instanceof String){
+            out.writeByte(TEXT);
+            writeText(out, (String) value);
+        }
+        else if (value instanceof Boolean){
+            out.writeByte(BOOLEAN);
+            out.writeBoolean((Boolean) value);
+        }
+        else{
+            throw new SQLException("Unsupported column type in snapshot: " + value.getClass().getName());
+        }
+    }
+
+    private static Object readValue(DataInputStream in) throws IOException{
+        byte type = in.readByte();
+        switch (type){
+            case NULL:
+                return null;
+            case INT:
+                return in.readInt();
+            case LONG:
+                return in.readLong();
+            case TEXT:
+                return readText(in);
+            case BOOLEAN:
+                return in.readBoolean();
+            default:
+                throw new IOException("Unknown value type in snapshot: " + type);
+        }
+    }
+
+    //Length and UTF-8 bytes, since writeUTF is limited to 64 KB
+    private static void writeText(DataOutputStream out, String text) throws IOException{
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readText(DataInputStream in) throws IOException{
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Passes bytes through, sleeping as needed to keep the bytes written since creation at or under the rate.
+     */
+    private static class Pace extends FilterOutputStream {
+        private final long bytesPerSecond;
+        private final long startNanos = System.nanoTime();
+        private long bytes;
+
+        Pace(OutputStream out, long bytesPerSecond){
+            super(out);
+            this.bytesPerSecond = bytesPerSecond;
+        }
+
+        @Override
+        public void write(int b) throws IOException{
+            out.write(b);
+            add(1);
+        }
+
+        @Override
+        public void write(byte[] buffer, int offset, int length) throws IOException{
+            out.write(buffer, offset, length);
+            add(length);
+        }
+
+        private void add(int written) throws InterruptedIOException{
+            bytes += written;
+            if (bytesPerSecond <= 0){
+                return;
+            }
+            long aheadNanos = (long) (bytes * 1e9 / bytesPerSecond) - (System.nanoTime() - startNanos);
+            if (aheadNanos > 0){
+                try{
+                    Thread.sleep(aheadNanos / 1_000_000, (int) (aheadNanos % 1_000_000));
+                }
+                catch(InterruptedException e){
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Snapshot interrupted");
+                }
+            }
+        }
+    }
+}
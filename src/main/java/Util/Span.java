@@ -0,0 +1,134 @@
+package Util;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * One timed operation within a trace, such as a request, a service call or a SQL statement. Spans are started through
+ * Tracing and closed on the thread that started them, in reverse order, which try-with-resources gives for free.
+ *
+ * Spans of requests that are not sampled record nothing, so callers never need to check. The root span of such a
+ * request still has a trace id, which the response reports.
+ */
+public class Span implements AutoCloseable {
+    //Returned for spans started outside any trace or past MAX_SPANS_PER_TRACE, closing it changes nothing
+    static final Span NOOP = new Span(null, null, null, null, 0);
+
+    //OTLP span kinds
+    public static final int KIND_INTERNAL = 1;
+    public static final int KIND_SERVER = 2;
+    public static final int KIND_CLIENT = 3;
+
+    //OTLP status codes
+    static final int STATUS_UNSET = 0;
+    static final int STATUS_ERROR = 2;
+
+    final Trace trace;
+    final Span parent;
+    final String spanId;
+    final int kind;
+    String name;
+    final long startNanos;
+    long endNanos;
+    final Map<String, Object> attributes = new LinkedHashMap<String, Object>();
+    int status = STATUS_UNSET;
+    String statusMessage;
+
+    Span(Trace trace, Span parent, String spanId, String name, int kind){
+        this.trace = trace;
+        this.parent = parent;
+        this.spanId = spanId;
+        this.name = name;
+        this.kind = kind;
+        this.startNanos = Tracing.epochNanos();
+    }
+
+    /**
+     * @return whether this span is recorded and exported
+     */
+    public boolean isRecording(){
+        return trace != null && trace.sampled;
+    }
+
+    /**
+     * @return the id of the trace this span belongs to, null outside any trace
+     */
+    public String getTraceId(){
+        return trace == null ? null : trace.traceId;
+    }
+
+    /**
+     * Renames the span, for example once the route a request matched is known.
+     *
+     * @param name
+     * @return this span
+     */
+    public Span setName(String name){
+        if (isRecording()){
+            this.name = name;
+        }
+        return this;
+    }
+
+    /**
+     * Adds an attribute. Strings, booleans and integral numbers are kept as such, anything else as its string form.
+     *
+     * @param key
+     * @param value
+     * @return this span
+     */
+    public Span setAttribute(String key, Object value){
+        if (isRecording() && value != null){
+            attributes.put(key, value);
+        }
+        return this;
+    }
+
+    /**
+     * Marks the operation as failed.
+     *
+     * @param message what went wrong
+     * @return this span
+     */
+    public Span setError(String message){
+        if (isRecording()){
+            status = STATUS_ERROR;
+            statusMessage = message;
+        }
+        return this;
+    }
+
+    /**
+     * Ends the span and makes its parent the current span again. Ending the root span hands the whole trace to the
+     * exporter.
+     */
+    @Override
+    public void close(){
+        if (trace == null || endNanos != 0){
+            return;
+        }
+        endNanos = Tracing.epochNanos();
+        Tracing.ended(this);
+    }
+
+    /**
+     * The spans of one request, collected on the request thread and exported together once the root ends. Nothing is
+     * collected unless the request is sampled.
+     */
+    static class Trace {
+        final String traceId;
+        //Set when the trace continues one started by the caller
+        final String remoteParentSpanId;
+        final boolean sampled;
+        final List<Span> spans = new ArrayList<Span>();
+        int droppedSpans;
+
+        Trace(String traceId, String remoteParentSpanId, boolean sampled){
+            this.traceId = traceId;
+            this.remoteParentSpanId = remoteParentSpanId;
+            this.sampled = sampled;
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package Util;
+
+import java.util.Locale;
+
+/**
+ * Named H2 configurations trading durability for speed, selected at startup with the socialmedia.storage.profile
+ * system property. The profile applies to the main database and to every shard.
+ *
+ * The guarantees below are for a crash of the JVM; none of the profiles force data to disk with fsync on commit, so an
+ * operating system crash or power loss can lose recent commits under any of them.
+ */
+public enum StorageProfile {
+    /**
+     * Everything lives on the heap and is gone when the JVM exits. For tests, load tests and ephemeral shards.
+     */
+    MEMORY("jdbc:h2:mem:%s;DB_CLOSE_DELAY=-1;", 0),
+    /**
+     * H2's defaults, and what ConnectionUtil always used: a committed transaction reaches the file within about
+     * half a second, so a crash can lose the commits of that last half second. The database stays open until the JVM
+     * exits, rather than closing and opening again whenever no connection is open.
+     */
+    FILE("jdbc:h2:./h2/%s;DB_CLOSE_DELAY=-1;", 0),
+    /**
+     * Every commit is written to the file before it returns, so a JVM crash loses nothing that was committed. The
+     * database stays open until the JVM exits, as under FILE.
+     */
+    FILE_SYNC("jdbc:h2:./h2/%s;WRITE_DELAY=0;DB_CLOSE_DELAY=-1;", 0),
+    /**
+     * Commits are written in the background every two seconds and the page cache is raised to 64 MB. A crash can
+     * lose up to the last two seconds of commits, in exchange for fewer, larger writes and more reads from memory.
+     * The database stays open until the JVM exits, so the cache survives between connections.
+     */
+    FILE_ASYNC("jdbc:h2:./h2/%s;WRITE_DELAY=2000;DB_CLOSE_DELAY=-1;", 64 * 1024),
+    /**
+     * The databases of an H2 TCP server, such as one started with DatabaseServer, at the host and port named by the
+     * socialmedia.db.server system property, localhost:9092 by default. Several application processes, on one host or
+     * several, share the data this way. Durability is that of the server's own settings, H2's defaults unless changed.
+     */
+    SERVER("jdbc:h2:tcp://%2$s/./h2/%1$s;", 0);
+
+    public static final String PROFILE_PROPERTY = "socialmedia.storage.profile";
+    public static final String SERVER_PROPERTY = "socialmedia.db.server";
+    public static final String DEFAULT_SERVER = "localhost:" + DatabaseServer.DEFAULT_PORT;
+
+    private final String urlFormat;
+    //Applied once per database rather than in the url, since H2 would otherwise resize the cache on every connection
+    private final int cacheSizeKB;
+
+    StorageProfile(String urlFormat, int cacheSizeKB){
+        this.urlFormat = urlFormat;
+        this.cacheSizeKB = cacheSizeKB;
+    }
+
+    /**
+     * @param database name of the database, such as db or db-shard1
+     * @return the JDBC url for that database under this profile
+     */
+    public String getUrl(String database){
+        return String.format(urlFormat, database, System.getProperty(SERVER_PROPERTY, DEFAULT_SERVER));
+    }
+
+    /**
+     * @return the MVStore cache size in KB to set when the database is opened, 0 to keep H2's default
+     */
+    public int getCacheSizeKB(){
+        return cacheSizeKB;
+    }
+
+    /**
+     * @return the profile named by the socialmedia.storage.profile system property, FILE when it is not set
+     */
+    public static StorageProfile fromSystemProperties(){
+        return valueOf(System.getProperty(PROFILE_PROPERTY, FILE.name()).trim().toUpperCase(Locale.ROOT));
+    }
+}
@@ -0,0 +1,314 @@
+package Util;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+
+/**
+ * Writes finished traces to rolling files on a thread of its own, so request threads only hand a trace over.
+ *
+ * Each trace is one line of OTLP JSON, an ExportTraceServiceRequest as the OpenTelemetry file exporter writes it, so
+ * the files can be replayed into any OTLP collector. The current file is traces.jsonl; once it would grow past the
+ * size limit it is renamed traces.1.jsonl, older files move up by one and the oldest is deleted.
+ *
+ * When the writer falls behind and its queue is full, further traces are dropped and counted rather than slowing
+ * requests down.
+ */
+public class TraceExporter implements Closeable {
+    public static final String FILE_NAME = "traces.jsonl";
+    public static final long DEFAULT_MAX_FILE_BYTES = 16L * 1024 * 1024;
+    //The current file plus the rolled ones
+    public static final int DEFAULT_MAX_FILES = 5;
+    static final int QUEUE_CAPACITY = 1024;
+    static final String SERVICE_NAME = "social-media";
+
+    private final Path directory;
+    private final long maxFileBytes;
+    private final int maxFiles;
+    private final BlockingQueue<Span.Trace> queue = new ArrayBlockingQueue<Span.Trace>(QUEUE_CAPACITY);
+    private final Thread writer;
+    private final JsonFactory jsonFactory = new JsonFactory();
+    private final AtomicLong exported = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private volatile boolean closed;
+    //Traces queued and traces the writer is done with, written or failed, guarded by this
+    private long accepted;
+    private long finished;
+    //Only touched by the writer thread
+    private OutputStream out;
+    private long fileBytes;
+
+    /**
+     * Creates an exporter writing up to DEFAULT_MAX_FILES files of DEFAULT_MAX_FILE_BYTES.
+     *
+     * @param directory
+     */
+    public TraceExporter(Path directory){
+        this(directory, DEFAULT_MAX_FILE_BYTES, DEFAULT_MAX_FILES);
+    }
+
+    /**
+     * @param directory where the files are written, created if missing
+     * @param maxFileBytes size past which the current file is rolled, a single larger trace still gets a file of its own
+     * @param maxFiles files kept, the current one included
+     */
+    public TraceExporter(Path directory, long maxFileBytes, int maxFiles){
+        if (maxFiles < 1){
+            throw new IllegalArgumentException("At least one file is required");
+        }
+        this.directory = directory;
+        this.maxFileBytes = maxFileBytes;
+        this.maxFiles = maxFiles;
+        this.writer = new Thread(this::run, "trace-exporter");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Queues the trace for writing, or drops it if the queue is full or the exporter closed.
+     *
+     * @param trace
+     */
+    void export(Span.Trace trace){
+        synchronized (this){
+            if (!closed && queue.offer(trace)){
+                accepted++;
+                return;
+            }
+        }
+        dropped.incrementAndGet();
+    }
+
+    /**
+     * Waits until every trace queued so far is written and flushed.
+     *
+     * @param timeoutMillis
+     * @return false if that took longer than the timeout
+     * @throws InterruptedException
+     */
+    public boolean awaitWritten(long timeoutMillis) throws InterruptedException{
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        synchronized (this){
+            while (finished < accepted){
+                long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                if (remaining <= 0){
+                    return false;
+                }
+                wait(remaining);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Stops the writer once it has written what is queued.
+     */
+    @Override
+    public void close(){
+        synchronized (this){
+            closed = true;
+        }
+        try{
+            writer.join();
+        }
+        catch(InterruptedException e){
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @return counters of traces exported, dropped because the queue was full, and lost to write errors
+     */
+    public Map<String, Long> getMetrics(){
+        Map<String, Long> metrics = new LinkedHashMap<String, Long>();
+        metrics.put("exported", exported.get());
+        metrics.put("dropped", dropped.get());
+        metrics.put("failed", failed.get());
+        return metrics;
+    }
+
+    /**
+     * @param index 0 for the current file, n for the one rolled n times
+     * @return the path of that file
+     */
+    public Path getFile(int index){
+        return directory.resolve(index == 0 ? FILE_NAME : FILE_NAME.replace(".jsonl", "." + index + ".jsonl"));
+    }
+
+    private void run(){
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        while (true){
+            //Not interrupted to close: an interrupt would also close the file channel under a write
+            Span.Trace trace;
+            try{
+                trace = queue.poll(100, TimeUnit.MILLISECONDS);
+            }
+            catch(InterruptedException e){
+                break;
+            }
+            if (trace == null){
+                if (closed){
+                    break;
+                }
+                continue;
+            }
+            try{
+                line.reset();
+                writeTrace(trace, line);
+                line.write('\n');
+                write(line);
+                exported.incrementAndGet();
+                if (queue.isEmpty()){
+                    out.flush();
+                }
+            }
+            catch(IOException e){
+                failed.incrementAndGet();
+                System.out.println(e.getMessage());
+                closeFile();
+            }
+            finally{
+                synchronized (this){
+                    finished++;
+                    notifyAll();
+                }
+            }
+        }
+        closeFile();
+    }
+
+    /**
+     * Appends the line to the current file, rolling it first if the line would take it past the limit.
+     */
+    private void write(ByteArrayOutputStream line) throws IOException{
+        if (out == null){
+            Files.createDirectories(directory);
+            Path file = getFile(0);
+            fileBytes = Files.exists(file) ? Files.size(file) : 0;
+            out = new BufferedOutputStream(Files.newOutputStream(file, StandardOpenOption.CREATE, StandardOpenOption.APPEND));
+        }
+        if (fileBytes > 0 && fileBytes + line.size() > maxFileBytes){
+            closeFile();
+            Files.deleteIfExists(getFile(maxFiles - 1));
+            for (int index = maxFiles - 2; index >= 0; index--){
+                if (Files.exists(getFile(index))){
+                    Files.move(getFile(index), getFile(index + 1), StandardCopyOption.REPLACE_EXISTING);
+                }
+            }
+            out = new BufferedOutputStream(Files.newOutputStream(getFile(0)));
+            fileBytes = 0;
+        }
+        line.writeTo(out);
+        fileBytes += line.size();
+    }
+
+    private void closeFile(){
+        if (out != null){
+            try{
+                out.close();
+            }
+            catch(IOException e){
+                System.out.println(e.getMessage());
+            }
+            out = null;
+        }
+    }
+
+    /**
+     * Writes the trace as an OTLP/JSON ExportTraceServiceRequest: ids in hex, times as decimal strings of nanoseconds
+     * since the epoch, enums as numbers.
+     */
+    private void writeTrace(Span.Trace trace, OutputStream line) throws IOException{
+        try (JsonGenerator json = jsonFactory.createGenerator(line)){
+            json.writeStartObject();
+            json.writeArrayFieldStart("resourceSpans");
+            json.writeStartObject();
+            json.writeObjectFieldStart("resource");
+            json.writeArrayFieldStart("attributes");
+            writeAttribute(json, "service.name", SERVICE_NAME);
+            json.writeEndArray();
+            json.writeEndObject();
+            json.writeArrayFieldStart("scopeSpans");
+            json.writeStartObject();
+            json.writeObjectFieldStart("scope");
+            json.writeStringField("name", Tracing.class.getName());
+            json.writeEndObject();
+            json.writeArrayFieldStart("spans");
+            for (Span span : trace.spans){
+                writeSpan(json, trace, span);
+            }
+            json.writeEndArray();
+            json.writeEndObject();
+            json.writeEndArray();
+            json.writeEndObject();
+            json.writeEndArray();
+            json.writeEndObject();
+        }
+    }
+
+    private static void writeSpan(JsonGenerator json, Span.Trace trace, Span span) throws IOException{
+        json.writeStartObject();
+        json.writeStringField("traceId", trace.traceId);
+        json.writeStringField("spanId", span.spanId);
+        String parentSpanId = span.parent == null ? trace.remoteParentSpanId : span.parent.spanId;
+        if (parentSpanId != null){
+            json.writeStringField("parentSpanId", parentSpanId);
+        }
+        json.writeStringField("name", span.name);
+        json.writeNumberField("kind", span.kind);
+        json.writeStringField("startTimeUnixNano", Long.toString(span.startNanos));
+        //A span still open when its root ended, such as one on the wrong thread, is cut at the end of the trace
+        json.writeStringField("endTimeUnixNano", Long.toString(span.endNanos != 0 ? span.endNanos : trace.spans.get(0).endNanos));
+        json.writeArrayFieldStart("attributes");
+        for (Map.Entry<String, Object> attribute : span.attributes.entrySet()){
+            writeAttribute(json, attribute.getKey(), attribute.getValue());
+        }
+        if (span.parent == null && trace.droppedSpans > 0){
+            writeAttribute(json, "trace.dropped_spans", trace.droppedSpans);
+        }
+        json.writeEndArray();
+        json.writeObjectFieldStart("status");
+        if (span.status != Span.STATUS_UNSET){
+            json.writeNumberField("code", span.status);
+            if (span.statusMessage != null){
+                json.writeStringField("message", span.statusMessage);
+            }
+        }
+        json.writeEndObject();
+        json.writeEndObject();
+    }
+
+    private static void writeAttribute(JsonGenerator json, String key, Object value) throws IOException{
+        json.writeStartObject();
+        json.writeStringField("key", key);
+        json.writeObjectFieldStart("value");
+        if (value instanceof Boolean){
+            json.writeBooleanField("boolValue", (Boolean) value);
+        }
+        else if (value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte){
+            //int64 is a string in OTLP JSON
+            json.writeStringField("intValue", value.toString());
+        }
+        else{
+            json.writeStringField("stringValue", value.toString());
+        }
+        json.writeEndObject();
+        json.writeEndObject();
+    }
+}
@@ -0,0 +1,338 @@
+package Util;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.file.Paths;
+import java.sql.CallableStatement;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lightweight in-process tracing. Every request gets a trace id; a sampled fraction of requests also records a span
+ * per layer it passes through, the controller, the service, the storage engine, and every connection acquired and SQL
+ * statement run, which the exporter writes to a local file in OTLP JSON once the request is done.
+ *
+ * The current span is kept per thread, so work a request hands to other threads, such as the queries a sharded
+ * storage engine sends to its shards in parallel, is not part of its trace. Requests that are not sampled cost a
+ * trace id and a thread-local lookup per instrumented call.
+ *
+ * A request carrying a W3C traceparent header continues that trace and keeps the caller's sampling decision, so a
+ * trace started upstream is either recorded everywhere or nowhere.
+ */
+public class Tracing {
+    //Fraction of requests recorded, 0 by default, so that tracing only runs where it is asked for
+    public static final String SAMPLE_RATE_PROPERTY = "socialmedia.trace.sample";
+    //Directory of the trace files, ./traces by default
+    public static final String DIRECTORY_PROPERTY = "socialmedia.trace.dir";
+    public static final String TRACE_ID_HEADER = "X-Trace-Id";
+    public static final String TRACEPARENT_HEADER = "traceparent";
+    //Spans recorded per trace before the rest are dropped, so a bulk transfer doesn't keep a span per page in memory
+    public static final int MAX_SPANS_PER_TRACE = 1000;
+    //Longest SQL text kept on a statement span
+    static final int MAX_STATEMENT_LENGTH = 1000;
+
+    private static volatile double sampleRate = Double.parseDouble(System.getProperty(SAMPLE_RATE_PROPERTY, "0"));
+    //Created on the first sampled trace, so nothing is written or started while tracing is off
+    private static TraceExporter exporter;
+    private static final ThreadLocal<Span> current = new ThreadLocal<Span>();
+    //Wall clock at nanosecond resolution that never goes backwards within the process
+    private static final long EPOCH_OFFSET_NANOS = System.currentTimeMillis() * 1_000_000 - System.nanoTime();
+    private static final AtomicLong traces = new AtomicLong();
+    private static final AtomicLong sampled = new AtomicLong();
+    private static final AtomicLong droppedSpans = new AtomicLong();
+
+    /**
+     * Starts the trace of a request on the calling thread, replacing whatever an earlier request left behind.
+     *
+     * @param name
+     * @param traceparent the request's W3C traceparent header, may be null
+     * @return the root span, which has a trace id whether or not it is sampled
+     */
+    public static Span startTrace(String name, String traceparent){
+        String traceId = null;
+        String parentSpanId = null;
+        boolean sample;
+        if (traceparent != null && traceparent.matches("[0-9a-f]{2}-[0-9a-f]{32}-[0-9a-f]{16}-[0-9a-f]{2}")
+                && !traceparent.startsWith("ff") && !traceparent.substring(3, 35).matches("0+")
+                && !traceparent.substring(36, 52).matches("0+")){
+            traceId = traceparent.substring(3, 35);
+            parentSpanId = traceparent.substring(36, 52);
+            sample = (Integer.parseInt(traceparent.substring(53, 55), 16) & 1) == 1;
+        }
+        else{
+            traceId = randomHex(2);
+            sample = sampleRate > 0 && ThreadLocalRandom.current().nextDouble() < sampleRate;
+        }
+        traces.incrementAndGet();
+        Span.Trace trace = new Span.Trace(traceId, parentSpanId, sample);
+        Span root = new Span(trace, null, randomHex(1), name, Span.KIND_SERVER);
+        if (sample){
+            sampled.incrementAndGet();
+            trace.spans.add(root);
+        }
+        current.set(root);
+        return root;
+    }
+
+    /**
+     * Starts an internal span as a child of the current one.
+     *
+     * @param name
+     * @return the span, which records nothing unless the current trace is sampled
+     */
+    public static Span startSpan(String name){
+        return startSpan(name, Span.KIND_INTERNAL);
+    }
+
+    /**
+     * Starts a span as a child of the current one.
+     *
+     * @param name
+     * @param kind one of the Span.KIND constants
+     * @return the span, which records nothing unless the current trace is sampled
+     */
+    public static Span startSpan(String name, int kind){
+        Span parent = current.get();
+        if (parent == null || !parent.isRecording()){
+            return Span.NOOP;
+        }
+        if (parent.trace.spans.size() >= MAX_SPANS_PER_TRACE){
+            parent.trace.droppedSpans++;
+            droppedSpans.incrementAndGet();
+            return Span.NOOP;
+        }
+        Span span = new Span(parent.trace, parent, randomHex(1), name, kind);
+        parent.trace.spans.add(span);
+        current.set(span);
+        return span;
+    }
+
+    /**
+     * @return the span innermost on the calling thread, or a span that records nothing
+     */
+    public static Span currentSpan(){
+        Span span = current.get();
+        return span == null ? Span.NOOP : span;
+    }
+
+    /**
+     * Called by Span.close: makes the parent current again and exports the trace once its root has ended.
+     */
+    static void ended(Span span){
+        if (span.parent == null){
+            current.remove();
+            if (span.isRecording()){
+                exporter().export(span.trace);
+            }
+        }
+        else{
+            current.set(span.parent);
+        }
+    }
+
+    /**
+     * Wraps an implementation of an interface so that every call through the interface is a span named after the
+     * implementing class and the method, such as SocialMediaDAO.getMessageByID.
+     *
+     * @param type the interface
+     * @param target
+     * @return the traced implementation
+     */
+    public static <T> T wrap(Class<T> type, T target){
+        String prefix = target.getClass().getSimpleName() + ".";
+        return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] {type}, (proxy, method, args) -> {
+            Span span = method.getDeclaringClass() == Object.class ? Span.NOOP : startSpan(prefix + method.getName());
+            try{
+                return method.invoke(target, args);
+            }
+            catch(InvocationTargetException e){
+                span.setError(String.valueOf(e.getCause()));
+                throw e.getCause();
+            }
+            finally{
+                span.close();
+            }
+        }));
+    }
+
+    /**
+     * Wraps a connection so that every statement executed on it, and every commit and rollback, is a client span. The
+     * connection is returned as it is when the calling thread isn't recording a trace.
+     *
+     * @param connection
+     * @param database name of the database, reported as db.name
+     * @return the traced connection
+     */
+    public static Connection wrap(Connection connection, String database){
+        if (connection == null || !currentSpan().isRecording()){
+            return connection;
+        }
+        return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(), new Class<?>[] {Connection.class},
+                (proxy, method, args) -> {
+                    String name = method.getName();
+                    if (name.equals("commit") || name.equals("rollback")){
+                        return traceStatement(connection, method, args, name.toUpperCase(Locale.ROOT), database, null, 0);
+                    }
+                    Object result = invoke(connection, method, args);
+                    if (result instanceof Statement){
+                        String sql = args != null && args.length > 0 && args[0] instanceof String ? (String) args[0] : null;
+                        return wrap((Statement) result, method.getReturnType(), database, sql);
+                    }
+                    return result;
+                });
+    }
+
+    private static Object wrap(Statement statement, Class<?> type, String database, String preparedSql){
+        Class<?> proxied = type == CallableStatement.class || type == PreparedStatement.class ? type : Statement.class;
+        int[] batched = new int[1];
+        return Proxy.newProxyInstance(Statement.class.getClassLoader(), new Class<?>[] {proxied}, (proxy, method, args) -> {
+            String name = method.getName();
+            if (name.equals("addBatch")){
+                batched[0]++;
+            }
+            else if (name.startsWith("execute")){
+                String sql = args != null && args.length > 0 && args[0] instanceof String ? (String) args[0] : preparedSql;
+                int batchSize = name.equals("executeBatch") || name.equals("executeLargeBatch") ? batched[0] : 0;
+                batched[0] = batchSize > 0 ? 0 : batched[0];
+                return traceStatement(statement, method, args, operation(sql), database, sql, batchSize);
+            }
+            else if (name.equals("clearBatch")){
+                batched[0] = 0;
+            }
+            return invoke(statement, method, args);
+        });
+    }
+
+    private static Object traceStatement(Object target, Method method, Object[] args, String name, String database,
+            String sql, int batchSize) throws Throwable{
+        Span span = startSpan(name, Span.KIND_CLIENT);
+        span.setAttribute("db.system", "h2");
+        span.setAttribute("db.name", database);
+        if (sql != null){
+            span.setAttribute("db.statement", sql.length() > MAX_STATEMENT_LENGTH ? sql.substring(0, MAX_STATEMENT_LENGTH) : sql);
+        }
+        if (batchSize > 0){
+            span.setAttribute("db.batch.size", batchSize);
+        }
+        try{
+            return invoke(target, method, args);
+        }
+        catch(SQLException e){
+            span.setError(e.getMessage());
+            throw e;
+        }
+        finally{
+            span.close();
+        }
+    }
+
+    private static Object invoke(Object target, Method method, Object[] args) throws Throwable{
+        try{
+            return method.invoke(target, args);
+        }
+        catch(InvocationTargetException e){
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * @return the first keyword of the statement, such as SELECT, which names its span
+     */
+    private static String operation(String sql){
+        if (sql == null){
+            return "SQL";
+        }
+        String trimmed = sql.trim();
+        int end = 0;
+        while (end < trimmed.length() && Character.isLetter(trimmed.charAt(end))){
+            end++;
+        }
+        return end == 0 ? "SQL" : trimmed.substring(0, end).toUpperCase(Locale.ROOT);
+    }
+
+    /**
+     * @param sampleRate fraction of new traces to record, from 0 for none to 1 for all
+     */
+    public static void setSampleRate(double sampleRate){
+        if (sampleRate < 0 || sampleRate > 1){
+            throw new IllegalArgumentException("Sample rate must be between 0 and 1");
+        }
+        Tracing.sampleRate = sampleRate;
+    }
+
+    public static double getSampleRate(){
+        return sampleRate;
+    }
+
+    /**
+     * Replaces the exporter sampled traces are handed to, closing the previous one after it has written what it holds.
+     *
+     * @param traceExporter
+     */
+    public static synchronized void setExporter(TraceExporter traceExporter){
+        if (exporter != null){
+            exporter.close();
+        }
+        exporter = traceExporter;
+    }
+
+    /**
+     * @return the exporter, created in the directory named by socialmedia.trace.dir on first use
+     */
+    public static synchronized TraceExporter exporter(){
+        if (exporter == null){
+            exporter = new TraceExporter(Paths.get(System.getProperty(DIRECTORY_PROPERTY, "./traces")));
+        }
+        return exporter;
+    }
+
+    /**
+     * @return counters of traces started and sampled, spans dropped for exceeding MAX_SPANS_PER_TRACE, and the
+     * exporter's counters once it exists
+     */
+    public static Map<String, Long> getMetrics(){
+        Map<String, Long> metrics = new LinkedHashMap<String, Long>();
+        metrics.put("traces", traces.get());
+        metrics.put("sampled", sampled.get());
+        metrics.put("droppedSpans", droppedSpans.get());
+        TraceExporter traceExporter;
+        synchronized (Tracing.class){
+            traceExporter = exporter;
+        }
+        if (traceExporter != null){
+            metrics.putAll(traceExporter.getMetrics());
+        }
+        return metrics;
+    }
+
+    static long epochNanos(){
+        return EPOCH_OFFSET_NANOS + System.nanoTime();
+    }
+
+    /**
+     * @return random lowercase hex of 16 characters per long, the form OTLP and traceparent use for ids
+     */
+    private static String randomHex(int longs){
+        StringBuilder hex = new StringBuilder(16 * longs);
+        for (int i = 0; i < longs; i++){
+            long value;
+            do{
+                value = ThreadLocalRandom.current().nextLong();
+            } while (value == 0);
+            String digits = Long.toHexString(value);
+            for (int pad = digits.length(); pad < 16; pad++){
+                hex.append('0');
+            }
+            hex.append(digits);
+        }
+        return hex.toString();
+    }
+}
@@ -1,4 +1,7 @@
+drop table if exists timeline;
+drop table if exists follow;
 drop table if exists message;
+drop table if exists account_stats;
 drop table if exists account;
 create table account (
     account_id int primary key auto_increment,
@@ -10,8 +13,33 @@ create table message (
     posted_by int,
     message_text varchar(255),
     time_posted_epoch bigint,
+    version int not null default 0,
     foreign key (posted_by) references  account(account_id)
 );
+create table account_stats (
+    account_id int primary key,
+    message_count int not null,
+    last_posted_epoch bigint,
+    foreign key (account_id) references  account(account_id)
+);
+create table follow (
+    follower_id int,
+    followee_id int,
+    primary key (follower_id, followee_id),
+    foreign key (follower_id) references  account(account_id),
+    foreign key (followee_id) references  account(account_id)
+);
+create index follow_followee_idx on follow (followee_id, follower_id);
+create table timeline (
+    account_id int,
+    message_id int,
+    time_posted_epoch bigint,
+    primary key (account_id, message_id)
+);
+create index timeline_posted_idx on timeline (account_id, time_posted_epoch desc, message_id desc);
+create index message_time_posted_idx on message (time_posted_epoch desc);
+create index message_posted_by_time_posted_idx on message (posted_by, time_posted_epoch desc);
 
 insert into account (username, password) values ('testuser1', 'password');
 insert into message (posted_by, message_text, time_posted_epoch) values (1,'test message 1',1669947792);
+insert into account_stats (account_id, message_count, last_posted_epoch) values (1, 1, 1669947792);
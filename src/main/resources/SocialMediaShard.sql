@@ -0,0 +1,15 @@
+create table if not exists message (
+    message_id int primary key auto_increment,
+    posted_by int,
+    message_text varchar(255),
+    time_posted_epoch bigint,
+    version int not null default 0
+);
+create table if not exists account_stats (
+    account_id int primary key,
+    message_count int not null,
+    last_posted_epoch bigint
+);
+alter table message add column if not exists version int not null default 0;
+create index if not exists message_time_posted_idx on message (time_posted_epoch desc);
+create index if not exists message_posted_by_time_posted_idx on message (posted_by, time_posted_epoch desc);
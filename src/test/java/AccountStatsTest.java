@@ -0,0 +1,117 @@
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.sql.SQLException;
+import java.util.Arrays;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import Controller.SocialMediaController;
+import DAO.SocialMediaDAO;
+import Model.AccountStats;
+import Service.SocialMediaService;
+import Util.ConnectionUtil;
+import io.javalin.Javalin;
+
+public class AccountStatsTest {
+    SocialMediaService socialMediaService;
+    SocialMediaController socialMediaController;
+    HttpClient webClient;
+    ObjectMapper objectMapper;
+    Javalin app;
+    String baseUrl;
+
+    /**
+     * Before every test, reset the database, restart the Javalin app, and create a new webClient and ObjectMapper
+     * for interacting locally on the web.
+     * @throws InterruptedException
+     */
+    @Before
+    public void setUp() throws InterruptedException {
+        ConnectionUtil.resetTestDatabase();
+        socialMediaService = new SocialMediaService(new SocialMediaDAO());
+        socialMediaController = new SocialMediaController(socialMediaService);
+        app = socialMediaController.startAPI();
+        webClient = HttpClient.newHttpClient();
+        objectMapper = new ObjectMapper();
+        baseUrl = TestServer.start(app);
+    }
+
+    @After
+    public void tearDown() {
+        app.stop();
+    }
+
+    /**
+     * Sending an http request to GET localhost:8080/accounts/1/stats after posting another message
+     *
+     * Expected Response:
+     *  Status Code: 200
+     *  Response Body: JSON representation of the account's stats, counting the new message
+     */
+    @Test
+    public void getAccountStatsCountsNewMessages() throws IOException, InterruptedException {
+        Assert.assertEquals(new AccountStats(1, 1, 1669947792L), getStats(1));
+
+        HttpRequest postMessageRequest = HttpRequest.newBuilder()
+                .uri(URI.create(baseUrl + "/messages"))
+                .POST(HttpRequest.BodyPublishers.ofString("{" +
+                        "\"posted_by\":1, " +
+                        "\"message_text\": \"hello message\", " +
+                        "\"time_posted_epoch\": 1669947800}"))
+                .header("Content-Type", "application/json")
+                .build();
+        Assert.assertEquals(200, webClient.send(postMessageRequest, HttpResponse.BodyHandlers.ofString()).statusCode());
+
+        Assert.assertEquals(new AccountStats(1, 2, 1669947800L), getStats(1));
+    }
+
+    /**
+     * Sending an http request to GET localhost:8080/accounts/100/stats (account does not exist)
+     *
+     * Expected Response:
+     *  Status Code: 200
+     *  Response Body:
+     */
+    @Test
+    public void getAccountStatsAccountNotFound() throws IOException, InterruptedException {
+        HttpRequest request = HttpRequest.newBuilder()
+                .uri(URI.create(baseUrl + "/accounts/100/stats"))
+                .build();
+        HttpResponse<String> response = webClient.send(request, HttpResponse.BodyHandlers.ofString());
+        Assert.assertEquals(200, response.statusCode());
+        Assert.assertTrue(response.body().isEmpty());
+    }
+
+    /**
+     * The checker reports stats that drifted from the messages, and after a repair finds nothing left to fix.
+     */
+    @Test
+    public void checkAccountStatsRepairsDrift() throws SQLException, IOException, InterruptedException {
+        ConnectionUtil.getConnection().createStatement()
+                .execute("UPDATE account_stats SET message_count = 7, last_posted_epoch = 5 WHERE account_id = 1");
+        Assert.assertEquals(new AccountStats(1, 7, 5L), getStats(1));
+
+        AccountStats expected = new AccountStats(1, 1, 1669947792L);
+        Assert.assertEquals(Arrays.asList(expected), socialMediaService.checkAccountStats(false));
+        Assert.assertEquals(Arrays.asList(expected), socialMediaService.checkAccountStats(true));
+        Assert.assertEquals(Arrays.asList(), socialMediaService.checkAccountStats(false));
+        Assert.assertEquals(expected, getStats(1));
+    }
+
+    private AccountStats getStats(int accountID) throws IOException, InterruptedException {
+        HttpRequest request = HttpRequest.newBuilder()
+                .uri(URI.create(baseUrl + "/accounts/" + accountID + "/stats"))
+                .build();
+        HttpResponse<String> response = webClient.send(request, HttpResponse.BodyHandlers.ofString());
+        Assert.assertEquals(200, response.statusCode());
+        return objectMapper.readValue(response.body(), AccountStats.class);
+    }
+}
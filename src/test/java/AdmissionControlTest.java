@@ -0,0 +1,150 @@
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import Controller.AdmissionController;
+import Controller.RateLimiter;
+import Controller.SocialMediaController;
+import DAO.InMemoryStorageEngine;
+import Model.Message;
+import Service.SocialMediaService;
+import io.javalin.Javalin;
+
+public class AdmissionControlTest {
+    CountDownLatch reading = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+    SocialMediaController socialMediaController;
+    HttpClient webClient;
+    ObjectMapper objectMapper;
+    Javalin app;
+    String baseUrl;
+
+    /**
+     * Before every test, start the Javalin app on a storage engine whose full message list blocks until released, with
+     * room for one read at a time and no queue.
+     * @throws InterruptedException
+     */
+    @Before
+    public void setUp() throws InterruptedException {
+        InMemoryStorageEngine storageEngine = new InMemoryStorageEngine(){
+            @Override
+            public List<Message> getAllMessages() {
+                reading.countDown();
+                try{
+                    release.await();
+                }
+                catch(InterruptedException e){
+                    Thread.currentThread().interrupt();
+                }
+                return super.getAllMessages();
+            }
+        };
+        socialMediaController = new SocialMediaController(new SocialMediaService(storageEngine),
+                new RateLimiter(1000, 1000, 100), new RateLimiter(1000, 1000, 100),
+                new AdmissionController("read", 1, 1, 1, 0, 1000, 10),
+                new AdmissionController("write", 1, 1, 1, 0, 1000, 10));
+        app = socialMediaController.startAPI();
+        webClient = HttpClient.newHttpClient();
+        objectMapper = new ObjectMapper();
+        baseUrl = TestServer.start(app);
+    }
+
+    @After
+    public void tearDown() {
+        release.countDown();
+        app.stop();
+    }
+
+    private HttpResponse<String> get(String path) throws Exception {
+        return webClient.send(HttpRequest.newBuilder().uri(URI.create(baseUrl + path)).build(),
+                HttpResponse.BodyHandlers.ofString());
+    }
+
+    /**
+     * Sending an http request to GET localhost:8080/messages/1 while another read holds the only read slot
+     *
+     * Expected Response:
+     *  Status Code: 503 with Retry-After while the slot is taken, 200 once it is free, and the shed request in /metrics
+     */
+    @Test
+    @SuppressWarnings("unchecked")
+    public void readBeyondLimitIsShed() throws Exception {
+        CompletableFuture<HttpResponse<String>> slowRead = webClient.sendAsync(HttpRequest.newBuilder()
+                .uri(URI.create(baseUrl + "/messages")).build(), HttpResponse.BodyHandlers.ofString());
+        Assert.assertTrue(reading.await(5, TimeUnit.SECONDS));
+
+        HttpResponse<String> shed = get("/messages/1");
+        Assert.assertEquals(503, shed.statusCode());
+        Assert.assertEquals("1", shed.headers().firstValue("Retry-After").orElse(null));
+
+        //Metrics and health checks are never shed
+        HttpResponse<String> metricsResponse = get("/metrics");
+        Assert.assertEquals(200, metricsResponse.statusCode());
+        Map<String, Object> metrics = objectMapper.readValue(metricsResponse.body(), Map.class);
+        Map<String, Object> read = (Map<String, Object>) ((Map<String, Object>) metrics.get("admission")).get("read");
+        Assert.assertEquals(1, read.get("shed"));
+        Assert.assertEquals(1, read.get("inFlight"));
+
+        release.countDown();
+        Assert.assertEquals(200, slowRead.get(5, TimeUnit.SECONDS).statusCode());
+        Assert.assertEquals(200, get("/messages/1").statusCode());
+    }
+
+    /**
+     * Slow requests cut the limit, fast ones grow it back.
+     */
+    @Test
+    public void limitFollowsLatency() throws InterruptedException {
+        AdmissionController admission = new AdmissionController("test", 20, 1, 40, 0, 10, 0);
+        Assert.assertTrue(admission.tryAcquire());
+        admission.release(TimeUnit.MILLISECONDS.toNanos(50));
+        Assert.assertEquals(Long.valueOf(18), admission.getMetrics().get("limit"));
+
+        for (int i = 0; i < 200; i++){
+            Assert.assertTrue(admission.tryAcquire());
+            admission.release(TimeUnit.MILLISECONDS.toNanos(1));
+        }
+        Assert.assertTrue(admission.getMetrics().get("limit") > 20);
+    }
+
+    /**
+     * A request waiting in the queue is admitted as soon as a slot frees up.
+     */
+    @Test
+    public void queuedRequestIsAdmittedWhenSlotFrees() throws Exception {
+        AdmissionController admission = new AdmissionController("test", 1, 1, 1, 1, 1000, 5000);
+        Assert.assertTrue(admission.tryAcquire());
+        CompletableFuture<Boolean> queued = CompletableFuture.supplyAsync(() -> {
+            try{
+                return admission.tryAcquire();
+            }
+            catch(InterruptedException e){
+                return false;
+            }
+        });
+        long deadline = System.currentTimeMillis() + 5000;
+        while (admission.getMetrics().get("queued") == 0 && System.currentTimeMillis() < deadline){
+            Thread.sleep(5);
+        }
+        //The queue holds one, so a third request is shed at once
+        Assert.assertFalse(admission.tryAcquire());
+
+        admission.release(0);
+        Assert.assertTrue(queued.get(5, TimeUnit.SECONDS));
+        Assert.assertEquals(Long.valueOf(1), admission.getMetrics().get("admittedAfterQueueing"));
+        Assert.assertEquals(Long.valueOf(1), admission.getMetrics().get("shed"));
+    }
+}
@@ -0,0 +1,136 @@
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import Controller.SocialMediaController;
+import Model.AccountStats;
+import Model.Message;
+import Util.ConnectionUtil;
+import io.javalin.Javalin;
+
+public class BulkDeleteTest {
+    SocialMediaController socialMediaController;
+    HttpClient webClient;
+    ObjectMapper objectMapper;
+    Javalin app;
+    String baseUrl;
+
+    /**
+     * Before every test, reset the database, restart the Javalin app, and create a new webClient and ObjectMapper
+     * for interacting locally on the web.
+     * @throws InterruptedException
+     */
+    @Before
+    public void setUp() throws InterruptedException {
+        ConnectionUtil.resetTestDatabase();
+        socialMediaController = new SocialMediaController();
+        app = socialMediaController.startAPI();
+        webClient = HttpClient.newHttpClient();
+        objectMapper = new ObjectMapper();
+        baseUrl = TestServer.start(app);
+    }
+
+    @After
+    public void tearDown() {
+        app.stop();
+    }
+
+    /**
+     * Sending an http request to DELETE localhost:8080/accounts/1/messages after posting two more messages
+     *
+     * Expected Response:
+     *  Status Code: 200
+     *  Response Body: {"deleted":3}, after which the user has no messages and stats of 0
+     */
+    @Test
+    public void deleteMessagesByUserID() throws IOException, InterruptedException {
+        postMessage("second", 1669947800L);
+        postMessage("third", 1669947900L);
+
+        HttpResponse<String> response = send(HttpRequest.newBuilder()
+                .uri(URI.create(baseUrl + "/accounts/1/messages")).DELETE().build());
+        Assert.assertEquals(200, response.statusCode());
+        Assert.assertEquals(Integer.valueOf(3), deletedCount(response));
+
+        List<Message> remaining = objectMapper.readValue(send(HttpRequest.newBuilder()
+                .uri(URI.create(baseUrl + "/accounts/1/messages")).build()).body(), new TypeReference<List<Message>>(){});
+        Assert.assertEquals(new ArrayList<Message>(), remaining);
+        AccountStats stats = objectMapper.readValue(send(HttpRequest.newBuilder()
+                .uri(URI.create(baseUrl + "/accounts/1/stats")).build()).body(), AccountStats.class);
+        Assert.assertEquals(new AccountStats(1, 0, null), stats);
+    }
+
+    /**
+     * Sending an http request to DELETE localhost:8080/messages?before=1669947850
+     *
+     * Expected Response:
+     *  Status Code: 200
+     *  Response Body: {"deleted":2}, after which only the newer message is left
+     */
+    @Test
+    public void deleteMessagesPostedBefore() throws IOException, InterruptedException {
+        postMessage("older", 1669947800L);
+        Message newer = postMessage("newer", 1669947900L);
+
+        HttpResponse<String> response = send(HttpRequest.newBuilder()
+                .uri(URI.create(baseUrl + "/messages?before=1669947850")).DELETE().build());
+        Assert.assertEquals(200, response.statusCode());
+        Assert.assertEquals(Integer.valueOf(2), deletedCount(response));
+
+        List<Message> remaining = objectMapper.readValue(send(HttpRequest.newBuilder()
+                .uri(URI.create(baseUrl + "/messages")).build()).body(), new TypeReference<List<Message>>(){});
+        Assert.assertEquals(List.of(newer), remaining);
+    }
+
+    /**
+     * Sending an http request to DELETE localhost:8080/messages without a cutoff
+     *
+     * Expected Response:
+     *  Status Code: 400, and nothing is deleted
+     */
+    @Test
+    public void deleteMessagesWithoutCutoff() throws IOException, InterruptedException {
+        HttpResponse<String> response = send(HttpRequest.newBuilder()
+                .uri(URI.create(baseUrl + "/messages")).DELETE().build());
+        Assert.assertEquals(400, response.statusCode());
+
+        List<Message> remaining = objectMapper.readValue(send(HttpRequest.newBuilder()
+                .uri(URI.create(baseUrl + "/messages")).build()).body(), new TypeReference<List<Message>>(){});
+        Assert.assertEquals(1, remaining.size());
+    }
+
+    private Message postMessage(String messageText, long postedAt) throws IOException, InterruptedException {
+        HttpResponse<String> response = send(HttpRequest.newBuilder()
+                .uri(URI.create(baseUrl + "/messages"))
+                .POST(HttpRequest.BodyPublishers.ofString("{" +
+                        "\"posted_by\":1, " +
+                        "\"message_text\": \"" + messageText + "\", " +
+                        "\"time_posted_epoch\": " + postedAt + "}"))
+                .header("Content-Type", "application/json")
+                .build());
+        Assert.assertEquals(200, response.statusCode());
+        return objectMapper.readValue(response.body(), Message.class);
+    }
+
+    private Integer deletedCount(HttpResponse<String> response) throws IOException {
+        Map<String, Integer> body = objectMapper.readValue(response.body(), new TypeReference<Map<String, Integer>>(){});
+        return body.get("deleted");
+    }
+
+    private HttpResponse<String> send(HttpRequest request) throws IOException, InterruptedException {
+        return webClient.send(request, HttpResponse.BodyHandlers.ofString());
+    }
+}
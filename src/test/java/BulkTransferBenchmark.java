@@ -0,0 +1,162 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicLong;
+
+import Controller.SocialMediaController;
+import DAO.SocialMediaDAO;
+import Service.SocialMediaService;
+import Util.ConnectionUtil;
+import io.javalin.Javalin;
+
+/**
+ * Benchmark for the NDJSON bulk endpoints on the H2 backend: imports ROWS messages through POST /import/messages from
+ * a body generated on the fly, then reads them all back through GET /export/messages. Besides the rows per second it
+ * reports the most heap found live after a collection while each transfer ran, which stays flat as ROWS grows. Run it
+ * with a small heap to see that neither endpoint depends on the size of the table:
+ *   MAVEN_OPTS=-Xmx128m mvn -q test-compile exec:java -Dexec.mainClass=BulkTransferBenchmark -Dexec.classpathScope=test -Dexec.args=10000000
+ *
+ * This is not a test case, run it manually with:
+ *   mvn -q test-compile exec:java -Dexec.mainClass=BulkTransferBenchmark -Dexec.classpathScope=test [-Dexec.args=rows]
+ *
+ * It resets the database at ./h2/db, just like the test suite does.
+ */
+public class BulkTransferBenchmark {
+    private static final int DEFAULT_ROWS = 1_000_000;
+    private static final int ACCOUNTS = 100;
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int rows = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_ROWS;
+        ConnectionUtil.resetTestDatabase();
+        SocialMediaService socialMediaService = new SocialMediaService(new SocialMediaDAO());
+        for (int i = 0; i < ACCOUNTS; i++){
+            socialMediaService.createAccount(new Model.Account(0, "bulk user " + i, "password"));
+        }
+        Javalin app = new SocialMediaController(socialMediaService).startAPI();
+        app.start(8080);
+        HttpClient webClient = HttpClient.newHttpClient();
+        System.out.printf("%d rows, max heap %d MB%n", rows, Runtime.getRuntime().maxMemory() >> 20);
+        System.out.printf("%-8s %12s %14s%n", "transfer", "rows/s", "live heap MB");
+        try{
+            HeapSampler sampler = new HeapSampler();
+            long start = System.nanoTime();
+            HttpResponse<java.util.stream.Stream<String>> imported = webClient.send(HttpRequest.newBuilder()
+                    .uri(URI.create("http://localhost:8080/import/messages"))
+                    .POST(HttpRequest.BodyPublishers.ofInputStream(() -> new GeneratedBody(rows)))
+                    .header("Content-Type", "application/x-ndjson")
+                    .build(), HttpResponse.BodyHandlers.ofLines());
+            String last = "";
+            for (Iterator<String> lines = imported.body().iterator(); lines.hasNext();){
+                last = lines.next();
+            }
+            double seconds = (System.nanoTime() - start) / 1e9;
+            System.out.printf("%-8s %12.0f %14.1f   %s%n", "import", rows / seconds, sampler.stop() / 1048576.0, last);
+
+            sampler = new HeapSampler();
+            start = System.nanoTime();
+            HttpResponse<InputStream> exported = webClient.send(HttpRequest.newBuilder()
+                    .uri(URI.create("http://localhost:8080/export/messages")).build(), HttpResponse.BodyHandlers.ofInputStream());
+            long lines = 0;
+            byte[] buffer = new byte[64 * 1024];
+            try (InputStream in = exported.body()){
+                int read;
+                while ((read = in.read(buffer)) > 0){
+                    for (int i = 0; i < read; i++){
+                        lines += buffer[i] == '\n' ? 1 : 0;
+                    }
+                }
+            }
+            seconds = (System.nanoTime() - start) / 1e9;
+            System.out.printf("%-8s %12.0f %14.1f   %d lines%n", "export", lines / seconds, sampler.stop() / 1048576.0, lines);
+        }
+        finally{
+            app.stop();
+            ConnectionUtil.resetTestDatabase();
+        }
+    }
+
+    /**
+     * An NDJSON body of generated messages, produced as it is read so the client side holds no more than a line.
+     */
+    private static class GeneratedBody extends InputStream {
+        private final int rows;
+        private int row;
+        private byte[] line = new byte[0];
+        private int position;
+
+        GeneratedBody(int rows) {
+            this.rows = rows;
+        }
+
+        @Override
+        public int read() {
+            if (position == line.length){
+                if (row == rows){
+                    return -1;
+                }
+                line = ("{\"posted_by\":" + (1 + row % ACCOUNTS) + ",\"message_text\":\"bulk message " + row
+                        + "\",\"time_posted_epoch\":" + row + "}\n").getBytes(StandardCharsets.UTF_8);
+                position = 0;
+                row++;
+            }
+            return line[position++];
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) {
+            int read = 0;
+            while (read < length){
+                int next = read();
+                if (next < 0){
+                    return read == 0 ? -1 : read;
+                }
+                buffer[offset + read++] = (byte) next;
+            }
+            return read;
+        }
+    }
+
+    /**
+     * Tracks the largest heap found in use right after a collection, which is the live data rather than garbage.
+     */
+    private static class HeapSampler {
+        private final AtomicLong maxLive = new AtomicLong();
+        private final Thread thread;
+
+        HeapSampler() {
+            thread = new Thread(() -> {
+                while (!Thread.currentThread().isInterrupted()){
+                    long live = 0;
+                    for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()){
+                        if (pool.getType() == MemoryType.HEAP && pool.getCollectionUsage() != null){
+                            live += pool.getCollectionUsage().getUsed();
+                        }
+                    }
+                    maxLive.accumulateAndGet(live, Math::max);
+                    try{
+                        Thread.sleep(50);
+                    }
+                    catch (InterruptedException e){
+                        return;
+                    }
+                }
+            });
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        long stop() throws InterruptedException {
+            thread.interrupt();
+            thread.join();
+            return maxLive.get();
+        }
+    }
+}
@@ -0,0 +1,122 @@
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import Controller.SocialMediaController;
+import Model.Message;
+import Util.ConnectionUtil;
+import io.javalin.Javalin;
+
+public class BulkTransferTest {
+    SocialMediaController socialMediaController;
+    HttpClient webClient;
+    ObjectMapper objectMapper;
+    Javalin app;
+    String baseUrl;
+
+    /**
+     * Before every test, reset the database, restart the Javalin app, and create a new webClient and ObjectMapper
+     * for interacting locally on the web.
+     * @throws InterruptedException
+     */
+    @Before
+    public void setUp() throws InterruptedException {
+        ConnectionUtil.resetTestDatabase();
+        socialMediaController = new SocialMediaController();
+        app = socialMediaController.startAPI();
+        webClient = HttpClient.newHttpClient();
+        objectMapper = new ObjectMapper();
+        baseUrl = TestServer.start(app);
+    }
+
+    @After
+    public void tearDown() {
+        app.stop();
+    }
+
+    /**
+     * Sending an http request to GET localhost:8080/export/messages
+     *
+     * Expected Response:
+     *  Status Code: 200
+     *  Response Body: one JSON message per line, in message_id order
+     */
+    @Test
+    public void exportMessages() throws IOException, InterruptedException {
+        HttpResponse<String> response = webClient.send(HttpRequest.newBuilder()
+                .uri(URI.create(baseUrl + "/export/messages")).build(), HttpResponse.BodyHandlers.ofString());
+        Assert.assertEquals(200, response.statusCode());
+        Assert.assertEquals("application/x-ndjson", response.headers().firstValue("Content-Type").orElse(""));
+        Assert.assertEquals(Arrays.asList(new Message(1, 1, "test message 1", 1669947792L)), parseMessages(response.body()));
+    }
+
+    /**
+     * Sending an http request to POST localhost:8080/import/messages with 1500 valid lines and three bad ones
+     *
+     * Expected Response:
+     *  Status Code: 200
+     *  Response Body: a rejection per bad line, progress after each batch and a final summary. The valid lines are
+     *  then part of the export.
+     */
+    @Test
+    public void importMessagesReportsRejectedLines() throws IOException, InterruptedException {
+        StringBuilder body = new StringBuilder();
+        for (int i = 0; i < 1500; i++){
+            body.append("{\"posted_by\":1,\"message_text\":\"imported ").append(i).append("\",\"time_posted_epoch\":").append(i).append("}\n");
+            if (i == 10){
+                body.append("not json\n");
+                body.append("{\"posted_by\":100,\"message_text\":\"unknown author\",\"time_posted_epoch\":1}\n");
+                body.append("\n");
+                body.append("{\"posted_by\":1,\"message_text\":\"\",\"time_posted_epoch\":1}\r\n");
+            }
+        }
+        HttpResponse<String> response = webClient.send(HttpRequest.newBuilder()
+                .uri(URI.create(baseUrl + "/import/messages"))
+                .POST(HttpRequest.BodyPublishers.ofString(body.toString()))
+                .header("Content-Type", "application/x-ndjson")
+                .build(), HttpResponse.BodyHandlers.ofString());
+        Assert.assertEquals(200, response.statusCode());
+
+        List<Map<String, Object>> report = new ArrayList<Map<String, Object>>();
+        for (String line : response.body().split("\n")){
+            report.add(objectMapper.readValue(line, new TypeReference<Map<String, Object>>(){}));
+        }
+        Assert.assertEquals(12, report.get(0).get("line"));
+        Assert.assertEquals(13, report.get(1).get("line"));
+        Assert.assertEquals("posted_by must be an existing account", report.get(1).get("error"));
+        Assert.assertEquals(15, report.get(2).get("line"));
+        Assert.assertEquals("message_text must be 1 to 255 characters", report.get(2).get("error"));
+        Map<String, Object> done = report.get(report.size() - 1);
+        Assert.assertEquals(1500, done.get("imported"));
+        Assert.assertEquals(3, done.get("rejected"));
+        Assert.assertEquals(true, done.get("done"));
+
+        HttpResponse<String> export = webClient.send(HttpRequest.newBuilder()
+                .uri(URI.create(baseUrl + "/export/messages")).build(), HttpResponse.BodyHandlers.ofString());
+        List<Message> messages = parseMessages(export.body());
+        Assert.assertEquals(1501, messages.size());
+        Assert.assertEquals("imported 1499", messages.get(1500).getMessage_text());
+    }
+
+    private List<Message> parseMessages(String ndjson) throws IOException {
+        List<Message> messages = new ArrayList<Message>();
+        for (String line : ndjson.split("\n")){
+            messages.add(objectMapper.readValue(line, Message.class));
+        }
+        return messages;
+    }
+}
@@ -0,0 +1,292 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.function.Function;
+import java.util.stream.Stream;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+import DAO.InMemoryStorageEngine;
+import DAO.LogStorageEngine;
+import DAO.ShardedSocialMediaDAO;
+import DAO.SocialMediaDAO;
+import DAO.StorageEngine;
+import Model.Account;
+import Model.Message;
+import Service.SocialMediaService;
+import Util.ConnectionUtil;
+
+/**
+ * Stress tests running many threads against one storage engine at once, directly and through the service. Each test
+ * runs once per backend, checks invariants that any interleaving has to keep once the threads are done, and prints the
+ * throughput it achieved.
+ */
+@RunWith(Parameterized.class)
+public class ConcurrencyStressTest {
+    private static final int THREADS = 8;
+
+    StorageEngine storageEngine;
+    SocialMediaService socialMediaService;
+    Function<Path, StorageEngine> storageEngineFactory;
+    String name;
+    Path directory;
+    ExecutorService executor;
+
+    @Parameterized.Parameters(name = "{0}")
+    public static Collection<Object[]> storageEngines() {
+        return Arrays.asList(new Object[][] {
+                {"h2", (Function<Path, StorageEngine>) directory -> new SocialMediaDAO()},
+                {"memory", (Function<Path, StorageEngine>) directory -> new InMemoryStorageEngine()},
+                {"log", (Function<Path, StorageEngine>) directory -> new LogStorageEngine(directory, 64 * 1024, 0)},
+                {"sharded", (Function<Path, StorageEngine>) directory -> {
+                    ConnectionUtil.resetShardDatabases(3);
+                    return new ShardedSocialMediaDAO(3);
+                }},
+        });
+    }
+
+    public ConcurrencyStressTest(String name, Function<Path, StorageEngine> storageEngineFactory) {
+        this.name = name;
+        this.storageEngineFactory = storageEngineFactory;
+    }
+
+    /**
+     * Before every test, reset the database and create a fresh storage engine in an empty directory, with a service
+     * on top of it.
+     */
+    @Before
+    public void setUp() throws IOException {
+        ConnectionUtil.resetTestDatabase();
+        directory = Files.createTempDirectory("concurrency-stress-test");
+        storageEngine = storageEngineFactory.apply(directory);
+        socialMediaService = new SocialMediaService(storageEngine);
+        executor = Executors.newFixedThreadPool(THREADS);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        executor.shutdownNow();
+        if (storageEngine instanceof Closeable){
+            ((Closeable) storageEngine).close();
+        }
+        try (Stream<Path> files = Files.walk(directory)){
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    /**
+     * Every round, all threads register the same username at the same moment, straight on the storage engine.
+     *
+     * Expected: exactly one registration wins each round, the losers get null, and the winner's password logs in as the
+     * winner's account
+     */
+    @Test
+    public void sameUsernameRegistersOnce() throws Exception {
+        int rounds = 50;
+        CyclicBarrier start = new CyclicBarrier(THREADS);
+        Account[][] registered = new Account[rounds][THREADS];
+        long nanos = runConcurrently(thread -> {
+            for (int round = 0; round < rounds; round++){
+                start.await(30, TimeUnit.SECONDS);
+                registered[round][thread] = storageEngine.createAccount("racer " + round, "password " + thread);
+            }
+            return null;
+        });
+        for (int round = 0; round < rounds; round++){
+            Account winner = null;
+            for (Account account : registered[round]){
+                if (account != null){
+                    Assert.assertNull("Username registered twice in round " + round, winner);
+                    winner = account;
+                }
+            }
+            Assert.assertNotNull("Nobody registered in round " + round, winner);
+            Assert.assertEquals(winner, storageEngine.userLogin(winner.getUsername(), winner.getPassword()));
+            for (int thread = 0; thread < THREADS; thread++){
+                if (!("password " + thread).equals(winner.getPassword())){
+                    Assert.assertNull(storageEngine.userLogin(winner.getUsername(), "password " + thread));
+                }
+            }
+        }
+        report("contended registrations", rounds * THREADS, nanos);
+    }
+
+    /**
+     * Half of the threads register new accounts through the service and log in with each right away, the other half
+     * keep logging in to one existing account, with the right and a wrong password.
+     *
+     * Expected: every registration can log in at once, logins to the existing account always find the same account
+     * and wrong passwords never log in
+     */
+    @Test
+    public void loginsInterleaveWithRegistrations() throws Exception {
+        int operations = 200;
+        Account steady = socialMediaService.createAccount(new Account("steady user", "password"));
+        Assert.assertNotNull(steady);
+        Set<Integer> accountIDs = ConcurrentHashMap.newKeySet();
+        long nanos = runConcurrently(thread -> {
+            for (int i = 0; i < operations; i++){
+                if (thread % 2 == 0){
+                    Account account = new Account("user " + thread + " " + i, "password");
+                    Account created = socialMediaService.createAccount(account);
+                    Assert.assertNotNull(created);
+                    Assert.assertTrue("Account id handed out twice", accountIDs.add(created.getAccount_id()));
+                    Assert.assertEquals(created, socialMediaService.userLogin(account));
+                }
+                else{
+                    Assert.assertEquals(steady, socialMediaService.userLogin(new Account("steady user", "password")));
+                    Assert.assertNull(socialMediaService.userLogin(new Account("steady user", "wrong password")));
+                }
+            }
+            return null;
+        });
+        Assert.assertEquals(THREADS / 2 * operations, accountIDs.size());
+        Assert.assertFalse(accountIDs.contains(steady.getAccount_id()));
+        report("registrations and logins", THREADS * operations * 3 / 2, nanos);
+    }
+
+    /**
+     * All threads create, read, update and delete messages of a few accounts through the service, mostly picking the
+     * same few messages so that they keep running into each other.
+     *
+     * Expected: each message is deleted by one thread only, a deleted message stays deleted, a message's text is one
+     * some thread wrote, and the statistics of every account agree with its messages
+     */
+    @Test
+    public void concurrentWritesToSameMessages() throws Exception {
+        int operations = 300;
+        int accounts = 4;
+        int hotMessages = 10;
+        //Messages seeded before the test are left alone
+        Set<Integer> seeded = new HashSet<Integer>();
+        for (Message message : socialMediaService.getAllMessages()){
+            seeded.add(message.getMessage_id());
+        }
+        int[] accountIDs = new int[accounts];
+        for (int i = 0; i < accounts; i++){
+            accountIDs[i] = socialMediaService.createAccount(new Account("writer " + i, "password")).getAccount_id();
+        }
+        //Ids of every message created, the first few are the ones most operations pick
+        AtomicIntegerArray messageIDs = new AtomicIntegerArray(hotMessages + THREADS * operations);
+        AtomicInteger messagesCreated = new AtomicInteger();
+        for (int i = 0; i < hotMessages; i++){
+            messageIDs.set(messagesCreated.getAndIncrement(),
+                    socialMediaService.createMessage(new Message(accountIDs[i % accounts], "hot " + i, i)).getMessage_id());
+        }
+        //How often each message was deleted, and every text written to one
+        Map<Integer, AtomicInteger> deletions = new ConcurrentHashMap<Integer, AtomicInteger>();
+        Set<String> textsWritten = ConcurrentHashMap.newKeySet();
+        long nanos = runConcurrently(thread -> {
+            Random random = new Random(thread);
+            for (int i = 0; i < operations; i++){
+                int created = messagesCreated.get();
+                int messageID = messageIDs.get(random.nextInt(4) == 0 ? random.nextInt(created) : random.nextInt(hotMessages));
+                int operation = random.nextInt(10);
+                if (operation < 4){
+                    Message message = socialMediaService.createMessage(new Message(accountIDs[random.nextInt(accounts)],
+                            "created " + thread + " " + i, 1000 + i));
+                    Assert.assertNotNull(message);
+                    messageIDs.set(messagesCreated.getAndIncrement(), message.getMessage_id());
+                }
+                else if (operation < 7){
+                    String text = "updated " + thread + " " + i;
+                    textsWritten.add(text);
+                    Message updated = socialMediaService.updateMessageByID(new Message(0, text, 0), messageID);
+                    if (updated != null){
+                        Assert.assertEquals(text, updated.getMessage_text());
+                    }
+                }
+                else if (operation < 9){
+                    if (socialMediaService.deleteMessageByID(messageID) != null){
+                        deletions.computeIfAbsent(messageID, id -> new AtomicInteger()).incrementAndGet();
+                    }
+                }
+                else{
+                    Message message = socialMediaService.getMessageByID(messageID);
+                    if (message != null){
+                        Assert.assertEquals(messageID, message.getMessage_id());
+                    }
+                }
+            }
+            return null;
+        });
+
+        Set<Integer> survivors = new HashSet<Integer>();
+        for (Message message : socialMediaService.getAllMessages()){
+            if (seeded.contains(message.getMessage_id())){
+                continue;
+            }
+            Assert.assertTrue("Message listed twice", survivors.add(message.getMessage_id()));
+            Assert.assertFalse("Deleted message " + message + " is back", deletions.containsKey(message.getMessage_id()));
+            String text = message.getMessage_text();
+            Assert.assertTrue("Unexpected text " + text, textsWritten.contains(text) || text.startsWith("created ")
+                    || text.startsWith("hot "));
+        }
+        for (Map.Entry<Integer, AtomicInteger> deletion : deletions.entrySet()){
+            Assert.assertEquals("Message " + deletion.getKey() + " deleted twice", 1, deletion.getValue().get());
+            Assert.assertNull(socialMediaService.getMessageByID(deletion.getKey()));
+        }
+        Assert.assertEquals(messagesCreated.get() - deletions.size(), survivors.size());
+        int posted = 0;
+        for (int accountID : accountIDs){
+            List<Message> messages = socialMediaService.getMessagesByUserID(accountID);
+            Assert.assertEquals(messages.size(), socialMediaService.getAccountStats(accountID).getMessage_count());
+            posted += messages.size();
+        }
+        Assert.assertEquals(survivors.size(), posted);
+        Assert.assertEquals(new ArrayList<Object>(), socialMediaService.checkAccountStats(false));
+        report("message writes", THREADS * operations, nanos);
+    }
+
+    /**
+     * Runs the task on every thread at once, rethrowing the first failure of any of them.
+     *
+     * @param task given the thread's number
+     * @return nanoseconds until every thread was done
+     */
+    private long runConcurrently(ThreadTask task) throws Exception {
+        List<Future<Void>> results = new ArrayList<Future<Void>>();
+        long start = System.nanoTime();
+        for (int thread = 0; thread < THREADS; thread++){
+            int number = thread;
+            results.add(executor.submit((Callable<Void>) () -> task.run(number)));
+        }
+        for (Future<Void> result : results){
+            result.get(120, TimeUnit.SECONDS);
+        }
+        return System.nanoTime() - start;
+    }
+
+    private void report(String operations, int count, long nanos) {
+        System.out.printf("%-8s %-26s %6d ops in %6dms, %8.0f ops/s%n", name, operations, count,
+                TimeUnit.NANOSECONDS.toMillis(nanos), count / (nanos / 1e9));
+    }
+
+    private interface ThreadTask {
+        Void run(int thread) throws Exception;
+    }
+}
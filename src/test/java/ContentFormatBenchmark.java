@@ -0,0 +1,62 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import Controller.ContentNegotiator;
+import Model.Message;
+
+/**
+ * Benchmark comparing the formats the endpoints can speak on a list of messages, the payload of get /messages: the
+ * encoded size and how many lists per second each format encodes and decodes.
+ *
+ * This is not a test case, run it manually with:
+ *   mvn -q test-compile exec:java -Dexec.mainClass=ContentFormatBenchmark -Dexec.classpathScope=test
+ */
+public class ContentFormatBenchmark {
+    private static final int MESSAGES_PER_LIST = 100;
+    private static final int WARM_UP_ROUNDS = 20_000;
+    private static final int ROUNDS = 50_000;
+
+    public static void main(String[] args) throws IOException {
+        List<Message> messages = new ArrayList<Message>();
+        for (int i = 0; i < MESSAGES_PER_LIST; i++){
+            messages.add(new Message(i + 1, i % 10 + 1, "benchmark message number " + i + " with some ordinary text", 1669947792L + i));
+        }
+        ContentNegotiator contentNegotiator = new ContentNegotiator(new ObjectMapper());
+        TypeReference<List<Message>> listType = new TypeReference<List<Message>>() {};
+
+        System.out.printf("%d messages per list%n", MESSAGES_PER_LIST);
+        System.out.printf("%-30s %10s %14s %14s%n", "format", "bytes", "encodes/s", "decodes/s");
+        for (String mediaType : contentNegotiator.getMediaTypes()){
+            ObjectMapper mapper = contentNegotiator.getMapper(mediaType);
+            byte[] encoded = mapper.writeValueAsBytes(messages);
+            long sink = 0;
+            for (int i = 0; i < WARM_UP_ROUNDS; i++){
+                sink += mapper.writeValueAsBytes(messages).length;
+                sink += mapper.readValue(encoded, listType).size();
+            }
+
+            long start = System.nanoTime();
+            for (int i = 0; i < ROUNDS; i++){
+                sink += mapper.writeValueAsBytes(messages).length;
+            }
+            double encodes = ROUNDS / seconds(start);
+
+            start = System.nanoTime();
+            for (int i = 0; i < ROUNDS; i++){
+                sink += mapper.readValue(encoded, listType).size();
+            }
+            double decodes = ROUNDS / seconds(start);
+
+            //Printing the sink keeps the JIT from discarding the work
+            System.out.printf("%-30s %10d %14.0f %14.0f%s%n", mediaType, encoded.length, encodes, decodes, sink == 0 ? " " : "");
+        }
+    }
+
+    private static double seconds(long start) {
+        return (System.nanoTime() - start) / 1e9;
+    }
+}
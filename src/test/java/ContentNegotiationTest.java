@@ -0,0 +1,118 @@
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.cbor.databind.CBORMapper;
+import com.fasterxml.jackson.dataformat.smile.databind.SmileMapper;
+
+import Controller.ContentNegotiator;
+import Controller.SocialMediaController;
+import Model.Message;
+import Util.ConnectionUtil;
+import io.javalin.Javalin;
+
+public class ContentNegotiationTest {
+    SocialMediaController socialMediaController;
+    HttpClient webClient;
+    ObjectMapper objectMapper;
+    Javalin app;
+    String baseUrl;
+
+    /**
+     * Before every test, reset the database, restart the Javalin app, and create a new webClient and ObjectMapper
+     * for interacting locally on the web.
+     * @throws InterruptedException
+     */
+    @Before
+    public void setUp() throws InterruptedException {
+        ConnectionUtil.resetTestDatabase();
+        socialMediaController = new SocialMediaController();
+        app = socialMediaController.startAPI();
+        webClient = HttpClient.newHttpClient();
+        objectMapper = new ObjectMapper();
+        baseUrl = TestServer.start(app);
+    }
+
+    @After
+    public void tearDown() {
+        app.stop();
+    }
+
+    /**
+     * Sending an http request to POST localhost:8080/messages with a Smile body, accepting Smile
+     *
+     * Expected Response:
+     *  Status Code: 200
+     *  Response Body: Smile representation of the created message
+     */
+    @Test
+    public void createMessageInSmile() throws IOException, InterruptedException {
+        SmileMapper smileMapper = new SmileMapper();
+        byte[] body = smileMapper.writeValueAsBytes(new Message(0, 1, "hello in smile", 1669947800));
+        HttpRequest request = HttpRequest.newBuilder()
+                .uri(URI.create(baseUrl + "/messages"))
+                .POST(HttpRequest.BodyPublishers.ofByteArray(body))
+                .header("Content-Type", ContentNegotiator.SMILE)
+                .header("Accept", ContentNegotiator.SMILE)
+                .build();
+        HttpResponse<byte[]> response = webClient.send(request, HttpResponse.BodyHandlers.ofByteArray());
+
+        Assert.assertEquals(200, response.statusCode());
+        Assert.assertEquals(ContentNegotiator.SMILE, response.headers().firstValue("Content-Type").orElse(""));
+        Assert.assertEquals(new Message(2, 1, "hello in smile", 1669947800), smileMapper.readValue(response.body(), Message.class));
+    }
+
+    /**
+     * Sending an http request to GET localhost:8080/messages listing CBOR first in Accept
+     *
+     * Expected Response:
+     *  Status Code: 200
+     *  Response Body: CBOR representation of a list of messages
+     */
+    @Test
+    public void getAllMessagesInCbor() throws IOException, InterruptedException {
+        HttpRequest request = HttpRequest.newBuilder()
+                .uri(URI.create(baseUrl + "/messages"))
+                .header("Accept", "application/cbor;q=0.9, application/json")
+                .build();
+        HttpResponse<byte[]> response = webClient.send(request, HttpResponse.BodyHandlers.ofByteArray());
+
+        Assert.assertEquals(200, response.statusCode());
+        Assert.assertEquals(ContentNegotiator.CBOR, response.headers().firstValue("Content-Type").orElse(""));
+        List<Message> expectedResult = new ArrayList<>();
+        expectedResult.add(new Message(1, 1, "test message 1", 1669947792));
+        Assert.assertEquals(expectedResult, new CBORMapper().readValue(response.body(), new TypeReference<List<Message>>(){}));
+    }
+
+    /**
+     * Sending an http request to GET localhost:8080/messages accepting only unsupported types
+     *
+     * Expected Response:
+     *  Status Code: 200
+     *  Response Body: JSON representation of a list of messages
+     */
+    @Test
+    public void unsupportedAcceptFallsBackToJson() throws IOException, InterruptedException {
+        HttpRequest request = HttpRequest.newBuilder()
+                .uri(URI.create(baseUrl + "/messages"))
+                .header("Accept", "application/xml, */*")
+                .build();
+        HttpResponse<String> response = webClient.send(request, HttpResponse.BodyHandlers.ofString());
+
+        Assert.assertEquals(200, response.statusCode());
+        Assert.assertEquals(ContentNegotiator.JSON, response.headers().firstValue("Content-Type").orElse(""));
+        List<Message> actualResult = objectMapper.readValue(response.body(), new TypeReference<List<Message>>(){});
+        Assert.assertEquals(1, actualResult.size());
+    }
+}
@@ -0,0 +1,275 @@
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.h2.api.ErrorCode;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import Controller.RateLimiter;
+import Controller.SocialMediaController;
+import DAO.DataAccessException;
+import DAO.SocialMediaDAO;
+import Model.AccountStats;
+import Model.Message;
+import Service.SocialMediaService;
+import Util.ConnectionUtil;
+import io.javalin.Javalin;
+
+public class DataAccessErrorTest {
+    SocialMediaController socialMediaController;
+    SocialMediaService socialMediaService;
+    HttpClient webClient;
+    ObjectMapper objectMapper;
+    Javalin app;
+    String baseUrl;
+    //Holds a row lock of account 1 while a test wants writes to it to wait
+    Connection lockHolder;
+
+    /**
+     * Before every test, reset the database, restart the Javalin app, and create a new webClient and ObjectMapper
+     * for interacting locally on the web.
+     * @throws InterruptedException
+     */
+    @Before
+    public void setUp() throws InterruptedException {
+        ConnectionUtil.resetTestDatabase();
+        socialMediaService = new SocialMediaService();
+        //Rate limits high enough that the stress test is never told to slow down
+        socialMediaController = new SocialMediaController(socialMediaService, new RateLimiter(100_000, 100_000, 1000),
+                new RateLimiter(100_000, 100_000, 1000));
+        app = socialMediaController.startAPI();
+        webClient = HttpClient.newHttpClient();
+        objectMapper = new ObjectMapper();
+        baseUrl = TestServer.start(app);
+    }
+
+    @After
+    public void tearDown() throws SQLException {
+        releaseLock();
+        app.stop();
+    }
+
+    /**
+     * H2's error codes are classified by what the caller can do about them.
+     */
+    @Test
+    public void errorCodesAreClassified() {
+        Assert.assertEquals(DataAccessException.Kind.TRANSIENT, kindOf(new SQLException("lock", "HYT00", ErrorCode.LOCK_TIMEOUT_1)));
+        Assert.assertEquals(DataAccessException.Kind.TRANSIENT, kindOf(new SQLException("deadlock", "40001", ErrorCode.DEADLOCK_1)));
+        Assert.assertEquals(DataAccessException.Kind.TRANSIENT, kindOf(new SQLTimeoutException("timeout")));
+        Assert.assertEquals(DataAccessException.Kind.NOT_FOUND,
+                kindOf(new SQLException("fk", "23506", ErrorCode.REFERENTIAL_INTEGRITY_VIOLATED_PARENT_MISSING_1)));
+        Assert.assertEquals(DataAccessException.Kind.CONSTRAINT_VIOLATION, kindOf(new SQLException("dup", "23505", ErrorCode.DUPLICATE_KEY_1)));
+        Assert.assertEquals(DataAccessException.Kind.CONSTRAINT_VIOLATION, kindOf(new SQLException("long", "22001", ErrorCode.VALUE_TOO_LONG_2)));
+        Assert.assertEquals(DataAccessException.Kind.FATAL, kindOf(new SQLException("closed", "90007", ErrorCode.OBJECT_CLOSED)));
+    }
+
+    /**
+     * The DAO still reports a missing author and a taken username as null, as the storage engine contract says, but a
+     * lock timeout is thrown as a transient failure where it used to be reported as null too.
+     */
+    @Test
+    public void daoThrowsTransientFailures() throws SQLException {
+        SocialMediaDAO dao = new SocialMediaDAO();
+        Assert.assertNull(dao.createMessage("hello", 99, 1));
+        Assert.assertNull(dao.createAccount("testuser1", "password"));
+
+        holdLock();
+        long start = System.nanoTime();
+        Assert.assertEquals(DataAccessException.Kind.TRANSIENT, kindOf(() -> dao.createMessage("hello", 1, 1)));
+        Assert.assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(ConnectionUtil.LOCK_TIMEOUT_MILLIS));
+        releaseLock();
+        Assert.assertNotNull(dao.createMessage("hello", 1, 1));
+    }
+
+    /**
+     * A write that times out on a lock released shortly after is retried by the service and succeeds.
+     */
+    @Test
+    public void serviceRetriesTransientFailures() throws Exception {
+        holdLock();
+        Thread releaser = new Thread(() -> {
+            try{
+                Thread.sleep(1200);
+                releaseLock();
+            }
+            catch(InterruptedException | SQLException e){
+                throw new RuntimeException(e);
+            }
+        });
+        releaser.start();
+        Message created = socialMediaService.createMessage(new Message(1, "after the lock", 1669947800L));
+        releaser.join();
+        Assert.assertNotNull(created);
+        Assert.assertTrue(socialMediaService.getRetryMetrics().get("retries") >= 1);
+        Assert.assertTrue(socialMediaService.getRetryMetrics().get("recovered") >= 1);
+        Assert.assertEquals(2, socialMediaService.getAccountStats(1).getMessage_count());
+    }
+
+    /**
+     * Sending an http request to POST localhost:8080/messages while the author's statistics stay locked
+     *
+     * Expected Response:
+     *  Status Code: 503 with Retry-After, once the retries are used up; the message was not created
+     */
+    @Test
+    public void lockedWriteIsServiceUnavailable() throws Exception {
+        holdLock();
+        HttpResponse<String> response = post("/messages", "{\"posted_by\":1,\"message_text\":\"locked out\",\"time_posted_epoch\":1669947800}");
+        Assert.assertEquals(503, response.statusCode());
+        Assert.assertEquals("1", response.headers().firstValue("Retry-After").orElse(""));
+        Assert.assertFalse(response.body().contains("Timeout"));
+        Assert.assertEquals(Long.valueOf(1), socialMediaService.getRetryMetrics().get("exhausted"));
+        releaseLock();
+        Assert.assertEquals(1, socialMediaService.getMessagesByUserID(1).size());
+
+        //The spec's answers to invalid input are unchanged
+        Assert.assertEquals(400, post("/messages", "{\"posted_by\":99,\"message_text\":\"nobody\",\"time_posted_epoch\":1}").statusCode());
+        Assert.assertEquals(400, post("/register", "{\"username\":\"testuser1\",\"password\":\"password\"}").statusCode());
+    }
+
+    /**
+     * Several clients post, update and delete messages of the same accounts at once while another connection keeps
+     * taking the accounts' statistics rows, twice for longer than the retries last. Every request either gets the
+     * answer the spec gives it or is told to come back, never a 500, and afterwards the statistics agree with the
+     * messages.
+     */
+    @Test
+    public void concurrentWritesStayConsistent() throws Exception {
+        int accounts = 4;
+        for (int i = 2; i <= accounts; i++){
+            Assert.assertEquals(200, post("/register", "{\"username\":\"writer" + i + "\",\"password\":\"password\"}").statusCode());
+        }
+        AtomicBoolean running = new AtomicBoolean(true);
+        //Status codes seen, by request method
+        Map<String, AtomicInteger> statuses = new ConcurrentHashMap<String, AtomicInteger>();
+        ExecutorService clients = Executors.newFixedThreadPool(6);
+        List<Future<?>> results = new ArrayList<Future<?>>();
+        for (int client = 0; client < 6; client++){
+            int seed = client;
+            results.add(clients.submit(() -> {
+                int request = 0;
+                while (running.get()){
+                    int account = 1 + (seed + request) % accounts;
+                    HttpResponse<String> response;
+                    if (request % 3 == 2){
+                        response = send(HttpRequest.newBuilder().uri(URI.create(baseUrl + "/messages/" + (1 + request % 20)))
+                                .method("PATCH", HttpRequest.BodyPublishers.ofString("{\"message_text\":\"edited " + request + "\"}")).build());
+                    }
+                    else if (request % 7 == 6){
+                        response = send(HttpRequest.newBuilder().uri(URI.create(baseUrl + "/messages/" + (1 + request % 20)))
+                                .DELETE().build());
+                    }
+                    else{
+                        response = post("/messages", "{\"posted_by\":" + account + ",\"message_text\":\"stress " + seed + " " + request
+                                + "\",\"time_posted_epoch\":" + request + "}");
+                    }
+                    statuses.computeIfAbsent(response.request().method() + " " + response.statusCode(), status -> new AtomicInteger()).incrementAndGet();
+                    request++;
+                }
+                return null;
+            }));
+        }
+        //Keep the statistics rows locked long enough for some writes to run out of retries
+        Thread hog = new Thread(() -> {
+            try{
+                for (int round = 0; round < 2 && running.get(); round++){
+                    Connection connection = ConnectionUtil.getConnection();
+                    connection.setAutoCommit(false);
+                    connection.createStatement().executeUpdate("UPDATE account_stats SET message_count = message_count");
+                    Thread.sleep(4000);
+                    connection.rollback();
+                    connection.close();
+                    Thread.sleep(500);
+                }
+            }
+            catch(InterruptedException | SQLException e){
+                throw new RuntimeException(e);
+            }
+        });
+        hog.start();
+        hog.join();
+        Thread.sleep(1000);
+        running.set(false);
+        for (Future<?> result : results){
+            result.get(60, TimeUnit.SECONDS);
+        }
+        clients.shutdown();
+
+        for (String status : statuses.keySet()){
+            //Updating a message deleted meanwhile is a 400 in the spec
+            Assert.assertTrue("Unexpected " + status + " in " + statuses, status.endsWith(" 200") || status.endsWith(" 503")
+                    || status.equals("PATCH 400"));
+        }
+        Assert.assertTrue(statuses.toString(), statuses.get("POST 200").get() > 0);
+        Assert.assertTrue(statuses.toString(), statuses.containsKey("POST 503"));
+        Assert.assertEquals(new ArrayList<AccountStats>(), socialMediaService.checkAccountStats(false));
+        int messages = 0;
+        for (int account = 1; account <= accounts; account++){
+            List<Message> posted = objectMapper.readValue(send(HttpRequest.newBuilder()
+                    .uri(URI.create(baseUrl + "/accounts/" + account + "/messages")).build()).body(), new TypeReference<List<Message>>(){});
+            Assert.assertEquals(posted.size(), socialMediaService.getAccountStats(account).getMessage_count());
+            messages += posted.size();
+        }
+        Assert.assertEquals(messages, socialMediaService.getAllMessages().size());
+    }
+
+    private void holdLock() throws SQLException {
+        lockHolder = ConnectionUtil.getConnection();
+        lockHolder.setAutoCommit(false);
+        lockHolder.createStatement().executeUpdate("UPDATE account_stats SET message_count = message_count WHERE account_id = 1");
+    }
+
+    private synchronized void releaseLock() throws SQLException {
+        if (lockHolder != null){
+            lockHolder.rollback();
+            lockHolder.close();
+            lockHolder = null;
+        }
+    }
+
+    private HttpResponse<String> post(String path, String body) throws IOException, InterruptedException {
+        return send(HttpRequest.newBuilder().uri(URI.create(baseUrl + path))
+                .POST(HttpRequest.BodyPublishers.ofString(body)).build());
+    }
+
+    private HttpResponse<String> send(HttpRequest request) throws IOException, InterruptedException {
+        return webClient.send(request, HttpResponse.BodyHandlers.ofString());
+    }
+
+    private static DataAccessException.Kind kindOf(SQLException e) {
+        return DataAccessException.from(e).getKind();
+    }
+
+    private static DataAccessException.Kind kindOf(Runnable operation) {
+        try{
+            operation.run();
+        }
+        catch(DataAccessException e){
+            return e.getKind();
+        }
+        Assert.fail("Expected a DataAccessException");
+        return null;
+    }
+}
@@ -0,0 +1,132 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Stream;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import DAO.ShardedSocialMediaDAO;
+import DAO.SocialMediaDAO;
+import DAO.TimelineEntry;
+import Model.Message;
+import Util.ConnectionUtil;
+import Util.DatabaseSnapshot;
+
+/**
+ * Tests for online snapshots of the H2 databases and restoring them.
+ */
+public class DatabaseSnapshotTest {
+    Path directory;
+    SocialMediaDAO socialMediaDAO;
+
+    @Before
+    public void setUp() throws IOException {
+        ConnectionUtil.resetTestDatabase();
+        directory = Files.createTempDirectory("database-snapshot-test");
+        socialMediaDAO = new SocialMediaDAO();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        try (Stream<Path> files = Files.walk(directory)){
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+        ConnectionUtil.resetTestDatabase();
+    }
+
+    @Test
+    public void restoreReturnsEveryTableToTheSnapshot() {
+        int secondID = socialMediaDAO.createAccount("second", "password").getAccount_id();
+        socialMediaDAO.createMessage("it's quoted", secondID, 5);
+        socialMediaDAO.createMessage("caf\u00e9 \u2615", 1, 6);
+        socialMediaDAO.follow(1, secondID);
+        socialMediaDAO.addTimelineEntries(new int[] {1}, new TimelineEntry[] {new TimelineEntry(2, 5)});
+        List<Message> messages = socialMediaDAO.getAllMessages();
+        Assert.assertNotNull(socialMediaDAO.snapshot(directory, 0));
+        Assert.assertTrue(Files.exists(DatabaseSnapshot.getFile(directory, 0)));
+
+        socialMediaDAO.createAccount("after snapshot", "password");
+        socialMediaDAO.createMessage("after snapshot", 1, 7);
+        socialMediaDAO.deleteMessageByID(2);
+        Assert.assertTrue(socialMediaDAO.restore(directory));
+
+        Assert.assertEquals(messages, socialMediaDAO.getAllMessages());
+        Assert.assertNull(socialMediaDAO.userLogin("after snapshot", "password"));
+        Assert.assertEquals(Arrays.asList(secondID), socialMediaDAO.getFolloweeIDs(1));
+        Assert.assertEquals(Arrays.asList(new TimelineEntry(2, 5)), socialMediaDAO.getTimelineEntries(1, 10));
+        Assert.assertEquals(2, socialMediaDAO.getAccountStats(1).getMessage_count());
+        Assert.assertTrue(socialMediaDAO.checkAccountStats(false).isEmpty());
+        //Keys, identities and foreign keys are back too
+        Assert.assertNull(socialMediaDAO.createAccount("second", "password"));
+        Assert.assertNull(socialMediaDAO.createMessage("no such author", 9999, 8));
+        Message created = socialMediaDAO.createMessage("after restore", 1, 8);
+        Assert.assertTrue(created.getMessage_id() > messages.get(messages.size() - 1).getMessage_id());
+    }
+
+    @Test
+    public void snapshotIsConsistentWhileWritesGoOn() throws Exception {
+        List<Message> batch = new ArrayList<Message>();
+        for (int i = 0; i < 5000; i++){
+            batch.add(new Message(1, "seeded message " + i, i));
+        }
+        socialMediaDAO.createMessages(batch);
+        int seeded = socialMediaDAO.getAccountStats(1).getMessage_count();
+        //Slow enough that the writes below land while the rows are being read
+        CompletableFuture<Long> snapshot = CompletableFuture.supplyAsync(() -> socialMediaDAO.snapshot(directory, 100 * 1024));
+        int written = 0;
+        while (!snapshot.isDone()){
+            socialMediaDAO.createMessage("written during the snapshot", 1, 10_000 + written++);
+        }
+        Assert.assertNotNull(snapshot.get());
+        Assert.assertTrue(written > 0);
+
+        Assert.assertTrue(socialMediaDAO.restore(directory));
+        int restored = socialMediaDAO.getAccountStats(1).getMessage_count();
+        Assert.assertTrue(restored >= seeded && restored < seeded + written);
+        //Messages and statistics come from the same moment
+        Assert.assertTrue(socialMediaDAO.checkAccountStats(false).isEmpty());
+    }
+
+    @Test
+    public void failedSnapshotLeavesNoFile() throws IOException {
+        Path file = DatabaseSnapshot.getFile(directory, 0);
+        Files.createDirectories(file.resolveSibling(file.getFileName() + ".partial"));
+        Assert.assertNull(socialMediaDAO.snapshot(directory, 0));
+        Assert.assertFalse(Files.exists(file));
+    }
+
+    @Test
+    public void shardedSnapshotRestoresEveryShard() {
+        ConnectionUtil.resetShardDatabases(3);
+        ShardedSocialMediaDAO shardedDAO = new ShardedSocialMediaDAO(3);
+        try{
+            shardedDAO.createAccount("second", "password");
+            shardedDAO.createAccount("third", "password");
+            for (int accountID = 1; accountID <= 3; accountID++){
+                shardedDAO.createMessage("on shard " + accountID % 3, accountID, accountID);
+            }
+            List<Message> messages = shardedDAO.getAllMessages();
+            Assert.assertNotNull(shardedDAO.snapshot(directory, 0));
+            for (int shard = 0; shard < 3; shard++){
+                Assert.assertTrue(Files.exists(DatabaseSnapshot.getFile(directory, shard)));
+            }
+
+            for (Message message : messages){
+                shardedDAO.deleteMessageByID(message.getMessage_id());
+            }
+            Assert.assertTrue(shardedDAO.restore(directory));
+            Assert.assertEquals(messages, shardedDAO.getAllMessages());
+        }
+        finally{
+            shardedDAO.close();
+        }
+    }
+}
@@ -0,0 +1,145 @@
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import Controller.SocialMediaController;
+import Model.Account;
+import Model.Follow;
+import Model.Message;
+import Util.ConnectionUtil;
+import io.javalin.Javalin;
+
+public class HomeTimelineTest {
+    SocialMediaController socialMediaController;
+    HttpClient webClient;
+    ObjectMapper objectMapper;
+    Javalin app;
+    String baseUrl;
+
+    /**
+     * Before every test, reset the database, restart the Javalin app, and create a new webClient and ObjectMapper
+     * for interacting locally on the web.
+     * @throws InterruptedException
+     */
+    @Before
+    public void setUp() throws InterruptedException {
+        ConnectionUtil.resetTestDatabase();
+        socialMediaController = new SocialMediaController();
+        app = socialMediaController.startAPI();
+        webClient = HttpClient.newHttpClient();
+        objectMapper = new ObjectMapper();
+        baseUrl = TestServer.start(app);
+    }
+
+    @After
+    public void tearDown() {
+        app.stop();
+    }
+
+    /**
+     * Sending an http request to POST localhost:8080/accounts/1/follow with body {"follower_id": 2}
+     *
+     * Expected Response:
+     *  Status Code: 200
+     *  Response Body: the Follow, after which GET localhost:8080/accounts/2/timeline holds account 1's messages,
+     *  including ones posted before and after the follow, newest first
+     */
+    @Test
+    public void followThenReadTimeline() throws IOException, InterruptedException {
+        int followerID = register("follower");
+        HttpResponse<String> response = follow(followerID, 1);
+        Assert.assertEquals(200, response.statusCode());
+        Assert.assertEquals(new Follow(followerID, 1), objectMapper.readValue(response.body(), Follow.class));
+
+        Message posted = postMessage(1, "after the follow", 1669947800L);
+        Message seeded = new Message(1, 1, "test message 1", 1669947792L);
+        Assert.assertEquals(Arrays.asList(posted, seeded), getTimeline(followerID, ""));
+        Assert.assertEquals(Arrays.asList(posted), getTimeline(followerID, "?limit=1"));
+        //Account 1 follows nobody
+        Assert.assertEquals(Arrays.asList(), getTimeline(1, ""));
+    }
+
+    /**
+     * Following yourself or an account that does not exist
+     *
+     * Expected Response:
+     *  Status Code: 400
+     */
+    @Test
+    public void followInvalid() throws IOException, InterruptedException {
+        Assert.assertEquals(400, follow(1, 1).statusCode());
+        Assert.assertEquals(400, follow(1, 100).statusCode());
+        Assert.assertEquals(400, follow(100, 1).statusCode());
+    }
+
+    /**
+     * Sending an http request to GET localhost:8080/accounts/100/timeline (account does not exist)
+     *
+     * Expected Response:
+     *  Status Code: 200
+     *  Response Body:
+     */
+    @Test
+    public void getTimelineAccountNotFound() throws IOException, InterruptedException {
+        HttpResponse<String> response = send(HttpRequest.newBuilder()
+                .uri(URI.create(baseUrl + "/accounts/100/timeline")).build());
+        Assert.assertEquals(200, response.statusCode());
+        Assert.assertTrue(response.body().isEmpty());
+
+        response = send(HttpRequest.newBuilder()
+                .uri(URI.create(baseUrl + "/accounts/1/timeline?limit=zero")).build());
+        Assert.assertEquals(400, response.statusCode());
+    }
+
+    private int register(String username) throws IOException, InterruptedException {
+        HttpResponse<String> response = send(HttpRequest.newBuilder()
+                .uri(URI.create(baseUrl + "/register"))
+                .POST(HttpRequest.BodyPublishers.ofString("{\"username\":\"" + username + "\", \"password\":\"password\"}"))
+                .header("Content-Type", "application/json")
+                .build());
+        Assert.assertEquals(200, response.statusCode());
+        return objectMapper.readValue(response.body(), Account.class).getAccount_id();
+    }
+
+    private HttpResponse<String> follow(int followerID, int followeeID) throws IOException, InterruptedException {
+        return send(HttpRequest.newBuilder()
+                .uri(URI.create(baseUrl + "/accounts/" + followeeID + "/follow"))
+                .POST(HttpRequest.BodyPublishers.ofString("{\"follower_id\":" + followerID + "}"))
+                .header("Content-Type", "application/json")
+                .build());
+    }
+
+    private Message postMessage(int postedBy, String text, long postedAt) throws IOException, InterruptedException {
+        HttpResponse<String> response = send(HttpRequest.newBuilder()
+                .uri(URI.create(baseUrl + "/messages"))
+                .POST(HttpRequest.BodyPublishers.ofString("{\"posted_by\":" + postedBy + ", \"message_text\": \"" + text
+                        + "\", \"time_posted_epoch\": " + postedAt + "}"))
+                .header("Content-Type", "application/json")
+                .build());
+        Assert.assertEquals(200, response.statusCode());
+        return objectMapper.readValue(response.body(), Message.class);
+    }
+
+    private List<Message> getTimeline(int accountID, String query) throws IOException, InterruptedException {
+        HttpResponse<String> response = send(HttpRequest.newBuilder()
+                .uri(URI.create(baseUrl + "/accounts/" + accountID + "/timeline" + query)).build());
+        Assert.assertEquals(200, response.statusCode());
+        return objectMapper.readValue(response.body(), new TypeReference<List<Message>>(){});
+    }
+
+    private HttpResponse<String> send(HttpRequest request) throws IOException, InterruptedException {
+        return webClient.send(request, HttpResponse.BodyHandlers.ofString());
+    }
+}
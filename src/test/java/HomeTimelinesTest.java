@@ -0,0 +1,240 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import DAO.InMemoryStorageEngine;
+import DAO.ShardedSocialMediaDAO;
+import DAO.SocialMediaDAO;
+import DAO.StorageEngine;
+import DAO.TimelineEntry;
+import Model.Message;
+import Service.HomeTimelines;
+import Service.MessageEvent;
+import Util.ConnectionUtil;
+
+/**
+ * Tests for HomeTimelines: fan-out-on-write to followers, fan-out-on-read for accounts above the celebrity threshold,
+ * bounded rings, and cold inboxes loaded from the timeline table or rebuilt from the follow graph.
+ */
+public class HomeTimelinesTest {
+    private static final int CAPACITY = 3;
+    //Accounts with two or more followers are celebrities
+    private static final int CELEBRITY_THRESHOLD = 2;
+
+    StorageEngine storageEngine;
+    HomeTimelines homeTimelines;
+    int reader;
+    int otherReader;
+    int author;
+
+    @Before
+    public void setUp() {
+        storageEngine = new InMemoryStorageEngine();
+        homeTimelines = new HomeTimelines(storageEngine, CAPACITY, CELEBRITY_THRESHOLD);
+        reader = storageEngine.createAccount("reader", "password").getAccount_id();
+        otherReader = storageEngine.createAccount("other reader", "password").getAccount_id();
+        author = storageEngine.createAccount("author", "password").getAccount_id();
+    }
+
+    private int post(int postedBy) {
+        return post(postedBy, 1000);
+    }
+
+    private int post(int postedBy, long postedAt) {
+        Message message = storageEngine.createMessage("post", postedBy, postedAt);
+        homeTimelines.onMessageEvent(new MessageEvent(MessageEvent.Type.CREATED, message));
+        return message.getMessage_id();
+    }
+
+    @Test
+    public void followBackfillsAndPostsFanOut() {
+        int before = post(author);
+        Assert.assertTrue(homeTimelines.follow(reader, author));
+        Assert.assertArrayEquals(new int[] {before}, homeTimelines.getMessageIDs(reader));
+
+        int after = post(author);
+        Assert.assertArrayEquals(new int[] {after, before}, homeTimelines.getMessageIDs(reader));
+        Assert.assertEquals(Long.valueOf(1), homeTimelines.getMetrics().get("fanOutEntries"));
+        //Nobody follows the reader, so its own posts go nowhere
+        post(reader);
+        Assert.assertArrayEquals(new int[0], homeTimelines.getMessageIDs(otherReader));
+    }
+
+    @Test
+    public void ringKeepsNewestIDs() {
+        homeTimelines.follow(reader, author);
+        homeTimelines.getMessageIDs(reader);
+        int[] posted = new int[5];
+        for (int i = 0; i < posted.length; i++){
+            posted[i] = post(author);
+        }
+        Assert.assertArrayEquals(new int[] {posted[4], posted[3], posted[2]}, homeTimelines.getMessageIDs(reader));
+    }
+
+    @Test
+    public void deletedMessagesLeaveTheRing() {
+        homeTimelines.follow(reader, author);
+        homeTimelines.getMessageIDs(reader);
+        int kept = post(author);
+        Message deleted = storageEngine.deleteMessageByID(post(author));
+        homeTimelines.onMessageEvent(new MessageEvent(MessageEvent.Type.DELETED, deleted));
+        Assert.assertArrayEquals(new int[] {kept}, homeTimelines.getMessageIDs(reader));
+    }
+
+    @Test
+    public void celebrityPostsAreMergedAtReadTime() {
+        homeTimelines.follow(reader, author);
+        homeTimelines.follow(otherReader, author);
+        homeTimelines.follow(reader, otherReader);
+
+        int celebrityPost = post(author);
+        int ordinaryPost = post(otherReader);
+        Assert.assertArrayEquals(new int[] {ordinaryPost, celebrityPost}, homeTimelines.getMessageIDs(reader));
+        Assert.assertArrayEquals(new int[] {celebrityPost}, homeTimelines.getMessageIDs(otherReader));
+        Assert.assertEquals(Long.valueOf(1), homeTimelines.getMetrics().get("celebrityPosts"));
+        Assert.assertEquals(Long.valueOf(1), homeTimelines.getMetrics().get("fanOutEntries"));
+    }
+
+    @Test
+    public void coldInboxIsRebuiltFromFollowGraph() {
+        homeTimelines.follow(reader, author);
+        int first = post(author);
+        int second = post(author);
+
+        //A fresh instance has nothing in memory, as after a restart
+        HomeTimelines restarted = new HomeTimelines(storageEngine, CAPACITY, CELEBRITY_THRESHOLD);
+        Assert.assertArrayEquals(new int[] {second, first}, restarted.getMessageIDs(reader));
+        Assert.assertEquals(Long.valueOf(1), restarted.getMetrics().get("coldLoads"));
+    }
+
+    /**
+     * A post fanned out while a reader's cold inbox is being rebuilt from storage.
+     *
+     * Expected: the writer pushes to the ring without waiting for the load, and the reader gets both
+     */
+    @Test
+    public void pushDoesNotWaitForAColdLoad() throws Exception {
+        CountDownLatch loading = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicBoolean blocking = new AtomicBoolean();
+        storageEngine = new InMemoryStorageEngine(){
+            @Override
+            public List<Message> getNewestMessagesByUserID(int userID, int limit){
+                if (blocking.get()){
+                    loading.countDown();
+                    try{
+                        release.await();
+                    }
+                    catch(InterruptedException e){
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                return super.getNewestMessagesByUserID(userID, limit);
+            }
+        };
+        reader = storageEngine.createAccount("reader", "password").getAccount_id();
+        author = storageEngine.createAccount("author", "password").getAccount_id();
+        homeTimelines = new HomeTimelines(storageEngine, CAPACITY, CELEBRITY_THRESHOLD);
+        int before = post(author);
+        homeTimelines.follow(reader, author);
+
+        HomeTimelines restarted = new HomeTimelines(storageEngine, CAPACITY, CELEBRITY_THRESHOLD);
+        blocking.set(true);
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try{
+            Future<int[]> read = executor.submit(() -> restarted.getMessageIDs(reader));
+            Assert.assertTrue(loading.await(10, TimeUnit.SECONDS));
+            Message message = storageEngine.createMessage("post", author, 2000);
+            executor.submit(() -> restarted.onMessageEvent(new MessageEvent(MessageEvent.Type.CREATED, message)))
+                    .get(10, TimeUnit.SECONDS);
+            release.countDown();
+            Assert.assertArrayEquals(new int[] {message.getMessage_id(), before}, read.get(10, TimeUnit.SECONDS));
+        }
+        finally{
+            release.countDown();
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void coldInboxIsLoadedFromTimelineTable() {
+        ConnectionUtil.resetTestDatabase();
+        storageEngine = new SocialMediaDAO();
+        homeTimelines = new HomeTimelines(storageEngine, CAPACITY, CELEBRITY_THRESHOLD);
+        reader = storageEngine.createAccount("reader", "password").getAccount_id();
+        author = storageEngine.createAccount("author", "password").getAccount_id();
+        homeTimelines.follow(reader, author);
+        int[] posted = new int[5];
+        for (int i = 0; i < posted.length; i++){
+            posted[i] = post(author);
+        }
+        Assert.assertEquals(Arrays.asList(posted[4], posted[3], posted[2], posted[1], posted[0]), timelineTable(reader));
+
+        HomeTimelines restarted = new HomeTimelines(storageEngine, CAPACITY, CELEBRITY_THRESHOLD);
+        Assert.assertArrayEquals(new int[] {posted[4], posted[3], posted[2]}, restarted.getMessageIDs(reader));
+        //Loading a full ring trims the older entries from the table
+        Assert.assertEquals(Arrays.asList(posted[4], posted[3], posted[2]), timelineTable(reader));
+    }
+
+    /**
+     * An author on one shard posts many messages, then an author on a shard with far fewer posts a newer one. The
+     * global ids of the quiet shard stay below those of the busy one.
+     *
+     * Expected: the newer post leads the timeline in memory and in the timeline table, instead of sorting below the
+     * busy author's older posts and falling out of the ring
+     */
+    @Test
+    public void shardedTimelineFollowsPostingOrder() {
+        ConnectionUtil.resetTestDatabase();
+        ConnectionUtil.resetShardDatabases(3);
+        ShardedSocialMediaDAO shardedDAO = new ShardedSocialMediaDAO(3);
+        try{
+            storageEngine = shardedDAO;
+            homeTimelines = new HomeTimelines(storageEngine, CAPACITY, CELEBRITY_THRESHOLD);
+            //Accounts 2 and 3, posting to shards 2 and 0
+            int busy = storageEngine.createAccount("busy", "password").getAccount_id();
+            int quiet = storageEngine.createAccount("quiet", "password").getAccount_id();
+            reader = storageEngine.createAccount("reader", "password").getAccount_id();
+            homeTimelines.follow(reader, busy);
+            homeTimelines.follow(reader, quiet);
+            homeTimelines.getMessageIDs(reader);
+
+            int[] busyPosts = new int[5];
+            for (int i = 0; i < busyPosts.length; i++){
+                busyPosts[i] = post(busy, 1000 + i);
+            }
+            int quietPost = post(quiet, 2000);
+            Assert.assertTrue(quietPost < busyPosts[4]);
+            Assert.assertArrayEquals(new int[] {quietPost, busyPosts[4], busyPosts[3]}, homeTimelines.getMessageIDs(reader));
+            //A ring's worth of evictions trimmed the table, keeping the newest entries by time posted
+            Assert.assertEquals(Arrays.asList(quietPost, busyPosts[4], busyPosts[3]), timelineTable(reader));
+
+            HomeTimelines restarted = new HomeTimelines(storageEngine, CAPACITY, CELEBRITY_THRESHOLD);
+            Assert.assertArrayEquals(new int[] {quietPost, busyPosts[4], busyPosts[3]}, restarted.getMessageIDs(reader));
+        }
+        finally{
+            shardedDAO.close();
+        }
+    }
+
+    /**
+     * @return ids of the account's entries in the timeline table, newest first
+     */
+    private List<Integer> timelineTable(int accountID) {
+        List<Integer> messageIDs = new ArrayList<>();
+        for (TimelineEntry entry : storageEngine.getTimelineEntries(accountID, 10)){
+            messageIDs.add(entry.getMessageID());
+        }
+        return messageIDs;
+    }
+}
@@ -0,0 +1,268 @@
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import Controller.IdempotencyStore;
+import Controller.RateLimiter;
+import Controller.SocialMediaController;
+import Model.Account;
+import Model.Message;
+import Service.SocialMediaService;
+import Util.ConnectionUtil;
+import io.javalin.Javalin;
+
+public class IdempotencyKeyTest {
+    SocialMediaController socialMediaController;
+    SocialMediaService socialMediaService;
+    HttpClient webClient;
+    ObjectMapper objectMapper;
+    Javalin app;
+    String baseUrl;
+    //Messages the service was asked to create
+    AtomicInteger createCalls = new AtomicInteger();
+    //How long each creation takes, so concurrent duplicates overlap
+    volatile long createDelayMillis;
+
+    /**
+     * Before every test, reset the database, restart the Javalin app, and create a new webClient and ObjectMapper
+     * for interacting locally on the web.
+     * @throws InterruptedException
+     */
+    @Before
+    public void setUp() throws InterruptedException {
+        ConnectionUtil.resetTestDatabase();
+        socialMediaService = new SocialMediaService(){
+            @Override
+            public Message createMessage(Message message){
+                createCalls.incrementAndGet();
+                try{
+                    Thread.sleep(createDelayMillis);
+                }
+                catch(InterruptedException e){
+                    Thread.currentThread().interrupt();
+                }
+                return super.createMessage(message);
+            }
+        };
+        socialMediaController = new SocialMediaController(socialMediaService, new RateLimiter(100_000, 100_000, 1000),
+                new RateLimiter(100_000, 100_000, 1000));
+        app = socialMediaController.startAPI();
+        webClient = HttpClient.newHttpClient();
+        objectMapper = new ObjectMapper();
+        baseUrl = TestServer.start(app);
+    }
+
+    @After
+    public void tearDown() {
+        app.stop();
+    }
+
+    /**
+     * Sending an http request to POST localhost:8080/messages twice with the same Idempotency-Key
+     *
+     * Expected Response:
+     *  Status Code: 200 both times with the same message, the second marked as replayed; only one message is created
+     */
+    @Test
+    public void retriedPostCreatesOneMessage() throws IOException, InterruptedException {
+        String body = "{\"posted_by\":1,\"message_text\":\"sent twice\",\"time_posted_epoch\":1669947800}";
+        HttpResponse<String> first = post("/messages", body, "key-1");
+        HttpResponse<String> retry = post("/messages", body, "key-1");
+        Assert.assertEquals(200, first.statusCode());
+        Assert.assertEquals(200, retry.statusCode());
+        Assert.assertEquals(first.body(), retry.body());
+        Assert.assertTrue(first.headers().firstValue("Content-Type").get().startsWith("application/json"));
+        Assert.assertEquals(first.headers().firstValue("Content-Type"), retry.headers().firstValue("Content-Type"));
+        Assert.assertFalse(first.headers().firstValue("Idempotent-Replayed").isPresent());
+        Assert.assertEquals("true", retry.headers().firstValue("Idempotent-Replayed").orElse(""));
+        Assert.assertEquals(1, createCalls.get());
+        Assert.assertEquals(2, socialMediaService.getMessagesByUserID(1).size());
+
+        //Another key, or none, is another message
+        Assert.assertEquals(200, post("/messages", body, "key-2").statusCode());
+        Assert.assertEquals(200, post("/messages", body, null).statusCode());
+        Assert.assertEquals(4, socialMediaService.getMessagesByUserID(1).size());
+        Message replayed = objectMapper.readValue(retry.body(), Message.class);
+        Assert.assertEquals(new Message(replayed.getMessage_id(), 1, "sent twice", 1669947800), replayed);
+    }
+
+    /**
+     * Sending an http request to POST localhost:8080/messages with an Idempotency-Key used before for another body
+     *
+     * Expected Response:
+     *  Status Code: 422, nothing is created
+     */
+    @Test
+    public void reusedKeyWithAnotherBodyIsRejected() throws IOException, InterruptedException {
+        Assert.assertEquals(200, post("/messages", "{\"posted_by\":1,\"message_text\":\"first\",\"time_posted_epoch\":1}", "key").statusCode());
+        Assert.assertEquals(422, post("/messages", "{\"posted_by\":1,\"message_text\":\"second\",\"time_posted_epoch\":1}", "key").statusCode());
+        Assert.assertEquals(1, createCalls.get());
+        //Keys are scoped to the endpoint
+        Assert.assertEquals(200, post("/register", "{\"username\":\"keyed\",\"password\":\"password\"}", "key").statusCode());
+        Assert.assertEquals(400, post("/messages", "{}", " ").statusCode());
+    }
+
+    /**
+     * Sending an http request to POST localhost:8080/register twice with the same Idempotency-Key
+     *
+     * Expected Response:
+     *  Status Code: 200 with the same account both times, where a plain retry would be a 400 for the taken username
+     */
+    @Test
+    public void retriedRegistrationGetsTheAccount() throws IOException, InterruptedException {
+        String body = "{\"username\":\"retrying user\",\"password\":\"password\"}";
+        HttpResponse<String> first = post("/register", body, "register-1");
+        HttpResponse<String> retry = post("/register", body, "register-1");
+        Assert.assertEquals(200, retry.statusCode());
+        Assert.assertEquals(objectMapper.readValue(first.body(), Account.class), objectMapper.readValue(retry.body(), Account.class));
+        Assert.assertEquals(400, post("/register", body, null).statusCode());
+        //Answers to invalid input are kept too
+        Assert.assertEquals(400, post("/register", "{\"username\":\"\",\"password\":\"password\"}", "register-2").statusCode());
+        Assert.assertEquals(400, post("/register", "{\"username\":\"\",\"password\":\"password\"}", "register-2").statusCode());
+    }
+
+    /**
+     * Sending several http requests to POST localhost:8080/messages with the same Idempotency-Key at once
+     *
+     * Expected Response:
+     *  Status Code: 200 with the same message for all of them, which waited for the first rather than creating their own
+     */
+    @Test
+    public void concurrentDuplicatesWaitForTheFirst() throws Exception {
+        createDelayMillis = 500;
+        String body = "{\"posted_by\":1,\"message_text\":\"sent at once\",\"time_posted_epoch\":1669947800}";
+        ExecutorService clients = Executors.newFixedThreadPool(5);
+        List<Future<HttpResponse<String>>> responses = new ArrayList<Future<HttpResponse<String>>>();
+        for (int i = 0; i < 5; i++){
+            responses.add(clients.submit(() -> post("/messages", body, "concurrent")));
+        }
+        String created = null;
+        for (Future<HttpResponse<String>> response : responses){
+            HttpResponse<String> result = response.get(30, TimeUnit.SECONDS);
+            Assert.assertEquals(200, result.statusCode());
+            if (created == null){
+                created = result.body();
+            }
+            Assert.assertEquals(created, result.body());
+        }
+        clients.shutdown();
+        Assert.assertEquals(1, createCalls.get());
+        Assert.assertEquals(2, socialMediaService.getMessagesByUserID(1).size());
+    }
+
+    /**
+     * A request that fails with a 5xx, here because its transaction can't get a lock, leaves the key free, so the
+     * client's retry is carried out.
+     */
+    @Test
+    public void failedRequestCanBeRetried() throws Exception {
+        Connection lockHolder = ConnectionUtil.getConnection();
+        lockHolder.setAutoCommit(false);
+        lockHolder.createStatement().executeUpdate("UPDATE account_stats SET message_count = message_count WHERE account_id = 1");
+        String body = "{\"posted_by\":1,\"message_text\":\"after a failure\",\"time_posted_epoch\":1669947800}";
+        try{
+            Assert.assertEquals(503, post("/messages", body, "failing").statusCode());
+        }
+        finally{
+            lockHolder.rollback();
+            lockHolder.close();
+        }
+        HttpResponse<String> retry = post("/messages", body, "failing");
+        Assert.assertEquals(200, retry.statusCode());
+        Assert.assertFalse(retry.headers().firstValue("Idempotent-Replayed").isPresent());
+        Assert.assertEquals(2, socialMediaService.getMessagesByUserID(1).size());
+    }
+
+    /**
+     * Responses persisted to a file are still known to a store opened on it later, until they expire; the oldest keys
+     * are dropped once the store is full.
+     */
+    @Test
+    public void storeIsBoundedExpiresAndPersists() throws Exception {
+        Path directory = Files.createTempDirectory("idempotency-test");
+        Path file = directory.resolve("responses.ndjson");
+        try{
+            IdempotencyStore store = new IdempotencyStore(2, 60_000, file);
+            for (String key : new String[] {"a", "b", "c"}){
+                IdempotencyStore.Claim claim = store.claim(key, "body " + key, 0);
+                Assert.assertEquals(IdempotencyStore.Outcome.EXECUTE, claim.getOutcome());
+                claim.complete(new IdempotencyStore.StoredResponse(200, "application/json", key.getBytes()));
+            }
+            Assert.assertEquals(2, store.getKeyCount());
+            Assert.assertEquals(Long.valueOf(1), store.getMetrics().get("dropped"));
+            store.close();
+
+            IdempotencyStore reopened = new IdempotencyStore(2, 60_000, file);
+            Assert.assertEquals(IdempotencyStore.Outcome.EXECUTE, reopened.claim("a", "body a", 0).getOutcome());
+            IdempotencyStore.Claim replay = reopened.claim("c", "body c", 0);
+            Assert.assertEquals(IdempotencyStore.Outcome.REPLAY, replay.getOutcome());
+            Assert.assertEquals("c", new String(replay.getResponse().body));
+            Assert.assertEquals(IdempotencyStore.Outcome.MISMATCH, reopened.claim("c", "another body", 0).getOutcome());
+            //The claim on a is still running
+            Assert.assertEquals(IdempotencyStore.Outcome.IN_PROGRESS, reopened.claim("a", "body a", 10).getOutcome());
+            reopened.close();
+
+            IdempotencyStore expiring = new IdempotencyStore(10, 50, null);
+            expiring.claim("d", "body d", 0).complete(new IdempotencyStore.StoredResponse(200, null, new byte[0]));
+            Assert.assertEquals(IdempotencyStore.Outcome.REPLAY, expiring.claim("d", "body d", 0).getOutcome());
+            Thread.sleep(100);
+            Assert.assertEquals(IdempotencyStore.Outcome.EXECUTE, expiring.claim("d", "body d", 0).getOutcome());
+        }
+        finally{
+            Files.deleteIfExists(file);
+            Files.deleteIfExists(directory);
+        }
+    }
+
+    /**
+     * A first request still running while other keys fill the store, and its client retrying meanwhile.
+     *
+     * Expected: the running key is not dropped, so the retry waits for the first request instead of carrying it out
+     */
+    @Test
+    public void runningKeysAreNotDropped() throws Exception {
+        IdempotencyStore store = new IdempotencyStore(2, 60_000, null);
+        IdempotencyStore.Claim running = store.claim("running", "body", 0);
+        Assert.assertEquals(IdempotencyStore.Outcome.EXECUTE, running.getOutcome());
+        for (String key : new String[] {"a", "b", "c"}){
+            store.claim(key, "body " + key, 0).complete(new IdempotencyStore.StoredResponse(200, null, key.getBytes()));
+        }
+        Assert.assertEquals(IdempotencyStore.Outcome.IN_PROGRESS, store.claim("running", "body", 10).getOutcome());
+        Assert.assertEquals(Long.valueOf(2), store.getMetrics().get("dropped"));
+
+        running.complete(new IdempotencyStore.StoredResponse(200, null, "running".getBytes()));
+        Assert.assertEquals(IdempotencyStore.Outcome.REPLAY, store.claim("running", "body", 0).getOutcome());
+        store.claim("d", "body d", 0).complete(new IdempotencyStore.StoredResponse(200, null, new byte[0]));
+        Assert.assertEquals(2, store.getKeyCount());
+        Assert.assertEquals(IdempotencyStore.Outcome.EXECUTE, store.claim("running", "body", 0).getOutcome());
+        store.close();
+    }
+
+    private HttpResponse<String> post(String path, String body, String idempotencyKey) throws IOException, InterruptedException {
+        HttpRequest.Builder request = HttpRequest.newBuilder().uri(URI.create(baseUrl + path))
+                .POST(HttpRequest.BodyPublishers.ofString(body));
+        if (idempotencyKey != null){
+            request.header("Idempotency-Key", idempotencyKey);
+        }
+        return webClient.send(request.build(), HttpResponse.BodyHandlers.ofString());
+    }
+}
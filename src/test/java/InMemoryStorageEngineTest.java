@@ -0,0 +1,60 @@
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import DAO.InMemoryStorageEngine;
+import Model.Message;
+
+/**
+ * Tests for how the in-memory storage engine stores message text. The common storage contract is covered by
+ * StorageEngineTest.
+ */
+public class InMemoryStorageEngineTest {
+    InMemoryStorageEngine storageEngine;
+    int accountID;
+
+    @Before
+    public void setUp() {
+        storageEngine = new InMemoryStorageEngine();
+        accountID = storageEngine.createAccount("text user", "password").getAccount_id();
+    }
+
+    @Test
+    public void nonAsciiTextRoundTrips() {
+        //Two, three and four byte UTF-8 sequences, escaped since the build does not set a source encoding
+        String text = "caf\u00e9 \u00fcber \u4f60\u597d \u2713 \ud83d\ude00";
+        Message created = storageEngine.createMessage(text, accountID, 100);
+        Assert.assertEquals(text, storageEngine.getMessageByID(created.getMessage_id()).getMessage_text());
+        String updatedText = "\u00e9\u00e9\u00e9";
+        Assert.assertEquals(updatedText, storageEngine.updateMessageByID(created.getMessage_id(), updatedText).getMessage_text());
+        Assert.assertEquals(updatedText, storageEngine.getMessageByID(created.getMessage_id()).getMessage_text());
+    }
+
+    /**
+     * Enough text to fill several slabs, most of it overwritten so the arena is compacted along the way.
+     */
+    @Test
+    public void textSurvivesSlabsAndCompaction() {
+        String padding = "x".repeat(200);
+        List<Message> expected = new ArrayList<Message>();
+        for (int i = 0; i < 6000; i++){
+            Message message = storageEngine.createMessage(padding + " message " + i, accountID, i);
+            if (i % 4 == 0){
+                expected.add(message);
+            }
+            else{
+                Message updated = storageEngine.updateMessageByID(message.getMessage_id(), padding + "updated " + i);
+                if (i % 4 == 1){
+                    storageEngine.deleteMessageByID(message.getMessage_id());
+                }
+                else{
+                    expected.add(updated);
+                }
+            }
+        }
+        Assert.assertEquals(expected, storageEngine.getAllMessages());
+    }
+}
@@ -0,0 +1,417 @@
+import java.io.File;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.h2.tools.Server;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import Model.Message;
+import Service.InvalidationBus;
+import Service.MessageEvent;
+import Util.DatabaseServer;
+import Util.StorageProfile;
+
+/**
+ * Tests for the invalidation bus, between buses in this JVM and between two application processes sharing an H2 TCP
+ * server.
+ */
+public class InvalidationBusTest {
+    private static final long TIMEOUT_MILLIS = 60_000;
+    //Sequences remembered per node by the bus
+    private static final int WINDOW = 1024;
+
+    ObjectMapper objectMapper = new ObjectMapper();
+    HttpClient webClient = HttpClient.newHttpClient();
+    List<InvalidationBus> buses = new ArrayList<InvalidationBus>();
+    List<Process> nodes = new ArrayList<Process>();
+    Server databaseServer;
+
+    @After
+    public void tearDown() {
+        for (InvalidationBus bus : buses){
+            bus.close();
+        }
+        for (Process node : nodes){
+            node.destroyForcibly();
+        }
+        if (databaseServer != null){
+            databaseServer.stop();
+        }
+    }
+
+    /**
+     * A change sent before its peer is listening.
+     *
+     * Expected: it is sent again until the peer starts and acknowledges it, and the peer applies it once
+     */
+    @Test
+    public void changeReachesPeerStartedLate() throws Exception {
+        int firstPort = freeUdpPort();
+        int secondPort = freeUdpPort();
+        InvalidationBus first = bus(firstPort, secondPort);
+        first.start(new Recorder());
+        first.onMessageEvent(new MessageEvent(MessageEvent.Type.UPDATED, new Message(1, 1, "changed", 0)));
+        Thread.sleep(3 * 100);
+
+        InvalidationBus second = bus(secondPort, firstPort);
+        Recorder recorder = new Recorder();
+        second.start(recorder);
+        await(() -> first.getMetrics().get("pending") == 0);
+        Assert.assertTrue(first.getMetrics().get("retransmitted") > 0);
+        Assert.assertEquals(1, first.getMetrics().get("acknowledged").longValue());
+        Assert.assertEquals(Arrays.asList("updated 1 changed remote"), recorder.events);
+
+        //Changes that came from a peer are not sent on
+        second.onMessageEvent(new MessageEvent(MessageEvent.Type.UPDATED, new Message(1, 1, "changed", 0), true));
+        Assert.assertEquals(0, second.getMetrics().get("sent").longValue());
+    }
+
+    /**
+     * Datagrams sent twice, and one older than the window of changes remembered from its node.
+     *
+     * Expected: every one is acknowledged and each change is applied once, the old one included, since it may be the
+     * first copy of a datagram that was lost
+     */
+    @Test
+    public void duplicateChangesAreDropped() throws Exception {
+        try (DatagramSocket sender = new DatagramSocket()){
+            InvalidationBus receiver = bus(freeUdpPort(), sender.getLocalPort());
+            Recorder recorder = new Recorder();
+            receiver.start(recorder);
+            InetSocketAddress address = new InetSocketAddress("localhost", receiver.getPort());
+            for (long sequence : new long[] {1, 1, 2, 5000, 2, 3}){
+                byte[] datagram = ("{\"node\":\"other\",\"sequence\":" + sequence + ",\"kind\":\"follow\",\"followerID\":" + sequence
+                        + ",\"followeeID\":1}").getBytes(StandardCharsets.UTF_8);
+                sender.send(new DatagramPacket(datagram, datagram.length, address));
+            }
+            sender.send(new DatagramPacket(new byte[] {'{'}, 1, address));
+            await(() -> receiver.getMetrics().get("received") + receiver.getMetrics().get("duplicates") == 6);
+            Assert.assertEquals(Arrays.asList("follow 1 1", "follow 2 1", "follow 5000 1", "follow 3 1"), recorder.events);
+            Assert.assertEquals(2, receiver.getMetrics().get("duplicates").longValue());
+
+            int acknowledgements = 0;
+            sender.setSoTimeout(1000);
+            byte[] buffer = new byte[1024];
+            try{
+                while (true){
+                    DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+                    sender.receive(packet);
+                    Assert.assertEquals("ack", objectMapper.readTree(buffer, 0, packet.getLength()).get("kind").asText());
+                    acknowledgements++;
+                }
+            }
+            catch(IOException e){
+                //No more acknowledgements
+            }
+            Assert.assertEquals(6, acknowledgements);
+            await(() -> receiver.getMetrics().get("malformed") == 1);
+        }
+    }
+
+    /**
+     * A peer restarted with a new node id, sending sequence numbers it sent before the restart, and a datagram from
+     * an address that is not a peer.
+     *
+     * Expected: the restarted peer's changes are applied, the stranger's is not
+     */
+    @Test
+    public void restartedPeersAreHeardAndStrangersIgnored() throws Exception {
+        try (DatagramSocket sender = new DatagramSocket(); DatagramSocket stranger = new DatagramSocket()){
+            InvalidationBus receiver = bus(freeUdpPort(), sender.getLocalPort());
+            Recorder recorder = new Recorder();
+            receiver.start(recorder);
+            InetSocketAddress address = new InetSocketAddress("localhost", receiver.getPort());
+            for (String node : new String[] {"before restart", "after restart"}){
+                for (long sequence = 1; sequence <= 2; sequence++){
+                    byte[] datagram = ("{\"node\":\"" + node + "\",\"sequence\":" + sequence + ",\"kind\":\"follow\",\"followerID\":"
+                            + sequence + ",\"followeeID\":1}").getBytes(StandardCharsets.UTF_8);
+                    sender.send(new DatagramPacket(datagram, datagram.length, address));
+                }
+            }
+            byte[] datagram = "{\"node\":\"stranger\",\"sequence\":1,\"kind\":\"follow\",\"followerID\":9,\"followeeID\":9}"
+                    .getBytes(StandardCharsets.UTF_8);
+            stranger.send(new DatagramPacket(datagram, datagram.length, address));
+
+            await(() -> receiver.getMetrics().get("received") == 4 && receiver.getMetrics().get("malformed") == 1);
+            Assert.assertEquals(Arrays.asList("follow 1 1", "follow 2 1", "follow 1 1", "follow 2 1"), recorder.events);
+            Assert.assertEquals(0, receiver.getMetrics().get("duplicates").longValue());
+        }
+    }
+
+    /**
+     * The first change of a node lost on the way and sent again after more than a window of other changes.
+     *
+     * Expected: the late copy is applied, and once only
+     */
+    @Test
+    public void lostChangeIsAppliedAfterMoreThanAWindowOfOthers() throws Exception {
+        try (DatagramSocket sender = new DatagramSocket()){
+            InvalidationBus receiver = bus(freeUdpPort(), sender.getLocalPort());
+            Recorder recorder = new Recorder();
+            receiver.start(recorder);
+            InetSocketAddress address = new InetSocketAddress("localhost", receiver.getPort());
+            for (int sequence = 2; sequence <= WINDOW + 2; sequence++){
+                sendAcknowledged(sender, address, sequence, "updated", sequence, "other " + sequence, 1);
+            }
+            sendAcknowledged(sender, address, 1, "updated", 1, "late", 1);
+            sendAcknowledged(sender, address, 1, "updated", 1, "late", 1);
+
+            Assert.assertEquals(WINDOW + 2, recorder.events.size());
+            Assert.assertEquals("updated 1 late remote", recorder.events.get(WINDOW + 1));
+            Assert.assertEquals(1, receiver.getMetrics().get("duplicates").longValue());
+            Assert.assertEquals(0, receiver.getMetrics().get("stale").longValue());
+        }
+    }
+
+    /**
+     * Changes to one message arriving out of version order, and an update arriving after the delete.
+     *
+     * Expected: only changes newer than the version applied are delivered, the others are acknowledged and dropped
+     */
+    @Test
+    public void changesOlderThanTheVersionAppliedAreDropped() throws Exception {
+        try (DatagramSocket sender = new DatagramSocket()){
+            InvalidationBus receiver = bus(freeUdpPort(), sender.getLocalPort());
+            Recorder recorder = new Recorder();
+            receiver.start(recorder);
+            InetSocketAddress address = new InetSocketAddress("localhost", receiver.getPort());
+            sendAcknowledged(sender, address, 1, "updated", 1, "second", 2);
+            sendAcknowledged(sender, address, 2, "updated", 1, "first", 1);
+            sendAcknowledged(sender, address, 3, "created", 1, "created", 0);
+            sendAcknowledged(sender, address, 4, "deleted", 1, "second", MessageEvent.DELETED_VERSION);
+            sendAcknowledged(sender, address, 5, "updated", 1, "third", 3);
+
+            Assert.assertEquals(Arrays.asList("updated 1 second remote", "deleted 1 second remote"), recorder.events);
+            Assert.assertEquals(3, receiver.getMetrics().get("stale").longValue());
+        }
+    }
+
+    /**
+     * A change given up on because its peer did not acknowledge it in time, and the peer started afterwards.
+     *
+     * Expected: the peer is sent a flush until it acknowledges it, and drops what it holds in memory
+     */
+    @Test
+    public void peerIsFlushedWhenItsChangesAreGivenUpOn() throws Exception {
+        int firstPort = freeUdpPort();
+        int secondPort = freeUdpPort();
+        InvalidationBus first = bus(firstPort, secondPort);
+        try (DatagramSocket unresponsive = new DatagramSocket(secondPort)){
+            Assert.assertEquals(secondPort, unresponsive.getLocalPort());
+            first.start(new Recorder());
+            first.onMessageEvent(new MessageEvent(MessageEvent.Type.UPDATED, new Message(1, 1, "changed", 0), 1, false));
+            await(() -> first.getMetrics().get("gaveUp") == 1);
+        }
+        Assert.assertEquals(1, first.getMetrics().get("flushes").longValue());
+        Assert.assertEquals(1, first.getMetrics().get("pending").longValue());
+
+        InvalidationBus second = bus(secondPort, firstPort);
+        Recorder recorder = new Recorder();
+        second.start(recorder);
+        await(() -> first.getMetrics().get("pending") == 0);
+        Assert.assertEquals(Arrays.asList("flush"), recorder.events);
+        Assert.assertEquals(1, first.getMetrics().get("flushes").longValue());
+    }
+
+    /**
+     * Two processes running Main against one H2 TCP server, each caching messages and home timelines. Changes are
+     * made on the first and read on the second.
+     *
+     * Expected: the second serves an update, a delete, a follow and a new message made on the first, instead of what it
+     * had cached before
+     */
+    @Test
+    public void nodesSharingADatabaseStayCoherent() throws Exception {
+        int databasePort = freeTcpPort();
+        databaseServer = DatabaseServer.start(databasePort, Files.createTempDirectory("h2-server"), false);
+        DatabaseServer.initializeIfEmpty("localhost:" + databasePort);
+        int firstBus = freeUdpPort();
+        int secondBus = freeUdpPort();
+        String first = startNode(databasePort, firstBus, secondBus);
+        String second = startNode(databasePort, secondBus, firstBus);
+        awaitReady(first);
+        awaitReady(second);
+
+        //Cached on the second node, changed on the first
+        Assert.assertEquals("test message 1", messageText(get(second + "/messages/1")));
+        Assert.assertEquals("test message 1", messageText(get(second + "/messages/1")));
+        Assert.assertEquals(200, send(HttpRequest.newBuilder().uri(URI.create(first + "/messages/1"))
+                .method("PATCH", HttpRequest.BodyPublishers.ofString("{\"message_text\":\"changed on the first node\"}")).build()).statusCode());
+        await(() -> "changed on the first node".equals(messageText(get(second + "/messages/1"))));
+
+        //Home timelines loaded on the second node before a follow and a post on the first
+        int followerID = objectMapper.readTree(send(HttpRequest.newBuilder().uri(URI.create(first + "/register"))
+                .POST(HttpRequest.BodyPublishers.ofString("{\"username\":\"follower\",\"password\":\"password\"}")).build()).body())
+                .get("account_id").asInt();
+        Assert.assertEquals("[]", get(second + "/accounts/" + followerID + "/timeline"));
+        Assert.assertEquals(200, send(HttpRequest.newBuilder().uri(URI.create(first + "/accounts/1/follow"))
+                .POST(HttpRequest.BodyPublishers.ofString("{\"follower_id\":" + followerID + "}")).build()).statusCode());
+        await(() -> objectMapper.readTree(get(second + "/accounts/" + followerID + "/timeline")).size() == 1);
+        Message posted = objectMapper.readValue(send(HttpRequest.newBuilder().uri(URI.create(first + "/messages"))
+                .POST(HttpRequest.BodyPublishers.ofString("{\"posted_by\":1,\"message_text\":\"posted on the first node\",\"time_posted_epoch\":1669947800}"))
+                .build()).body(), Message.class);
+        await(() -> objectMapper.readTree(get(second + "/accounts/" + followerID + "/timeline")).size() == 2);
+        Assert.assertEquals(posted, objectMapper.readValue(objectMapper.readTree(get(second + "/accounts/" + followerID + "/timeline")).get(0)
+                .toString(), Message.class));
+
+        Assert.assertEquals(200, send(HttpRequest.newBuilder().uri(URI.create(first + "/messages/1")).DELETE().build()).statusCode());
+        await(() -> get(second + "/messages/1").isEmpty());
+
+        JsonNode bus = objectMapper.readTree(get(second + "/metrics")).get("invalidationBus");
+        Assert.assertEquals(4, bus.get("received").asLong());
+        Assert.assertEquals(0, bus.get("sent").asLong());
+        Assert.assertEquals(0, bus.get("gaveUp").asLong());
+    }
+
+    /**
+     * Records what a bus applies.
+     */
+    static class Recorder implements InvalidationBus.Receiver {
+        List<String> events = new CopyOnWriteArrayList<String>();
+
+        @Override
+        public void onRemoteMessageEvent(MessageEvent event){
+            events.add(event.getType().getEventName() + " " + event.getMessage().getMessage_id() + " " + event.getMessage().getMessage_text()
+                    + (event.isRemote() ? " remote" : ""));
+        }
+
+        @Override
+        public void onRemoteFollow(int followerID, int followeeID){
+            events.add("follow " + followerID + " " + followeeID);
+        }
+
+        @Override
+        public void onRemoteFlush(){
+            events.add("flush");
+        }
+    }
+
+    interface Condition {
+        boolean holds() throws Exception;
+    }
+
+    /**
+     * Sends a message change as another node would, again until the bus acknowledges it.
+     */
+    private void sendAcknowledged(DatagramSocket sender, InetSocketAddress address, long sequence, String kind, int messageID,
+            String messageText, int version) throws IOException {
+        byte[] datagram = ("{\"node\":\"other\",\"sequence\":" + sequence + ",\"kind\":\"" + kind + "\",\"version\":" + version
+                + ",\"message\":" + objectMapper.writeValueAsString(new Message(messageID, 1, messageText, 0)) + "}")
+                .getBytes(StandardCharsets.UTF_8);
+        sender.setSoTimeout(1000);
+        byte[] buffer = new byte[1024];
+        while (true){
+            sender.send(new DatagramPacket(datagram, datagram.length, address));
+            try{
+                while (true){
+                    DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+                    sender.receive(packet);
+                    JsonNode ack = objectMapper.readTree(buffer, 0, packet.getLength());
+                    if (ack.get("sequence").asLong() == sequence){
+                        return;
+                    }
+                }
+            }
+            catch(IOException e){
+                //Lost on the way, send it again
+            }
+        }
+    }
+
+    private InvalidationBus bus(int port, int peerPort) throws IOException {
+        InvalidationBus bus = new InvalidationBus(port, Collections.singletonList(new InetSocketAddress("localhost", peerPort)));
+        buses.add(bus);
+        return bus;
+    }
+
+    /**
+     * Starts Main in a process of its own, with this JVM's classpath, logging to a temporary file.
+     *
+     * @return the node's base url
+     */
+    private String startNode(int databasePort, int busPort, int peerBusPort) throws IOException {
+        int httpPort = freeTcpPort();
+        Path log = Files.createTempFile("node-" + httpPort, ".log");
+        Process node = new ProcessBuilder(Paths.get(System.getProperty("java.home"), "bin", "java").toString(),
+                "-cp", System.getProperty("java.class.path"),
+                "-D" + StorageProfile.PROFILE_PROPERTY + "=" + StorageProfile.SERVER.name(),
+                "-D" + StorageProfile.SERVER_PROPERTY + "=localhost:" + databasePort,
+                "-D" + "socialmedia.port=" + httpPort,
+                "-D" + InvalidationBus.PORT_PROPERTY + "=" + busPort,
+                "-D" + InvalidationBus.PEERS_PROPERTY + "=localhost:" + peerBusPort,
+                "Main")
+                .redirectErrorStream(true)
+                .redirectOutput(log.toFile())
+                .directory(new File(System.getProperty("user.dir")))
+                .start();
+        nodes.add(node);
+        return "http://localhost:" + httpPort;
+    }
+
+    private void awaitReady(String node) throws Exception {
+        await(() -> {
+            try{
+                return send(HttpRequest.newBuilder().uri(URI.create(node + "/health/ready")).build()).statusCode() == 200;
+            }
+            catch(IOException e){
+                //Not listening yet
+                return false;
+            }
+        });
+    }
+
+    private void await(Condition condition) throws Exception {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (!condition.holds()){
+            if (System.currentTimeMillis() > deadline){
+                Assert.fail("Condition not met within " + TIMEOUT_MILLIS + " ms");
+            }
+            Thread.sleep(50);
+        }
+    }
+
+    private String messageText(String body) throws IOException {
+        return body.isEmpty() ? null : objectMapper.readValue(body, Message.class).getMessage_text();
+    }
+
+    private String get(String url) throws IOException, InterruptedException {
+        return send(HttpRequest.newBuilder().uri(URI.create(url)).build()).body();
+    }
+
+    private HttpResponse<String> send(HttpRequest request) throws IOException, InterruptedException {
+        return webClient.send(request, HttpResponse.BodyHandlers.ofString());
+    }
+
+    private static int freeUdpPort() throws IOException {
+        try (DatagramSocket socket = new DatagramSocket(0)){
+            return socket.getLocalPort();
+        }
+    }
+
+    private static int freeTcpPort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)){
+            return socket.getLocalPort();
+        }
+    }
+}
@@ -0,0 +1,102 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+import DAO.LogStorageEngine;
+import DAO.SocialMediaDAO;
+import DAO.StorageEngine;
+import Util.ConnectionUtil;
+
+/**
+ * Benchmark comparing the append-only log storage engine with the H2 file database at jdbc:h2:./h2/db.
+ * It reports single-threaded insert and update throughput, and the time to reopen each store and serve the first
+ * read: for the log both from a checkpoint and by replaying every segment. The updates leave dead records behind,
+ * which a replay has to read through and a checkpoint skips.
+ *
+ * This is not a test case, run it manually with:
+ *   mvn -q test-compile exec:java -Dexec.mainClass=LogStorageBenchmark -Dexec.classpathScope=test
+ *
+ * It resets the database at ./h2/db, just like the test suite does.
+ */
+public class LogStorageBenchmark {
+    private static final int MESSAGES = 50_000;
+    private static final int UPDATES = 50_000;
+    private static final int RECOVERY_RUNS = 5;
+
+    public static void main(String[] args) throws IOException, SQLException {
+        //H2 file database
+        ConnectionUtil.resetTestDatabase();
+        SocialMediaDAO socialMediaDAO = new SocialMediaDAO();
+        int accountID = socialMediaDAO.createAccount("benchmark user", "password").getAccount_id();
+        double h2Inserts = insert(socialMediaDAO, accountID);
+        double h2Updates = update(socialMediaDAO);
+        ConnectionUtil.getConnection().createStatement().execute("SHUTDOWN");
+        long start = System.nanoTime();
+        Connection connection = ConnectionUtil.getConnection();
+        ResultSet resultSet = connection.createStatement().executeQuery("SELECT COUNT(*) FROM message");
+        resultSet.next();
+        double h2Recovery = millis(start);
+
+        //Log storage engine
+        Path directory = Files.createTempDirectory("log-storage-benchmark");
+        LogStorageEngine logStorageEngine = new LogStorageEngine(directory);
+        accountID = logStorageEngine.createAccount("benchmark user", "password").getAccount_id();
+        double logInserts = insert(logStorageEngine, accountID);
+        double logUpdates = update(logStorageEngine);
+        logStorageEngine.close();
+
+        double logCheckpointRecovery = Double.MAX_VALUE;
+        double logReplayRecovery = Double.MAX_VALUE;
+        //Take the best of a few runs so class loading and JIT warm-up don't favor whichever path runs last
+        for (int run = 0; run < RECOVERY_RUNS; run++){
+            start = System.nanoTime();
+            logStorageEngine = new LogStorageEngine(directory);
+            logStorageEngine.getMessageByID(1);
+            logCheckpointRecovery = Math.min(logCheckpointRecovery, millis(start));
+            logStorageEngine.close();
+
+            Files.delete(directory.resolve("checkpoint"));
+            start = System.nanoTime();
+            logStorageEngine = new LogStorageEngine(directory);
+            logStorageEngine.getMessageByID(1);
+            logReplayRecovery = Math.min(logReplayRecovery, millis(start));
+            logStorageEngine.close();
+        }
+
+        System.out.printf("%-22s %14s %14s %16s%n", "store", "inserts/s", "updates/s", "recovery (ms)");
+        System.out.printf("%-22s %14.0f %14.0f %16.1f%n", "h2 file", h2Inserts, h2Updates, h2Recovery);
+        System.out.printf("%-22s %14.0f %14.0f %16.1f%n", "log (checkpoint)", logInserts, logUpdates, logCheckpointRecovery);
+        System.out.printf("%-22s %14s %14s %16.1f%n", "log (full replay)", "", "", logReplayRecovery);
+
+        try (Stream<Path> files = Files.walk(directory)){
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+        ConnectionUtil.resetTestDatabase();
+    }
+
+    private static double insert(StorageEngine storageEngine, int accountID) {
+        long start = System.nanoTime();
+        for (int i = 0; i < MESSAGES; i++){
+            storageEngine.createMessage("benchmark message " + i, accountID, i);
+        }
+        return MESSAGES / (millis(start) / 1000.0);
+    }
+
+    private static double update(StorageEngine storageEngine) {
+        int firstID = storageEngine.getAllMessages().get(0).getMessage_id();
+        long start = System.nanoTime();
+        for (int i = 0; i < UPDATES; i++){
+            storageEngine.updateMessageByID(firstID + i % MESSAGES, "updated message " + i);
+        }
+        return UPDATES / (millis(start) / 1000.0);
+    }
+
+    private static double millis(long start) {
+        return (System.nanoTime() - start) / 1_000_000.0;
+    }
+}
@@ -0,0 +1,297 @@
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import DAO.LogStorageEngine;
+import Model.Account;
+import Model.Message;
+import Service.SocialMediaService;
+
+/**
+ * Tests for the recovery and compaction behavior of the log storage engine. The common storage contract is covered
+ * by StorageEngineTest.
+ */
+public class LogStorageEngineTest {
+    private static final int SEGMENT_SIZE = 4 * 1024;
+
+    Path directory;
+    LogStorageEngine storageEngine;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("log-storage-engine-test");
+        storageEngine = open();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        storageEngine.close();
+        try (Stream<Path> files = Files.walk(directory)){
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    private LogStorageEngine open() {
+        return new LogStorageEngine(directory, SEGMENT_SIZE, 0);
+    }
+
+    /**
+     * Writes a mix of creates, updates and deletes and returns what the engine should contain afterwards.
+     */
+    private List<Message> writeWorkload(int accountID, int messages) {
+        List<Message> expected = new ArrayList<>();
+        for (int i = 0; i < messages; i++){
+            Message message = storageEngine.createMessage("message " + i, accountID, 1000 + i);
+            if (i % 3 == 0){
+                storageEngine.deleteMessageByID(message.getMessage_id());
+            }
+            else if (i % 3 == 1){
+                expected.add(storageEngine.updateMessageByID(message.getMessage_id(), "updated " + i));
+            }
+            else{
+                expected.add(message);
+            }
+        }
+        return expected;
+    }
+
+    @Test
+    public void recoverFromCheckpointAfterClose() {
+        Account account = storageEngine.createAccount("log user", "password");
+        List<Message> expected = writeWorkload(account.getAccount_id(), 50);
+        storageEngine.close();
+
+        storageEngine = open();
+        Assert.assertEquals(expected, storageEngine.getAllMessages());
+        Assert.assertEquals(expected, storageEngine.getMessagesByUserID(account.getAccount_id()));
+        Assert.assertEquals(account, storageEngine.userLogin("log user", "password"));
+    }
+
+    @Test
+    public void recoverByReplayWithoutCheckpoint() throws IOException {
+        Account account = storageEngine.createAccount("log user", "password");
+        List<Message> expected = writeWorkload(account.getAccount_id(), 50);
+        //Simulate a crash: the log is on disk but no checkpoint was written for it
+        storageEngine.flush();
+        Files.deleteIfExists(directory.resolve("checkpoint"));
+
+        LogStorageEngine recovered = open();
+        try{
+            Assert.assertEquals(expected, recovered.getAllMessages());
+            Assert.assertEquals(account, recovered.userLogin("log user", "password"));
+        }
+        finally{
+            recovered.close();
+        }
+    }
+
+    /**
+     * The engine closed through the service, as the shutdown hook in Main does.
+     *
+     * Expected: a checkpoint is written, and the next start recovers from it
+     */
+    @Test
+    public void closingTheServiceWritesACheckpoint() throws IOException {
+        Account account = storageEngine.createAccount("log user", "password");
+        List<Message> expected = writeWorkload(account.getAccount_id(), 20);
+        Files.deleteIfExists(directory.resolve("checkpoint"));
+
+        new SocialMediaService(storageEngine).close();
+
+        Assert.assertTrue(Files.exists(directory.resolve("checkpoint")));
+        storageEngine = open();
+        Assert.assertEquals(expected, storageEngine.getAllMessages());
+    }
+
+    @Test
+    public void replayAfterCheckpointPicksUpLaterWrites() {
+        Account account = storageEngine.createAccount("log user", "password");
+        List<Message> expected = writeWorkload(account.getAccount_id(), 20);
+        storageEngine.close();
+
+        storageEngine = open();
+        expected.add(storageEngine.createMessage("after checkpoint", account.getAccount_id(), 5000));
+        storageEngine.flush();
+
+        //Open a second engine without closing the first, as if the process had crashed after the last write
+        LogStorageEngine recovered = open();
+        try{
+            Assert.assertEquals(expected, recovered.getAllMessages());
+        }
+        finally{
+            recovered.close();
+        }
+    }
+
+    @Test
+    public void messageIDsAreNotReusedAfterRestart() {
+        Account account = storageEngine.createAccount("log user", "password");
+        Message deleted = storageEngine.createMessage("deleted", account.getAccount_id(), 1000);
+        storageEngine.deleteMessageByID(deleted.getMessage_id());
+        storageEngine.compact();
+        storageEngine.close();
+
+        storageEngine = open();
+        Message created = storageEngine.createMessage("created", account.getAccount_id(), 1000);
+        Assert.assertTrue(created.getMessage_id() > deleted.getMessage_id());
+    }
+
+    @Test
+    public void compactionReclaimsSegmentsAndKeepsData() throws IOException {
+        Account account = storageEngine.createAccount("log user", "password");
+        Message survivor = storageEngine.createMessage("survivor", account.getAccount_id(), 1);
+        //Rewrite the same few messages until the log spans many segments of mostly dead records
+        List<Message> hot = new ArrayList<>();
+        for (int i = 0; i < 5; i++){
+            hot.add(storageEngine.createMessage("hot " + i, account.getAccount_id(), 10 + i));
+        }
+        for (int round = 0; round < 200; round++){
+            for (Message message : hot){
+                storageEngine.updateMessageByID(message.getMessage_id(), "hot " + message.getMessage_id() + " round " + round);
+            }
+        }
+        Message deleted = storageEngine.createMessage("deleted", account.getAccount_id(), 100);
+        storageEngine.deleteMessageByID(deleted.getMessage_id());
+        List<Message> expected = storageEngine.getAllMessages();
+        int segmentsBefore = storageEngine.getSegmentCount();
+
+        storageEngine.compact();
+
+        Assert.assertTrue(storageEngine.getSegmentCount() < segmentsBefore);
+        Assert.assertEquals(expected, storageEngine.getAllMessages());
+        Assert.assertEquals(survivor, storageEngine.getMessageByID(survivor.getMessage_id()));
+        Assert.assertNull(storageEngine.getMessageByID(deleted.getMessage_id()));
+
+        //Both recovery paths must agree with the compacted state
+        storageEngine.close();
+        storageEngine = open();
+        Assert.assertEquals(expected, storageEngine.getAllMessages());
+        storageEngine.flush();
+        Files.deleteIfExists(directory.resolve("checkpoint"));
+        LogStorageEngine replayed = open();
+        try{
+            Assert.assertEquals(expected, replayed.getAllMessages());
+            Assert.assertNull(replayed.getMessageByID(deleted.getMessage_id()));
+        }
+        finally{
+            replayed.close();
+        }
+    }
+
+    /**
+     * A message created in a segment that stays live, updated and deleted in segments that compaction rewrites, then
+     * recovered by replaying the log without a checkpoint.
+     *
+     * Expected: the tombstone outlives the segment of the copy it deleted, so the original copy is not resurrected
+     */
+    @Test
+    public void deletedMessageStaysDeletedAfterCompactionAndReplay() throws IOException {
+        Account account = storageEngine.createAccount("log user", "password");
+        Message deleted = storageEngine.createMessage("created", account.getAccount_id(), 1);
+        //Live messages fill the segment holding the original copy, so it is not compacted
+        List<Message> kept = new ArrayList<>();
+        for (int i = 0; i < 120; i++){
+            kept.add(storageEngine.createMessage("kept " + i, account.getAccount_id(), 10 + i));
+        }
+        Message hot = storageEngine.createMessage("hot", account.getAccount_id(), 200);
+        storageEngine.updateMessageByID(deleted.getMessage_id(), "updated");
+        //The update and the tombstone land in segments of dead records
+        for (int round = 0; round < 100; round++){
+            storageEngine.updateMessageByID(hot.getMessage_id(), "hot round " + round);
+        }
+        storageEngine.deleteMessageByID(deleted.getMessage_id());
+        for (int round = 0; round < 200; round++){
+            hot = storageEngine.updateMessageByID(hot.getMessage_id(), "hot round " + round);
+        }
+        kept.add(hot);
+        int segmentsBefore = storageEngine.getSegmentCount();
+
+        storageEngine.compact();
+
+        Assert.assertTrue(storageEngine.getSegmentCount() < segmentsBefore);
+        storageEngine.flush();
+        Files.deleteIfExists(directory.resolve("checkpoint"));
+        LogStorageEngine replayed = open();
+        try{
+            Assert.assertNull(replayed.getMessageByID(deleted.getMessage_id()));
+            Assert.assertEquals(kept, replayed.getAllMessages());
+        }
+        finally{
+            replayed.close();
+        }
+    }
+
+    @Test
+    public void tornTailIsIgnored() throws IOException {
+        Account account = storageEngine.createAccount("log user", "password");
+        Message kept = storageEngine.createMessage("kept", account.getAccount_id(), 1000);
+        Message torn = storageEngine.createMessage("torn", account.getAccount_id(), 2000);
+        storageEngine.flush();
+        Files.deleteIfExists(directory.resolve("checkpoint"));
+
+        //Corrupt the last byte of the last record, as if the write had only partially reached the disk
+        Path segment;
+        try (Stream<Path> files = Files.list(directory)){
+            segment = files.filter(path -> path.getFileName().toString().startsWith("segment-"))
+                    .max(Comparator.naturalOrder()).get();
+        }
+        try (RandomAccessFile file = new RandomAccessFile(segment.toFile(), "rw")){
+            long end = 0;
+            for (long i = file.length() - 1; i >= 0; i--){
+                file.seek(i);
+                if (file.read() != 0){
+                    end = i;
+                    break;
+                }
+            }
+            file.seek(end);
+            file.write(0x7f);
+        }
+
+        LogStorageEngine recovered = open();
+        try{
+            Assert.assertEquals(kept, recovered.getMessageByID(kept.getMessage_id()));
+            Assert.assertNull(recovered.getMessageByID(torn.getMessage_id()));
+        }
+        finally{
+            recovered.close();
+        }
+    }
+
+    @Test
+    public void followsSurviveRestartAndCompaction() throws IOException {
+        Account follower = storageEngine.createAccount("follower", "password");
+        Account followee = storageEngine.createAccount("followee", "password");
+        storageEngine.follow(follower.getAccount_id(), followee.getAccount_id());
+        //Push the follow record into a sealed segment that compaction rewrites
+        writeWorkload(followee.getAccount_id(), 100);
+        storageEngine.compact();
+        storageEngine.close();
+
+        storageEngine = open();
+        Assert.assertEquals(Arrays.asList(followee.getAccount_id()), storageEngine.getFolloweeIDs(follower.getAccount_id()));
+        Assert.assertEquals(Arrays.asList(follower.getAccount_id()), storageEngine.getFollowerIDs(followee.getAccount_id()));
+
+        //And without the checkpoint, by replaying the log
+        storageEngine.flush();
+        Files.deleteIfExists(directory.resolve("checkpoint"));
+        LogStorageEngine recovered = open();
+        try{
+            Assert.assertEquals(Arrays.asList(followee.getAccount_id()), recovered.getFolloweeIDs(follower.getAccount_id()));
+        }
+        finally{
+            recovered.close();
+        }
+    }
+}
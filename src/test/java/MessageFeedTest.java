@@ -0,0 +1,136 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import Model.Message;
+import Service.MessageEvent;
+import Service.MessageFeed;
+
+/**
+ * Tests for the fan-out behavior of MessageFeed: ordering, per-account filtering, and how slow subscribers are
+ * lagged and disconnected without ever blocking the publisher.
+ */
+public class MessageFeedTest {
+    MessageFeed messageFeed;
+
+    @Before
+    public void setUp() {
+        messageFeed = new MessageFeed(4, 8, 2, 0);
+    }
+
+    @After
+    public void tearDown() {
+        messageFeed.close();
+    }
+
+    private static MessageEvent created(int messageID, int postedBy) {
+        return new MessageEvent(MessageEvent.Type.CREATED, new Message(messageID, postedBy, "message " + messageID, messageID));
+    }
+
+    /**
+     * Records everything it receives, optionally blocking on the first event until released.
+     */
+    private static class RecordingSubscriber implements MessageFeed.Subscriber {
+        final List<Integer> received = Collections.synchronizedList(new ArrayList<>());
+        final List<Long> lagged = Collections.synchronizedList(new ArrayList<>());
+        final CountDownLatch release;
+        final CountDownLatch blocked = new CountDownLatch(1);
+        final CountDownLatch disconnected = new CountDownLatch(1);
+
+        RecordingSubscriber(boolean blockFirstEvent) {
+            release = new CountDownLatch(blockFirstEvent ? 1 : 0);
+        }
+
+        @Override
+        public void onEvent(MessageEvent event) throws Exception {
+            blocked.countDown();
+            release.await();
+            received.add(event.getMessage().getMessage_id());
+        }
+
+        @Override
+        public void onLagged(long skipped) {
+            lagged.add(skipped);
+        }
+
+        @Override
+        public void onHeartbeat() {
+        }
+
+        @Override
+        public void onDisconnect() {
+            disconnected.countDown();
+        }
+    }
+
+    private static void awaitSize(List<?> list, int size) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (list.size() < size && System.currentTimeMillis() < deadline){
+            Thread.sleep(5);
+        }
+        Assert.assertEquals(size, list.size());
+    }
+
+    @Test
+    public void deliversInOrderAndFiltersByAccount() throws InterruptedException {
+        RecordingSubscriber everything = new RecordingSubscriber(false);
+        RecordingSubscriber accountTwo = new RecordingSubscriber(false);
+        messageFeed.subscribe(0, everything);
+        messageFeed.subscribe(2, accountTwo);
+
+        messageFeed.onMessageEvent(created(1, 1));
+        messageFeed.onMessageEvent(created(2, 2));
+        messageFeed.onMessageEvent(created(3, 2));
+
+        awaitSize(everything.received, 3);
+        awaitSize(accountTwo.received, 2);
+        Assert.assertEquals(List.of(1, 2, 3), everything.received);
+        Assert.assertEquals(List.of(2, 3), accountTwo.received);
+    }
+
+    @Test
+    public void slowSubscriberIsLaggedWithoutBlockingPublisher() throws InterruptedException {
+        RecordingSubscriber slow = new RecordingSubscriber(true);
+        messageFeed.subscribe(0, slow);
+        messageFeed.onMessageEvent(created(1, 1));
+        Assert.assertTrue(slow.blocked.await(5, TimeUnit.SECONDS));
+
+        //The subscriber is stuck on event 1, so publishing must still return immediately and overwrite old events
+        long start = System.nanoTime();
+        for (int messageID = 2; messageID <= 7; messageID++){
+            messageFeed.onMessageEvent(created(messageID, 1));
+        }
+        Assert.assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 1000);
+
+        slow.release.countDown();
+        awaitSize(slow.received, 5);
+        //Buffer of 4: events 2 and 3 were overwritten by 6 and 7
+        Assert.assertEquals(List.of(1, 4, 5, 6, 7), slow.received);
+        Assert.assertEquals(List.of(2L), slow.lagged);
+        Assert.assertEquals(1, messageFeed.getSubscriberCount());
+    }
+
+    @Test
+    public void subscriberBeyondMaxLagIsDisconnected() throws InterruptedException {
+        RecordingSubscriber slow = new RecordingSubscriber(true);
+        messageFeed.subscribe(0, slow);
+        messageFeed.onMessageEvent(created(1, 1));
+        Assert.assertTrue(slow.blocked.await(5, TimeUnit.SECONDS));
+
+        for (int messageID = 2; messageID <= 20; messageID++){
+            messageFeed.onMessageEvent(created(messageID, 1));
+        }
+        slow.release.countDown();
+
+        Assert.assertTrue(slow.disconnected.await(5, TimeUnit.SECONDS));
+        Assert.assertEquals(0, messageFeed.getSubscriberCount());
+        Assert.assertEquals(Long.valueOf(1), messageFeed.getMetrics().get("disconnected"));
+    }
+}
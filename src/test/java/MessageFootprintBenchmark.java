@@ -0,0 +1,82 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import DAO.InMemoryStorageEngine;
+import Model.Message;
+
+/**
+ * Benchmark measuring how many heap bytes a message costs when held as Message objects, as a cache of them would, and
+ * when stored in InMemoryStorageEngine. The heap in use is measured after a full collection before and after each
+ * representation is built, so the figure includes every header, array and padding byte the JVM really allocates.
+ *
+ * This is not a test case, run it manually with:
+ *   mvn -q test-compile exec:java -Dexec.mainClass=MessageFootprintBenchmark -Dexec.classpathScope=test
+ */
+public class MessageFootprintBenchmark {
+    private static final int MESSAGES = 500_000;
+    private static final int ACCOUNTS = 1_000;
+    private static final String ALPHABET = "abcdefghijklmnopqrstuvwxyz ABCDEFGHIJKLMNOPQRSTUVWXYZ";
+
+    //Kept reachable while the heap is measured
+    private static Object retained;
+
+    public static void main(String[] args) {
+        String[] texts = texts(new Random(42));
+        long textBytes = 0;
+        for (String text : texts){
+            textBytes += text.length();
+        }
+        System.out.printf("%d messages, %.1f characters of text each on average%n", MESSAGES, (double) textBytes / MESSAGES);
+        System.out.printf("%-24s %16s%n", "representation", "bytes/message");
+
+        long before = usedHeap();
+        List<Message> messages = new ArrayList<Message>(MESSAGES);
+        for (int i = 0; i < MESSAGES; i++){
+            messages.add(new Message(i + 1, i % ACCOUNTS + 1, new String(texts[i].toCharArray()), i));
+        }
+        retained = messages;
+        report("Message objects", before);
+        retained = null;
+        messages = null;
+
+        before = usedHeap();
+        InMemoryStorageEngine storageEngine = new InMemoryStorageEngine();
+        for (int i = 0; i < ACCOUNTS; i++){
+            storageEngine.createAccount("footprint user " + i, "password");
+        }
+        for (int i = 0; i < MESSAGES; i++){
+            storageEngine.createMessage(texts[i], i % ACCOUNTS + 1, i);
+        }
+        retained = storageEngine;
+        report("InMemoryStorageEngine", before);
+        retained = null;
+    }
+
+    /**
+     * Random ASCII texts of 20 to 140 characters, the shape of typical short posts.
+     */
+    private static String[] texts(Random random) {
+        String[] texts = new String[MESSAGES];
+        for (int i = 0; i < MESSAGES; i++){
+            char[] text = new char[20 + random.nextInt(121)];
+            for (int j = 0; j < text.length; j++){
+                text[j] = ALPHABET.charAt(random.nextInt(ALPHABET.length()));
+            }
+            texts[i] = new String(text);
+        }
+        return texts;
+    }
+
+    private static void report(String representation, long before) {
+        System.out.printf("%-24s %16.1f%n", representation, (double) (usedHeap() - before) / MESSAGES);
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++){
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
@@ -0,0 +1,143 @@
+import java.lang.management.ManagementFactory;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.management.ThreadMXBean;
+
+import Controller.RateLimiter;
+import Controller.SocialMediaController;
+import Model.Message;
+import Service.SocialMediaService;
+import Util.ConnectionUtil;
+import io.javalin.Javalin;
+
+/**
+ * Benchmark for the message response cache: CLIENTS clients send REQUESTS GET /messages/{message_id} requests between
+ * them, picking among MESSAGES messages with a Zipf distribution so a few messages get most of the reads, once with the
+ * cache turned off and once with it on. Reports the throughput and the bytes allocated per request by the server's
+ * request threads, which leaves out the allocations of the clients running in the same JVM.
+ *
+ * This is not a test case, run it manually with:
+ *   mvn -q test-compile exec:java -Dexec.mainClass=MessageResponseCacheBenchmark -Dexec.classpathScope=test [-Dexec.args=requests]
+ *
+ * It resets the database at ./h2/db, just like the test suite does.
+ */
+public class MessageResponseCacheBenchmark {
+    private static final int DEFAULT_REQUESTS = 40_000;
+    private static final int MESSAGES = 1000;
+    private static final int CLIENTS = 4;
+    private static final double ZIPF_EXPONENT = 1.1;
+    //Cache sizes, the first two runs warm up the same code the last two measure
+    private static final int[] CACHE_SIZES = {0, 10_000, 0, 10_000};
+
+    public static void main(String[] args) throws Exception {
+        int requests = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_REQUESTS;
+        ConnectionUtil.resetTestDatabase();
+        SocialMediaService socialMediaService = new SocialMediaService();
+        int[] messageIDs = new int[MESSAGES];
+        for (int i = 0; i < MESSAGES; i++){
+            messageIDs[i] = socialMediaService.createMessage(new Message(1, "benchmark message " + i + " with some text to encode", i))
+                    .getMessage_id();
+        }
+        double[] cumulative = zipf(MESSAGES, ZIPF_EXPONENT);
+        HttpClient webClient = HttpClient.newHttpClient();
+        ExecutorService clients = Executors.newFixedThreadPool(CLIENTS);
+        ThreadMXBean threads = (ThreadMXBean) ManagementFactory.getThreadMXBean();
+        try{
+            System.out.printf("%d requests per run, %d clients, Zipf(%.1f) over %d messages%n", requests, CLIENTS, ZIPF_EXPONENT, MESSAGES);
+            System.out.printf("%-10s %12s %16s %10s%n", "cache", "requests/s", "server bytes/req", "hit rate");
+            for (int run = 0; run < CACHE_SIZES.length; run++){
+                System.setProperty(SocialMediaController.MESSAGE_CACHE_SIZE_PROPERTY, String.valueOf(CACHE_SIZES[run]));
+                Javalin app = new SocialMediaController(socialMediaService, new RateLimiter(1_000_000, 1_000_000, 1000),
+                        new RateLimiter(1_000_000, 1_000_000, 1000)).startAPI();
+                app.start(8080);
+                try{
+                    long allocatedBefore = serverAllocatedBytes(threads);
+                    long start = System.nanoTime();
+                    List<Future<?>> results = new ArrayList<Future<?>>();
+                    for (int client = 0; client < CLIENTS; client++){
+                        Random random = new Random(client);
+                        results.add(clients.submit(() -> {
+                            for (int i = 0; i < requests / CLIENTS; i++){
+                                int messageID = messageIDs[pick(cumulative, random.nextDouble())];
+                                webClient.send(HttpRequest.newBuilder().uri(URI.create("http://localhost:8080/messages/" + messageID)).build(),
+                                        HttpResponse.BodyHandlers.discarding());
+                            }
+                            return null;
+                        }));
+                    }
+                    for (Future<?> result : results){
+                        result.get();
+                    }
+                    long nanos = System.nanoTime() - start;
+                    long allocated = serverAllocatedBytes(threads) - allocatedBefore;
+                    if (run >= CACHE_SIZES.length / 2){
+                        String hitRate = "-";
+                        if (CACHE_SIZES[run] > 0){
+                            HttpResponse<String> metrics = webClient.send(HttpRequest.newBuilder().uri(URI.create("http://localhost:8080/metrics")).build(),
+                                    HttpResponse.BodyHandlers.ofString());
+                            JsonNode cache = new ObjectMapper().readTree(metrics.body()).get("messageCache");
+                            long hits = cache.get("hits").asLong();
+                            hitRate = String.format("%.1f%%", 100.0 * hits / (hits + cache.get("misses").asLong()));
+                        }
+                        System.out.printf("%-10s %12.0f %16d %10s%n", CACHE_SIZES[run] > 0 ? "on" : "off", requests / (nanos / 1e9),
+                                allocated / requests, hitRate);
+                    }
+                }
+                finally{
+                    app.stop();
+                }
+            }
+        }
+        finally{
+            clients.shutdown();
+            System.clearProperty(SocialMediaController.MESSAGE_CACHE_SIZE_PROPERTY);
+            ConnectionUtil.resetTestDatabase();
+        }
+    }
+
+    /**
+     * @return bytes allocated so far by Jetty's request threads that are alive
+     */
+    private static long serverAllocatedBytes(ThreadMXBean threads){
+        long bytes = 0;
+        for (Thread thread : Thread.getAllStackTraces().keySet()){
+            if (thread.getName().startsWith("JettyServerThreadPool")){
+                bytes += Math.max(0, threads.getThreadAllocatedBytes(thread.getId()));
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * @return the cumulative probabilities of ranks 1 to n under Zipf's law with the exponent
+     */
+    private static double[] zipf(int n, double exponent){
+        double[] cumulative = new double[n];
+        double sum = 0;
+        for (int rank = 1; rank <= n; rank++){
+            sum += 1 / Math.pow(rank, exponent);
+            cumulative[rank - 1] = sum;
+        }
+        for (int i = 0; i < n; i++){
+            cumulative[i] /= sum;
+        }
+        return cumulative;
+    }
+
+    private static int pick(double[] cumulative, double uniform){
+        int index = Arrays.binarySearch(cumulative, uniform);
+        return Math.min(cumulative.length - 1, index >= 0 ? index : -index - 1);
+    }
+}
@@ -0,0 +1,181 @@
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import Controller.ContentNegotiator;
+import Controller.MessageResponseCache;
+import Controller.RateLimiter;
+import Controller.SocialMediaController;
+import Model.Message;
+import Service.MessageEvent;
+import Service.SocialMediaService;
+import Util.ConnectionUtil;
+import io.javalin.Javalin;
+
+public class MessageResponseCacheTest {
+    SocialMediaController socialMediaController;
+    HttpClient webClient;
+    ObjectMapper objectMapper;
+    Javalin app;
+    String baseUrl;
+
+    /**
+     * Before every test, reset the database, restart the Javalin app, and create a new webClient and ObjectMapper
+     * for interacting locally on the web.
+     * @throws InterruptedException
+     */
+    @Before
+    public void setUp() throws InterruptedException {
+        ConnectionUtil.resetTestDatabase();
+        socialMediaController = new SocialMediaController(new SocialMediaService(), new RateLimiter(100_000, 100_000, 1000),
+                new RateLimiter(100_000, 100_000, 1000));
+        app = socialMediaController.startAPI();
+        webClient = HttpClient.newHttpClient();
+        objectMapper = new ObjectMapper();
+        baseUrl = TestServer.start(app);
+    }
+
+    @After
+    public void tearDown() {
+        app.stop();
+    }
+
+    /**
+     * Sending an http request to GET localhost:8080/messages/1 twice, then after an update and after a delete
+     *
+     * Expected Response:
+     *  The same JSON and ETag both times, the second served from the cache; the update's text and ETag right after the
+     *  update and an empty body after the delete
+     */
+    @Test
+    public void cachedResponseFollowsChanges() throws IOException, InterruptedException {
+        HttpResponse<String> first = get("/messages/1", null);
+        HttpResponse<String> second = get("/messages/1", null);
+        Assert.assertEquals(first.body(), second.body());
+        Assert.assertEquals(new Message(1, 1, "test message 1", 1669947792), objectMapper.readValue(second.body(), Message.class));
+        Assert.assertEquals("\"0\"", second.headers().firstValue("ETag").orElse(""));
+        Assert.assertTrue(second.headers().firstValue("Content-Type").orElse("").startsWith(ContentNegotiator.JSON));
+        Assert.assertEquals(String.valueOf(second.body().length()), second.headers().firstValue("Content-Length").orElse(""));
+        JsonNode cache = metrics().get("messageCache");
+        Assert.assertEquals(1, cache.get("hits").asLong());
+        Assert.assertEquals(1, cache.get("entries").asLong());
+
+        Assert.assertEquals(200, send(HttpRequest.newBuilder().uri(URI.create(baseUrl + "/messages/1"))
+                .method("PATCH", HttpRequest.BodyPublishers.ofString("{\"message_text\":\"updated\"}")).build()).statusCode());
+        HttpResponse<String> updated = get("/messages/1", null);
+        Assert.assertEquals("updated", objectMapper.readValue(updated.body(), Message.class).getMessage_text());
+        Assert.assertEquals("\"1\"", updated.headers().firstValue("ETag").orElse(""));
+
+        Assert.assertEquals(200, send(HttpRequest.newBuilder().uri(URI.create(baseUrl + "/messages/1")).DELETE().build()).statusCode());
+        HttpResponse<String> deleted = get("/messages/1", null);
+        Assert.assertEquals(200, deleted.statusCode());
+        Assert.assertEquals("", deleted.body());
+        Assert.assertEquals(0, metrics().get("messageCache").get("entries").asLong());
+    }
+
+    /**
+     * Sending an http request to GET localhost:8080/messages/1 asking for Smile
+     *
+     * Expected Response:
+     *  A Smile body, which is not cached
+     */
+    @Test
+    public void otherFormatsBypassTheCache() throws IOException, InterruptedException {
+        HttpResponse<String> smile = get("/messages/1", ContentNegotiator.SMILE);
+        Assert.assertEquals(ContentNegotiator.SMILE, smile.headers().firstValue("Content-Type").orElse(""));
+        Assert.assertEquals("\"0\"", smile.headers().firstValue("ETag").orElse(""));
+        Assert.assertEquals(0, metrics().get("messageCache").get("entries").asLong());
+    }
+
+    /**
+     * A load that read the message before it changed is not cached, whether the change came before or after it was
+     * put.
+     */
+    @Test
+    public void loadRacingAChangeIsNotCached() {
+        MessageResponseCache cache = new MessageResponseCache(100);
+        long generation = cache.generation(7);
+        cache.onMessageEvent(new MessageEvent(MessageEvent.Type.UPDATED, new Message(7, 1, "changed", 0)));
+        cache.put(7, generation, new byte[] {1}, "\"0\"");
+        Assert.assertNull(cache.get(7));
+
+        generation = cache.generation(7);
+        cache.put(7, generation, new byte[] {2}, "\"1\"");
+        Assert.assertArrayEquals(new byte[] {2}, cache.get(7).getBody());
+        //Created messages were never cached, nothing to drop
+        cache.onMessageEvent(new MessageEvent(MessageEvent.Type.CREATED, new Message(7, 1, "new", 0)));
+        Assert.assertNotNull(cache.get(7));
+        cache.onMessageEvent(new MessageEvent(MessageEvent.Type.DELETED, new Message(7, 1, "changed", 0)));
+        Assert.assertNull(cache.get(7));
+
+        for (int i = 0; i < 1000; i++){
+            cache.put(i, cache.generation(i), new byte[0], "\"0\"");
+        }
+        Assert.assertTrue(cache.size() <= 100);
+    }
+
+    /**
+     * Several clients keep reading message 1 while another keeps updating it.
+     *
+     * Expected: once the updates stop, a read returns the last update, never a response cached before it
+     */
+    @Test
+    public void readsDuringUpdatesEndOnTheLastUpdate() throws Exception {
+        AtomicBoolean running = new AtomicBoolean(true);
+        ExecutorService readers = Executors.newFixedThreadPool(4);
+        List<Future<?>> results = new ArrayList<Future<?>>();
+        for (int reader = 0; reader < 4; reader++){
+            results.add(readers.submit(() -> {
+                while (running.get()){
+                    Assert.assertEquals(200, get("/messages/1", null).statusCode());
+                }
+                return null;
+            }));
+        }
+        for (int i = 0; i < 200; i++){
+            Assert.assertEquals(200, send(HttpRequest.newBuilder().uri(URI.create(baseUrl + "/messages/1"))
+                    .method("PATCH", HttpRequest.BodyPublishers.ofString("{\"message_text\":\"update " + i + "\"}")).build()).statusCode());
+        }
+        running.set(false);
+        for (Future<?> result : results){
+            result.get(60, TimeUnit.SECONDS);
+        }
+        readers.shutdown();
+        HttpResponse<String> last = get("/messages/1", null);
+        Assert.assertEquals("update 199", objectMapper.readValue(last.body(), Message.class).getMessage_text());
+        Assert.assertEquals("\"200\"", last.headers().firstValue("ETag").orElse(""));
+    }
+
+    private JsonNode metrics() throws IOException, InterruptedException {
+        return objectMapper.readTree(get("/metrics", null).body());
+    }
+
+    private HttpResponse<String> get(String path, String accept) throws IOException, InterruptedException {
+        HttpRequest.Builder request = HttpRequest.newBuilder().uri(URI.create(baseUrl + path));
+        if (accept != null){
+            request.header("Accept", accept);
+        }
+        return send(request.build());
+    }
+
+    private HttpResponse<String> send(HttpRequest request) throws IOException, InterruptedException {
+        return webClient.send(request, HttpResponse.BodyHandlers.ofString());
+    }
+}
@@ -0,0 +1,112 @@
+import java.lang.management.ManagementFactory;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+
+import Controller.SocialMediaController;
+import Util.ConnectionUtil;
+import io.javalin.Javalin;
+
+/**
+ * Benchmark for the message stream: opens many idle /messages/stream subscribers against one node, reports the
+ * server's thread count and heap with them connected, then times how long a few posts take to reach all of them.
+ *
+ * This is not a test case, run it manually with:
+ *   mvn -q test-compile exec:java -Dexec.mainClass=MessageStreamBenchmark -Dexec.classpathScope=test -Dexec.args=10000
+ *
+ * Each subscriber is a socket on both ends, so the open file limit must allow about twice the subscriber count.
+ * It resets the database at ./h2/db, just like the test suite does.
+ */
+public class MessageStreamBenchmark {
+    private static final int POSTS = 5;
+
+    public static void main(String[] args) throws Exception {
+        int subscribers = args.length > 0 ? Integer.parseInt(args[0]) : 10_000;
+        ConnectionUtil.resetTestDatabase();
+        Javalin app = new SocialMediaController().startAPI().start(8080);
+        int baselineThreads = Thread.activeCount();
+        HttpClient webClient = HttpClient.newHttpClient();
+
+        CountDownLatch[] received = new CountDownLatch[POSTS];
+        for (int i = 0; i < POSTS; i++){
+            received[i] = new CountDownLatch(subscribers);
+        }
+        CountDownLatch connected = new CountDownLatch(subscribers);
+        long start = System.nanoTime();
+        for (int i = 0; i < subscribers; i++){
+            HttpRequest request = HttpRequest.newBuilder()
+                    .uri(URI.create("http://localhost:8080/messages/stream"))
+                    .header("Accept", "text/event-stream")
+                    .build();
+            webClient.sendAsync(request, HttpResponse.BodyHandlers.fromLineSubscriber(new CountingSubscriber(connected, received)));
+        }
+        //The server flushes the response headers right before it registers the subscriber, so allow it a moment after
+        if (!connected.await(120, TimeUnit.SECONDS)){
+            System.out.printf("only %d of %d subscribers connected%n", subscribers - connected.getCount(), subscribers);
+        }
+        Thread.sleep(1000);
+        double connectSeconds = (System.nanoTime() - start) / 1_000_000_000.0;
+
+        System.gc();
+        long heapMB = (Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory()) / (1024 * 1024);
+        System.out.printf("subscribers connected: %d in %.1f s%n", subscribers, connectSeconds);
+        System.out.printf("live threads: %d (before subscribers: %d), heap used (client and server): %d MB%n",
+                ManagementFactory.getThreadMXBean().getThreadCount(), baselineThreads, heapMB);
+
+        for (int i = 0; i < POSTS; i++){
+            start = System.nanoTime();
+            webClient.send(HttpRequest.newBuilder().uri(URI.create("http://localhost:8080/messages"))
+                    .POST(HttpRequest.BodyPublishers.ofString("{\"posted_by\":1, \"message_text\": \"fan-out " + i + "\", \"time_posted_epoch\": 1}"))
+                    .build(), HttpResponse.BodyHandlers.discarding());
+            double postMillis = (System.nanoTime() - start) / 1_000_000.0;
+            boolean all = received[i].await(60, TimeUnit.SECONDS);
+            double fanOutMillis = (System.nanoTime() - start) / 1_000_000.0;
+            System.out.printf("post %d: write returned in %.1f ms, delivered to %s subscribers in %.1f ms%n",
+                    i, postMillis, all ? "all" : String.valueOf(subscribers - received[i].getCount()), fanOutMillis);
+        }
+
+        app.stop();
+        ConnectionUtil.resetTestDatabase();
+        System.exit(0);
+    }
+
+    /**
+     * Counts down the connected latch once the stream's headers arrive, and the latch for post i when the i-th
+     * "created" event arrives on this stream.
+     */
+    private static class CountingSubscriber implements Flow.Subscriber<String> {
+        private final CountDownLatch connected;
+        private final CountDownLatch[] received;
+        private int events;
+
+        CountingSubscriber(CountDownLatch connected, CountDownLatch[] received) {
+            this.connected = connected;
+            this.received = received;
+        }
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            subscription.request(Long.MAX_VALUE);
+            connected.countDown();
+        }
+
+        @Override
+        public void onNext(String line) {
+            if (line.equals("event: created") && events < received.length){
+                received[events++].countDown();
+            }
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+        }
+
+        @Override
+        public void onComplete() {
+        }
+    }
+}
@@ -0,0 +1,162 @@
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import Controller.SocialMediaController;
+import Model.Message;
+import Util.ConnectionUtil;
+import io.javalin.Javalin;
+
+public class MessageStreamTest {
+    SocialMediaController socialMediaController;
+    HttpClient webClient;
+    ObjectMapper objectMapper;
+    Javalin app;
+    String baseUrl;
+
+    /**
+     * Before every test, reset the database, restart the Javalin app, and create a new webClient and ObjectMapper
+     * for interacting locally on the web.
+     * @throws InterruptedException
+     */
+    @Before
+    public void setUp() throws InterruptedException {
+        ConnectionUtil.resetTestDatabase();
+        socialMediaController = new SocialMediaController();
+        app = socialMediaController.startAPI();
+        webClient = HttpClient.newHttpClient();
+        objectMapper = new ObjectMapper();
+        baseUrl = TestServer.start(app);
+    }
+
+    @After
+    public void tearDown() {
+        app.stop();
+    }
+
+    /**
+     * Opens an event stream and returns an iterator over its lines once the stream is subscribed to the feed. The
+     * response headers are sent before the subscription is made, so changes made right after could be missed.
+     */
+    private Iterator<String> openStream(String path) throws Exception {
+        long subscribers = subscribers();
+        HttpRequest request = HttpRequest.newBuilder()
+                .uri(URI.create(baseUrl + path))
+                .header("Accept", "text/event-stream")
+                .build();
+        HttpResponse<Stream<String>> response = webClient.sendAsync(request, HttpResponse.BodyHandlers.ofLines())
+                .get(5, TimeUnit.SECONDS);
+        Assert.assertEquals(200, response.statusCode());
+        long deadline = System.currentTimeMillis() + 5000;
+        while (subscribers() == subscribers){
+            Assert.assertTrue("Stream not subscribed", System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+        return response.body().iterator();
+    }
+
+    private long subscribers() throws IOException, InterruptedException {
+        HttpResponse<String> metrics = webClient.send(HttpRequest.newBuilder().uri(URI.create(baseUrl + "/metrics")).build(),
+                HttpResponse.BodyHandlers.ofString());
+        return objectMapper.readTree(metrics.body()).get("messageFeed").get("subscribers").asLong();
+    }
+
+    /**
+     * Reads lines until the next event and returns its name and data as {event, data}.
+     */
+    private String[] nextEvent(Iterator<String> lines) {
+        String event = null;
+        String data = null;
+        while (lines.hasNext()){
+            String line = lines.next();
+            if (line.startsWith("event: ")){
+                event = line.substring("event: ".length());
+            }
+            else if (line.startsWith("data: ")){
+                data = line.substring("data: ".length());
+            }
+            else if (line.isEmpty() && event != null){
+                return new String[] {event, data};
+            }
+        }
+        throw new AssertionError("Stream ended before an event arrived");
+    }
+
+    private HttpResponse<String> send(HttpRequest.Builder builder) throws IOException, InterruptedException {
+        return webClient.send(builder.header("Content-Type", "application/json").build(), HttpResponse.BodyHandlers.ofString());
+    }
+
+    /**
+     * Connecting to GET localhost:8080/messages/stream, then creating, updating and deleting a message
+     *
+     * Expected Stream:
+     *  created, updated and deleted events, each holding the JSON representation of the message
+     */
+    @Test
+    public void streamReceivesCreateUpdateDelete() throws Exception {
+        Iterator<String> lines = openStream("/messages/stream");
+
+        send(HttpRequest.newBuilder().uri(URI.create(baseUrl + "/messages"))
+                .POST(HttpRequest.BodyPublishers.ofString("{\"posted_by\":1, \"message_text\": \"streamed\", \"time_posted_epoch\": 1669947792}")));
+        String[] created = nextEvent(lines);
+        Assert.assertEquals("created", created[0]);
+        Assert.assertEquals(new Message(2, 1, "streamed", 1669947792), objectMapper.readValue(created[1], Message.class));
+
+        send(HttpRequest.newBuilder().uri(URI.create(baseUrl + "/messages/2"))
+                .method("PATCH", HttpRequest.BodyPublishers.ofString("{\"message_text\": \"edited\"}")));
+        String[] updated = nextEvent(lines);
+        Assert.assertEquals("updated", updated[0]);
+        Assert.assertEquals(new Message(2, 1, "edited", 1669947792), objectMapper.readValue(updated[1], Message.class));
+
+        send(HttpRequest.newBuilder().uri(URI.create(baseUrl + "/messages/2")).DELETE());
+        String[] deleted = nextEvent(lines);
+        Assert.assertEquals("deleted", deleted[0]);
+        Assert.assertEquals(new Message(2, 1, "edited", 1669947792), objectMapper.readValue(deleted[1], Message.class));
+    }
+
+    /**
+     * Connecting to GET localhost:8080/accounts/2/messages/stream, then creating messages for accounts 1 and 2
+     *
+     * Expected Stream:
+     *  only the created event for account 2's message
+     */
+    @Test
+    public void accountStreamOnlyReceivesThatAccount() throws Exception {
+        send(HttpRequest.newBuilder().uri(URI.create(baseUrl + "/register"))
+                .POST(HttpRequest.BodyPublishers.ofString("{\"username\": \"streamer\", \"password\": \"password\"}")));
+        Iterator<String> lines = openStream("/accounts/2/messages/stream");
+
+        send(HttpRequest.newBuilder().uri(URI.create(baseUrl + "/messages"))
+                .POST(HttpRequest.BodyPublishers.ofString("{\"posted_by\":1, \"message_text\": \"not for you\", \"time_posted_epoch\": 1669947792}")));
+        send(HttpRequest.newBuilder().uri(URI.create(baseUrl + "/messages"))
+                .POST(HttpRequest.BodyPublishers.ofString("{\"posted_by\":2, \"message_text\": \"for you\", \"time_posted_epoch\": 1669947793}")));
+
+        String[] created = nextEvent(lines);
+        Assert.assertEquals("created", created[0]);
+        Assert.assertEquals(new Message(3, 2, "for you", 1669947793), objectMapper.readValue(created[1], Message.class));
+    }
+
+    /**
+     * Sending an http request to GET localhost:8080/messages/1 still returns the message, the stream route
+     * must not shadow it.
+     */
+    @Test
+    public void messageByIDStillRoutes() throws IOException, InterruptedException {
+        HttpResponse<String> response = webClient.send(HttpRequest.newBuilder()
+                .uri(URI.create(baseUrl + "/messages/1")).build(), HttpResponse.BodyHandlers.ofString());
+        Assert.assertEquals(200, response.statusCode());
+        Assert.assertEquals(new Message(1, 1, "test message 1", 1669947792), objectMapper.readValue(response.body(), Message.class));
+    }
+}
@@ -0,0 +1,182 @@
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import Controller.RateLimiter;
+import Controller.SocialMediaController;
+import DAO.InMemoryStorageEngine;
+import Model.Message;
+import Service.SocialMediaService;
+import Util.ConnectionUtil;
+import io.javalin.Javalin;
+
+public class OptimisticConcurrencyTest {
+    SocialMediaController socialMediaController;
+    HttpClient webClient;
+    ObjectMapper objectMapper;
+    Javalin app;
+    String baseUrl;
+
+    /**
+     * Before every test, reset the database, restart the Javalin app, and create a new webClient and ObjectMapper
+     * for interacting locally on the web.
+     * @throws InterruptedException
+     */
+    @Before
+    public void setUp() throws InterruptedException {
+        ConnectionUtil.resetTestDatabase();
+        //Rate limits high enough that the stress test is never told to slow down
+        socialMediaController = new SocialMediaController(new SocialMediaService(), new RateLimiter(100_000, 100_000, 1000),
+                new RateLimiter(100_000, 100_000, 1000));
+        app = socialMediaController.startAPI();
+        webClient = HttpClient.newHttpClient();
+        objectMapper = new ObjectMapper();
+        baseUrl = TestServer.start(app);
+    }
+
+    @After
+    public void tearDown() {
+        app.stop();
+    }
+
+    /**
+     * Sending an http request to PATCH localhost:8080/messages/1 with the If-Match header of a GET, twice
+     *
+     * Expected Response:
+     *  Status Code: 200 with the next ETag the first time, 412 the second time as the message changed since the GET,
+     *  and the second update is not applied
+     */
+    @Test
+    public void staleIfMatchIsPreconditionFailed() throws IOException, InterruptedException {
+        HttpResponse<String> read = get("/messages/1");
+        String etag = read.headers().firstValue("ETag").orElse("");
+        Assert.assertEquals("\"0\"", etag);
+        Assert.assertEquals(new Message(1, 1, "test message 1", 1669947792), objectMapper.readValue(read.body(), Message.class));
+
+        HttpResponse<String> updated = patch("/messages/1", "{\"message_text\":\"first edit\"}", etag);
+        Assert.assertEquals(200, updated.statusCode());
+        Assert.assertEquals("\"1\"", updated.headers().firstValue("ETag").orElse(""));
+        Assert.assertEquals(new Message(1, 1, "first edit", 1669947792), objectMapper.readValue(updated.body(), Message.class));
+
+        Assert.assertEquals(412, patch("/messages/1", "{\"message_text\":\"lost edit\"}", etag).statusCode());
+        Assert.assertEquals("first edit", objectMapper.readValue(get("/messages/1").body(), Message.class).getMessage_text());
+        //Any of several tags may match, a weak tag never does
+        Assert.assertEquals(200, patch("/messages/1", "{\"message_text\":\"second edit\"}", "\"0\", \"1\"").statusCode());
+        Assert.assertEquals(412, patch("/messages/1", "{\"message_text\":\"weak edit\"}", "W/\"2\"").statusCode());
+        Assert.assertEquals(200, patch("/messages/1", "{\"message_text\":\"any edit\"}", "*").statusCode());
+    }
+
+    /**
+     * Sending an http request to PATCH a message kept by the in-memory engine with the If-Match header of a GET, after
+     * the message changed to a text with the same hash code
+     *
+     * Expected Response:
+     *  Status Code: 412, the version is not derived from the text
+     */
+    @Test
+    public void staleIfMatchAfterCollidingTextIsPreconditionFailed() throws IOException, InterruptedException {
+        app.stop();
+        InMemoryStorageEngine storageEngine = new InMemoryStorageEngine();
+        Message message = storageEngine.createMessage("Aa", storageEngine.createAccount("testuser1", "password").getAccount_id(), 1669947792);
+        app = new SocialMediaController(new SocialMediaService(storageEngine)).startAPI();
+        baseUrl = TestServer.start(app);
+        String path = "/messages/" + message.getMessage_id();
+
+        String etag = get(path).headers().firstValue("ETag").orElse("");
+        Assert.assertEquals(200, patch(path, "{\"message_text\":\"BB\"}", null).statusCode());
+        Assert.assertEquals(412, patch(path, "{\"message_text\":\"lost edit\"}", etag).statusCode());
+        Assert.assertEquals("BB", objectMapper.readValue(get(path).body(), Message.class).getMessage_text());
+    }
+
+    /**
+     * Sending an http request to PATCH localhost:8080/messages/1 with a version field in the body
+     *
+     * Expected Response:
+     *  Status Code: 409 for a version the message is no longer at, 200 for the current one; without a version the
+     *  update is unconditional as before
+     */
+    @Test
+    public void staleBodyVersionIsConflict() throws IOException, InterruptedException {
+        Assert.assertEquals(200, patch("/messages/1", "{\"message_text\":\"unconditional\"}", null).statusCode());
+        Assert.assertEquals(409, patch("/messages/1", "{\"message_text\":\"stale\",\"version\":0}", null).statusCode());
+        HttpResponse<String> updated = patch("/messages/1", "{\"message_text\":\"current\",\"version\":1}", null);
+        Assert.assertEquals(200, updated.statusCode());
+        Assert.assertEquals("\"2\"", updated.headers().firstValue("ETag").orElse(""));
+        //Invalid text and unknown messages are answered as before
+        Assert.assertEquals(400, patch("/messages/1", "{\"message_text\":\"\",\"version\":2}", null).statusCode());
+        Assert.assertEquals(400, patch("/messages/2", "{\"message_text\":\"nobody\",\"version\":0}", null).statusCode());
+    }
+
+    /**
+     * Several clients increment a counter kept in the text of message 1 by reading it and writing it back with
+     * If-Match, starting over whenever another client got there first.
+     *
+     * Expected: no increment is lost, the final count is exactly the number of updates that succeeded
+     */
+    @Test
+    public void conditionalUpdatesLoseNothing() throws Exception {
+        int clients = 4;
+        int incrementsPerClient = 50;
+        Assert.assertEquals(200, patch("/messages/1", "{\"message_text\":\"0\"}", null).statusCode());
+        ExecutorService executor = Executors.newFixedThreadPool(clients);
+        List<Future<Integer>> conflicts = new ArrayList<Future<Integer>>();
+        for (int client = 0; client < clients; client++){
+            conflicts.add(executor.submit(() -> {
+                int conflicted = 0;
+                for (int i = 0; i < incrementsPerClient; i++){
+                    while (true){
+                        HttpResponse<String> read = get("/messages/1");
+                        int count = Integer.parseInt(objectMapper.readValue(read.body(), Message.class).getMessage_text());
+                        HttpResponse<String> written = patch("/messages/1", "{\"message_text\":\"" + (count + 1) + "\"}",
+                                read.headers().firstValue("ETag").get());
+                        if (written.statusCode() == 200){
+                            break;
+                        }
+                        Assert.assertEquals(412, written.statusCode());
+                        conflicted++;
+                    }
+                }
+                return conflicted;
+            }));
+        }
+        int conflicted = 0;
+        for (Future<Integer> result : conflicts){
+            conflicted += result.get(120, TimeUnit.SECONDS);
+        }
+        executor.shutdown();
+        HttpResponse<String> read = get("/messages/1");
+        Assert.assertEquals(String.valueOf(clients * incrementsPerClient), objectMapper.readValue(read.body(), Message.class).getMessage_text());
+        //One version for every update, the unconditional reset included
+        Assert.assertEquals("\"" + (clients * incrementsPerClient + 1) + "\"", read.headers().firstValue("ETag").orElse(""));
+        System.out.println(clients * incrementsPerClient + " conditional increments, " + conflicted + " conflicts retried");
+    }
+
+    private HttpResponse<String> get(String path) throws IOException, InterruptedException {
+        return webClient.send(HttpRequest.newBuilder().uri(URI.create(baseUrl + path)).build(),
+                HttpResponse.BodyHandlers.ofString());
+    }
+
+    private HttpResponse<String> patch(String path, String body, String ifMatch) throws IOException, InterruptedException {
+        HttpRequest.Builder request = HttpRequest.newBuilder().uri(URI.create(baseUrl + path))
+                .method("PATCH", HttpRequest.BodyPublishers.ofString(body));
+        if (ifMatch != null){
+            request.header("If-Match", ifMatch);
+        }
+        return webClient.send(request.build(), HttpResponse.BodyHandlers.ofString());
+    }
+}
@@ -0,0 +1,136 @@
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import Controller.RateLimiter;
+import Controller.SocialMediaController;
+import Model.Message;
+import Service.SocialMediaService;
+import Util.ConnectionUtil;
+import io.javalin.Javalin;
+
+/**
+ * Benchmark for conditional updates: CLIENTS clients each send UPDATES PATCH /messages/{message_id} requests for a
+ * message of their own, once unconditionally and once with the If-Match of their last update, reporting the
+ * throughput of each. Then the clients increment a counter kept in one shared message by reading and writing it back,
+ * to count the increments lost without If-Match and the conflicts retried with it.
+ *
+ * This is not a test case, run it manually with:
+ *   mvn -q test-compile exec:java -Dexec.mainClass=OptimisticUpdateBenchmark -Dexec.classpathScope=test [-Dexec.args=updates]
+ *
+ * It resets the database at ./h2/db, just like the test suite does.
+ */
+public class OptimisticUpdateBenchmark {
+    private static final int DEFAULT_UPDATES = 2_000;
+    private static final int CLIENTS = 4;
+    private static final boolean[] CONDITIONAL = {false, true, false, true};
+    private static final ObjectMapper objectMapper = new ObjectMapper();
+    private static final HttpClient webClient = HttpClient.newHttpClient();
+
+    public static void main(String[] args) throws Exception {
+        int updates = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_UPDATES;
+        ConnectionUtil.resetTestDatabase();
+        Javalin app = new SocialMediaController(new SocialMediaService(), new RateLimiter(1_000_000, 1_000_000, 1000),
+                new RateLimiter(1_000_000, 1_000_000, 1000)).startAPI();
+        app.start(8080);
+        ExecutorService clients = Executors.newFixedThreadPool(CLIENTS);
+        try{
+            int[] messageIDs = new int[CLIENTS];
+            for (int client = 0; client < CLIENTS; client++){
+                HttpResponse<String> created = webClient.send(HttpRequest.newBuilder().uri(URI.create("http://localhost:8080/messages"))
+                        .POST(HttpRequest.BodyPublishers.ofString("{\"posted_by\":1,\"message_text\":\"0\",\"time_posted_epoch\":1}")).build(),
+                        HttpResponse.BodyHandlers.ofString());
+                messageIDs[client] = objectMapper.readValue(created.body(), Message.class).getMessage_id();
+            }
+            System.out.printf("%d clients, %d updates per client and run%n", CLIENTS, updates);
+            System.out.printf("%-14s %12s%n", "update", "updates/s");
+            //The first two runs warm up the same code the last two measure
+            for (int run = 0; run < CONDITIONAL.length; run++){
+                boolean conditional = CONDITIONAL[run];
+                List<Future<?>> results = new ArrayList<Future<?>>();
+                long start = System.nanoTime();
+                for (int client = 0; client < CLIENTS; client++){
+                    int messageID = messageIDs[client];
+                    results.add(clients.submit(() -> {
+                        String etag = webClient.send(get(messageID), HttpResponse.BodyHandlers.discarding()).headers()
+                                .firstValue("ETag").get();
+                        for (int i = 0; i < updates; i++){
+                            HttpResponse<Void> response = webClient.send(patch(messageID, "edit " + i, conditional ? etag : null),
+                                    HttpResponse.BodyHandlers.discarding());
+                            if (response.statusCode() != 200){
+                                throw new IllegalStateException("PATCH answered " + response.statusCode());
+                            }
+                            etag = response.headers().firstValue("ETag").get();
+                        }
+                        return null;
+                    }));
+                }
+                for (Future<?> result : results){
+                    result.get();
+                }
+                long nanos = System.nanoTime() - start;
+                if (run >= CONDITIONAL.length / 2){
+                    System.out.printf("%-14s %12.0f%n", conditional ? "If-Match" : "unconditional", CLIENTS * updates / (nanos / 1e9));
+                }
+            }
+
+            System.out.printf("%n%-14s %12s %12s %12s%n", "counter", "increments", "final count", "conflicts");
+            for (boolean conditional : new boolean[] {false, true}){
+                webClient.send(patch(messageIDs[0], "0", null), HttpResponse.BodyHandlers.discarding());
+                AtomicInteger conflicts = new AtomicInteger();
+                List<Future<?>> results = new ArrayList<Future<?>>();
+                for (int client = 0; client < CLIENTS; client++){
+                    results.add(clients.submit(() -> {
+                        for (int i = 0; i < updates / 10; i++){
+                            while (true){
+                                HttpResponse<String> read = webClient.send(get(messageIDs[0]), HttpResponse.BodyHandlers.ofString());
+                                int count = Integer.parseInt(objectMapper.readValue(read.body(), Message.class).getMessage_text());
+                                HttpResponse<Void> written = webClient.send(patch(messageIDs[0], String.valueOf(count + 1),
+                                        conditional ? read.headers().firstValue("ETag").get() : null), HttpResponse.BodyHandlers.discarding());
+                                if (written.statusCode() == 200){
+                                    break;
+                                }
+                                conflicts.incrementAndGet();
+                            }
+                        }
+                        return null;
+                    }));
+                }
+                for (Future<?> result : results){
+                    result.get();
+                }
+                String count = objectMapper.readValue(webClient.send(get(messageIDs[0]), HttpResponse.BodyHandlers.ofString()).body(),
+                        Message.class).getMessage_text();
+                System.out.printf("%-14s %12d %12s %12d%n", conditional ? "If-Match" : "unconditional", CLIENTS * (updates / 10),
+                        count, conflicts.get());
+            }
+        }
+        finally{
+            clients.shutdown();
+            app.stop();
+            ConnectionUtil.resetTestDatabase();
+        }
+    }
+
+    private static HttpRequest get(int messageID) {
+        return HttpRequest.newBuilder().uri(URI.create("http://localhost:8080/messages/" + messageID)).build();
+    }
+
+    private static HttpRequest patch(int messageID, String messageText, String ifMatch) {
+        HttpRequest.Builder request = HttpRequest.newBuilder().uri(URI.create("http://localhost:8080/messages/" + messageID))
+                .method("PATCH", HttpRequest.BodyPublishers.ofString("{\"message_text\":\"" + messageText + "\"}"));
+        if (ifMatch != null){
+            request.header("If-Match", ifMatch);
+        }
+        return request.build();
+    }
+}
@@ -0,0 +1,98 @@
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import Controller.RateLimiter;
+import Controller.SocialMediaController;
+import Service.SocialMediaService;
+import Util.ConnectionUtil;
+import io.javalin.Javalin;
+
+public class RateLimitTest {
+    SocialMediaController socialMediaController;
+    HttpClient webClient;
+    Javalin app;
+    String baseUrl;
+
+    /**
+     * Before every test, reset the database and restart the Javalin app with a tight per-account limit of 2 requests
+     * that takes a minute to refill, and a generous per-address limit.
+     * @throws InterruptedException
+     */
+    @Before
+    public void setUp() throws InterruptedException {
+        ConnectionUtil.resetTestDatabase();
+        socialMediaController = new SocialMediaController(new SocialMediaService(),
+                new RateLimiter(1000, 1000, 100), new RateLimiter(1 / 60.0, 2, 100));
+        app = socialMediaController.startAPI();
+        webClient = HttpClient.newHttpClient();
+        baseUrl = TestServer.start(app);
+    }
+
+    @After
+    public void tearDown() {
+        app.stop();
+    }
+
+    private HttpResponse<String> post(String path, String body) throws IOException, InterruptedException {
+        return webClient.send(HttpRequest.newBuilder()
+                .uri(URI.create(baseUrl + path))
+                .POST(HttpRequest.BodyPublishers.ofString(body))
+                .header("Content-Type", "application/json")
+                .build(), HttpResponse.BodyHandlers.ofString());
+    }
+
+    /**
+     * Sending three http requests to POST localhost:8080/messages for posted_by 1, then one for posted_by 2
+     *
+     * Expected Response:
+     *  Status Code: 200, 200, then 429 with a Retry-After of about a minute, then 200 for the other account
+     */
+    @Test
+    public void createMessageLimitedPerAccount() throws IOException, InterruptedException {
+        String body = "{\"posted_by\":1, \"message_text\": \"hello message\", \"time_posted_epoch\": 1669947792}";
+        Assert.assertEquals(200, post("/messages", body).statusCode());
+        Assert.assertEquals(200, post("/messages", body).statusCode());
+
+        HttpResponse<String> limited = post("/messages", body);
+        Assert.assertEquals(429, limited.statusCode());
+        long retryAfter = Long.parseLong(limited.headers().firstValue("Retry-After").orElseThrow());
+        Assert.assertTrue(retryAfter > 0 && retryAfter <= 60);
+
+        post("/register", "{\"username\": \"second\", \"password\": \"password\"}");
+        Assert.assertEquals(200, post("/messages",
+                "{\"posted_by\":2, \"message_text\": \"hello message\", \"time_posted_epoch\": 1669947792}").statusCode());
+    }
+
+    /**
+     * Sending three http requests to POST localhost:8080/login for the same username with a wrong password
+     *
+     * Expected Response:
+     *  Status Code: 401, 401, then 429 even though the password is now correct
+     */
+    @Test
+    public void loginLimitedPerUsername() throws IOException, InterruptedException {
+        Assert.assertEquals(401, post("/login", "{\"username\": \"testuser1\", \"password\": \"wrong\"}").statusCode());
+        Assert.assertEquals(401, post("/login", "{\"username\": \"testuser1\", \"password\": \"wrong\"}").statusCode());
+        Assert.assertEquals(429, post("/login", "{\"username\": \"testuser1\", \"password\": \"password\"}").statusCode());
+    }
+
+    /**
+     * A limiter tracking more keys than its bound sweeps back down instead of growing without limit.
+     */
+    @Test
+    public void keyMapStaysBounded() {
+        RateLimiter rateLimiter = new RateLimiter(1, 1, 100);
+        for (int i = 0; i < 10_000; i++){
+            Assert.assertEquals(0, rateLimiter.tryAcquire("client " + i));
+        }
+        Assert.assertTrue(rateLimiter.getKeyCount() <= 101);
+    }
+}
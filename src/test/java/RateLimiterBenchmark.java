@@ -0,0 +1,56 @@
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import Controller.RateLimiter;
+
+/**
+ * Benchmark for the overhead of a rate limit check: wall-clock time per RateLimiter.tryAcquire with a realistic
+ * number of distinct keys, from one thread and from several threads sharing the limiter. The limits are set high so
+ * every check succeeds and only the bookkeeping is measured.
+ *
+ * This is not a test case, run it manually with:
+ *   mvn -q test-compile exec:java -Dexec.mainClass=RateLimiterBenchmark -Dexec.classpathScope=test
+ */
+public class RateLimiterBenchmark {
+    private static final int KEYS = 10_000;
+    private static final int CHECKS = 10_000_000;
+
+    public static void main(String[] args) throws InterruptedException {
+        String[] keys = new String[KEYS];
+        for (int i = 0; i < KEYS; i++){
+            keys[i] = "posted_by:" + i;
+        }
+        System.out.printf("%-10s %16s%n", "threads", "ns per check");
+        for (int threads : new int[] {1, 1, 2, 4, 8}){
+            //The first single-threaded run is warm-up
+            RateLimiter rateLimiter = new RateLimiter(1_000_000_000, 1_000_000_000, KEYS * 2);
+            System.out.printf("%-10d %16.1f%n", threads, run(rateLimiter, keys, threads));
+        }
+    }
+
+    private static double run(RateLimiter rateLimiter, String[] keys, int threads) throws InterruptedException {
+        CountDownLatch done = new CountDownLatch(threads);
+        AtomicLong rejected = new AtomicLong();
+        int checksPerThread = CHECKS / threads;
+        long start = System.nanoTime();
+        for (int t = 0; t < threads; t++){
+            int offset = t * 7919;
+            new Thread(() -> {
+                long denied = 0;
+                for (int i = 0; i < checksPerThread; i++){
+                    if (rateLimiter.tryAcquire(keys[(offset + i) % keys.length]) != 0){
+                        denied++;
+                    }
+                }
+                rejected.addAndGet(denied);
+                done.countDown();
+            }).start();
+        }
+        done.await();
+        long elapsed = System.nanoTime() - start;
+        if (rejected.get() > 0){
+            System.out.println("unexpected rejections: " + rejected.get());
+        }
+        return elapsed / (double) (checksPerThread * threads);
+    }
+}
@@ -0,0 +1,74 @@
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import Controller.SocialMediaController;
+import Service.SocialMediaService;
+import Util.ConnectionUtil;
+import io.javalin.Javalin;
+
+public class ReadinessTest {
+    SocialMediaService socialMediaService;
+    SocialMediaController socialMediaController;
+    HttpClient webClient;
+    Javalin app;
+    String baseUrl;
+
+    /**
+     * Before every test, reset the database, restart the Javalin app, and create a new webClient.
+     * @throws InterruptedException
+     */
+    @Before
+    public void setUp() throws InterruptedException {
+        ConnectionUtil.resetTestDatabase();
+        socialMediaService = new SocialMediaService();
+        socialMediaController = new SocialMediaController(socialMediaService);
+        app = socialMediaController.startAPI();
+        webClient = HttpClient.newHttpClient();
+        baseUrl = TestServer.start(app);
+    }
+
+    @After
+    public void tearDown() {
+        app.stop();
+    }
+
+    private int readiness() throws IOException, InterruptedException {
+        HttpRequest request = HttpRequest.newBuilder().uri(URI.create(baseUrl + "/health/ready")).build();
+        return webClient.send(request, HttpResponse.BodyHandlers.ofString()).statusCode();
+    }
+
+    /**
+     * Sending an http request to GET localhost:8080/health/ready before and after the application is warmed up
+     *
+     * Expected Response:
+     *  Status Code: 503 before, 200 after
+     */
+    @Test
+    public void readyOnlyOnceWarm() throws Exception {
+        Assert.assertEquals(503, readiness());
+
+        socialMediaService.warmUp();
+        socialMediaController.primeSerializers();
+        socialMediaController.setReady(true);
+
+        Assert.assertEquals(200, readiness());
+    }
+
+    /**
+     * The warm-up workload only reads, so it leaves the data as it was.
+     */
+    @Test
+    public void warmUpWorkloadChangesNothing() throws Exception {
+        socialMediaController.runWarmUpWorkload(200);
+        Assert.assertEquals(1, socialMediaService.getAllMessages().size());
+        Assert.assertNotNull(socialMediaService.getMessageByID(1));
+    }
+}
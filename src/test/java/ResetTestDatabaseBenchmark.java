@@ -0,0 +1,50 @@
+import java.io.FileReader;
+import java.sql.Connection;
+
+import org.h2.tools.RunScript;
+
+import Util.ConnectionUtil;
+import Util.StorageProfile;
+
+/**
+ * Benchmark for resetting the test database between tests: running SocialMedia.sql every time, as every reset used
+ * to, against ConnectionUtil.resetTestDatabase restoring the in-memory snapshot of the seeded database, on the MEMORY
+ * profile the suite runs on and on the FILE profile.
+ *
+ * This is not a test case, run it manually with:
+ *   mvn -q test-compile exec:java -Dexec.mainClass=ResetTestDatabaseBenchmark -Dexec.classpathScope=test [-Dexec.args=resets]
+ *
+ * It resets the database at ./h2/db, just like the test suite does.
+ */
+public class ResetTestDatabaseBenchmark {
+    private static final int DEFAULT_RESETS = 500;
+
+    public static void main(String[] args) throws Exception {
+        int resets = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_RESETS;
+        System.out.printf("%d resets per run%n", resets);
+        System.out.printf("%-10s %16s %16s%n", "profile", "script ms/reset", "restore ms/reset");
+        for (StorageProfile profile : new StorageProfile[] {StorageProfile.MEMORY, StorageProfile.FILE}){
+            ConnectionUtil.setStorageProfile(profile);
+            //The first round warms up both paths and takes the snapshot
+            for (int round = 0; round < 2; round++){
+                long start = System.nanoTime();
+                for (int i = 0; i < resets; i++){
+                    try (Connection connection = ConnectionUtil.getConnection(); FileReader sqlReader = new FileReader("src/main/resources/SocialMedia.sql")){
+                        RunScript.execute(connection, sqlReader);
+                    }
+                }
+                double script = (System.nanoTime() - start) / 1e6 / resets;
+                start = System.nanoTime();
+                for (int i = 0; i < resets; i++){
+                    ConnectionUtil.resetTestDatabase();
+                }
+                double restore = (System.nanoTime() - start) / 1e6 / resets;
+                if (round == 1){
+                    System.out.printf("%-10s %16.2f %16.2f%n", profile, script, restore);
+                }
+            }
+        }
+        ConnectionUtil.setStorageProfile(StorageProfile.FILE);
+        ConnectionUtil.resetTestDatabase();
+    }
+}
@@ -0,0 +1,104 @@
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import DAO.DataAccessException;
+import DAO.SocialMediaDAO;
+import DAO.ShardedSocialMediaDAO;
+import Model.Message;
+import Util.ConnectionUtil;
+
+/**
+ * Tests for what is specific to sharding: routing by posted_by, ids encoding their shard, and the author check on
+ * shards that hold no accounts. The StorageEngine contract itself is covered by StorageEngineTest.
+ */
+public class ShardedSocialMediaDAOTest {
+    static final int SHARDS = 3;
+    ShardedSocialMediaDAO shardedDAO;
+
+    @Before
+    public void setUp() {
+        ConnectionUtil.resetShardDatabases(SHARDS);
+        shardedDAO = new ShardedSocialMediaDAO(SHARDS);
+        //Accounts 2 and 3, so together with testuser1 every shard has an author
+        shardedDAO.createAccount("second", "password");
+        shardedDAO.createAccount("third", "password");
+    }
+
+    @After
+    public void tearDown() {
+        shardedDAO.close();
+    }
+
+    @Test
+    public void messagesAreStoredOnTheirAuthorsShard() {
+        for (int accountID = 1; accountID <= 3; accountID++){
+            Message message = shardedDAO.createMessage("routed", accountID, 1);
+            int shard = accountID % SHARDS;
+            Assert.assertEquals(shard, message.getMessage_id() % SHARDS);
+            //The shard's own DAO knows the message by its local id
+            Message local = new SocialMediaDAO(shard).getMessageByID(message.getMessage_id() / SHARDS);
+            Assert.assertEquals("routed", local.getMessage_text());
+            Assert.assertEquals(message, shardedDAO.getMessageByID(message.getMessage_id()));
+        }
+    }
+
+    @Test
+    public void getAllMessagesGathersEveryShard() {
+        shardedDAO.createMessage("from two", 2, 5);
+        shardedDAO.createMessage("from three", 3, 6);
+        List<Message> messages = shardedDAO.getAllMessages();
+        Assert.assertEquals(3, messages.size());
+        for (int i = 1; i < messages.size(); i++){
+            Assert.assertTrue(messages.get(i - 1).getMessage_id() < messages.get(i).getMessage_id());
+        }
+        Assert.assertEquals(2, shardedDAO.getMessagesInTimeRange(5, 6).size());
+    }
+
+    @Test
+    public void messageForUnknownAuthorIsRejectedOnEveryShard() {
+        for (int accountID = 4; accountID < 4 + SHARDS; accountID++){
+            Assert.assertNull(shardedDAO.createMessage("nobody wrote this", accountID, 1));
+        }
+        Assert.assertEquals(1, shardedDAO.getAllMessages().size());
+    }
+
+    /**
+     * A shard whose local ids reach the highest one a global id can encode.
+     *
+     * Expected: creates on it fail and leave nothing behind, instead of handing out an id that wrapped around
+     */
+    @Test
+    public void localIdsPastTheCeilingAreRejected() throws SQLException {
+        //Account 2 posts to shard 2, whose highest encodable local id is (Integer.MAX_VALUE - 2) / 3
+        int ceiling = (Integer.MAX_VALUE - 2) / SHARDS;
+        try (Connection connection = ConnectionUtil.getConnection(2)){
+            connection.createStatement().execute("ALTER TABLE message ALTER COLUMN message_id RESTART WITH " + ceiling);
+        }
+        Message last = shardedDAO.createMessage("last one", 2, 1);
+        Assert.assertEquals((long) ceiling * SHARDS + 2, last.getMessage_id());
+        Assert.assertTrue(last.getMessage_id() > 0);
+        try{
+            shardedDAO.createMessage("one too many", 2, 2);
+            Assert.fail("Created a message past the id ceiling");
+        }
+        catch(DataAccessException e){
+            Assert.assertEquals(DataAccessException.Kind.FATAL, e.getKind());
+        }
+        try{
+            shardedDAO.createMessages(Arrays.asList(new Message(2, "batched", 3), new Message(1, "other shard", 3)));
+            Assert.fail("Created a batch past the id ceiling");
+        }
+        catch(DataAccessException e){
+            Assert.assertEquals(DataAccessException.Kind.FATAL, e.getKind());
+        }
+        Assert.assertEquals(Arrays.asList(last), shardedDAO.getMessagesByUserID(2));
+        Assert.assertEquals(1, shardedDAO.getAccountStats(2).getMessage_count());
+    }
+}
@@ -0,0 +1,52 @@
+import java.util.concurrent.CountDownLatch;
+
+import DAO.ShardedSocialMediaDAO;
+import Util.ConnectionUtil;
+
+/**
+ * Benchmark for write throughput as the message table is spread over more H2 databases. A fixed number of writer
+ * threads, each posting as its own account, insert messages through ShardedSocialMediaDAO with 1, 2, 4 and 8 shards.
+ * Scaling depends on the cores available, so the core count is printed alongside.
+ *
+ * This is not a test case, run it manually with:
+ *   mvn -q test-compile exec:java -Dexec.mainClass=ShardingBenchmark -Dexec.classpathScope=test
+ *
+ * It resets the databases at ./h2/db and ./h2/db-shard*, just like the test suite does.
+ */
+public class ShardingBenchmark {
+    private static final int WRITERS = 8;
+    private static final int MESSAGES_PER_WRITER = 2_000;
+
+    public static void main(String[] args) throws InterruptedException {
+        System.out.printf("cores: %d, writer threads: %d%n", Runtime.getRuntime().availableProcessors(), WRITERS);
+        System.out.printf("%-8s %14s%n", "shards", "inserts/s");
+        for (int shards : new int[] {1, 2, 4, 8}){
+            ConnectionUtil.resetShardDatabases(shards);
+            ShardedSocialMediaDAO shardedDAO = new ShardedSocialMediaDAO(shards);
+            int[] accountIDs = new int[WRITERS];
+            for (int i = 0; i < WRITERS; i++){
+                accountIDs[i] = shardedDAO.createAccount("benchmark writer " + i, "password").getAccount_id();
+            }
+            System.out.printf("%-8d %14.0f%n", shards, insert(shardedDAO, accountIDs));
+            shardedDAO.close();
+        }
+        ConnectionUtil.resetShardDatabases(8);
+        ConnectionUtil.resetTestDatabase();
+    }
+
+    private static double insert(ShardedSocialMediaDAO shardedDAO, int[] accountIDs) throws InterruptedException {
+        CountDownLatch done = new CountDownLatch(accountIDs.length);
+        long start = System.nanoTime();
+        for (int accountID : accountIDs){
+            new Thread(() -> {
+                for (int i = 0; i < MESSAGES_PER_WRITER; i++){
+                    shardedDAO.createMessage("benchmark message " + i, accountID, i);
+                }
+                done.countDown();
+            }).start();
+        }
+        done.await();
+        double seconds = (System.nanoTime() - start) / 1_000_000_000.0;
+        return accountIDs.length * MESSAGES_PER_WRITER / seconds;
+    }
+}
@@ -0,0 +1,195 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import DAO.InMemoryStorageEngine;
+import DAO.Versioned;
+import Model.Message;
+import Service.SingleFlight;
+import Service.SocialMediaService;
+
+/**
+ * Tests for request coalescing: concurrent identical reads share one storage read, failures reach every caller, and
+ * cancellation only ever affects the caller that was cancelled.
+ */
+public class SingleFlightTest {
+    ExecutorService executor = Executors.newCachedThreadPool();
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Starts callers on the executor and waits until all of them but the first are waiting on its load.
+     */
+    private List<Future<Object>> startCallers(SingleFlight singleFlight, int callers, CountDownLatch loading,
+            Supplier<Object> loader) throws Exception {
+        List<Future<Object>> results = new ArrayList<>();
+        results.add(executor.submit(() -> singleFlight.execute("key", loader)));
+        Assert.assertTrue(loading.await(5, TimeUnit.SECONDS));
+        for (int i = 1; i < callers; i++){
+            results.add(executor.submit(() -> singleFlight.execute("key", loader)));
+        }
+        long deadline = System.currentTimeMillis() + 5000;
+        while (singleFlight.getMetrics().get("coalesced") < callers - 1 && System.currentTimeMillis() < deadline){
+            Thread.sleep(5);
+        }
+        return results;
+    }
+
+    @Test
+    public void concurrentServiceReadsShareOneStorageRead() throws Exception {
+        AtomicInteger reads = new AtomicInteger();
+        CountDownLatch loading = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        InMemoryStorageEngine storageEngine = new InMemoryStorageEngine(){
+            //The service reads messages along with their version
+            @Override
+            public Versioned<Message> getVersionedMessageByID(int messageID) {
+                reads.incrementAndGet();
+                loading.countDown();
+                try{
+                    release.await();
+                }
+                catch(InterruptedException e){
+                    Thread.currentThread().interrupt();
+                }
+                return super.getVersionedMessageByID(messageID);
+            }
+        };
+        int accountID = storageEngine.createAccount("viral", "password").getAccount_id();
+        Message message = storageEngine.createMessage("viral message", accountID, 1);
+        SocialMediaService socialMediaService = new SocialMediaService(storageEngine);
+
+        List<Future<Message>> results = new ArrayList<>();
+        for (int i = 0; i < 50; i++){
+            results.add(executor.submit(() -> socialMediaService.getMessageByID(message.getMessage_id())));
+        }
+        Assert.assertTrue(loading.await(5, TimeUnit.SECONDS));
+        long deadline = System.currentTimeMillis() + 5000;
+        while (socialMediaService.getSingleFlightMetrics().get("coalesced") < 49 && System.currentTimeMillis() < deadline){
+            Thread.sleep(5);
+        }
+        release.countDown();
+
+        for (Future<Message> result : results){
+            Assert.assertEquals(message, result.get(5, TimeUnit.SECONDS));
+        }
+        Assert.assertEquals(1, reads.get());
+        Assert.assertEquals(Long.valueOf(49), socialMediaService.getSingleFlightMetrics().get("coalesced"));
+        Assert.assertEquals(Long.valueOf(0), socialMediaService.getSingleFlightMetrics().get("inFlight"));
+    }
+
+    @Test
+    public void failureReachesEveryCaller() throws Exception {
+        SingleFlight singleFlight = new SingleFlight();
+        CountDownLatch loading = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        List<Future<Object>> results = startCallers(singleFlight, 5, loading, () -> {
+            loading.countDown();
+            try{
+                release.await();
+            }
+            catch(InterruptedException e){
+                Thread.currentThread().interrupt();
+            }
+            throw new IllegalStateException("storage down");
+        });
+        release.countDown();
+
+        for (Future<Object> result : results){
+            try{
+                result.get(5, TimeUnit.SECONDS);
+                Assert.fail("Expected the load's failure");
+            }
+            catch(ExecutionException e){
+                Assert.assertEquals("storage down", e.getCause().getMessage());
+            }
+        }
+        Assert.assertEquals(Long.valueOf(1), singleFlight.getMetrics().get("loads"));
+    }
+
+    @Test
+    public void cancelledLoaderMakesWaitersRetry() throws Exception {
+        SingleFlight singleFlight = new SingleFlight();
+        CountDownLatch loading = new CountDownLatch(1);
+        AtomicInteger loads = new AtomicInteger();
+        List<Future<Object>> results = startCallers(singleFlight, 3, loading, () -> {
+            if (loads.incrementAndGet() == 1){
+                loading.countDown();
+                try{
+                    new CountDownLatch(1).await();
+                }
+                catch(InterruptedException e){
+                    throw new CancellationException("cancelled");
+                }
+            }
+            return "fresh";
+        });
+        //Interrupt only the caller running the load
+        results.get(0).cancel(true);
+
+        Assert.assertEquals("fresh", results.get(1).get(5, TimeUnit.SECONDS));
+        Assert.assertEquals("fresh", results.get(2).get(5, TimeUnit.SECONDS));
+        //The waiters retry together, but the second may arrive after the first's fresh load already finished
+        Assert.assertTrue(loads.get() == 2 || loads.get() == 3);
+    }
+
+    @Test
+    public void cancelledWaiterDoesNotAffectOthers() throws Exception {
+        SingleFlight singleFlight = new SingleFlight();
+        CountDownLatch loading = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        List<Future<Object>> results = startCallers(singleFlight, 3, loading, () -> {
+            loading.countDown();
+            try{
+                release.await();
+            }
+            catch(InterruptedException e){
+                Thread.currentThread().interrupt();
+            }
+            return "shared";
+        });
+        results.get(1).cancel(true);
+        release.countDown();
+
+        Assert.assertEquals("shared", results.get(0).get(5, TimeUnit.SECONDS));
+        Assert.assertEquals("shared", results.get(2).get(5, TimeUnit.SECONDS));
+        Assert.assertEquals(Long.valueOf(1), singleFlight.getMetrics().get("loads"));
+    }
+
+    @Test
+    public void writeDetachesReadInFlight() throws Exception {
+        SingleFlight singleFlight = new SingleFlight();
+        CountDownLatch loading = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        executor.submit(() -> singleFlight.execute("key", () -> {
+            loading.countDown();
+            try{
+                release.await();
+            }
+            catch(InterruptedException e){
+                Thread.currentThread().interrupt();
+            }
+            return "stale";
+        }));
+        Assert.assertTrue(loading.await(5, TimeUnit.SECONDS));
+        singleFlight.forget("key");
+
+        Assert.assertEquals("fresh", singleFlight.execute("key", () -> "fresh"));
+        release.countDown();
+    }
+}
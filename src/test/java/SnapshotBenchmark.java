@@ -0,0 +1,155 @@
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Stream;
+
+import DAO.SocialMediaDAO;
+import Model.Message;
+import Util.ConnectionUtil;
+
+/**
+ * Benchmark for online snapshots on the H2 backend: how much a snapshot running in the background slows the requests
+ * served meanwhile. The foreground issues OPERATIONS_PER_SECOND operations on a fixed schedule, four reads of a random
+ * message to every post, and each latency is measured from the moment the operation was due, so time spent queued
+ * behind the snapshot counts. The same load runs for PHASE_SECONDS without a snapshot, then beside unthrottled and
+ * throttled snapshots taken back to back for as long, reporting foreground p50/p99/max and how long a snapshot took.
+ * Finally the last snapshot is restored. Collector pauses show up in every phase alike, including the first.
+ *
+ * This is not a test case, run it manually with:
+ *   mvn -q test-compile exec:java -Dexec.mainClass=SnapshotBenchmark -Dexec.classpathScope=test [-Dexec.args=rows]
+ *
+ * It resets the database at ./h2/db, just like the test suite does.
+ */
+public class SnapshotBenchmark {
+    private static final int DEFAULT_ROWS = 500_000;
+    private static final int ACCOUNTS = 100;
+    private static final int OPERATIONS_PER_SECOND = 200;
+    private static final long PHASE_SECONDS = 20;
+    private static final long[] RATES = {0, 16L * 1024 * 1024, 4L * 1024 * 1024};
+
+    public static void main(String[] args) throws Exception {
+        int rows = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_ROWS;
+        ConnectionUtil.resetTestDatabase();
+        SocialMediaDAO socialMediaDAO = new SocialMediaDAO();
+        for (int i = 1; i < ACCOUNTS; i++){
+            socialMediaDAO.createAccount("snapshot user " + i, "password");
+        }
+        for (int inserted = 0; inserted < rows; inserted += 10_000){
+            List<Message> batch = new ArrayList<Message>();
+            for (int i = inserted; i < Math.min(rows, inserted + 10_000); i++){
+                batch.add(new Message(1 + i % ACCOUNTS, "snapshot benchmark message " + i, i));
+            }
+            socialMediaDAO.createMessages(batch);
+        }
+        Path directory = Files.createTempDirectory("snapshot-benchmark");
+        try{
+            System.out.printf("%d messages, %d foreground operations/s%n", rows, OPERATIONS_PER_SECOND);
+            System.out.printf("%-14s %10s %10s %10s %10s %16s %10s%n", "snapshot", "p50", "p99", "max", "snapshots",
+                    "s per snapshot", "file MB");
+            //Warms up the foreground path before anything is measured
+            run(socialMediaDAO, rows, null);
+            report("none", run(socialMediaDAO, rows, null), null);
+            for (long rate : RATES){
+                Snapshots snapshots = new Snapshots(socialMediaDAO, directory, rate);
+                long[] nanos = run(socialMediaDAO, rows, snapshots);
+                report(rate == 0 ? "unthrottled" : (rate >> 20) + " MB/s", nanos, snapshots.stop());
+            }
+
+            long start = System.nanoTime();
+            if (!socialMediaDAO.restore(directory)){
+                throw new IllegalStateException("Restore failed");
+            }
+            double seconds = (System.nanoTime() - start) / 1e9;
+            System.out.printf("restore: %.1f s, %.0f messages/s%n", seconds, rows / seconds);
+        }
+        finally{
+            try (Stream<Path> files = Files.walk(directory)){
+                files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+            }
+            ConnectionUtil.resetTestDatabase();
+        }
+    }
+
+    /**
+     * Runs the foreground load for PHASE_SECONDS.
+     *
+     * @return the latency of every operation in nanoseconds
+     */
+    private static long[] run(SocialMediaDAO socialMediaDAO, int rows, Snapshots snapshots) throws InterruptedException {
+        Random random = new Random(7);
+        long intervalNanos = 1_000_000_000L / OPERATIONS_PER_SECOND;
+        long start = System.nanoTime();
+        long end = start + PHASE_SECONDS * 1_000_000_000L;
+        long[] nanos = new long[1024];
+        int count = 0;
+        while (System.nanoTime() < end){
+            long due = start + count * intervalNanos;
+            long wait = due - System.nanoTime();
+            if (wait > 0){
+                Thread.sleep(wait / 1_000_000, (int) (wait % 1_000_000));
+            }
+            if (count % 5 == 0){
+                socialMediaDAO.createMessage("foreground", 1 + random.nextInt(ACCOUNTS), count);
+            }
+            else{
+                socialMediaDAO.getMessageByID(1 + random.nextInt(rows));
+            }
+            if (count == nanos.length){
+                nanos = Arrays.copyOf(nanos, count * 2);
+            }
+            nanos[count++] = System.nanoTime() - due;
+        }
+        return Arrays.copyOf(nanos, count);
+    }
+
+    private static void report(String snapshot, long[] nanos, Snapshots snapshots) {
+        Arrays.sort(nanos);
+        System.out.printf("%-14s %8.2fms %8.2fms %8.2fms %10d %16.1f %10.1f%n", snapshot, percentile(nanos, 50),
+                percentile(nanos, 99), percentile(nanos, 100), snapshots == null ? 0 : snapshots.taken,
+                snapshots == null ? 0 : snapshots.seconds / snapshots.taken, snapshots == null ? 0 : snapshots.bytes / 1048576.0);
+    }
+
+    /**
+     * Takes snapshots one after the other on a thread of its own until stopped, finishing the one in progress.
+     */
+    private static class Snapshots {
+        private final Thread thread;
+        private volatile boolean stopped;
+        int taken;
+        double seconds;
+        long bytes;
+
+        Snapshots(SocialMediaDAO socialMediaDAO, Path directory, long bytesPerSecond) {
+            thread = new Thread(() -> {
+                while (!stopped){
+                    long start = System.nanoTime();
+                    Long size = socialMediaDAO.snapshot(directory, bytesPerSecond);
+                    if (size == null){
+                        throw new IllegalStateException("Snapshot failed");
+                    }
+                    seconds += (System.nanoTime() - start) / 1e9;
+                    bytes = size;
+                    taken++;
+                }
+            });
+            thread.start();
+        }
+
+        Snapshots stop() throws InterruptedException {
+            stopped = true;
+            thread.join();
+            return this;
+        }
+    }
+
+    /**
+     * @return the percentile of the sorted samples in milliseconds
+     */
+    private static double percentile(long[] sorted, int percentile) {
+        return sorted[Math.min(sorted.length - 1, sorted.length * percentile / 100)] / 1e6;
+    }
+}
@@ -0,0 +1,145 @@
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.stream.Stream;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import Controller.SocialMediaController;
+import Util.ConnectionUtil;
+import Util.DatabaseSnapshot;
+import io.javalin.Javalin;
+
+public class SnapshotTest {
+    SocialMediaController socialMediaController;
+    HttpClient webClient;
+    ObjectMapper objectMapper;
+    Javalin app;
+    String baseUrl;
+    Path directory;
+
+    /**
+     * Before every test, reset the database, point snapshots at a temporary directory, restart the Javalin app, and
+     * create a new webClient and ObjectMapper for interacting locally on the web.
+     * @throws InterruptedException
+     * @throws IOException
+     */
+    @Before
+    public void setUp() throws InterruptedException, IOException {
+        ConnectionUtil.resetTestDatabase();
+        directory = Files.createTempDirectory("snapshot-test");
+        System.setProperty(SocialMediaController.SNAPSHOT_DIRECTORY_PROPERTY, directory.toString());
+        socialMediaController = new SocialMediaController();
+        app = socialMediaController.startAPI();
+        webClient = HttpClient.newHttpClient();
+        objectMapper = new ObjectMapper();
+        baseUrl = TestServer.start(app);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        app.stop();
+        System.clearProperty(SocialMediaController.SNAPSHOT_DIRECTORY_PROPERTY);
+        System.clearProperty(SocialMediaController.SNAPSHOTS_KEPT_PROPERTY);
+        try (Stream<Path> files = Files.walk(directory)){
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    /**
+     * Sending an http request to POST localhost:8080/snapshots
+     *
+     * Expected Response:
+     *  Status Code: 202
+     *  Response Body: the directory the snapshot is written to, which GET localhost:8080/metrics reports as taken
+     *  shortly after
+     */
+    @Test
+    public void startSnapshot() throws IOException, InterruptedException {
+        HttpResponse<String> response = postSnapshot();
+        Assert.assertEquals(202, response.statusCode());
+        Path snapshot = Paths.get(objectMapper.readValue(response.body(), new TypeReference<Map<String, String>>() {}).get("snapshot"));
+        Assert.assertEquals(directory, snapshot.getParent());
+
+        Assert.assertEquals(1, awaitTaken(1));
+        Assert.assertTrue(Files.size(DatabaseSnapshot.getFile(snapshot, 0)) > 0);
+    }
+
+    /**
+     * Sending an http request to POST localhost:8080/snapshots with no snapshot directory configured
+     *
+     * Expected Response:
+     *  Status Code: 404, and nothing is written
+     */
+    @Test
+    public void snapshotsAreOffWithoutADirectory() throws IOException, InterruptedException {
+        System.clearProperty(SocialMediaController.SNAPSHOT_DIRECTORY_PROPERTY);
+        Assert.assertEquals(404, postSnapshot().statusCode());
+        try (Stream<Path> children = Files.list(directory)){
+            Assert.assertEquals(0, children.count());
+        }
+    }
+
+    /**
+     * Three snapshots taken one after the other, keeping two
+     *
+     * Expected: the oldest is deleted once the third is done
+     */
+    @Test
+    public void onlyTheNewestSnapshotsAreKept() throws IOException, InterruptedException {
+        System.setProperty(SocialMediaController.SNAPSHOTS_KEPT_PROPERTY, "2");
+        Path first = null;
+        for (int i = 1; i <= 3; i++){
+            HttpResponse<String> response = postSnapshot();
+            Assert.assertEquals(202, response.statusCode());
+            if (first == null){
+                first = Paths.get(objectMapper.readValue(response.body(), new TypeReference<Map<String, String>>() {}).get("snapshot"));
+            }
+            Assert.assertEquals(i, awaitTaken(i));
+            //Directories are named after the millisecond they were started in
+            Thread.sleep(5);
+        }
+        long remaining = 3;
+        for (int i = 0; i < 100 && remaining > 2; i++){
+            Thread.sleep(50);
+            try (Stream<Path> children = Files.list(directory)){
+                remaining = children.count();
+            }
+        }
+        Assert.assertEquals(2, remaining);
+        Assert.assertFalse(Files.exists(first));
+    }
+
+    private HttpResponse<String> postSnapshot() throws IOException, InterruptedException {
+        return webClient.send(HttpRequest.newBuilder()
+                .uri(URI.create(baseUrl + "/snapshots"))
+                .POST(HttpRequest.BodyPublishers.noBody()).build(), HttpResponse.BodyHandlers.ofString());
+    }
+
+    /**
+     * @return the number of snapshots get /metrics reports as taken, once it reaches the count or after ten seconds
+     */
+    private long awaitTaken(long count) throws IOException, InterruptedException {
+        long taken = 0;
+        for (int i = 0; i < 100 && taken < count; i++){
+            Thread.sleep(100);
+            HttpResponse<String> metrics = webClient.send(HttpRequest.newBuilder()
+                    .uri(URI.create(baseUrl + "/metrics")).build(), HttpResponse.BodyHandlers.ofString());
+            taken = objectMapper.readTree(metrics.body()).get("snapshots").get("taken").asLong();
+        }
+        return taken;
+    }
+}
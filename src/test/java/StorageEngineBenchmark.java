@@ -0,0 +1,71 @@
+import java.util.Random;
+
+import DAO.InMemoryStorageEngine;
+import DAO.SocialMediaDAO;
+import DAO.StorageEngine;
+import Model.Account;
+import Util.ConnectionUtil;
+
+/**
+ * Benchmark comparing the H2 SocialMediaDAO with the in-memory storage engine on the same workload:
+ * inserts, point reads, per-account reads and updates.
+ *
+ * This is not a test case, run it manually with:
+ *   mvn -q test-compile exec:java -Dexec.mainClass=StorageEngineBenchmark -Dexec.classpathScope=test
+ *
+ * It resets the database at ./h2/db, just like the test suite does.
+ */
+public class StorageEngineBenchmark {
+    private static final int ACCOUNTS = 100;
+    private static final int MESSAGES = 20_000;
+    private static final int READS = 20_000;
+
+    public static void main(String[] args) {
+        System.out.printf("%-8s %14s %14s %18s %14s%n", "engine", "inserts/s", "point reads/s", "account reads/s", "updates/s");
+        ConnectionUtil.resetTestDatabase();
+        run("h2", new SocialMediaDAO());
+        run("memory", new InMemoryStorageEngine());
+        ConnectionUtil.resetTestDatabase();
+    }
+
+    private static void run(String name, StorageEngine storageEngine) {
+        Random random = new Random(42);
+        int[] accountIDs = new int[ACCOUNTS];
+        for (int i = 0; i < ACCOUNTS; i++){
+            Account account = storageEngine.createAccount(name + " benchmark user " + i, "password");
+            accountIDs[i] = account.getAccount_id();
+        }
+
+        int[] messageIDs = new int[MESSAGES];
+        long start = System.nanoTime();
+        for (int i = 0; i < MESSAGES; i++){
+            messageIDs[i] = storageEngine.createMessage("benchmark message " + i, accountIDs[i % ACCOUNTS], i).getMessage_id();
+        }
+        double inserts = MESSAGES / seconds(start);
+
+        start = System.nanoTime();
+        for (int i = 0; i < READS; i++){
+            storageEngine.getMessageByID(messageIDs[random.nextInt(MESSAGES)]);
+        }
+        double pointReads = READS / seconds(start);
+
+        int accountReads = READS / 10;
+        start = System.nanoTime();
+        for (int i = 0; i < accountReads; i++){
+            storageEngine.getMessagesByUserID(accountIDs[random.nextInt(ACCOUNTS)]);
+        }
+        double accountReadRate = accountReads / seconds(start);
+
+        start = System.nanoTime();
+        for (int i = 0; i < READS; i++){
+            storageEngine.updateMessageByID(messageIDs[random.nextInt(MESSAGES)], "updated message " + i);
+        }
+        double updates = READS / seconds(start);
+
+        System.out.printf("%-8s %14.0f %14.0f %18.0f %14.0f%n", name, inserts, pointReads, accountReadRate, updates);
+    }
+
+    private static double seconds(long start) {
+        return (System.nanoTime() - start) / 1_000_000_000.0;
+    }
+}
@@ -0,0 +1,439 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.function.Function;
+import java.util.stream.Stream;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+import DAO.DataAccessException;
+import DAO.InMemoryStorageEngine;
+import DAO.LogStorageEngine;
+import DAO.ShardedSocialMediaDAO;
+import DAO.SocialMediaDAO;
+import DAO.StorageEngine;
+import DAO.TimelineEntry;
+import DAO.Versioned;
+import Model.Account;
+import Model.AccountStats;
+import Model.Message;
+import Util.ConnectionUtil;
+
+/**
+ * Contract tests that every StorageEngine implementation has to pass. Each test runs once per backend.
+ * The H2 backend starts from the seeded test database, so tests only rely on the ids the engine hands back.
+ */
+@RunWith(Parameterized.class)
+public class StorageEngineTest {
+    StorageEngine storageEngine;
+    Function<Path, StorageEngine> storageEngineFactory;
+    Path directory;
+
+    @Parameterized.Parameters(name = "{0}")
+    public static Collection<Object[]> storageEngines() {
+        return Arrays.asList(new Object[][] {
+                {"h2", (Function<Path, StorageEngine>) directory -> new SocialMediaDAO()},
+                {"memory", (Function<Path, StorageEngine>) directory -> new InMemoryStorageEngine()},
+                {"log", (Function<Path, StorageEngine>) directory -> new LogStorageEngine(directory, 64 * 1024, 0)},
+                {"sharded", (Function<Path, StorageEngine>) directory -> {
+                    ConnectionUtil.resetShardDatabases(3);
+                    return new ShardedSocialMediaDAO(3);
+                }},
+        });
+    }
+
+    public StorageEngineTest(String name, Function<Path, StorageEngine> storageEngineFactory) {
+        this.storageEngineFactory = storageEngineFactory;
+    }
+
+    /**
+     * Before every test, reset the database and create a fresh storage engine in an empty directory.
+     */
+    @Before
+    public void setUp() throws IOException {
+        ConnectionUtil.resetTestDatabase();
+        directory = Files.createTempDirectory("storage-engine-test");
+        storageEngine = storageEngineFactory.apply(directory);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        if (storageEngine instanceof Closeable){
+            ((Closeable) storageEngine).close();
+        }
+        try (Stream<Path> files = Files.walk(directory)){
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    @Test
+    public void createAccountAndLogin() {
+        Account created = storageEngine.createAccount("contract user", "password");
+        Assert.assertNotNull(created);
+        Assert.assertEquals(created, storageEngine.userLogin("contract user", "password"));
+        Assert.assertNull(storageEngine.userLogin("contract user", "wrong password"));
+        Assert.assertNull(storageEngine.userLogin("nobody", "password"));
+    }
+
+    @Test
+    public void createAccountDuplicateUsername() {
+        Assert.assertNotNull(storageEngine.createAccount("contract user", "password"));
+        Assert.assertNull(storageEngine.createAccount("contract user", "other password"));
+    }
+
+    @Test
+    public void createMessageForUnknownAccount() {
+        Assert.assertNull(storageEngine.createMessage("hello", 9999, 1669947792));
+    }
+
+    @Test
+    public void createAndGetMessage() {
+        Account account = storageEngine.createAccount("contract user", "password");
+        Message created = storageEngine.createMessage("hello", account.getAccount_id(), 1669947792);
+        Assert.assertEquals(new Message(created.getMessage_id(), account.getAccount_id(), "hello", 1669947792), created);
+        Assert.assertEquals(created, storageEngine.getMessageByID(created.getMessage_id()));
+        Assert.assertTrue(storageEngine.getAllMessages().contains(created));
+        Assert.assertNull(storageEngine.getMessageByID(9999));
+    }
+
+    @Test
+    public void getAllMessagesInMessageIDOrder() {
+        Account account = storageEngine.createAccount("contract user", "password");
+        int before = storageEngine.getAllMessages().size();
+        Message first = storageEngine.createMessage("first", account.getAccount_id(), 300);
+        Message second = storageEngine.createMessage("second", account.getAccount_id(), 100);
+        List<Message> messages = storageEngine.getAllMessages();
+        Assert.assertEquals(before + 2, messages.size());
+        Assert.assertEquals(first, messages.get(before));
+        Assert.assertEquals(second, messages.get(before + 1));
+    }
+
+    @Test
+    public void updateMessage() {
+        Account account = storageEngine.createAccount("contract user", "password");
+        Message created = storageEngine.createMessage("hello", account.getAccount_id(), 1669947792);
+        Message updated = storageEngine.updateMessageByID(created.getMessage_id(), "updated text");
+        Assert.assertEquals(new Message(created.getMessage_id(), account.getAccount_id(), "updated text", 1669947792), updated);
+        Assert.assertEquals(updated, storageEngine.getMessageByID(created.getMessage_id()));
+        Assert.assertNull(storageEngine.updateMessageByID(9999, "updated text"));
+    }
+
+    @Test
+    public void conditionalUpdateNeedsTheCurrentVersion() {
+        Account account = storageEngine.createAccount("contract user", "password");
+        Message created = storageEngine.createMessage("hello", account.getAccount_id(), 1669947792);
+        Versioned<Message> read = storageEngine.getVersionedMessageByID(created.getMessage_id());
+        Assert.assertEquals(created, read.getValue());
+
+        Versioned<Message> updated = storageEngine.updateMessageByID(created.getMessage_id(), "first edit", read.getVersion());
+        Assert.assertEquals("first edit", updated.getValue().getMessage_text());
+        Assert.assertNotEquals(read.getVersion(), updated.getVersion());
+        Assert.assertEquals(updated.getVersion(), storageEngine.getVersionedMessageByID(created.getMessage_id()).getVersion());
+        try{
+            storageEngine.updateMessageByID(created.getMessage_id(), "lost edit", read.getVersion());
+            Assert.fail("A stale version must not update the message");
+        }
+        catch(DataAccessException e){
+            Assert.assertEquals(DataAccessException.Kind.CONFLICT, e.getKind());
+        }
+        Assert.assertEquals("first edit", storageEngine.getMessageByID(created.getMessage_id()).getMessage_text());
+        Assert.assertEquals("second edit", storageEngine.updateMessageByID(created.getMessage_id(), "second edit", null).getValue().getMessage_text());
+        Assert.assertNull(storageEngine.updateMessageByID(9999, "updated text", 0));
+        Assert.assertNull(storageEngine.getVersionedMessageByID(9999));
+    }
+
+    /**
+     * Updates to texts with the same hash code, and back to a text the message had before.
+     *
+     * Expected: every update moves the message to a new version, so the version read before any of them is stale
+     */
+    @Test
+    public void versionChangesWhateverTheNewText() {
+        Account account = storageEngine.createAccount("contract user", "password");
+        Message created = storageEngine.createMessage("Aa", account.getAccount_id(), 1669947792);
+        Assert.assertEquals("Aa".hashCode(), "BB".hashCode());
+        Versioned<Message> read = storageEngine.getVersionedMessageByID(created.getMessage_id());
+        Versioned<Message> collided = storageEngine.updateMessageByID(created.getMessage_id(), "BB", read.getVersion());
+        Assert.assertEquals(read.getVersion() + 1, collided.getVersion());
+        Versioned<Message> reverted = storageEngine.updateMessageByID(created.getMessage_id(), "Aa", null);
+        Assert.assertEquals(read.getVersion() + 2, reverted.getVersion());
+        Assert.assertEquals(reverted.getVersion(), storageEngine.getVersionedMessageByID(created.getMessage_id()).getVersion());
+        for (int stale : new int[] {read.getVersion(), collided.getVersion()}){
+            try{
+                storageEngine.updateMessageByID(created.getMessage_id(), "lost edit", stale);
+                Assert.fail("A stale version must not update the message");
+            }
+            catch(DataAccessException e){
+                Assert.assertEquals(DataAccessException.Kind.CONFLICT, e.getKind());
+            }
+        }
+        Assert.assertEquals("Aa", storageEngine.getMessageByID(created.getMessage_id()).getMessage_text());
+    }
+
+    @Test
+    public void deleteMessage() {
+        Account account = storageEngine.createAccount("contract user", "password");
+        Message created = storageEngine.createMessage("hello", account.getAccount_id(), 1669947792);
+        Assert.assertEquals(created, storageEngine.deleteMessageByID(created.getMessage_id()));
+        Assert.assertNull(storageEngine.getMessageByID(created.getMessage_id()));
+        Assert.assertNull(storageEngine.deleteMessageByID(created.getMessage_id()));
+        Assert.assertFalse(storageEngine.getAllMessages().contains(created));
+        Assert.assertTrue(storageEngine.getMessagesByUserID(account.getAccount_id()).isEmpty());
+    }
+
+    @Test
+    public void messageIDsAreNotReusedAfterDelete() {
+        Account account = storageEngine.createAccount("contract user", "password");
+        Message deleted = storageEngine.createMessage("hello", account.getAccount_id(), 1669947792);
+        storageEngine.deleteMessageByID(deleted.getMessage_id());
+        Message created = storageEngine.createMessage("hello again", account.getAccount_id(), 1669947792);
+        Assert.assertNotEquals(deleted.getMessage_id(), created.getMessage_id());
+    }
+
+    @Test
+    public void getMessagesByUserID() {
+        Account author = storageEngine.createAccount("author", "password");
+        Account other = storageEngine.createAccount("other", "password");
+        Message first = storageEngine.createMessage("first", author.getAccount_id(), 200);
+        storageEngine.createMessage("not mine", other.getAccount_id(), 150);
+        Message second = storageEngine.createMessage("second", author.getAccount_id(), 100);
+        Assert.assertEquals(Arrays.asList(first, second), storageEngine.getMessagesByUserID(author.getAccount_id()));
+        Assert.assertTrue(storageEngine.getMessagesByUserID(9999).isEmpty());
+    }
+
+    @Test
+    public void getMessagesInTimeRangeNewestFirst() {
+        Account author = storageEngine.createAccount("author", "password");
+        Account other = storageEngine.createAccount("other", "password");
+        Message oldest = storageEngine.createMessage("oldest", author.getAccount_id(), 100);
+        Message newest = storageEngine.createMessage("newest", other.getAccount_id(), 300);
+        Message middle = storageEngine.createMessage("middle", author.getAccount_id(), 200);
+        storageEngine.createMessage("out of range", author.getAccount_id(), 400);
+
+        Assert.assertEquals(Arrays.asList(newest, middle, oldest), storageEngine.getMessagesInTimeRange(100, 300));
+        Assert.assertEquals(Arrays.asList(middle, oldest),
+                storageEngine.getMessagesByUserIDInTimeRange(author.getAccount_id(), 0, 399));
+        Assert.assertTrue(storageEngine.getMessagesInTimeRange(301, 399).isEmpty());
+    }
+
+    @Test
+    public void getNewestMessagesByUserIDIsBounded() {
+        Account author = storageEngine.createAccount("author", "password");
+        Account other = storageEngine.createAccount("other", "password");
+        storageEngine.createMessage("oldest", author.getAccount_id(), 100);
+        Message newest = storageEngine.createMessage("newest", author.getAccount_id(), 300);
+        Message tiedFirst = storageEngine.createMessage("tied first", author.getAccount_id(), 200);
+        Message tiedSecond = storageEngine.createMessage("tied second", author.getAccount_id(), 200);
+        storageEngine.createMessage("not mine", other.getAccount_id(), 400);
+
+        Assert.assertEquals(Arrays.asList(newest, tiedSecond, tiedFirst),
+                storageEngine.getNewestMessagesByUserID(author.getAccount_id(), 3));
+        Assert.assertEquals(4, storageEngine.getNewestMessagesByUserID(author.getAccount_id(), 10).size());
+        Assert.assertTrue(storageEngine.getNewestMessagesByUserID(9999, 3).isEmpty());
+    }
+
+    @Test
+    public void accountStatsFollowCreatesAndDeletes() {
+        Account author = storageEngine.createAccount("author", "password");
+        int authorID = author.getAccount_id();
+        Assert.assertEquals(new AccountStats(authorID, 0, null), storageEngine.getAccountStats(authorID));
+
+        Message newest = storageEngine.createMessage("newest", authorID, 300);
+        Message older = storageEngine.createMessage("older", authorID, 100);
+        Assert.assertEquals(new AccountStats(authorID, 2, 300L), storageEngine.getAccountStats(authorID));
+
+        //Deleting the newest message falls back to the newest one left
+        storageEngine.deleteMessageByID(newest.getMessage_id());
+        Assert.assertEquals(new AccountStats(authorID, 1, 100L), storageEngine.getAccountStats(authorID));
+        storageEngine.updateMessageByID(older.getMessage_id(), "edited");
+        Assert.assertEquals(new AccountStats(authorID, 1, 100L), storageEngine.getAccountStats(authorID));
+        storageEngine.deleteMessageByID(older.getMessage_id());
+        storageEngine.deleteMessageByID(older.getMessage_id());
+        Assert.assertEquals(new AccountStats(authorID, 0, null), storageEngine.getAccountStats(authorID));
+    }
+
+    @Test
+    public void accountStatsForUnknownAccount() {
+        Assert.assertNull(storageEngine.getAccountStats(9999));
+        Assert.assertNull(storageEngine.createMessage("hello", 9999, 100));
+        Assert.assertNull(storageEngine.getAccountStats(9999));
+    }
+
+    @Test
+    public void checkAccountStatsAgreesWithMessages() {
+        for (int i = 0; i < 4; i++){
+            int accountID = storageEngine.createAccount("author " + i, "password").getAccount_id();
+            for (int j = 0; j <= i; j++){
+                Message message = storageEngine.createMessage("message " + j, accountID, 100 * j);
+                if (j == i){
+                    storageEngine.deleteMessageByID(message.getMessage_id());
+                }
+            }
+        }
+        Assert.assertEquals(Arrays.asList(), storageEngine.checkAccountStats(false));
+        Assert.assertEquals(Arrays.asList(), storageEngine.checkAccountStats(true));
+    }
+
+    @Test
+    public void deleteMessagesByUserIDInChunks() {
+        int authorID = storageEngine.createAccount("author", "password").getAccount_id();
+        int otherID = storageEngine.createAccount("other", "password").getAccount_id();
+        List<Message> authored = new ArrayList<Message>();
+        for (int i = 0; i < 5; i++){
+            authored.add(storageEngine.createMessage("message " + i, authorID, 100 + i));
+        }
+        Message kept = storageEngine.createMessage("kept", otherID, 100);
+
+        List<List<Message>> chunks = new ArrayList<List<Message>>();
+        Assert.assertEquals(Integer.valueOf(5), storageEngine.deleteMessagesByUserID(authorID, 2, chunks::add));
+        Assert.assertEquals(3, chunks.size());
+        List<Message> reported = new ArrayList<Message>();
+        chunks.forEach(reported::addAll);
+        reported.sort(Comparator.comparingInt(Message::getMessage_id));
+        Assert.assertEquals(authored, reported);
+
+        Assert.assertTrue(storageEngine.getMessagesByUserID(authorID).isEmpty());
+        Assert.assertEquals(kept, storageEngine.getMessageByID(kept.getMessage_id()));
+        Assert.assertEquals(new AccountStats(authorID, 0, null), storageEngine.getAccountStats(authorID));
+        Assert.assertEquals(new AccountStats(otherID, 1, 100L), storageEngine.getAccountStats(otherID));
+        Assert.assertEquals(Arrays.asList(), storageEngine.checkAccountStats(false));
+        Assert.assertEquals(Integer.valueOf(0), storageEngine.deleteMessagesByUserID(authorID, 2, chunks::add));
+    }
+
+    @Test
+    public void deleteMessagesPostedBeforeInChunks() {
+        int authorID = storageEngine.createAccount("author", "password").getAccount_id();
+        int otherID = storageEngine.createAccount("other", "password").getAccount_id();
+        Message authorNew = storageEngine.createMessage("author new", authorID, 500);
+        storageEngine.createMessage("author old", authorID, 100);
+        storageEngine.createMessage("other old", otherID, 200);
+        Message otherNew = storageEngine.createMessage("other new", otherID, 300);
+        storageEngine.createMessage("other older", otherID, 50);
+
+        //Shards delete in parallel and may report chunks concurrently
+        List<Message> reported = Collections.synchronizedList(new ArrayList<Message>());
+        //The H2 backend also holds the seeded message from 1669947792, which is newer than the cutoff
+        Assert.assertEquals(Integer.valueOf(3), storageEngine.deleteMessagesPostedBefore(300, 2, reported::addAll));
+        Assert.assertEquals(3, reported.size());
+        Assert.assertTrue(storageEngine.getMessagesInTimeRange(Long.MIN_VALUE, 299).isEmpty());
+        Assert.assertEquals(Arrays.asList(authorNew), storageEngine.getMessagesByUserID(authorID));
+        Assert.assertEquals(Arrays.asList(otherNew), storageEngine.getMessagesByUserID(otherID));
+        Assert.assertEquals(new AccountStats(authorID, 1, 500L), storageEngine.getAccountStats(authorID));
+        Assert.assertEquals(new AccountStats(otherID, 1, 300L), storageEngine.getAccountStats(otherID));
+        Assert.assertEquals(Arrays.asList(), storageEngine.checkAccountStats(false));
+    }
+
+    @Test
+    public void bulkDeletesRejectChunksBelowOne() {
+        int authorID = storageEngine.createAccount("author", "password").getAccount_id();
+        Message message = storageEngine.createMessage("kept", authorID, 100);
+        for (int chunkSize : new int[] {0, -1}){
+            try{
+                storageEngine.deleteMessagesByUserID(authorID, chunkSize, chunk -> {});
+                Assert.fail("Chunk size " + chunkSize + " accepted by deleteMessagesByUserID");
+            }
+            catch(IllegalArgumentException e){
+                //Expected
+            }
+            try{
+                storageEngine.deleteMessagesPostedBefore(Long.MAX_VALUE, chunkSize, chunk -> {});
+                Assert.fail("Chunk size " + chunkSize + " accepted by deleteMessagesPostedBefore");
+            }
+            catch(IllegalArgumentException e){
+                //Expected
+            }
+        }
+        Assert.assertEquals(message, storageEngine.getMessageByID(message.getMessage_id()));
+    }
+
+    @Test
+    public void followIsIdempotentAndNeedsExistingAccounts() {
+        int followerID = storageEngine.createAccount("follower", "password").getAccount_id();
+        int firstID = storageEngine.createAccount("first followee", "password").getAccount_id();
+        int secondID = storageEngine.createAccount("second followee", "password").getAccount_id();
+
+        Assert.assertTrue(storageEngine.follow(followerID, secondID));
+        Assert.assertTrue(storageEngine.follow(followerID, firstID));
+        Assert.assertTrue(storageEngine.follow(followerID, firstID));
+        Assert.assertFalse(storageEngine.follow(followerID, 9999));
+        Assert.assertFalse(storageEngine.follow(9999, firstID));
+
+        Assert.assertEquals(Arrays.asList(firstID, secondID), storageEngine.getFolloweeIDs(followerID));
+        Assert.assertEquals(Arrays.asList(followerID), storageEngine.getFollowerIDs(firstID));
+        Assert.assertEquals(Arrays.asList(), storageEngine.getFollowerIDs(followerID));
+        Assert.assertEquals(Arrays.asList(), storageEngine.getFolloweeIDs(9999));
+    }
+
+    @Test
+    public void timelineEntriesNewestFirstAndTrimmed() {
+        int accountID = storageEngine.createAccount("reader", "password").getAccount_id();
+        TimelineEntry newest = new TimelineEntry(10, 300);
+        TimelineEntry oldest = new TimelineEntry(30, 100);
+        //Posted at the same time as the oldest, so the message id decides
+        TimelineEntry middle = new TimelineEntry(40, 100);
+        storageEngine.addTimelineEntries(new int[] {accountID, accountID, accountID}, new TimelineEntry[] {oldest, newest, middle});
+        //Engines that don't persist timelines say so, and readers rebuild them from the follow graph
+        if (storageEngine.getTimelineEntries(accountID, 10) == null){
+            return;
+        }
+        //Adding an entry twice keeps one
+        storageEngine.addTimelineEntries(new int[] {accountID}, new TimelineEntry[] {middle});
+        Assert.assertEquals(Arrays.asList(newest, middle, oldest), storageEngine.getTimelineEntries(accountID, 10));
+        Assert.assertEquals(Arrays.asList(newest, middle), storageEngine.getTimelineEntries(accountID, 2));
+
+        storageEngine.trimTimeline(accountID, middle);
+        Assert.assertEquals(Arrays.asList(newest, middle), storageEngine.getTimelineEntries(accountID, 10));
+    }
+
+    @Test
+    public void exportMessagesStreamsEveryMessage() {
+        int authorID = storageEngine.createAccount("author", "password").getAccount_id();
+        for (int i = 0; i < 2500; i++){
+            storageEngine.createMessage("export " + i, authorID, i);
+        }
+        storageEngine.deleteMessageByID(storageEngine.getMessagesByUserID(authorID).get(0).getMessage_id());
+
+        List<Message> exported = new ArrayList<Message>();
+        Integer count = storageEngine.exportMessages(exported::add);
+        List<Message> expected = storageEngine.getAllMessages();
+        Assert.assertEquals(Integer.valueOf(expected.size()), count);
+        exported.sort(Comparator.comparingInt(Message::getMessage_id));
+        Assert.assertEquals(expected, exported);
+    }
+
+    @Test
+    public void createMessagesRejectsOnlyBadMessages() {
+        int authorID = storageEngine.createAccount("author", "password").getAccount_id();
+        List<Message> created = storageEngine.createMessages(Arrays.asList(
+                new Message(0, authorID, "first", 100),
+                new Message(0, 9999, "unknown author", 200),
+                new Message(0, authorID, "second", 300)));
+        Assert.assertEquals(3, created.size());
+        Assert.assertNull(created.get(1));
+        Assert.assertEquals(Arrays.asList(created.get(0), created.get(2)), storageEngine.getMessagesByUserID(authorID));
+        Assert.assertEquals(new AccountStats(authorID, 2, 300L), storageEngine.getAccountStats(authorID));
+
+        List<Message> batch = new ArrayList<Message>();
+        for (int i = 0; i < 100; i++){
+            batch.add(new Message(0, authorID, "batched " + i, 1000 + i));
+        }
+        created = storageEngine.createMessages(batch);
+        for (int i = 0; i < batch.size(); i++){
+            Assert.assertEquals(storageEngine.getMessageByID(created.get(i).getMessage_id()), created.get(i));
+            Assert.assertEquals("batched " + i, created.get(i).getMessage_text());
+        }
+        Assert.assertEquals(new AccountStats(authorID, 102, 1099L), storageEngine.getAccountStats(authorID));
+    }
+}
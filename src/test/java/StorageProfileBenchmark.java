@@ -0,0 +1,78 @@
+import java.net.ServerSocket;
+import java.nio.file.Files;
+import java.util.Random;
+
+import org.h2.tools.Server;
+
+import DAO.SocialMediaDAO;
+import Util.ConnectionUtil;
+import Util.DatabaseServer;
+import Util.StorageProfile;
+
+/**
+ * Benchmark comparing the storage profiles on the same workload through SocialMediaDAO: single-threaded inserts,
+ * then point reads and per-account reads of what was inserted.
+ *
+ * This is not a test case, run it manually with:
+ *   mvn -q test-compile exec:java -Dexec.mainClass=StorageProfileBenchmark -Dexec.classpathScope=test
+ *
+ * It resets the database at ./h2/db, just like the test suite does. The SERVER profile runs against a server it starts
+ * in a temporary directory on this host, so it measures the TCP round trips without a network between the processes.
+ */
+public class StorageProfileBenchmark {
+    private static final int ACCOUNTS = 50;
+    private static final int MESSAGES = 10_000;
+    private static final int READS = 10_000;
+
+    public static void main(String[] args) throws Exception {
+        int port;
+        try (ServerSocket socket = new ServerSocket(0)){
+            port = socket.getLocalPort();
+        }
+        Server databaseServer = DatabaseServer.start(port, Files.createTempDirectory("h2-server"), false);
+        System.setProperty(StorageProfile.SERVER_PROPERTY, "localhost:" + port);
+        System.out.printf("%-12s %14s %14s %18s%n", "profile", "inserts/s", "point reads/s", "account reads/s");
+        for (StorageProfile profile : StorageProfile.values()){
+            ConnectionUtil.setStorageProfile(profile);
+            ConnectionUtil.resetTestDatabase();
+            run(profile);
+        }
+        ConnectionUtil.setStorageProfile(StorageProfile.FILE);
+        ConnectionUtil.resetTestDatabase();
+        databaseServer.stop();
+    }
+
+    private static void run(StorageProfile profile) {
+        SocialMediaDAO socialMediaDAO = new SocialMediaDAO();
+        Random random = new Random(42);
+        int[] accountIDs = new int[ACCOUNTS];
+        for (int i = 0; i < ACCOUNTS; i++){
+            accountIDs[i] = socialMediaDAO.createAccount(profile + " benchmark user " + i, "password").getAccount_id();
+        }
+
+        int[] messageIDs = new int[MESSAGES];
+        long start = System.nanoTime();
+        for (int i = 0; i < MESSAGES; i++){
+            messageIDs[i] = socialMediaDAO.createMessage("benchmark message " + i, accountIDs[i % ACCOUNTS], i).getMessage_id();
+        }
+        double inserts = MESSAGES / seconds(start);
+
+        start = System.nanoTime();
+        for (int i = 0; i < READS; i++){
+            socialMediaDAO.getMessageByID(messageIDs[random.nextInt(MESSAGES)]);
+        }
+        double pointReads = READS / seconds(start);
+
+        start = System.nanoTime();
+        for (int i = 0; i < READS / 10; i++){
+            socialMediaDAO.getMessagesByUserID(accountIDs[random.nextInt(ACCOUNTS)]);
+        }
+        double accountReads = READS / 10 / seconds(start);
+
+        System.out.printf("%-12s %14.0f %14.0f %18.0f%n", profile, inserts, pointReads, accountReads);
+    }
+
+    private static double seconds(long start) {
+        return (System.nanoTime() - start) / 1_000_000_000.0;
+    }
+}
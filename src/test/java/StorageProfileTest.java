@@ -0,0 +1,100 @@
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.nio.file.Files;
+import java.sql.SQLException;
+import java.util.Locale;
+
+import org.h2.tools.Server;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import DAO.SocialMediaDAO;
+import Model.Account;
+import Util.ConnectionUtil;
+import Util.DatabaseServer;
+import Util.StorageProfile;
+
+/**
+ * Tests for switching ConnectionUtil between storage profiles. Every test puts the suite's profile back, MEMORY when
+ * Maven runs the tests, since the rest of the suite runs against it.
+ */
+public class StorageProfileTest {
+
+    Server databaseServer;
+
+    @After
+    public void tearDown() {
+        ConnectionUtil.setStorageProfile(StorageProfile.fromSystemProperties());
+        ConnectionUtil.resetTestDatabase();
+        if (databaseServer != null){
+            databaseServer.stop();
+            System.clearProperty(StorageProfile.SERVER_PROPERTY);
+        }
+    }
+
+    @Test
+    public void defaultProfileIsTheFileDatabase() {
+        String suiteProfile = System.clearProperty(StorageProfile.PROFILE_PROPERTY);
+        try{
+            Assert.assertEquals(StorageProfile.FILE, StorageProfile.fromSystemProperties());
+        }
+        finally{
+            if (suiteProfile != null){
+                System.setProperty(StorageProfile.PROFILE_PROPERTY, suiteProfile);
+            }
+        }
+        Assert.assertEquals("jdbc:h2:./h2/db;DB_CLOSE_DELAY=-1;", StorageProfile.FILE.getUrl("db"));
+        Assert.assertEquals("jdbc:h2:tcp://localhost:9092/./h2/db-shard1;", StorageProfile.SERVER.getUrl("db-shard1"));
+    }
+
+    @Test
+    public void profileNamesIgnoreTheDefaultLocale() {
+        //Under a Turkish locale "file".toUpperCase() is "F\u0130LE", which names no profile
+        String suiteProfile = System.setProperty(StorageProfile.PROFILE_PROPERTY, "file");
+        Locale defaultLocale = Locale.getDefault();
+        Locale.setDefault(new Locale("tr", "TR"));
+        try{
+            Assert.assertEquals(StorageProfile.FILE, StorageProfile.fromSystemProperties());
+        }
+        finally{
+            Locale.setDefault(defaultLocale);
+            if (suiteProfile != null){
+                System.setProperty(StorageProfile.PROFILE_PROPERTY, suiteProfile);
+            }
+            else{
+                System.clearProperty(StorageProfile.PROFILE_PROPERTY);
+            }
+        }
+    }
+
+    @Test
+    public void memoryProfileIsSeparateFromTheFile() {
+        ConnectionUtil.setStorageProfile(StorageProfile.MEMORY);
+        ConnectionUtil.resetTestDatabase();
+        Account account = new SocialMediaDAO().createAccount("memory only", "password");
+        Assert.assertNotNull(account);
+
+        ConnectionUtil.setStorageProfile(StorageProfile.FILE);
+        ConnectionUtil.resetTestDatabase();
+        Assert.assertNull(new SocialMediaDAO().userLogin("memory only", "password"));
+    }
+
+    @Test
+    public void everyProfileRunsTheSchema() throws IOException, SQLException {
+        //The SERVER profile needs a server, started in a directory of its own so it doesn't open ./h2/db
+        int port;
+        try (ServerSocket socket = new ServerSocket(0)){
+            port = socket.getLocalPort();
+        }
+        databaseServer = DatabaseServer.start(port, Files.createTempDirectory("h2-server"), false);
+        System.setProperty(StorageProfile.SERVER_PROPERTY, "localhost:" + port);
+        for (StorageProfile profile : StorageProfile.values()){
+            ConnectionUtil.setStorageProfile(profile);
+            ConnectionUtil.resetTestDatabase();
+            SocialMediaDAO socialMediaDAO = new SocialMediaDAO();
+            Assert.assertEquals(1, socialMediaDAO.getAllMessages().size());
+            Assert.assertNotNull(socialMediaDAO.createMessage(profile.name(), 1, 1));
+        }
+    }
+}
@@ -0,0 +1,42 @@
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+
+import io.javalin.Javalin;
+
+/**
+ * Starts the Javalin apps of the HTTP tests on an ephemeral port, so test classes running in parallel forks don't
+ * compete for one, and waits until the app answers instead of sleeping for a fixed time.
+ */
+public class TestServer {
+    private static final long TIMEOUT_MILLIS = 10_000;
+    private static final HttpClient webClient = HttpClient.newHttpClient();
+
+    /**
+     * Starts the app on a free port and returns once it answers GET /health/ready, whether ready or still warming up.
+     *
+     * @param app
+     * @return the app's base url, such as http://localhost:41234
+     * @throws InterruptedException
+     */
+    public static String start(Javalin app) throws InterruptedException {
+        app.start(0);
+        String baseUrl = "http://localhost:" + app.port();
+        HttpRequest request = HttpRequest.newBuilder().uri(URI.create(baseUrl + "/health/ready")).build();
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (true){
+            try{
+                webClient.send(request, HttpResponse.BodyHandlers.discarding());
+                return baseUrl;
+            }
+            catch(IOException e){
+                if (System.currentTimeMillis() > deadline){
+                    throw new IllegalStateException("App not answering on " + baseUrl, e);
+                }
+                Thread.sleep(10);
+            }
+        }
+    }
+}
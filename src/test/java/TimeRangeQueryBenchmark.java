@@ -0,0 +1,79 @@
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.List;
+
+import DAO.SocialMediaDAO;
+import Model.Message;
+import Util.ConnectionUtil;
+
+/**
+ * Benchmark for the time_posted_epoch range queries. For growing table sizes it times a range query that always
+ * selects the same number of rows, next to a full getAllMessages scan. The range query should stay flat while the
+ * full scan grows with the table.
+ *
+ * This is not a test case, run it manually with:
+ *   mvn -q test-compile exec:java -Dexec.mainClass=TimeRangeQueryBenchmark -Dexec.classpathScope=test
+ *
+ * It resets the database at ./h2/db, just like the test suite does.
+ */
+public class TimeRangeQueryBenchmark {
+    private static final int[] TABLE_SIZES = {10_000, 100_000, 500_000};
+    private static final int RESULT_SIZE = 100;
+    private static final int QUERY_ITERATIONS = 200;
+
+    public static void main(String[] args) throws SQLException {
+        SocialMediaDAO socialMediaDAO = new SocialMediaDAO();
+        System.out.printf("%12s %12s %18s %18s%n", "table rows", "result rows", "range query (us)", "full scan (us)");
+        for (int tableSize : TABLE_SIZES){
+            ConnectionUtil.resetTestDatabase();
+            seed(tableSize);
+
+            //Each query selects the newest RESULT_SIZE rows, so the result size is the same for every table size
+            long since = tableSize - RESULT_SIZE + 1;
+            long until = tableSize;
+            int resultRows = 0;
+            for (int i = 0; i < QUERY_ITERATIONS / 10; i++){
+                resultRows = socialMediaDAO.getMessagesInTimeRange(since, until).size();
+            }
+            long start = System.nanoTime();
+            for (int i = 0; i < QUERY_ITERATIONS; i++){
+                socialMediaDAO.getMessagesInTimeRange(since, until);
+            }
+            double rangeMicros = (System.nanoTime() - start) / 1000.0 / QUERY_ITERATIONS;
+
+            int fullScanIterations = Math.max(3, QUERY_ITERATIONS * 1000 / tableSize);
+            start = System.nanoTime();
+            for (int i = 0; i < fullScanIterations; i++){
+                List<Message> all = socialMediaDAO.getAllMessages();
+                all.removeIf(message -> message.getTime_posted_epoch() < since || message.getTime_posted_epoch() > until);
+            }
+            double scanMicros = (System.nanoTime() - start) / 1000.0 / fullScanIterations;
+
+            System.out.printf("%12d %12d %18.1f %18.1f%n", tableSize, resultRows, rangeMicros, scanMicros);
+        }
+        ConnectionUtil.resetTestDatabase();
+    }
+
+    /**
+     * Inserts rows with time_posted_epoch 1..rows using JDBC batches so seeding does not dominate the run.
+     */
+    private static void seed(int rows) throws SQLException {
+        Connection connection = ConnectionUtil.getConnection();
+        connection.setAutoCommit(false);
+        PreparedStatement preparedStatement = connection.prepareStatement(
+                "INSERT INTO message (posted_by, message_text, time_posted_epoch) VALUES (1, ?, ?)");
+        for (int i = 1; i <= rows; i++){
+            preparedStatement.setString(1, "benchmark message " + i);
+            preparedStatement.setLong(2, i);
+            preparedStatement.addBatch();
+            if (i % 10_000 == 0){
+                preparedStatement.executeBatch();
+                connection.commit();
+            }
+        }
+        preparedStatement.executeBatch();
+        connection.commit();
+        connection.setAutoCommit(true);
+    }
+}
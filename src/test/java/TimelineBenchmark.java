@@ -0,0 +1,135 @@
+import java.util.Arrays;
+import java.util.Random;
+
+import DAO.InMemoryStorageEngine;
+import DAO.StorageEngine;
+import Model.Message;
+import Service.HomeTimelines;
+import Service.MessageEvent;
+
+/**
+ * Benchmark for home timelines under a power-law follow graph: every account follows a fixed number of accounts
+ * picked with Zipf-distributed popularity, so a few accounts gather a large share of all followers, as on real social
+ * networks. The same graph and workload run with three celebrity thresholds:
+ *   fan-out-on-write  every post is pushed to every follower
+ *   hybrid            accounts with at least HYBRID_THRESHOLD followers are merged at read time instead
+ *   fan-out-on-read   nothing is pushed, every read merges the outboxes of all followees
+ * For each it reports write amplification (timeline entries written per post), post latency including the fan-out,
+ * and the latency of reading a timeline of TIMELINE_LIMIT messages.
+ *
+ * The in-memory engine keeps the storage cost out of the picture, so the figures show the cost of the timelines alone.
+ *
+ * This is not a test case, run it manually with:
+ *   mvn -q test-compile exec:java -Dexec.mainClass=TimelineBenchmark -Dexec.classpathScope=test
+ */
+public class TimelineBenchmark {
+    private static final int ACCOUNTS = 10_000;
+    private static final int FOLLOWS_PER_ACCOUNT = 30;
+    private static final double ZIPF_EXPONENT = 1.0;
+    private static final int PREFILL_POSTS = 20_000;
+    private static final int POSTS = 20_000;
+    private static final int READS = 20_000;
+    private static final int TIMELINE_LIMIT = 50;
+    private static final int HYBRID_THRESHOLD = 1_000;
+
+    public static void main(String[] args) {
+        StorageEngine storageEngine = new InMemoryStorageEngine();
+        for (int i = 0; i < ACCOUNTS; i++){
+            storageEngine.createAccount("timeline user " + i, "password");
+        }
+        Random random = new Random(42);
+        double[] popularity = zipfCumulative();
+        for (int follower = 1; follower <= ACCOUNTS; follower++){
+            for (int i = 0; i < FOLLOWS_PER_ACCOUNT; i++){
+                int followee = pick(popularity, random);
+                if (followee != follower){
+                    storageEngine.follow(follower, followee);
+                }
+            }
+        }
+        int maxFollowers = 0;
+        int celebrities = 0;
+        for (int accountID = 1; accountID <= ACCOUNTS; accountID++){
+            int followers = storageEngine.getFollowerIDs(accountID).size();
+            maxFollowers = Math.max(maxFollowers, followers);
+            celebrities += followers >= HYBRID_THRESHOLD ? 1 : 0;
+        }
+        System.out.printf("%d accounts following up to %d each, most followed has %d followers, %d have %d or more%n",
+                ACCOUNTS, FOLLOWS_PER_ACCOUNT, maxFollowers, celebrities, HYBRID_THRESHOLD);
+        for (int i = 0; i < PREFILL_POSTS; i++){
+            storageEngine.createMessage("prefill", 1 + random.nextInt(ACCOUNTS), i);
+        }
+
+        System.out.printf("%-18s %14s %10s %10s %10s %10s %10s%n", "strategy", "entries/post", "post p50", "post p99",
+                "post max", "read p50", "read p99");
+        run("fan-out-on-write", storageEngine, Integer.MAX_VALUE);
+        run("hybrid", storageEngine, HYBRID_THRESHOLD);
+        run("fan-out-on-read", storageEngine, 0);
+    }
+
+    private static void run(String strategy, StorageEngine storageEngine, int celebrityThreshold) {
+        HomeTimelines homeTimelines = new HomeTimelines(storageEngine, HomeTimelines.DEFAULT_CAPACITY, celebrityThreshold);
+        //Every account reads once so its inbox is warm and receives pushes, as active users' inboxes would
+        for (int accountID = 1; accountID <= ACCOUNTS; accountID++){
+            homeTimelines.getMessageIDs(accountID);
+        }
+        //Posting and reading are measured in the same seeded order for every strategy
+        Random random = new Random(7);
+        long[] postNanos = new long[POSTS];
+        long fanOutBefore = homeTimelines.getMetrics().get("fanOutEntries");
+        for (int i = 0; i < POSTS; i++){
+            int postedBy = 1 + random.nextInt(ACCOUNTS);
+            long start = System.nanoTime();
+            Message message = storageEngine.createMessage("measured", postedBy, PREFILL_POSTS + i);
+            homeTimelines.onMessageEvent(new MessageEvent(MessageEvent.Type.CREATED, message));
+            postNanos[i] = System.nanoTime() - start;
+        }
+        double entriesPerPost = (double) (homeTimelines.getMetrics().get("fanOutEntries") - fanOutBefore) / POSTS;
+
+        long[] readNanos = new long[READS];
+        long sink = 0;
+        for (int i = 0; i < READS; i++){
+            int accountID = 1 + random.nextInt(ACCOUNTS);
+            long start = System.nanoTime();
+            int[] messageIDs = homeTimelines.getMessageIDs(accountID);
+            for (int j = 0; j < messageIDs.length && j < TIMELINE_LIMIT; j++){
+                sink += storageEngine.getMessageByID(messageIDs[j]).getTime_posted_epoch();
+            }
+            readNanos[i] = System.nanoTime() - start;
+        }
+        //Printing the sink keeps the JIT from discarding the work
+        System.out.printf("%-18s %14.1f %8.1fus %8.1fus %8.1fus %8.1fus %8.1fus%s%n", strategy, entriesPerPost,
+                percentile(postNanos, 50), percentile(postNanos, 99), percentile(postNanos, 100), percentile(readNanos, 50),
+                percentile(readNanos, 99), sink == 0 ? " " : "");
+    }
+
+    /**
+     * @return the cumulative Zipf distribution over account ids, index i holding P(account_id <= i + 1)
+     */
+    private static double[] zipfCumulative() {
+        double[] cumulative = new double[ACCOUNTS];
+        double total = 0;
+        for (int i = 0; i < ACCOUNTS; i++){
+            total += 1 / Math.pow(i + 1, ZIPF_EXPONENT);
+            cumulative[i] = total;
+        }
+        for (int i = 0; i < ACCOUNTS; i++){
+            cumulative[i] /= total;
+        }
+        return cumulative;
+    }
+
+    private static int pick(double[] cumulative, Random random) {
+        int index = Arrays.binarySearch(cumulative, random.nextDouble());
+        return (index < 0 ? -index - 1 : index) + 1;
+    }
+
+    /**
+     * @return the percentile of the samples in microseconds
+     */
+    private static double percentile(long[] nanos, int percentile) {
+        long[] sorted = nanos.clone();
+        Arrays.sort(sorted);
+        return sorted[Math.min(sorted.length - 1, sorted.length * percentile / 100)] / 1000.0;
+    }
+}
@@ -0,0 +1,77 @@
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+import Controller.SocialMediaController;
+import Util.ConnectionUtil;
+import Util.TraceExporter;
+import Util.Tracing;
+import io.javalin.Javalin;
+
+/**
+ * Benchmark for the cost of tracing: sends REQUESTS sequential GET /messages/{message_id} and POST /messages requests
+ * with sampling off and with every request sampled, reporting p50/p99 per request and the size of the trace files.
+ *
+ * This is not a test case, run it manually with:
+ *   mvn -q test-compile exec:java -Dexec.mainClass=TracingBenchmark -Dexec.classpathScope=test [-Dexec.args=requests]
+ *
+ * It resets the database at ./h2/db, just like the test suite does.
+ */
+public class TracingBenchmark {
+    private static final int DEFAULT_REQUESTS = 20_000;
+    private static final double[] SAMPLE_RATES = {0, 1, 0, 1};
+
+    public static void main(String[] args) throws Exception {
+        int requests = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_REQUESTS;
+        ConnectionUtil.resetTestDatabase();
+        Path directory = Files.createTempDirectory("tracing-benchmark");
+        TraceExporter exporter = new TraceExporter(directory, Long.MAX_VALUE, 1);
+        Tracing.setExporter(exporter);
+        Javalin app = new SocialMediaController().startAPI();
+        app.start(8080);
+        HttpClient webClient = HttpClient.newHttpClient();
+        try{
+            System.out.printf("%d requests per run, half reads and half writes%n", requests);
+            System.out.printf("%-12s %10s %10s %14s%n", "sample rate", "p50", "p99", "trace bytes/req");
+            //The first two runs warm up the same code the last two measure
+            for (int run = 0; run < SAMPLE_RATES.length; run++){
+                Tracing.setSampleRate(SAMPLE_RATES[run]);
+                long bytesBefore = Files.exists(exporter.getFile(0)) ? Files.size(exporter.getFile(0)) : 0;
+                long[] nanos = new long[requests];
+                for (int i = 0; i < requests; i++){
+                    HttpRequest request = i % 2 == 0
+                            ? HttpRequest.newBuilder().uri(URI.create("http://localhost:8080/messages/1")).build()
+                            : HttpRequest.newBuilder().uri(URI.create("http://localhost:8080/messages"))
+                                    .POST(HttpRequest.BodyPublishers.ofString("{\"posted_by\":1,\"message_text\":\"benchmark " + i
+                                            + "\",\"time_posted_epoch\":" + i + "}")).build();
+                    long start = System.nanoTime();
+                    webClient.send(request, HttpResponse.BodyHandlers.discarding());
+                    nanos[i] = System.nanoTime() - start;
+                }
+                exporter.awaitWritten(60_000);
+                long bytes = (Files.exists(exporter.getFile(0)) ? Files.size(exporter.getFile(0)) : 0) - bytesBefore;
+                if (run >= SAMPLE_RATES.length / 2){
+                    Arrays.sort(nanos);
+                    System.out.printf("%-12.2f %8.3fms %8.3fms %14d%n", SAMPLE_RATES[run], nanos[requests / 2] / 1e6,
+                            nanos[requests * 99 / 100] / 1e6, bytes / requests);
+                }
+            }
+            System.out.println("tracing metrics: " + Tracing.getMetrics());
+        }
+        finally{
+            app.stop();
+            Tracing.setSampleRate(0);
+            Tracing.setExporter(null);
+            try (Stream<Path> files = Files.walk(directory)){
+                files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+            }
+            ConnectionUtil.resetTestDatabase();
+        }
+    }
+}
@@ -0,0 +1,195 @@
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import Controller.SocialMediaController;
+import Util.ConnectionUtil;
+import Util.Span;
+import Util.TraceExporter;
+import Util.Tracing;
+import io.javalin.Javalin;
+
+public class TracingTest {
+    SocialMediaController socialMediaController;
+    HttpClient webClient;
+    ObjectMapper objectMapper;
+    Javalin app;
+    String baseUrl;
+    Path directory;
+    TraceExporter exporter;
+
+    /**
+     * Before every test, reset the database, restart the Javalin app, create a new webClient and ObjectMapper for
+     * interacting locally on the web, and send every sampled trace to an exporter writing to a temporary directory.
+     * @throws InterruptedException
+     * @throws IOException
+     */
+    @Before
+    public void setUp() throws InterruptedException, IOException {
+        ConnectionUtil.resetTestDatabase();
+        socialMediaController = new SocialMediaController();
+        app = socialMediaController.startAPI();
+        webClient = HttpClient.newHttpClient();
+        objectMapper = new ObjectMapper();
+        baseUrl = TestServer.start(app);
+        //Only once started, so the readiness check isn't traced
+        directory = Files.createTempDirectory("tracing-test");
+        exporter = new TraceExporter(directory);
+        Tracing.setExporter(exporter);
+        Tracing.setSampleRate(1);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        app.stop();
+        Tracing.setSampleRate(0);
+        Tracing.setExporter(null);
+        try (Stream<Path> files = Files.walk(directory)){
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    /**
+     * Sending an http request to POST localhost:8080/messages while every request is sampled
+     *
+     * Expected: the X-Trace-Id response header names a trace written to traces.jsonl, with a span for the request,
+     * for parsing the body, for the service, for the storage engine, for acquiring the connection and for the INSERT,
+     * each nested in the one before
+     */
+    @Test
+    public void sampledRequestIsTracedThroughEveryLayer() throws IOException, InterruptedException {
+        HttpResponse<String> response = webClient.send(HttpRequest.newBuilder()
+                .uri(URI.create(baseUrl + "/messages"))
+                .POST(HttpRequest.BodyPublishers.ofString("{\"posted_by\":1,\"message_text\":\"traced\",\"time_posted_epoch\":1}"))
+                .header("Content-Type", "application/json").build(), HttpResponse.BodyHandlers.ofString());
+        Assert.assertEquals(200, response.statusCode());
+        String traceId = response.headers().firstValue(Tracing.TRACE_ID_HEADER).orElse("");
+        Assert.assertTrue(traceId.matches("[0-9a-f]{32}"));
+
+        Map<String, JsonNode> spans = spansByName(traceId);
+        JsonNode root = spans.get("POST /messages");
+        Assert.assertEquals(Span.KIND_SERVER, root.get("kind").asInt());
+        Assert.assertNull(root.get("parentSpanId"));
+        Assert.assertEquals("200", attribute(root, "http.status_code").get("intValue").asText());
+        assertChildOf(root, spans.get("ContentNegotiator.readBody"));
+        assertChildOf(root, spans.get("ContentNegotiator.respond"));
+        JsonNode service = spans.get("SocialMediaService.createMessage");
+        assertChildOf(root, service);
+        JsonNode storage = spans.get("SocialMediaDAO.createMessage");
+        assertChildOf(service, storage);
+        assertChildOf(storage, spans.get("connect"));
+        JsonNode insert = spans.get("INSERT");
+        assertChildOf(storage, insert);
+        Assert.assertEquals(Span.KIND_CLIENT, insert.get("kind").asInt());
+        Assert.assertTrue(attribute(insert, "db.statement").get("stringValue").asText().startsWith("INSERT INTO message"));
+        Assert.assertTrue(Long.parseLong(insert.get("startTimeUnixNano").asText()) >= Long.parseLong(root.get("startTimeUnixNano").asText()));
+        Assert.assertTrue(Long.parseLong(insert.get("endTimeUnixNano").asText()) <= Long.parseLong(root.get("endTimeUnixNano").asText()));
+    }
+
+    /**
+     * Sending an http request to GET localhost:8080/messages/1 with sampling off
+     *
+     * Expected: a trace id is still reported, but nothing is written
+     */
+    @Test
+    public void unsampledRequestGetsATraceIdOnly() throws IOException, InterruptedException {
+        Tracing.setSampleRate(0);
+        long sampled = Tracing.getMetrics().get("sampled");
+        HttpResponse<String> response = webClient.send(HttpRequest.newBuilder()
+                .uri(URI.create(baseUrl + "/messages/1")).build(), HttpResponse.BodyHandlers.ofString());
+        Assert.assertEquals(200, response.statusCode());
+        Assert.assertTrue(response.headers().firstValue(Tracing.TRACE_ID_HEADER).orElse("").matches("[0-9a-f]{32}"));
+        Assert.assertTrue(exporter.awaitWritten(5000));
+        Assert.assertEquals(sampled, (long) Tracing.getMetrics().get("sampled"));
+        Assert.assertFalse(Files.exists(exporter.getFile(0)));
+    }
+
+    /**
+     * Sending an http request to GET localhost:8080/messages/1 with a sampled traceparent header and sampling off
+     *
+     * Expected: the caller's trace is continued and recorded, named after the route
+     */
+    @Test
+    public void callerTraceIsContinued() throws IOException, InterruptedException {
+        Tracing.setSampleRate(0);
+        String traceId = "4bf92f3577b34da6a3ce929d0e0e4736";
+        HttpResponse<String> response = webClient.send(HttpRequest.newBuilder()
+                .uri(URI.create(baseUrl + "/messages/1"))
+                .header(Tracing.TRACEPARENT_HEADER, "00-" + traceId + "-00f067aa0ba902b7-01").build(), HttpResponse.BodyHandlers.ofString());
+        Assert.assertEquals(traceId, response.headers().firstValue(Tracing.TRACE_ID_HEADER).orElse(""));
+
+        JsonNode root = spansByName(traceId).get("GET /messages/{message_id}");
+        Assert.assertEquals("00f067aa0ba902b7", root.get("parentSpanId").asText());
+    }
+
+    /**
+     * The exporter rolls the file once it would grow past its limit and keeps only the newest files.
+     */
+    @Test
+    public void exporterRollsFiles() throws IOException, InterruptedException {
+        TraceExporter rolling = new TraceExporter(directory.resolve("rolling"), 1, 3);
+        Tracing.setExporter(rolling);
+        for (int i = 0; i < 5; i++){
+            webClient.send(HttpRequest.newBuilder().uri(URI.create(baseUrl + "/messages/1")).build(),
+                    HttpResponse.BodyHandlers.ofString());
+        }
+        Assert.assertTrue(rolling.awaitWritten(5000));
+        for (int index = 0; index < 3; index++){
+            Assert.assertEquals(1, Files.readAllLines(rolling.getFile(index)).size());
+        }
+        Assert.assertFalse(Files.exists(rolling.getFile(3)));
+        Assert.assertEquals(5, (long) rolling.getMetrics().get("exported"));
+    }
+
+    /**
+     * @return the spans of the trace written by the exporter, by name, the first one of each name
+     */
+    private Map<String, JsonNode> spansByName(String traceId) throws IOException, InterruptedException {
+        Assert.assertTrue(exporter.awaitWritten(5000));
+        Map<String, JsonNode> spans = new HashMap<String, JsonNode>();
+        List<String> lines = new ArrayList<String>(Files.readAllLines(exporter.getFile(0)));
+        for (String line : lines){
+            JsonNode resourceSpans = objectMapper.readTree(line).get("resourceSpans").get(0);
+            Assert.assertEquals("social-media", resourceSpans.get("resource").get("attributes").get(0).get("value").get("stringValue").asText());
+            for (JsonNode span : resourceSpans.get("scopeSpans").get(0).get("spans")){
+                if (span.get("traceId").asText().equals(traceId)){
+                    spans.putIfAbsent(span.get("name").asText(), span);
+                }
+            }
+        }
+        Assert.assertFalse(spans.isEmpty());
+        return spans;
+    }
+
+    private static JsonNode attribute(JsonNode span, String key){
+        for (JsonNode attribute : span.get("attributes")){
+            if (attribute.get("key").asText().equals(key)){
+                return attribute.get("value");
+            }
+        }
+        return null;
+    }
+
+    private static void assertChildOf(JsonNode parent, JsonNode child){
+        Assert.assertNotNull(child);
+        Assert.assertEquals(parent.get("spanId").asText(), child.get("parentSpanId").asText());
+    }
+}